@@ -14,7 +14,6 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.sql.*;
-import java.util.HashMap;
 import java.util.Properties;
 import java.util.concurrent.Callable;
 
@@ -51,15 +50,7 @@ public class Db implements Cloneable, AutoCloseable {
     public void close() {
         synchronized (connectionString) {
             if (connection != null) {
-                for (PreparedStatement s : cachedStatements.values()) {
-                    try {
-                        s.close();
-                    } catch (SQLException e) {
-                        // connection is closed, we ignore it
-//                        log.d("failure closing statemment: " + e);
-                    }
-                }
-                cachedStatements.clear();
+                statementCache.clear();
                 try {
                     connection.close();
                 } catch (SQLException e) {
@@ -75,6 +66,23 @@ public class Db implements Cloneable, AutoCloseable {
         return connection == null;
     }
 
+    /**
+     * Check that the connection is still alive, see {@link Connection#isValid(int)}.
+     *
+     * @param timeoutSeconds is time to wait for the database to respond
+     * @return false if the connection is closed or broken
+     */
+    public boolean isValid(int timeoutSeconds) {
+        Connection c = connection;
+        if (c == null)
+            return false;
+        try {
+            return c.isValid(timeoutSeconds);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
     @Override
     protected void finalize() throws Throwable {
         close();
@@ -139,6 +147,7 @@ public class Db implements Cloneable, AutoCloseable {
             connection = DriverManager.getConnection(connectionString, properties);
         else
             connection = DriverManager.getConnection(connectionString);
+        statementCache = new StatementCache(connection, DEFAULT_STATEMENT_CACHE_SIZE, new SqlStats());
         this.properties = properties;
 //        System.out.println("creating db instance for " + Thread.currentThread().getId());
         this.walMode = true;
@@ -273,42 +282,106 @@ public class Db implements Cloneable, AutoCloseable {
         createDB(migrationsResource);
     }
 
-    private HashMap<String, PreparedStatement> cachedStatements = new HashMap<>();
+    /**
+     * Default maximum number of prepared statements cached by one instance, see {@link #setStatementCacheSize(int)}.
+     */
+    public static final int DEFAULT_STATEMENT_CACHE_SIZE = 256;
+
+    private StatementCache statementCache;
 
+    /**
+     * Get the prepared statement for the sqlText, cached if possible, and set its parameters. The statement must be
+     * closed by the caller: closing returns it to the cache. If {@link Statement#closeOnCompletion()} is called, it
+     * returns to the cache as its result set is closed.
+     *
+     * @param sqlText sql text string with '?' for parameters
+     * @param args    statement parameters
+     *
+     * @return statement ready to execute
+     *
+     * @throws SQLException
+     */
     public PreparedStatement statement(String sqlText, Object... args) throws SQLException {
 //        log.d("statement: |" + sqlText + "|  " + Arrays.toString(args));
-//        System.out.println("statement: |" + sqlText + "|  " + Arrays.toString(args));
-//        PreparedStatement statement = cachedStatements.get(sqlText);
-        PreparedStatement statement = null;
-//        if (statement == null) {
-        synchronized (connection) {
-            statement = connection.prepareStatement(sqlText);
-        }
-//            cachedStatements.put(sqlText, statement);
-//        } else {
-//            statement.clearParameters();
-//        }
-        int index = 1;
-        for (Object arg : args) {
-            statement.setObject(index, arg);
-            index++;
-        }
+        PreparedStatement statement = statementCache.prepare(sqlText, false);
+        setParameters(statement, args);
+        return statement;
+    }
+
+    /**
+     * Prepare a new statement for the sqlText and set its parameters, bypassing the statement cache. Use it for SQL
+     * generated for the number of its parameters, e.g. {@code IN} lists, so it does not push the repeated statements
+     * out of the cache.
+     *
+     * @param sqlText sql text string with '?' for parameters
+     * @param args    statement parameters
+     *
+     * @return statement ready to execute, must be closed by the caller
+     *
+     * @throws SQLException
+     */
+    public PreparedStatement uncachedStatement(String sqlText, Object... args) throws SQLException {
+        PreparedStatement statement = statementCache.prepareUncached(sqlText);
+        setParameters(statement, args);
         return statement;
     }
 
     public PreparedStatement statementReturningKeys(String sqlText, Object... args) throws SQLException {
-        PreparedStatement statement = null;
-        synchronized (connection) {
-            statement = connection.prepareStatement(sqlText, Statement.RETURN_GENERATED_KEYS);
-        }
-        int index = 1;
-        for (Object arg : args) {
-            statement.setObject(index, arg);
-            index++;
-        }
+        PreparedStatement statement = statementCache.prepare(sqlText, true);
+        setParameters(statement, args);
         return statement;
     }
 
+    private static void setParameters(PreparedStatement statement, Object... args) throws SQLException {
+        try {
+            int index = 1;
+            for (Object arg : args) {
+                statement.setObject(index, arg);
+                index++;
+            }
+        } catch (SQLException e) {
+            statement.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Set maximum number of prepared statements to keep, least recently used ones are closed above it. 0 disables the
+     * cache, so each {@link #statement(String, Object...)} prepares a new one.
+     *
+     * @param size is the number of statements
+     */
+    public void setStatementCacheSize(int size) {
+        statementCache.setCapacity(size);
+    }
+
+    public int getStatementCacheSize() {
+        return statementCache.getCapacity();
+    }
+
+    /**
+     * @return number of prepared statements in the cache now
+     */
+    public int getCachedStatementsCount() {
+        return statementCache.size();
+    }
+
+    /**
+     * @return execution statistics of the statements created by this instance
+     */
+    public SqlStats getSqlStats() {
+        return statementCache.getStats();
+    }
+
+    /**
+     * Collect execution statistics into the given instance, e.g. to share it between connections.
+     *
+     * @param sqlStats is statistics to update
+     */
+    public void setSqlStats(SqlStats sqlStats) {
+        statementCache.setStats(sqlStats);
+    }
+
     public ResultSet queryRow(String sqlText, Object... args) throws SQLException {
         PreparedStatement s = statement(sqlText, args);
         s.closeOnCompletion();
@@ -317,8 +390,8 @@ public class Db implements Cloneable, AutoCloseable {
         if (rs.next()) {
             return rs;
         } else {
-            if (sqlite)
-                s.close();
+            // nobody would close it, and cached statement should return to the cache
+            s.close();
             return null;
         }
     }
@@ -1,28 +1,105 @@
 package com.icodici.db;
 
+import net.sergeych.utils.LogPrinter;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.ref.WeakReference;
 import java.sql.SQLException;
+import java.time.Duration;
+import java.util.Iterator;
 import java.util.Properties;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
 
+/**
+ * Pool of {@link PooledDb} connections. A thread gets the same connection from {@link #db()} until it closes it
+ * as many times as it got it, so nested calls and transactions in one thread work with the same connection.
+ * <p>
+ * The pool keeps from {@link #getMinConnections()} to {@link #getMaxConnections()} connections. When all are in use,
+ * {@link #db()} waits for one up to {@link #getBorrowTimeout()} and then fails with {@link SQLException}. Connections
+ * that were idle for more than {@link #getValidationInterval()} are checked with {@link Db#isValid(int)} before
+ * being given out, connections older than {@link #getMaxLifetime()} or idle longer than {@link #getIdleTimeout()}
+ * are closed. Connections held longer than {@link #getLeakThreshold()} are reported with the current stack of the
+ * thread that holds them, or with the stack of the code that took them if {@link #setLeakTraceEnabled(boolean)}.
+ */
 public class DbPool implements AutoCloseable {
 
+    public static final Duration DEFAULT_BORROW_TIMEOUT = Duration.ofSeconds(30);
+    public static final Duration DEFAULT_VALIDATION_INTERVAL = Duration.ofSeconds(5);
+    public static final Duration DEFAULT_IDLE_TIMEOUT = Duration.ofMinutes(10);
+    public static final Duration DEFAULT_MAX_LIFETIME = Duration.ofMinutes(30);
+    public static final Duration DEFAULT_LEAK_THRESHOLD = Duration.ofMinutes(1);
+
+    private static final int VALIDATION_TIMEOUT_SECONDS = 5;
+    private static final long WAIT_SLICE_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final Duration HOUSEKEEPING_PERIOD = Duration.ofSeconds(5);
+
+    private static LogPrinter log = new LogPrinter("DBPL");
+
+    /**
+     * Shared by all pools, does only short periodic jobs.
+     */
+    private static final ScheduledExecutorService housekeeper = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "db-pool-housekeeper");
+        thread.setDaemon(true);
+        return thread;
+    });
+
     private final String connectionString;
     private final Properties properties;
-    private final int maximumConnections;
-    private volatile int total = 0;
+
+    private volatile int minConnections = 0;
+    private volatile int maxConnections;
+    private volatile int statementCacheSize = Db.DEFAULT_STATEMENT_CACHE_SIZE;
+    private volatile Duration borrowTimeout = DEFAULT_BORROW_TIMEOUT;
+    private volatile Duration validationInterval = DEFAULT_VALIDATION_INTERVAL;
+    private volatile Duration idleTimeout = DEFAULT_IDLE_TIMEOUT;
+    private volatile Duration maxLifetime = DEFAULT_MAX_LIFETIME;
+    private volatile Duration leakThreshold = DEFAULT_LEAK_THRESHOLD;
+    private volatile boolean leakTraceEnabled = false;
+
+    private final SqlStats sqlStats = new SqlStats();
+    private volatile LongConsumer borrowWaitListener = null;
+    private volatile Consumer<String> reporter = message -> log.e(message);
+
+    /**
+     * Connections opened or being opened.
+     */
+    private final AtomicInteger total = new AtomicInteger();
+    private final AtomicInteger waiting = new AtomicInteger();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong discarded = new AtomicLong();
+    private final AtomicLong leaks = new AtomicLong();
+
+    /**
+     * Idle connections, the most recently returned first: busy pool reuses the same few connections, and the rest
+     * stay at the tail to expire.
+     */
+    private final LinkedBlockingDeque<PooledDb> idle = new LinkedBlockingDeque<>();
+    private final Set<PooledDb> borrowed = ConcurrentHashMap.newKeySet();
 
     /**
      * This the per-thread cache of the DB connection.
-     * TODO: should the connection be blindly taken from this cache?
-     * Or only if it is not used already in some other transaction?
      */
     private ThreadLocal<PooledDb> threadDb = new ThreadLocal<>();
 
+    private volatile boolean closed = false;
+    private final ScheduledFuture<?> housekeeping;
+
     @Override
     public void close() throws Exception {
-        threadDb.set(null);
-        while( !pool.isEmpty())
-            pool.take().destroy();
+        closed = true;
+        housekeeping.cancel(false);
+        threadDb.remove();
+        PooledDb db;
+        while ((db = idle.pollFirst()) != null)
+            discard(db);
+        // borrowed connections are closed as they return
     }
 
     public interface DbConsumer<R> {
@@ -36,48 +113,190 @@ public class DbPool implements AutoCloseable {
     public DbPool(String connectionString, Properties properties, int maxConnections) throws SQLException {
         this.connectionString = connectionString;
         this.properties = properties;
-        this.maximumConnections = maxConnections;
+        this.maxConnections = maxConnections;
+        long period = HOUSEKEEPING_PERIOD.toMillis();
+        // weak reference: the pool that was not closed still could be collected with its connections
+        WeakReference<DbPool> pool = new WeakReference<>(this);
+        housekeeping = housekeeper.scheduleWithFixedDelay(() -> {
+            DbPool p = pool.get();
+            if (p == null)
+                throw new CancellationException("pool is collected");
+            p.houseKeeping();
+        }, period, period, TimeUnit.MILLISECONDS);
     }
 
-    private LinkedBlockingQueue<PooledDb> pool = new LinkedBlockingQueue<>();
-
+    /**
+     * Get the connection of the calling thread, taking it from the pool if the thread has none. Each call must be
+     * paired with {@link PooledDb#close()}.
+     *
+     * @return connection
+     * @throws SQLException if the pool is closed, connection failed to open, or no connection got free during
+     *                      {@link #getBorrowTimeout()}
+     */
     public PooledDb db() throws SQLException {
-        try {
-            PooledDb db = threadDb.get();
-            // One thread - one connection, e.g. transactions work with the same db and
-            // all other calls in the same thread use same pooled instance
-            if( db != null ) {
-                // TODO: uncomment the next assert line to spot every transaction-inside-transaction.
-                // This will definitely break some unit tests until the code is change to never cause
-                // transaction-inside-transaction DB access!
-                // assert !db.isInTransaction;
-                return db;
-            }
+        PooledDb db = threadDb.get();
+        // One thread - one connection, e.g. transactions work with the same db and
+        // all other calls in the same thread use same pooled instance
+        if (db != null) {
+            db.borrowDepth++;
+            return db;
+        }
+        long start = System.nanoTime();
+        db = borrow(start);
+        LongConsumer listener = borrowWaitListener;
+        if (listener != null)
+            listener.accept(System.nanoTime() - start);
 
-            PooledDb pdb = total >= maximumConnections ? pool.take() : pool.poll();
-            if( pdb != null ) {
-//                System.out.println("take left " + pool.size() + " total " + total + " cached " + cached);
-            } else {
-                pdb = new PooledDb(this, connectionString, properties);
-                total++;
-//                System.out.println("new  left " + pool.size() + " total " + total + " cached " + cached);
+        db.borrowDepth = 1;
+        db.borrowedAt = System.currentTimeMillis();
+        db.borrowedBy = Thread.currentThread();
+        db.borrowTrace = leakTraceEnabled && !leakThreshold.isZero() ?
+                new Throwable("connection taken by " + db.borrowedBy.getName()) : null;
+        db.leakReported = false;
+        borrowed.add(db);
+        threadDb.set(db);
+        return db;
+    }
+
+    private PooledDb borrow(long start) throws SQLException {
+        long deadline = start + borrowTimeout.toNanos();
+        while (true) {
+            if (closed)
+                throw new SQLException("connection pool is closed");
+            PooledDb db = idle.pollFirst();
+            if (db == null) {
+                if (reserve())
+                    return open();
+                long left = deadline - System.nanoTime();
+                if (left <= 0) {
+                    timeouts.incrementAndGet();
+                    throw new SQLException("timed out waiting for a database connection, " + borrowed.size() +
+                            " of " + maxConnections + " are in use");
+                }
+                // wait in slices: a connection could be discarded meanwhile, then a new one could be opened
+                waiting.incrementAndGet();
+                try {
+                    db = idle.pollFirst(Math.min(left, WAIT_SLICE_NANOS), TimeUnit.NANOSECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new SQLException("Pooled operation interrupted");
+                } finally {
+                    waiting.decrementAndGet();
+                }
+                if (db == null)
+                    continue;
             }
-            threadDb.set(pdb);
-            return pdb;
-        } catch (InterruptedException e) {
-            throw new SQLException("Pooled operation interrupted");
+            if (isUsable(db, System.currentTimeMillis()))
+                return db;
+            discard(db);
+        }
+    }
+
+    private boolean reserve() {
+        while (true) {
+            int n = total.get();
+            if (n >= maxConnections)
+                return false;
+            if (total.compareAndSet(n, n + 1))
+                return true;
+        }
+    }
+
+    private PooledDb open() throws SQLException {
+        try {
+            return new PooledDb(this, connectionString, properties);
+        } catch (SQLException e) {
+            total.decrementAndGet();
+            throw e;
         } catch (Exception e) {
-            throw new SQLException("Pooled operation interrupted: " + e.getMessage());
+            total.decrementAndGet();
+            throw new SQLException("failed to open pooled connection: " + e.getMessage(), e);
         }
     }
 
+    private boolean isUsable(PooledDb db, long now) {
+        if (isExpired(db, now))
+            return false;
+        if (now - db.returnedAt > validationInterval.toMillis())
+            return db.isValid(VALIDATION_TIMEOUT_SECONDS);
+        return true;
+    }
+
+    private boolean isExpired(PooledDb db, long now) {
+        return !maxLifetime.isZero() && now - db.createdAt > maxLifetime.toMillis();
+    }
+
+    private void discard(PooledDb db) {
+        discarded.incrementAndGet();
+        total.decrementAndGet();
+        db.destroy();
+    }
+
     void returnToPool(PooledDb db) {
-        if(db.equals(threadDb.get())) {
-            threadDb.set(null);
-            pool.add(db);
+        if (db != threadDb.get())
+            return;
+        if (--db.borrowDepth > 0)
+            return;
+        threadDb.remove();
+        borrowed.remove(db);
+        db.borrowedBy = null;
+        db.borrowTrace = null;
+        db.returnedAt = System.currentTimeMillis();
+        if (closed || db.isClosed() || isExpired(db, db.returnedAt) || total.get() > maxConnections)
+            discard(db);
+        else
+            idle.offerFirst(db);
+    }
+
+    private void houseKeeping() {
+        try {
+            long now = System.currentTimeMillis();
+
+            // close expired connections and ones idle too long, oldest first
+            Iterator<PooledDb> it = idle.descendingIterator();
+            while (it.hasNext()) {
+                PooledDb db = it.next();
+                boolean idleTooLong = total.get() > minConnections && now - db.returnedAt > idleTimeout.toMillis();
+                if ((idleTooLong || isExpired(db, now)) && idle.remove(db))
+                    discard(db);
+            }
+
+            while (!closed && total.get() < minConnections && reserve())
+                idle.offerLast(open());
+
+            long threshold = leakThreshold.toMillis();
+            if (threshold > 0) {
+                for (PooledDb db : borrowed) {
+                    Thread borrowedBy = db.borrowedBy;
+                    if (!db.leakReported && borrowedBy != null && now - db.borrowedAt > threshold) {
+                        db.leakReported = true;
+                        leaks.incrementAndGet();
+                        reporter.accept("database connection is held for " + (now - db.borrowedAt) +
+                                " ms, possible leak: " + leakTrace(borrowedBy, db.borrowTrace));
+                    }
+                }
+            }
+        } catch (Exception e) {
+            log.e("pool housekeeping failed: " + e);
         }
     }
 
+    /**
+     * @return the stack of the code that took the connection if it was kept, or the current stack of the thread
+     */
+    private static String leakTrace(Thread borrowedBy, Throwable borrowTrace) {
+        StringWriter trace = new StringWriter();
+        PrintWriter writer = new PrintWriter(trace);
+        if (borrowTrace != null) {
+            borrowTrace.printStackTrace(writer);
+        } else {
+            writer.println("connection held by " + borrowedBy.getName() + ", now at:");
+            for (StackTraceElement element : borrowedBy.getStackTrace())
+                writer.println("\tat " + element);
+        }
+        writer.flush();
+        return trace.toString();
+    }
 
     public <T> T execute(DbConsumer<T> consumer) throws Exception {
         try (PooledDb pdb = db()) { return consumer.accept(pdb); }
@@ -86,4 +305,186 @@ public class DbPool implements AutoCloseable {
     public void execute(VoidDbConsumer consumer) throws Exception {
         try (PooledDb pdb = db()) { consumer.accept(pdb); }
     }
+
+    /**
+     * @return execution statistics of the statements of all connections of the pool
+     */
+    public SqlStats getSqlStats() {
+        return sqlStats;
+    }
+
+    public int getStatementCacheSize() {
+        return statementCacheSize;
+    }
+
+    /**
+     * Set the size of the prepared statements cache of each connection, see {@link Db#setStatementCacheSize(int)}.
+     * Applies to the connections opened after the call.
+     *
+     * @param statementCacheSize is the number of statements
+     */
+    public void setStatementCacheSize(int statementCacheSize) {
+        this.statementCacheSize = statementCacheSize;
+    }
+
+    /**
+     * @return number of connections taken from the pool now
+     */
+    public int getActiveCount() {
+        return borrowed.size();
+    }
+
+    /**
+     * @return number of open connections waiting in the pool
+     */
+    public int getIdleCount() {
+        return idle.size();
+    }
+
+    /**
+     * @return number of open connections, both active and idle
+     */
+    public int getTotalCount() {
+        return total.get();
+    }
+
+    /**
+     * @return number of threads waiting for a connection now
+     */
+    public int getWaitingCount() {
+        return waiting.get();
+    }
+
+    /**
+     * @return how many times {@link #db()} failed because no connection got free in time
+     */
+    public long getTimeoutsCount() {
+        return timeouts.get();
+    }
+
+    /**
+     * @return how many connections were closed because they were broken, expired or idle too long
+     */
+    public long getDiscardedCount() {
+        return discarded.get();
+    }
+
+    /**
+     * @return how many times a connection was held longer than {@link #getLeakThreshold()}
+     */
+    public long getLeaksCount() {
+        return leaks.get();
+    }
+
+    /**
+     * Set the listener called on each connection taken from the pool with the time spent waiting for it, in
+     * nanoseconds. Nested calls to {@link #db()} in the same thread are not counted.
+     *
+     * @param borrowWaitListener is the listener or null
+     */
+    public void setBorrowWaitListener(LongConsumer borrowWaitListener) {
+        this.borrowWaitListener = borrowWaitListener;
+    }
+
+    /**
+     * Set the receiver of the connection leak messages, they are logged by default.
+     *
+     * @param reporter is the receiver
+     */
+    public void setReporter(Consumer<String> reporter) {
+        this.reporter = reporter;
+    }
+
+    public int getMinConnections() {
+        return minConnections;
+    }
+
+    /**
+     * @param minConnections is number of connections the pool keeps open even if they are not used
+     */
+    public void setMinConnections(int minConnections) {
+        this.minConnections = minConnections;
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * Set the maximum number of open connections. If it is less than open now, extra connections are closed as they
+     * return to the pool and expire.
+     *
+     * @param maxConnections is the number of connections
+     */
+    public void setMaxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+    }
+
+    public Duration getBorrowTimeout() {
+        return borrowTimeout;
+    }
+
+    public void setBorrowTimeout(Duration borrowTimeout) {
+        this.borrowTimeout = borrowTimeout;
+    }
+
+    public Duration getValidationInterval() {
+        return validationInterval;
+    }
+
+    /**
+     * @param validationInterval is the idle time after which a connection is validated before it is given out
+     */
+    public void setValidationInterval(Duration validationInterval) {
+        this.validationInterval = validationInterval;
+    }
+
+    public Duration getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    /**
+     * @param idleTimeout is the idle time after which a connection above {@link #getMinConnections()} is closed
+     */
+    public void setIdleTimeout(Duration idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    public Duration getMaxLifetime() {
+        return maxLifetime;
+    }
+
+    /**
+     * @param maxLifetime is the age after which a connection is closed when it is not used, zero for no limit
+     */
+    public void setMaxLifetime(Duration maxLifetime) {
+        this.maxLifetime = maxLifetime;
+    }
+
+    public Duration getLeakThreshold() {
+        return leakThreshold;
+    }
+
+    /**
+     * Set the time a connection could be held before it is reported as leaked, zero disables the reports.
+     *
+     * @param leakThreshold is the time
+     */
+    public void setLeakThreshold(Duration leakThreshold) {
+        this.leakThreshold = leakThreshold;
+    }
+
+    public boolean isLeakTraceEnabled() {
+        return leakTraceEnabled;
+    }
+
+    /**
+     * Keep the stack of each {@link #db()} call to report where the leaked connection was taken. It costs a stack
+     * capture on every borrow, so it is off by default: then the current stack of the holding thread is reported.
+     *
+     * @param leakTraceEnabled is true to keep the stacks
+     */
+    public void setLeakTraceEnabled(boolean leakTraceEnabled) {
+        this.leakTraceEnabled = leakTraceEnabled;
+    }
 }
@@ -0,0 +1,664 @@
+/*
+ * Copyright (c) 2018, iCodici S.n.C, All Rights Reserved
+ *
+ */
+
+package com.icodici.db;
+
+import java.io.InputStream;
+import java.io.Reader;
+import java.math.BigDecimal;
+import java.net.URL;
+import java.sql.*;
+import java.util.Calendar;
+
+/**
+ * {@link PreparedStatement} that forwards all calls to the other one, for the wrappers that change only a few of them.
+ * Calls are plain virtual calls, not reflective like with a {@link java.lang.reflect.Proxy}.
+ * <p>
+ * Subclasses could check their state before each call by overriding {@link #target()}, wrap executions with {@link
+ * #perform(SqlCall)}, wrap returned result sets with {@link #wrap(ResultSet)} and track statement settings changes with
+ * {@link #settingChanged()}. {@link #close()}, {@link #getConnection()} and unwrapping go to the statement directly.
+ */
+abstract class DelegatingPreparedStatement implements PreparedStatement {
+
+    /**
+     * Execution of the statement, for {@link #perform(SqlCall)}.
+     */
+    interface SqlCall<T> {
+        T call() throws SQLException;
+    }
+
+    protected final PreparedStatement statement;
+
+    DelegatingPreparedStatement(PreparedStatement statement) {
+        this.statement = statement;
+    }
+
+    /**
+     * @return statement to forward the call to, the wrapped one by default
+     * @throws SQLException if the call is not allowed now
+     */
+    protected PreparedStatement target() throws SQLException {
+        return statement;
+    }
+
+    /**
+     * Run the execution (execute, executeQuery, executeUpdate, executeBatch and like).
+     *
+     * @param execution calls the execute method of the {@link #target()}
+     * @return what the execution returns
+     */
+    protected <T> T perform(SqlCall<T> execution) throws SQLException {
+        return execution.call();
+    }
+
+    /**
+     * Wrap the result set returned by executeQuery, getResultSet or getGeneratedKeys.
+     *
+     * @param resultSet is result set of the target, could be null
+     * @return result set to return to the caller, the same one by default
+     */
+    protected ResultSet wrap(ResultSet resultSet) throws SQLException {
+        return resultSet;
+    }
+
+    /**
+     * Called before the statement setting like fetch size or query timeout is changed.
+     */
+    protected void settingChanged() {
+    }
+
+    @Override
+    public String toString() {
+        return statement.toString();
+    }
+
+    @Override
+    public void addBatch() throws SQLException {
+        target().addBatch();
+    }
+
+    @Override
+    public void addBatch(String sql) throws SQLException {
+        target().addBatch(sql);
+    }
+
+    @Override
+    public void cancel() throws SQLException {
+        target().cancel();
+    }
+
+    @Override
+    public void clearBatch() throws SQLException {
+        target().clearBatch();
+    }
+
+    @Override
+    public void clearParameters() throws SQLException {
+        target().clearParameters();
+    }
+
+    @Override
+    public void clearWarnings() throws SQLException {
+        target().clearWarnings();
+    }
+
+    @Override
+    public void close() throws SQLException {
+        statement.close();
+    }
+
+    @Override
+    public void closeOnCompletion() throws SQLException {
+        target().closeOnCompletion();
+    }
+
+    @Override
+    public boolean execute() throws SQLException {
+        PreparedStatement s = target();
+        return perform(s::execute);
+    }
+
+    @Override
+    public boolean execute(String sql) throws SQLException {
+        PreparedStatement s = target();
+        return perform(() -> s.execute(sql));
+    }
+
+    @Override
+    public boolean execute(String sql, int[] columnIndexes) throws SQLException {
+        PreparedStatement s = target();
+        return perform(() -> s.execute(sql, columnIndexes));
+    }
+
+    @Override
+    public boolean execute(String sql, String[] columnNames) throws SQLException {
+        PreparedStatement s = target();
+        return perform(() -> s.execute(sql, columnNames));
+    }
+
+    @Override
+    public boolean execute(String sql, int autoGeneratedKeys) throws SQLException {
+        PreparedStatement s = target();
+        return perform(() -> s.execute(sql, autoGeneratedKeys));
+    }
+
+    @Override
+    public int[] executeBatch() throws SQLException {
+        PreparedStatement s = target();
+        return perform(s::executeBatch);
+    }
+
+    @Override
+    public long[] executeLargeBatch() throws SQLException {
+        PreparedStatement s = target();
+        return perform(s::executeLargeBatch);
+    }
+
+    @Override
+    public long executeLargeUpdate() throws SQLException {
+        PreparedStatement s = target();
+        return perform(s::executeLargeUpdate);
+    }
+
+    @Override
+    public long executeLargeUpdate(String sql) throws SQLException {
+        PreparedStatement s = target();
+        return perform(() -> s.executeLargeUpdate(sql));
+    }
+
+    @Override
+    public long executeLargeUpdate(String sql, int[] columnIndexes) throws SQLException {
+        PreparedStatement s = target();
+        return perform(() -> s.executeLargeUpdate(sql, columnIndexes));
+    }
+
+    @Override
+    public long executeLargeUpdate(String sql, String[] columnNames) throws SQLException {
+        PreparedStatement s = target();
+        return perform(() -> s.executeLargeUpdate(sql, columnNames));
+    }
+
+    @Override
+    public long executeLargeUpdate(String sql, int autoGeneratedKeys) throws SQLException {
+        PreparedStatement s = target();
+        return perform(() -> s.executeLargeUpdate(sql, autoGeneratedKeys));
+    }
+
+    @Override
+    public ResultSet executeQuery() throws SQLException {
+        PreparedStatement s = target();
+        return wrap(perform(s::executeQuery));
+    }
+
+    @Override
+    public ResultSet executeQuery(String sql) throws SQLException {
+        PreparedStatement s = target();
+        return wrap(perform(() -> s.executeQuery(sql)));
+    }
+
+    @Override
+    public int executeUpdate() throws SQLException {
+        PreparedStatement s = target();
+        return perform(s::executeUpdate);
+    }
+
+    @Override
+    public int executeUpdate(String sql) throws SQLException {
+        PreparedStatement s = target();
+        return perform(() -> s.executeUpdate(sql));
+    }
+
+    @Override
+    public int executeUpdate(String sql, int[] columnIndexes) throws SQLException {
+        PreparedStatement s = target();
+        return perform(() -> s.executeUpdate(sql, columnIndexes));
+    }
+
+    @Override
+    public int executeUpdate(String sql, String[] columnNames) throws SQLException {
+        PreparedStatement s = target();
+        return perform(() -> s.executeUpdate(sql, columnNames));
+    }
+
+    @Override
+    public int executeUpdate(String sql, int autoGeneratedKeys) throws SQLException {
+        PreparedStatement s = target();
+        return perform(() -> s.executeUpdate(sql, autoGeneratedKeys));
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        return statement.getConnection();
+    }
+
+    @Override
+    public int getFetchDirection() throws SQLException {
+        return target().getFetchDirection();
+    }
+
+    @Override
+    public int getFetchSize() throws SQLException {
+        return target().getFetchSize();
+    }
+
+    @Override
+    public ResultSet getGeneratedKeys() throws SQLException {
+        return wrap(target().getGeneratedKeys());
+    }
+
+    @Override
+    public long getLargeMaxRows() throws SQLException {
+        return target().getLargeMaxRows();
+    }
+
+    @Override
+    public long getLargeUpdateCount() throws SQLException {
+        return target().getLargeUpdateCount();
+    }
+
+    @Override
+    public int getMaxFieldSize() throws SQLException {
+        return target().getMaxFieldSize();
+    }
+
+    @Override
+    public int getMaxRows() throws SQLException {
+        return target().getMaxRows();
+    }
+
+    @Override
+    public ResultSetMetaData getMetaData() throws SQLException {
+        return target().getMetaData();
+    }
+
+    @Override
+    public boolean getMoreResults() throws SQLException {
+        return target().getMoreResults();
+    }
+
+    @Override
+    public boolean getMoreResults(int current) throws SQLException {
+        return target().getMoreResults(current);
+    }
+
+    @Override
+    public ParameterMetaData getParameterMetaData() throws SQLException {
+        return target().getParameterMetaData();
+    }
+
+    @Override
+    public int getQueryTimeout() throws SQLException {
+        return target().getQueryTimeout();
+    }
+
+    @Override
+    public ResultSet getResultSet() throws SQLException {
+        return wrap(target().getResultSet());
+    }
+
+    @Override
+    public int getResultSetConcurrency() throws SQLException {
+        return target().getResultSetConcurrency();
+    }
+
+    @Override
+    public int getResultSetHoldability() throws SQLException {
+        return target().getResultSetHoldability();
+    }
+
+    @Override
+    public int getResultSetType() throws SQLException {
+        return target().getResultSetType();
+    }
+
+    @Override
+    public int getUpdateCount() throws SQLException {
+        return target().getUpdateCount();
+    }
+
+    @Override
+    public SQLWarning getWarnings() throws SQLException {
+        return target().getWarnings();
+    }
+
+    @Override
+    public boolean isCloseOnCompletion() throws SQLException {
+        return target().isCloseOnCompletion();
+    }
+
+    @Override
+    public boolean isClosed() throws SQLException {
+        return target().isClosed();
+    }
+
+    @Override
+    public boolean isPoolable() throws SQLException {
+        return target().isPoolable();
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface) throws SQLException {
+        return statement.isWrapperFor(iface);
+    }
+
+    @Override
+    public void setArray(int parameterIndex, Array x) throws SQLException {
+        target().setArray(parameterIndex, x);
+    }
+
+    @Override
+    public void setAsciiStream(int parameterIndex, InputStream x) throws SQLException {
+        target().setAsciiStream(parameterIndex, x);
+    }
+
+    @Override
+    public void setAsciiStream(int parameterIndex, InputStream x, int length) throws SQLException {
+        target().setAsciiStream(parameterIndex, x, length);
+    }
+
+    @Override
+    public void setAsciiStream(int parameterIndex, InputStream x, long length) throws SQLException {
+        target().setAsciiStream(parameterIndex, x, length);
+    }
+
+    @Override
+    public void setBigDecimal(int parameterIndex, BigDecimal x) throws SQLException {
+        target().setBigDecimal(parameterIndex, x);
+    }
+
+    @Override
+    public void setBinaryStream(int parameterIndex, InputStream x) throws SQLException {
+        target().setBinaryStream(parameterIndex, x);
+    }
+
+    @Override
+    public void setBinaryStream(int parameterIndex, InputStream x, int length) throws SQLException {
+        target().setBinaryStream(parameterIndex, x, length);
+    }
+
+    @Override
+    public void setBinaryStream(int parameterIndex, InputStream x, long length) throws SQLException {
+        target().setBinaryStream(parameterIndex, x, length);
+    }
+
+    @Override
+    public void setBlob(int parameterIndex, InputStream inputStream) throws SQLException {
+        target().setBlob(parameterIndex, inputStream);
+    }
+
+    @Override
+    public void setBlob(int parameterIndex, Blob x) throws SQLException {
+        target().setBlob(parameterIndex, x);
+    }
+
+    @Override
+    public void setBlob(int parameterIndex, InputStream inputStream, long length) throws SQLException {
+        target().setBlob(parameterIndex, inputStream, length);
+    }
+
+    @Override
+    public void setBoolean(int parameterIndex, boolean x) throws SQLException {
+        target().setBoolean(parameterIndex, x);
+    }
+
+    @Override
+    public void setByte(int parameterIndex, byte x) throws SQLException {
+        target().setByte(parameterIndex, x);
+    }
+
+    @Override
+    public void setBytes(int parameterIndex, byte[] x) throws SQLException {
+        target().setBytes(parameterIndex, x);
+    }
+
+    @Override
+    public void setCharacterStream(int parameterIndex, Reader reader) throws SQLException {
+        target().setCharacterStream(parameterIndex, reader);
+    }
+
+    @Override
+    public void setCharacterStream(int parameterIndex, Reader x, int length) throws SQLException {
+        target().setCharacterStream(parameterIndex, x, length);
+    }
+
+    @Override
+    public void setCharacterStream(int parameterIndex, Reader x, long length) throws SQLException {
+        target().setCharacterStream(parameterIndex, x, length);
+    }
+
+    @Override
+    public void setClob(int parameterIndex, Reader reader) throws SQLException {
+        target().setClob(parameterIndex, reader);
+    }
+
+    @Override
+    public void setClob(int parameterIndex, Clob x) throws SQLException {
+        target().setClob(parameterIndex, x);
+    }
+
+    @Override
+    public void setClob(int parameterIndex, Reader reader, long length) throws SQLException {
+        target().setClob(parameterIndex, reader, length);
+    }
+
+    @Override
+    public void setCursorName(String name) throws SQLException {
+        PreparedStatement s = target();
+        settingChanged();
+        s.setCursorName(name);
+    }
+
+    @Override
+    public void setDate(int parameterIndex, Date x) throws SQLException {
+        target().setDate(parameterIndex, x);
+    }
+
+    @Override
+    public void setDate(int parameterIndex, Date x, Calendar cal) throws SQLException {
+        target().setDate(parameterIndex, x, cal);
+    }
+
+    @Override
+    public void setDouble(int parameterIndex, double x) throws SQLException {
+        target().setDouble(parameterIndex, x);
+    }
+
+    @Override
+    public void setEscapeProcessing(boolean enable) throws SQLException {
+        PreparedStatement s = target();
+        settingChanged();
+        s.setEscapeProcessing(enable);
+    }
+
+    @Override
+    public void setFetchDirection(int direction) throws SQLException {
+        PreparedStatement s = target();
+        settingChanged();
+        s.setFetchDirection(direction);
+    }
+
+    @Override
+    public void setFetchSize(int rows) throws SQLException {
+        PreparedStatement s = target();
+        settingChanged();
+        s.setFetchSize(rows);
+    }
+
+    @Override
+    public void setFloat(int parameterIndex, float x) throws SQLException {
+        target().setFloat(parameterIndex, x);
+    }
+
+    @Override
+    public void setInt(int parameterIndex, int x) throws SQLException {
+        target().setInt(parameterIndex, x);
+    }
+
+    @Override
+    public void setLargeMaxRows(long max) throws SQLException {
+        PreparedStatement s = target();
+        settingChanged();
+        s.setLargeMaxRows(max);
+    }
+
+    @Override
+    public void setLong(int parameterIndex, long x) throws SQLException {
+        target().setLong(parameterIndex, x);
+    }
+
+    @Override
+    public void setMaxFieldSize(int max) throws SQLException {
+        PreparedStatement s = target();
+        settingChanged();
+        s.setMaxFieldSize(max);
+    }
+
+    @Override
+    public void setMaxRows(int max) throws SQLException {
+        PreparedStatement s = target();
+        settingChanged();
+        s.setMaxRows(max);
+    }
+
+    @Override
+    public void setNCharacterStream(int parameterIndex, Reader x) throws SQLException {
+        target().setNCharacterStream(parameterIndex, x);
+    }
+
+    @Override
+    public void setNCharacterStream(int parameterIndex, Reader x, long length) throws SQLException {
+        target().setNCharacterStream(parameterIndex, x, length);
+    }
+
+    @Override
+    public void setNClob(int parameterIndex, Reader reader) throws SQLException {
+        target().setNClob(parameterIndex, reader);
+    }
+
+    @Override
+    public void setNClob(int parameterIndex, NClob x) throws SQLException {
+        target().setNClob(parameterIndex, x);
+    }
+
+    @Override
+    public void setNClob(int parameterIndex, Reader reader, long length) throws SQLException {
+        target().setNClob(parameterIndex, reader, length);
+    }
+
+    @Override
+    public void setNString(int parameterIndex, String x) throws SQLException {
+        target().setNString(parameterIndex, x);
+    }
+
+    @Override
+    public void setNull(int parameterIndex, int sqlType) throws SQLException {
+        target().setNull(parameterIndex, sqlType);
+    }
+
+    @Override
+    public void setNull(int parameterIndex, int sqlType, String typeName) throws SQLException {
+        target().setNull(parameterIndex, sqlType, typeName);
+    }
+
+    @Override
+    public void setObject(int parameterIndex, Object x) throws SQLException {
+        target().setObject(parameterIndex, x);
+    }
+
+    @Override
+    public void setObject(int parameterIndex, Object x, int targetSqlType) throws SQLException {
+        target().setObject(parameterIndex, x, targetSqlType);
+    }
+
+    @Override
+    public void setObject(int parameterIndex, Object x, SQLType targetSqlType) throws SQLException {
+        target().setObject(parameterIndex, x, targetSqlType);
+    }
+
+    @Override
+    public void setObject(int parameterIndex, Object x, int targetSqlType, int scaleOrLength) throws SQLException {
+        target().setObject(parameterIndex, x, targetSqlType, scaleOrLength);
+    }
+
+    @Override
+    public void setObject(int parameterIndex, Object x, SQLType targetSqlType, int scaleOrLength) throws SQLException {
+        target().setObject(parameterIndex, x, targetSqlType, scaleOrLength);
+    }
+
+    @Override
+    public void setPoolable(boolean poolable) throws SQLException {
+        PreparedStatement s = target();
+        settingChanged();
+        s.setPoolable(poolable);
+    }
+
+    @Override
+    public void setQueryTimeout(int seconds) throws SQLException {
+        PreparedStatement s = target();
+        settingChanged();
+        s.setQueryTimeout(seconds);
+    }
+
+    @Override
+    public void setRef(int parameterIndex, Ref x) throws SQLException {
+        target().setRef(parameterIndex, x);
+    }
+
+    @Override
+    public void setRowId(int parameterIndex, RowId x) throws SQLException {
+        target().setRowId(parameterIndex, x);
+    }
+
+    @Override
+    public void setSQLXML(int parameterIndex, SQLXML xmlObject) throws SQLException {
+        target().setSQLXML(parameterIndex, xmlObject);
+    }
+
+    @Override
+    public void setShort(int parameterIndex, short x) throws SQLException {
+        target().setShort(parameterIndex, x);
+    }
+
+    @Override
+    public void setString(int parameterIndex, String x) throws SQLException {
+        target().setString(parameterIndex, x);
+    }
+
+    @Override
+    public void setTime(int parameterIndex, Time x) throws SQLException {
+        target().setTime(parameterIndex, x);
+    }
+
+    @Override
+    public void setTime(int parameterIndex, Time x, Calendar cal) throws SQLException {
+        target().setTime(parameterIndex, x, cal);
+    }
+
+    @Override
+    public void setTimestamp(int parameterIndex, Timestamp x) throws SQLException {
+        target().setTimestamp(parameterIndex, x);
+    }
+
+    @Override
+    public void setTimestamp(int parameterIndex, Timestamp x, Calendar cal) throws SQLException {
+        target().setTimestamp(parameterIndex, x, cal);
+    }
+
+    @Override
+    public void setURL(int parameterIndex, URL x) throws SQLException {
+        target().setURL(parameterIndex, x);
+    }
+
+    @Deprecated
+    @Override
+    public void setUnicodeStream(int parameterIndex, InputStream x, int length) throws SQLException {
+        target().setUnicodeStream(parameterIndex, x, length);
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        return statement.unwrap(iface);
+    }
+}
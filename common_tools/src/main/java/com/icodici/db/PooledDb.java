@@ -8,6 +8,17 @@ public class PooledDb extends Db implements AutoCloseable {
     private final DbPool dbPool;
     volatile boolean isInTransaction = false;
 
+    final long createdAt = System.currentTimeMillis();
+    volatile long returnedAt = createdAt;
+    volatile long borrowedAt;
+    volatile Thread borrowedBy;
+    volatile Throwable borrowTrace;
+    volatile boolean leakReported;
+    /**
+     * Number of {@link DbPool#db()} calls not yet closed by the owning thread.
+     */
+    int borrowDepth = 0;
+
     private static final boolean assertionsEnabled;
     static {
         boolean assertionsEnabledTmp = false;
@@ -18,6 +29,8 @@ public class PooledDb extends Db implements AutoCloseable {
     public PooledDb(DbPool dbPool, String connectionString, Properties properties) throws SQLException {
         super(connectionString, properties);
         this.dbPool = dbPool;
+        setSqlStats(dbPool.getSqlStats());
+        setStatementCacheSize(dbPool.getStatementCacheSize());
     }
 
     @Override
@@ -51,4 +64,17 @@ public class PooledDb extends Db implements AutoCloseable {
     public void destroy() {
         super.close();
     }
+
+    /**
+     * Pooled connections are all to the same database, so unlike {@link Db} they are compared by identity.
+     */
+    @Override
+    public boolean equals(Object obj) {
+        return this == obj;
+    }
+
+    @Override
+    public int hashCode() {
+        return System.identityHashCode(this);
+    }
 }
@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) 2018, iCodici S.n.C, All Rights Reserved
+ *
+ */
+
+package com.icodici.db;
+
+import net.sergeych.tools.Binder;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Execution statistics by SQL text: how many times each statement was executed and prepared, and how long the
+ * executions took. Collected by {@link Db} for statements it creates, could be shared by several {@link Db}
+ * instances, as {@link DbPool} does.
+ * <p>
+ * At most {@link #MAX_QUERIES} different SQL texts are counted separately, the rest are counted together under
+ * {@link #OTHER}, so queries built on the fly could not eat the memory.
+ */
+public class SqlStats {
+
+    public static final int MAX_QUERIES = 1000;
+    public static final String OTHER = "(other)";
+
+    private final ConcurrentHashMap<String, Query> queries = new ConcurrentHashMap<>();
+
+    /**
+     * Counters of one SQL text.
+     */
+    public static class Query {
+        private final String sql;
+        private final LongAdder executions = new LongAdder();
+        private final LongAdder prepares = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        Query(String sql) {
+            this.sql = sql;
+        }
+
+        public String getSql() {
+            return sql;
+        }
+
+        public long getExecutions() {
+            return executions.sum();
+        }
+
+        /**
+         * @return how many times the statement was prepared by the driver, that is, not taken from the cache
+         */
+        public long getPrepares() {
+            return prepares.sum();
+        }
+
+        public long getErrors() {
+            return errors.sum();
+        }
+
+        public long getTotalNanos() {
+            return totalNanos.sum();
+        }
+
+        public long getMaxNanos() {
+            return maxNanos.get();
+        }
+
+        public Binder toBinder() {
+            long count = getExecutions();
+            long total = getTotalNanos();
+            return Binder.of(
+                    "sql", sql,
+                    "executions", count,
+                    "prepares", getPrepares(),
+                    "errors", getErrors(),
+                    "totalMillis", total / 1000000,
+                    "meanMicros", count > 0 ? total / count / 1000 : 0,
+                    "maxMicros", getMaxNanos() / 1000
+            );
+        }
+    }
+
+    private Query query(String sql) {
+        Query q = queries.get(sql);
+        if (q == null) {
+            if (queries.size() >= MAX_QUERIES)
+                sql = OTHER;
+            q = queries.computeIfAbsent(sql, Query::new);
+        }
+        return q;
+    }
+
+    void recordPrepare(String sql) {
+        query(sql).prepares.increment();
+    }
+
+    void recordExecution(String sql, long nanos, boolean failed) {
+        Query q = query(sql);
+        q.executions.increment();
+        q.totalNanos.add(nanos);
+        if (failed)
+            q.errors.increment();
+        if (nanos > q.maxNanos.get())
+            q.maxNanos.accumulateAndGet(nanos, Math::max);
+    }
+
+    /**
+     * @return counters of the SQL text or null if it was never prepared nor executed
+     */
+    public Query get(String sql) {
+        return queries.get(sql);
+    }
+
+    /**
+     * @param limit is maximum number of queries to return
+     * @return queries that took the most of execution time, the longest first
+     */
+    public List<Query> getTop(int limit) {
+        List<Query> result = new ArrayList<>(queries.values());
+        result.sort(Comparator.comparingLong(Query::getTotalNanos).reversed());
+        return result.size() > limit ? new ArrayList<>(result.subList(0, limit)) : result;
+    }
+
+    /**
+     * @param limit is maximum number of queries to return
+     * @return "queries" with {@link Query#toBinder()} of {@link #getTop(int)}
+     */
+    public Binder toBinder(int limit) {
+        List<Binder> top = new ArrayList<>();
+        for (Query q : getTop(limit))
+            top.add(q.toBinder());
+        return Binder.of("queries", top);
+    }
+
+    public void reset() {
+        queries.clear();
+    }
+}
@@ -0,0 +1,352 @@
+/*
+ * Copyright (c) 2018, iCodici S.n.C, All Rights Reserved
+ *
+ */
+
+package com.icodici.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bounded LRU cache of prepared statements of one connection, used by {@link Db}.
+ * <p>
+ * Each {@link #prepare(String, boolean)} checks a statement out and returns a handle to it. Closing the handle (or
+ * the result set, if {@link Statement#closeOnCompletion()} was called on the handle) clears the parameters and returns
+ * the statement to the cache instead of closing it. A statement is used by one handle at a time: while it is checked
+ * out, the same SQL gets a separate uncached statement, so nested and concurrent use are safe. Statements whose
+ * settings (fetch size, timeouts and like) were changed are not returned to the cache.
+ * <p>
+ * Handles also time the executions into {@link SqlStats}.
+ */
+class StatementCache {
+
+    private final Connection connection;
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private volatile int capacity;
+    private volatile SqlStats stats;
+
+    StatementCache(Connection connection, int capacity, SqlStats stats) {
+        this.connection = connection;
+        this.capacity = capacity;
+        this.stats = stats;
+    }
+
+    private static class Key {
+        final String sql;
+        final boolean returningKeys;
+
+        Key(String sql, boolean returningKeys) {
+            this.sql = sql;
+            this.returningKeys = returningKeys;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key))
+                return false;
+            Key other = (Key) obj;
+            return returningKeys == other.returningKeys && sql.equals(other.sql);
+        }
+
+        @Override
+        public int hashCode() {
+            return sql.hashCode() * 31 + (returningKeys ? 1 : 0);
+        }
+    }
+
+    private static class Entry {
+        final PreparedStatement statement;
+        boolean inUse = true;
+        boolean evicted = false;
+
+        Entry(PreparedStatement statement) {
+            this.statement = statement;
+        }
+    }
+
+    /**
+     * Check out the cached statement or prepare a new one.
+     *
+     * @param sql is SQL text
+     * @param returningKeys is true to prepare with {@link Statement#RETURN_GENERATED_KEYS}
+     * @return statement handle, must be closed by the caller
+     */
+    PreparedStatement prepare(String sql, boolean returningKeys) throws SQLException {
+        Key key = new Key(sql, returningKeys);
+        boolean cacheable;
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry != null && !entry.inUse) {
+                entry.inUse = true;
+                return handle(entry.statement, entry, sql);
+            }
+            cacheable = entry == null && capacity > 0;
+        }
+
+        PreparedStatement statement = prepareStatement(sql, returningKeys);
+        if (!cacheable)
+            return handle(statement, null, sql);
+
+        Entry entry = new Entry(statement);
+        List<PreparedStatement> toClose = new ArrayList<>();
+        synchronized (this) {
+            if (entries.containsKey(key))
+                // other thread has cached it meanwhile
+                return handle(statement, null, sql);
+            entries.put(key, entry);
+            Iterator<Entry> it = entries.values().iterator();
+            while (entries.size() > capacity && it.hasNext()) {
+                Entry eldest = it.next();
+                it.remove();
+                if (eldest.inUse)
+                    eldest.evicted = true;
+                else
+                    toClose.add(eldest.statement);
+            }
+        }
+        closeAll(toClose);
+        return handle(statement, entry, sql);
+    }
+
+    /**
+     * Prepare a new statement that is not cached and does not evict cached ones, for SQL that is rarely repeated.
+     *
+     * @param sql is SQL text
+     * @return statement handle, must be closed by the caller
+     */
+    PreparedStatement prepareUncached(String sql) throws SQLException {
+        return handle(prepareStatement(sql, false), null, sql);
+    }
+
+    private PreparedStatement prepareStatement(String sql, boolean returningKeys) throws SQLException {
+        PreparedStatement statement;
+        synchronized (connection) {
+            statement = returningKeys ?
+                    connection.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS) :
+                    connection.prepareStatement(sql);
+        }
+        stats.recordPrepare(sql);
+        return statement;
+    }
+
+    private void checkIn(Entry entry, boolean reusable) {
+        if (reusable) {
+            try {
+                entry.statement.clearParameters();
+                entry.statement.clearBatch();
+                entry.statement.clearWarnings();
+            } catch (SQLException e) {
+                reusable = false;
+            }
+        }
+        synchronized (this) {
+            entry.inUse = false;
+            if (!reusable && !entry.evicted) {
+                entries.values().remove(entry);
+                entry.evicted = true;
+            }
+            if (!entry.evicted)
+                return;
+        }
+        closeAll(Arrays.asList(entry.statement));
+    }
+
+    /**
+     * Close all cached statements, including ones checked out now.
+     */
+    void clear() {
+        List<PreparedStatement> toClose = new ArrayList<>();
+        synchronized (this) {
+            for (Entry entry : entries.values()) {
+                entry.evicted = true;
+                toClose.add(entry.statement);
+            }
+            entries.clear();
+        }
+        closeAll(toClose);
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    int getCapacity() {
+        return capacity;
+    }
+
+    void setCapacity(int capacity) {
+        this.capacity = capacity;
+        List<PreparedStatement> toClose = new ArrayList<>();
+        synchronized (this) {
+            Iterator<Entry> it = entries.values().iterator();
+            while (entries.size() > capacity && it.hasNext()) {
+                Entry eldest = it.next();
+                if (!eldest.inUse)
+                    toClose.add(eldest.statement);
+                eldest.evicted = true;
+                it.remove();
+            }
+        }
+        closeAll(toClose);
+    }
+
+    SqlStats getStats() {
+        return stats;
+    }
+
+    void setStats(SqlStats stats) {
+        this.stats = stats;
+    }
+
+    private static void closeAll(List<PreparedStatement> statements) {
+        for (PreparedStatement s : statements) {
+            try {
+                s.close();
+            } catch (SQLException ignored) {
+                // connection could be already closed
+            }
+        }
+    }
+
+    private PreparedStatement handle(PreparedStatement statement, Entry entry, String sql) {
+        return new Handle(statement, entry, sql);
+    }
+
+    /**
+     * The statement as seen by the caller between {@link #prepare(String, boolean)} and close.
+     */
+    private class Handle extends DelegatingPreparedStatement {
+        final Entry entry;
+        final String sql;
+        final SqlStats stats = StatementCache.this.stats;
+        boolean closed = false;
+        boolean closeOnCompletion = false;
+        boolean reusable = true;
+        ResultSet lastResult = null;
+
+        Handle(PreparedStatement statement, Entry entry, String sql) {
+            super(statement);
+            this.entry = entry;
+            this.sql = sql;
+        }
+
+        @Override
+        protected PreparedStatement target() throws SQLException {
+            // cached statement stays open when the handle is closed, not cached one checks it itself
+            if (closed && entry != null)
+                throw new SQLException("statement is closed");
+            return statement;
+        }
+
+        @Override
+        protected <T> T perform(SqlCall<T> execution) throws SQLException {
+            long start = System.nanoTime();
+            boolean failed = true;
+            try {
+                T result = execution.call();
+                failed = false;
+                return result;
+            } finally {
+                stats.recordExecution(sql, System.nanoTime() - start, failed);
+            }
+        }
+
+        @Override
+        protected ResultSet wrap(ResultSet resultSet) {
+            if (entry == null || resultSet == null)
+                return resultSet;
+            lastResult = resultSet;
+            return new HandleResultSet(resultSet);
+        }
+
+        @Override
+        protected void settingChanged() {
+            reusable = false;
+        }
+
+        @Override
+        public void close() throws SQLException {
+            release();
+        }
+
+        @Override
+        public boolean isClosed() throws SQLException {
+            return entry == null ? statement.isClosed() : closed;
+        }
+
+        @Override
+        public void closeOnCompletion() throws SQLException {
+            if (entry == null) {
+                statement.closeOnCompletion();
+                return;
+            }
+            // the driver would close the statement with its result set, so it is done here on the handle
+            target();
+            closeOnCompletion = true;
+        }
+
+        @Override
+        public boolean isCloseOnCompletion() throws SQLException {
+            if (entry == null)
+                return statement.isCloseOnCompletion();
+            target();
+            return closeOnCompletion;
+        }
+
+        synchronized void release() throws SQLException {
+            if (closed)
+                return;
+            closed = true;
+            if (entry == null) {
+                statement.close();
+                return;
+            }
+            if (lastResult != null) {
+                try {
+                    lastResult.close();
+                } catch (SQLException e) {
+                    reusable = false;
+                }
+                lastResult = null;
+            }
+            checkIn(entry, reusable);
+        }
+
+        /**
+         * Result set of the cached statement, closes the handle on completion.
+         */
+        private class HandleResultSet extends DelegatingResultSet {
+
+            HandleResultSet(ResultSet resultSet) {
+                super(resultSet, Handle.this);
+            }
+
+            @Override
+            public void close() throws SQLException {
+                resultSet.close();
+                if (closeOnCompletion)
+                    release();
+            }
+        }
+    }
+
+    /**
+     * @return entries in the order from the least to the most recently used, for tests
+     */
+    synchronized List<String> cachedSql() {
+        List<String> result = new ArrayList<>();
+        for (Map.Entry<Key, Entry> e : entries.entrySet())
+            result.add(e.getKey().sql);
+        return result;
+    }
+}
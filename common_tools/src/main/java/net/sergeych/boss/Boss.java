@@ -12,15 +12,18 @@ package net.sergeych.boss;
 
 import net.sergeych.biserializer.BiAdapter;
 import net.sergeych.biserializer.BiDeserializer;
+import net.sergeych.biserializer.BiMapper;
 import net.sergeych.biserializer.BiSerializer;
 import net.sergeych.biserializer.BossBiMapper;
 import net.sergeych.tools.Binder;
 import net.sergeych.tools.Do;
 import net.sergeych.utils.Bytes;
+import net.sergeych.utils.Ut;
 
 import java.io.*;
 import java.math.BigInteger;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.time.Instant;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
@@ -139,16 +142,16 @@ public class Boss {
      * @return binary data as plain array
      */
     public static byte[] dumpToArray(Object first, Object... objects) {
+        Writer w = Writer.acquire();
         try {
-            ByteArrayOutputStream bos = new ByteArrayOutputStream();
-            Writer w = new Writer(bos);
             w.writeObject(first);
             for (Object o : objects)
                 w.writeObject(o);
-            w.close();
-            return bos.toByteArray();
+            return w.toByteArray();
         } catch (IOException ex) {
             throw new IllegalArgumentException("Boss can't dump this object", ex);
+        } finally {
+            w.release();
         }
     }
 
@@ -177,7 +180,7 @@ public class Boss {
      */
     static public <T> T load(byte[] data) {
         try {
-            return (T) new Reader(new ByteArrayInputStream(data)).read();
+            return (T) new Reader(data).read();
         } catch (IOException e) {
             throw new IllegalArgumentException("Boss: can't parse data", e);
         }
@@ -185,7 +188,23 @@ public class Boss {
 
     static public <T> T load(byte[] data, BiDeserializer mapper) {
         try {
-            return (T) new Reader(new ByteArrayInputStream(data), mapper).read();
+            return (T) new Reader(ByteBuffer.wrap(data), mapper).read();
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Boss: can't parse data", e);
+        }
+    }
+
+    /**
+     * Load boss-encoded object tree from the buffer, e.g. {@link java.nio.MappedByteBuffer} of the file, starting at
+     * its position. The position is moved past the loaded object.
+     *
+     * @param buffer binary data to decode
+     *
+     * @return root object
+     */
+    static public <T> T load(ByteBuffer buffer) {
+        try {
+            return (T) new Reader(buffer).read();
         } catch (IOException e) {
             throw new IllegalArgumentException("Boss: can't parse data", e);
         }
@@ -261,11 +280,7 @@ public class Boss {
         }
 
         public Object smallestNumber(boolean negative) {
-            if (bigValue != null)
-                return negative ? bigValue.negate() : bigValue;
-            if (Math.abs(value) <= 0x7FFFffff)
-                return negative ? (int) -value : (int) value;
-            return negative ? -value : value;
+            return Boss.smallestNumber(value, bigValue, negative);
         }
 
         @Override
@@ -274,21 +289,126 @@ public class Boss {
         }
     }
 
+    static private Object smallestNumber(long value, BigInteger bigValue, boolean negative) {
+        if (bigValue != null)
+            return negative ? bigValue.negate() : bigValue;
+        if (Math.abs(value) <= 0x7FFFffff)
+            return negative ? (int) -value : (int) value;
+        return negative ? -value : value;
+    }
+
     @SuppressWarnings("serial")
     static public class Dictionary extends Binder {
     }
 
     /**
      * BOSS serializer. Serialized object trees or, in stream mode, could be used to seralize a stream of objects.
+     * <p>
+     * To pack to the memory often, e.g. network packets or contracts, use the writer of the current thread from {@link
+     * #acquire()}: it encodes directly to its own growable buffer, which is kept between the uses along with the
+     * cache, so the only allocation per pack is the resulting array.
      *
      * @author sergeych
      */
     static public class Writer {
 
+        /**
+         * Initial buffer size of the memory writers from {@link #acquire()}
+         */
+        static final int POOLED_CAPACITY = 8192;
+        /**
+         * The buffer and the cache grown larger than this are dropped on {@link #reset()}, so a single huge pack does
+         * not keep the memory of the thread.
+         */
+        static final int MAX_POOLED_CAPACITY = 1024 * 1024;
+        static final int MAX_POOLED_CACHE = 4096;
+
+        private static final ThreadLocal<Writer> pooledWriters =
+                ThreadLocal.withInitial(() -> new Writer(POOLED_CAPACITY, true));
+
         private OutputStream out;
+        // output of the memory writer, used instead of out
+        private ByteBuffer buffer;
+        private final boolean pooled;
+        private boolean inUse;
         private HashMap<Object, Integer> cache;
         private boolean treeMode;
-        private final BiSerializer biSerializer;
+        private BiSerializer biSerializer;
+        // mapper of the pooled writer's serializer, BossBiMapper replaces it when adapters are registered
+        private BiMapper serializerMapper;
+
+        private Writer(int capacity, boolean pooled) {
+            buffer = ByteBuffer.allocate(capacity);
+            this.pooled = pooled;
+            cache = new HashMap<>();
+            cache.put(null, 0);
+            treeMode = true;
+            serializerMapper = BossBiMapper.getInstance();
+            biSerializer = new BiSerializer(serializerMapper);
+        }
+
+        /**
+         * Get the reusable memory writer of the current thread, in tree mode and empty. It must be returned with
+         * {@link #release()} when the packed data are taken with {@link #toByteArray()}:
+         * <pre>
+         * Boss.Writer w = Boss.Writer.acquire();
+         * try {
+         *     w.write(...);
+         *     return w.toByteArray();
+         * } finally {
+         *     w.release();
+         * }
+         * </pre>
+         * If the writer of the thread is already acquired, e.g. some {@link BiAdapter} packs something while its
+         * object is being packed, the new memory writer is returned.
+         *
+         * @return writer to use and release
+         */
+        public static Writer acquire() {
+            Writer w = pooledWriters.get();
+            if (w.inUse)
+                return new Writer(POOLED_CAPACITY, false);
+            w.inUse = true;
+            BiMapper mapper = BossBiMapper.getInstance();
+            if (w.serializerMapper != mapper) {
+                w.serializerMapper = mapper;
+                w.biSerializer = new BiSerializer(mapper);
+            }
+            return w;
+        }
+
+        /**
+         * Return writer got from {@link #acquire()} to reuse it. Its data and the result of {@link #getOut()} should
+         * not be used after it. Does nothing with other writers.
+         */
+        public void release() {
+            if (pooled && inUse) {
+                reset();
+                inUse = false;
+            }
+        }
+
+        /**
+         * Clear written data and the cache and return to the tree mode, to write next objects as to the new writer.
+         * Possible only for the writers to the memory: from {@link #acquire()} or {@link #Writer()}.
+         */
+        public void reset() {
+            if (buffer != null) {
+                if (buffer.capacity() > MAX_POOLED_CAPACITY)
+                    buffer = ByteBuffer.allocate(POOLED_CAPACITY);
+                else
+                    buffer.clear();
+            } else if (out instanceof ByteArrayOutputStream)
+                ((ByteArrayOutputStream) out).reset();
+            else
+                throw new IllegalStateException("can't reset writer to " + out.getClass().getName());
+            if (cache.size() > MAX_POOLED_CACHE)
+                cache = new HashMap<>();
+            else
+                cache.clear();
+            cache.put(null, 0);
+            treeMode = true;
+        }
 
         /**
          * Creates writer to write to the output stream. Upon creation writer is alwais in tree mode.
@@ -297,6 +417,7 @@ public class Boss {
          */
         public Writer(OutputStream outputStream, BiSerializer biSerializer) {
             out = outputStream;
+            pooled = false;
             cache = new HashMap<>();
             cache.put(null, 0);
             treeMode = true;
@@ -414,28 +535,40 @@ public class Boss {
                     return this;
                 }
                 writeHeader(TYPE_EXTRA, XT_DOUBLE);
-                Bytes.fromDouble(n.doubleValue()).write(out);
+                // little endian IEEE 754
+                long bits = Double.doubleToRawLongBits(d);
+                for (int i = 0; i < 8; i++) {
+                    writeByte((int) bits & 0xFF);
+                    bits >>>= 8;
+                }
                 return this;
             }
             if (obj instanceof CharSequence) {
                 String s = obj.toString();
                 if (!tryWriteReference(s)) {
-                    Bytes bb = new Bytes(s);
-                    writeHeader(TYPE_TEXT, bb.size());
-                    out.write(bb.toArray());
+                    if (buffer != null)
+                        writeUtf8(s);
+                    else {
+                        byte[] bb = s.getBytes(StandardCharsets.UTF_8);
+                        writeHeader(TYPE_TEXT, bb.length);
+                        out.write(bb);
+                    }
                 }
                 return this;
             }
             if (obj instanceof Bytes)
                 obj = ((Bytes) obj).toArray();
             else if (obj instanceof ByteBuffer) {
-                obj = ((ByteBuffer) obj).array();
+                ByteBuffer bb = ((ByteBuffer) obj).duplicate();
+                byte[] data = new byte[bb.remaining()];
+                bb.get(data);
+                obj = data;
             }
             if (obj instanceof byte[]) {
                 byte[] bb = (byte[]) obj;
                 if (!tryWriteReference(bb)) {
                     writeHeader(TYPE_BIN, bb.length);
-                    out.write(bb);
+                    writeBytes(bb);
                 }
                 return this;
             }
@@ -515,27 +648,27 @@ public class Boss {
         }
 
         private void writeHeader(int code, BigInteger value) throws IOException {
-            out.write(code | 0xF8);
+            writeByte(code | 0xF8);
             Bytes bb = Bytes.fromBigInt(value).flipSelf();
             writeEncoded(bb.size());
-            bb.write(out);
+            writeBytes(bb.toArray());
         }
 
         private void writeHeader(int code, long value) throws IOException {
             assert code >= 0 && code <= 7;
             assert value >= 0;
             if (value < 23)
-                out.write(code | ((int) value << 3));
+                writeByte(code | ((int) value << 3));
             else {
                 int n = sizeInBytes(value);
                 if (n < 9) {
-                    out.write(code | ((n + 22) << 3));
+                    writeByte(code | ((n + 22) << 3));
                 } else {
-                    out.write(code | 0xF8);
+                    writeByte(code | 0xF8);
                     writeEncoded(n);
                 }
                 while (n-- > 0) {
-                    out.write((int) value & 0xFF);
+                    writeByte((int) value & 0xFF);
                     value >>>= 8;
                 }
             }
@@ -543,31 +676,141 @@ public class Boss {
 
         private void writeEncoded(long value) throws IOException {
             while (value > 0x7f) {
-                out.write(((int) value) & 0x7f);
+                writeByte(((int) value) & 0x7f);
                 value >>= 7;
             }
-            out.write(((int) value) | 0x80);
+            writeByte(((int) value) | 0x80);
+        }
+
+        private void writeByte(int b) throws IOException {
+            if (buffer != null) {
+                if (!buffer.hasRemaining())
+                    grow(1);
+                buffer.put((byte) b);
+            } else
+                out.write(b);
+        }
+
+        private void writeBytes(byte[] data) throws IOException {
+            if (buffer != null) {
+                if (buffer.remaining() < data.length)
+                    grow(data.length);
+                buffer.put(data);
+            } else
+                out.write(data);
+        }
+
+        private void grow(int length) {
+            long capacity = Math.max(Math.min(buffer.capacity() * 2L, Integer.MAX_VALUE - 8),
+                                     (long) buffer.position() + length);
+            if (capacity > Integer.MAX_VALUE - 8)
+                throw new OutOfMemoryError("Boss writer buffer is too large");
+            ByteBuffer bigger = ByteBuffer.allocate((int) capacity);
+            buffer.flip();
+            bigger.put(buffer);
+            buffer = bigger;
+        }
+
+        /**
+         * Encode the string right into the buffer. The same as {@link String#getBytes(java.nio.charset.Charset)} with
+         * UTF-8, including '?' for the unpaired surrogates, but without the intermediate array.
+         */
+        private void writeUtf8(String s) throws IOException {
+            int n = s.length();
+            int length = utf8Length(s);
+            writeHeader(TYPE_TEXT, length);
+            if (buffer.remaining() < length)
+                grow(length);
+            byte[] dst = buffer.array();
+            int pos = buffer.arrayOffset() + buffer.position();
+            for (int i = 0; i < n; i++) {
+                char c = s.charAt(i);
+                if (c < 0x80)
+                    dst[pos++] = (byte) c;
+                else if (c < 0x800) {
+                    dst[pos++] = (byte) (0xC0 | (c >> 6));
+                    dst[pos++] = (byte) (0x80 | (c & 0x3F));
+                } else if (Character.isSurrogate(c)) {
+                    if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+                        int cp = Character.toCodePoint(c, s.charAt(++i));
+                        dst[pos++] = (byte) (0xF0 | (cp >> 18));
+                        dst[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                        dst[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                        dst[pos++] = (byte) (0x80 | (cp & 0x3F));
+                    } else
+                        dst[pos++] = '?';
+                } else {
+                    dst[pos++] = (byte) (0xE0 | (c >> 12));
+                    dst[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                    dst[pos++] = (byte) (0x80 | (c & 0x3F));
+                }
+            }
+            buffer.position(pos - buffer.arrayOffset());
+        }
+
+        static int utf8Length(String s) {
+            int n = s.length();
+            int length = n;
+            for (int i = 0; i < n; i++) {
+                char c = s.charAt(i);
+                if (c >= 0x80) {
+                    if (c < 0x800)
+                        length++;
+                    else if (Character.isSurrogate(c)) {
+                        // pair is 4 bytes for 2 chars, unpaired one is '?'
+                        if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+                            length += 2;
+                            i++;
+                        }
+                    } else
+                        length += 2;
+                }
+            }
+            return length;
         }
 
         public void flush() throws IOException {
-            out.flush();
+            if (out != null)
+                out.flush();
         }
 
         public void close() throws IOException {
-            out.close();
+            if (out != null)
+                out.close();
         }
 
+        /**
+         * @return the stream writer writes to. For the writers from {@link #acquire()} it is the stream that appends to
+         * the writer's buffer.
+         */
         public OutputStream getOut() {
+            if (out == null) {
+                out = new OutputStream() {
+                    @Override
+                    public void write(int b) throws IOException {
+                        writeByte(b);
+                    }
+
+                    @Override
+                    public void write(byte[] b, int off, int len) throws IOException {
+                        if (buffer.remaining() < len)
+                            grow(len);
+                        buffer.put(b, off, len);
+                    }
+                };
+            }
             return out;
         }
 
         /**
-         * Return packed bytes. Works only if the underlying {@link OutputStream} was a {@link ByteArrayOutputStream}.
-         * The default constructor {@link Writer#Writer()} does so.
+         * Return packed bytes. Works only for the writers from {@link #acquire()} and if the underlying {@link
+         * OutputStream} was a {@link ByteArrayOutputStream}. The default constructor {@link Writer#Writer()} does so.
          *
          * @return boss-packed data
          */
         public byte[] toByteArray() {
+            if (buffer != null)
+                return Arrays.copyOf(buffer.array(), buffer.position());
             if (out instanceof ByteArrayOutputStream)
                 return ((ByteArrayOutputStream) out).toByteArray();
             throw new IllegalStateException("underlying OutputStream is not a ByteArrayOutputStream");
@@ -582,6 +825,12 @@ public class Boss {
     // System.out.println(s);
     // }
 
+    /**
+     * BOSS deserializer. Reads from the {@link InputStream} or directly from the memory: byte array or any
+     * {@link ByteBuffer}, including direct and {@link java.nio.MappedByteBuffer}s. Reading from the memory does not
+     * allocate anything but the decoded objects themselves, and could return binaries as the slices of the source
+     * buffer instead of copies, see {@link #setBinarySlices(boolean)}.
+     */
     static public class Reader {
 
         protected InputStream in;
@@ -591,12 +840,26 @@ public class Boss {
         private int maxCacheEntries, maxStringSize;
         private final BiDeserializer deserializer;
 
+        /**
+         * Source when reading from the memory, null when reading from {@link #in}.
+         */
+        private final ByteBuffer buffer;
+        private boolean binarySlices = false;
+        // scratch array to decode strings from direct buffers
+        private byte[] textBytes;
+
+        // the last header read by readHeaderFields(), not to allocate a Header for each token
+        private int headerCode;
+        private long headerValue;
+        private BigInteger headerBigValue;
+
         public Reader(byte[] bytes) {
-            this(new ByteArrayInputStream(bytes));
+            this(ByteBuffer.wrap(bytes));
         }
 
         public Reader(InputStream stream, BiDeserializer deserializer) {
             in = stream;
+            buffer = null;
             cache = new ArrayList<>();
             treeMode = true;
             this.deserializer = deserializer;
@@ -606,6 +869,42 @@ public class Boss {
             this(stream, BossBiMapper.newDeserializer());
         }
 
+        /**
+         * Create reader that decodes data of the buffer starting from its current position. Reading moves the
+         * position of the buffer, so after reading an object it points to the next one.
+         *
+         * @param buffer data to decode, any kind of {@link ByteBuffer}
+         * @param deserializer to deserialize read objects with, could be null
+         */
+        public Reader(ByteBuffer buffer, BiDeserializer deserializer) {
+            in = null;
+            this.buffer = buffer;
+            cache = new ArrayList<>();
+            treeMode = true;
+            this.deserializer = deserializer;
+        }
+
+        public Reader(ByteBuffer buffer) {
+            this(buffer, BossBiMapper.newDeserializer());
+        }
+
+        /**
+         * Return binary data as read-only {@link ByteBuffer} slices of the source buffer instead of {@link Bytes}
+         * copies. Slices share memory with the source, so they are valid as long as the source data is not changed.
+         * {@link #readBytes()} and {@link #readBinary()} still return copies. Only for readers created over the
+         * {@link ByteBuffer} or byte array.
+         *
+         * @param slices true to return binaries as slices
+         */
+        public void setBinarySlices(boolean slices) {
+            if (slices && buffer == null)
+                throw new IllegalStateException("binary slices are possible only when reading from the memory");
+            binarySlices = slices;
+        }
+
+        public boolean isBinarySlices() {
+            return binarySlices;
+        }
 
         public void traceObject() throws IOException {
             Header h = readHeader();
@@ -613,17 +912,24 @@ public class Boss {
         }
 
         private Header readHeader() throws IOException {
+            readHeaderFields();
+            return headerBigValue != null ? new Header(headerCode, headerBigValue) : new Header(headerCode, headerValue);
+        }
+
+        private void readHeaderFields() throws IOException {
             int b = readByte();
-            int code = b & 7;
+            headerCode = b & 7;
             int value = b >>> 3;
+            headerBigValue = null;
             if (value >= 31) {
                 int length = (int) readEncodedLong();
-                return new Header(code, readBig(length));
+                headerValue = 0;
+                headerBigValue = readBig(length);
             } else if (value > 22) {
                 // up to 8 bytes, e.g. long
-                return new Header(code, readLong(value - 22));
-            }
-            return new Header(code, value);
+                headerValue = readLong(value - 22);
+            } else
+                headerValue = value;
         }
 
         /**
@@ -634,12 +940,26 @@ public class Boss {
          * @throws IOException
          */
         private final int readByte() throws IOException {
+            if (buffer != null) {
+                if (!buffer.hasRemaining())
+                    throw new EOFException();
+                return buffer.get() & 0xFF;
+            }
             int i = in.read();
             if (i < 0)
                 throw new EOFException();
             return i;
         }
 
+        private void readFully(byte[] data, int length) throws IOException {
+            if (buffer != null) {
+                if (buffer.remaining() < length)
+                    throw new EOFException();
+                buffer.get(data, 0, length);
+            } else
+                Ut.readFully(in, data);
+        }
+
         private long readEncodedLong() throws IOException {
             long value = 0;
             int shift = 0;
@@ -653,9 +973,58 @@ public class Boss {
         }
 
         private BigInteger readBig(int length) throws IOException {
-            Bytes bb = new Bytes(in, length);
-            bb.flipSelf();
-            return bb.toBigInteger();
+            if (buffer == null) {
+                Bytes bb = new Bytes(in, length);
+                bb.flipSelf();
+                return bb.toBigInteger();
+            }
+            byte[] data = new byte[length];
+            readFully(data, length);
+            for (int i = 0, j = length - 1; i < j; i++, j--) {
+                byte x = data[i];
+                data[i] = data[j];
+                data[j] = x;
+            }
+            return new BigInteger(data);
+        }
+
+        private String readText(int length) throws IOException {
+            if (length <= 0)
+                return "";
+            if (buffer == null)
+                return new Bytes(in, length).toString();
+            if (buffer.remaining() < length)
+                throw new EOFException();
+            String s;
+            if (buffer.hasArray()) {
+                s = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+                buffer.position(buffer.position() + length);
+            } else {
+                if (textBytes == null || textBytes.length < length)
+                    textBytes = new byte[Math.max(length, 256)];
+                buffer.get(textBytes, 0, length);
+                s = new String(textBytes, 0, length, StandardCharsets.UTF_8);
+            }
+            return s;
+        }
+
+        private Object readBin(int length) throws IOException {
+            if (binarySlices) {
+                length = Math.max(length, 0);
+                if (buffer.remaining() < length)
+                    throw new EOFException();
+                ByteBuffer slice = buffer.slice();
+                slice.limit(length);
+                buffer.position(buffer.position() + length);
+                return slice.asReadOnlyBuffer();
+            }
+            if (length <= 0)
+                return new Bytes();
+            if (buffer == null)
+                return new Bytes(in, length);
+            byte[] data = new byte[length];
+            readFully(data, length);
+            return new Bytes(data);
         }
 
         private long readLong(int length) throws IOException {
@@ -702,54 +1071,54 @@ public class Boss {
 
         @SuppressWarnings("unchecked")
         private <T> T get() throws IOException {
-            Header h = readHeader();
-//            trace("Header " + h);
-            switch (h.code) {
+            readHeaderFields();
+            // header fields are overwritten by nested objects
+            int code = headerCode;
+            long value = headerValue;
+            switch (code) {
                 case TYPE_INT:
-//                    trace("Int: " + h.smallestNumber(false));
-                    return (T) h.smallestNumber(false);
+                    return (T) smallestNumber(value, headerBigValue, false);
                 case TYPE_NINT:
-                    return (T) h.smallestNumber(true);
-                case TYPE_BIN:
+                    return (T) smallestNumber(value, headerBigValue, true);
                 case TYPE_TEXT: {
-                    Bytes bb = h.value > 0 ? new Bytes(in, (int) h.value) : new Bytes();
-                    if (h.code == TYPE_TEXT) {
-                        String s = bb.toString();
-                        cacheObject(s);
+                    String s = readText((int) value);
+                    cacheObject(s);
 //                        trace("t: " + s);
 //                        traceCache();
-                        return (T) s;
-                    }
-                    cacheObject(bb);
-                    return (T) bb;
+                    return (T) s;
+                }
+                case TYPE_BIN: {
+                    Object bin = readBin((int) value);
+                    cacheObject(bin);
+                    return (T) bin;
                 }
                 case TYPE_LIST: {
-                    ArrayList data = new ArrayList((int) (h.value < 0x10000 ? h.value : 4096));
+                    ArrayList data = new ArrayList((int) (value < 0x10000 ? value : 4096));
                     cacheObject(data);
-                    for (int i = 0; i < h.value; i++)
+                    for (int i = 0; i < value; i++)
                         data.add(get());
                     return (T) data;
                 }
                 case TYPE_DICT: {
-                    return readObject(h);
+                    return readObject(value);
                 }
                 case TYPE_CREF:
-                    int i = (int) h.value;
+                    int i = (int) value;
 //                    trace(String.format("Get from cache %d -> %s", h.value,
 //                                        i == 0 ? null : cache.get(i - 1)
 //                    ));
 //                    traceCache();
                     return i == 0 ? null : (T) cache.get(i - 1);
                 case TYPE_EXTRA:
-                    return (T) parseExtra((int) h.value);
+                    return (T) parseExtra((int) value);
             }
             throw new IOException("Bad BOSS header");
         }
 
-        private <T> T readObject(Header h) throws IOException {
+        private <T> T readObject(long size) throws IOException {
             Dictionary hash = new Dictionary();
             cacheObject(hash);
-            for (int i = 0; i < h.value; i++)
+            for (int i = 0; i < size; i++)
                 hash.put(get(), get());
 //            if( hash.containsKey("__type") || hash.containsKey("__t"))
 //                return (T) deserializer.deserialize(hash);
@@ -777,6 +1146,8 @@ public class Boss {
                     len = ((Bytes) obj).size();
                 } else if (obj instanceof byte[]) {
                     len = ((byte[]) obj).length;
+                } else if (obj instanceof ByteBuffer) {
+                    len = ((ByteBuffer) obj).remaining();
                 } else {
 //                    trace("Can't cache it in treemode! : " + obj);
                     return;
@@ -810,7 +1181,8 @@ public class Boss {
                     setStreamMode();
                     return get();
                 case XT_DOUBLE:
-                    return new Bytes(in, 8).toDouble();
+                    // little endian IEEE 754
+                    return Double.longBitsToDouble(readLong(8));
             }
             throw new IllegalArgumentException(String.format("Unknown extra code: %d", code));
         }
@@ -829,7 +1201,16 @@ public class Boss {
          * @throws IOException
          */
         public Bytes readBytes() throws IOException {
-            return (Bytes) get();
+            Object x = get();
+            if (x instanceof ByteBuffer)
+                return new Bytes(copyOf((ByteBuffer) x));
+            return (Bytes) x;
+        }
+
+        private static byte[] copyOf(ByteBuffer slice) {
+            byte[] data = new byte[slice.remaining()];
+            slice.duplicate().get(data);
+            return data;
         }
 
         /**
@@ -845,6 +1226,8 @@ public class Boss {
                 return null;
             if (x.getClass().isArray())
                 return (byte[]) x;
+            if (x instanceof ByteBuffer)
+                return copyOf((ByteBuffer) x);
             return ((Bytes) x).toArray();
         }
 
@@ -862,7 +1245,8 @@ public class Boss {
         }
 
         public void close() throws IOException {
-            in.close();
+            if (in != null)
+                in.close();
         }
 
         @SuppressWarnings("unchecked")
@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2018, iCodici S.n.C, All Rights Reserved
+ *
+ */
+
+package com.icodici.db;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+public class DbPoolTest {
+
+    private DbPool pool;
+    private ExecutorService executor = Executors.newCachedThreadPool();
+
+    @Before
+    public void setUp() throws Exception {
+        pool = new DbPool("jdbc:sqlite:", null, 2);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        pool.close();
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void sameConnectionInThread() throws Exception {
+        List<Long> waits = Collections.synchronizedList(new ArrayList<>());
+        pool.setBorrowWaitListener(waits::add);
+        try (PooledDb outer = pool.db()) {
+            try (PooledDb inner = pool.db()) {
+                assertSame(outer, inner);
+            }
+            // inner close does not return the connection used by outer
+            assertEquals(1, pool.getActiveCount());
+            assertEquals(0, pool.getIdleCount());
+        }
+        assertEquals(0, pool.getActiveCount());
+        assertEquals(1, pool.getIdleCount());
+        assertEquals(1, waits.size());
+    }
+
+    @Test
+    public void borrowTimeout() throws Exception {
+        pool.setBorrowTimeout(Duration.ofMillis(300));
+        CountDownLatch taken = new CountDownLatch(2);
+        CountDownLatch release = new CountDownLatch(1);
+        for (int i = 0; i < 2; i++) {
+            executor.submit(() -> {
+                try (PooledDb db = pool.db()) {
+                    taken.countDown();
+                    release.await();
+                }
+                return null;
+            });
+        }
+        assertTrue(taken.await(5, TimeUnit.SECONDS));
+        assertEquals(2, pool.getActiveCount());
+
+        long start = System.currentTimeMillis();
+        try {
+            pool.db();
+            fail("should time out");
+        } catch (SQLException e) {
+            assertTrue(System.currentTimeMillis() - start >= 300);
+        }
+        assertEquals(1, pool.getTimeoutsCount());
+
+        pool.setBorrowTimeout(Duration.ofSeconds(5));
+        Future<Boolean> waiter = executor.submit(() -> {
+            try (PooledDb db = pool.db()) {
+                return db.queryOne("select 1") != null;
+            }
+        });
+        Thread.sleep(100);
+        assertEquals(1, pool.getWaitingCount());
+        release.countDown();
+        assertTrue(waiter.get(5, TimeUnit.SECONDS));
+        assertEquals(2, pool.getTotalCount());
+    }
+
+    @Test
+    public void brokenConnectionIsDiscarded() throws Exception {
+        PooledDb broken;
+        try (PooledDb db = pool.db()) {
+            broken = db;
+            db.destroy();
+        }
+        assertEquals(1, pool.getDiscardedCount());
+        assertEquals(0, pool.getTotalCount());
+        try (PooledDb db = pool.db()) {
+            assertNotSame(broken, db);
+            assertEquals(1, (int) db.queryOne("select 1"));
+        }
+    }
+
+    @Test
+    public void leakAndMinConnections() throws Exception {
+        List<String> reports = Collections.synchronizedList(new ArrayList<>());
+        pool.setReporter(reports::add);
+        pool.setLeakThreshold(Duration.ofMillis(100));
+        pool.setMinConnections(2);
+        PooledDb leaked = pool.db();
+        // housekeeping runs every few seconds
+        Thread.sleep(6000);
+        assertEquals(1, pool.getLeaksCount());
+        assertTrue(reports.get(0).contains("leakAndMinConnections"));
+        assertEquals(2, pool.getTotalCount());
+        assertEquals(1, pool.getIdleCount());
+        leaked.close();
+    }
+
+    @Test
+    public void leakTrace() throws Exception {
+        List<String> reports = Collections.synchronizedList(new ArrayList<>());
+        pool.setReporter(reports::add);
+        pool.setLeakThreshold(Duration.ofMillis(100));
+        pool.setLeakTraceEnabled(true);
+        PooledDb leaked = takeConnection();
+        Thread.sleep(6000);
+        assertEquals(1, pool.getLeaksCount());
+        // the stack of the borrow, not the current one
+        assertTrue(reports.get(0).contains("takeConnection"));
+        leaked.close();
+    }
+
+    private PooledDb takeConnection() throws Exception {
+        return pool.db();
+    }
+}
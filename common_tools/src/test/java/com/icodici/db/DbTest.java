@@ -10,8 +10,10 @@ package com.icodici.db;
 import org.junit.Test;
 import org.sqlite.SQLiteConfig;
 
-import static org.junit.Assert.assertEquals;
-import static org.junit.Assert.assertNull;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+
+import static org.junit.Assert.*;
 
 public class DbTest {
 
@@ -49,4 +51,84 @@ public class DbTest {
         assertEquals("fubar", t.getStringParam("test2", "nope"));
     }
 
-}
\ No newline at end of file
+    @Test
+    public void statementCache() throws Exception {
+        Db t = new Db("jdbc:sqlite:", null, "/com/icodici/db/migrate_");
+        t.setIntParam("test", 1);
+        t.getSqlStats().reset();
+        String sql = "SELECT ivalue FROM vars WHERE name=?";
+
+        for (int i = 0; i < 10; i++)
+            assertEquals(1, (int) t.queryOne(sql, "test"));
+        SqlStats.Query q = t.getSqlStats().get(sql);
+        assertEquals(10, q.getExecutions());
+        assertEquals(1, q.getPrepares());
+
+        // same SQL while the cached statement is in use gets its own statement
+        try (PreparedStatement outer = t.statement(sql, "test");
+             PreparedStatement inner = t.statement(sql, "version")) {
+            assertNotSame(outer, inner);
+            try (ResultSet rs = inner.executeQuery()) {
+                assertTrue(rs.next());
+                assertEquals(1, rs.getInt(1));
+            }
+            try (ResultSet rs = outer.executeQuery()) {
+                assertTrue(rs.next());
+                assertEquals(1, rs.getInt(1));
+            }
+        }
+        assertEquals(2, q.getPrepares());
+
+        // closeOnCompletion returns the statement to the cache, not closes it
+        PreparedStatement s = t.statement(sql, "test");
+        s.closeOnCompletion();
+        ResultSet rs = s.executeQuery();
+        assertSame(s, rs.getStatement());
+        rs.close();
+        assertTrue(s.isClosed());
+        assertEquals(1, (int) t.queryOne(sql, "test"));
+        assertEquals(2, q.getPrepares());
+
+        // parameters are cleared on return to the cache
+        try (ResultSet row = t.queryRow(sql, "test")) {
+            assertEquals(1, row.getInt(1));
+        }
+        assertNull(t.queryRow(sql, "nope"));
+        assertEquals(2, q.getPrepares());
+    }
+
+    @Test
+    public void statementCacheSize() throws Exception {
+        Db t = new Db("jdbc:sqlite:", null, "/com/icodici/db/migrate_");
+        t.setStatementCacheSize(2);
+        for (int i = 0; i < 5; i++)
+            assertEquals(i, (int) t.queryOne("SELECT " + i));
+        assertEquals(2, t.getCachedStatementsCount());
+
+        t.setStatementCacheSize(0);
+        assertEquals(0, t.getCachedStatementsCount());
+        assertEquals(1, (int) t.queryOne("SELECT 1"));
+        assertEquals(1, (int) t.queryOne("SELECT 1"));
+        assertEquals(3, t.getSqlStats().get("SELECT 1").getPrepares());
+        t.close();
+    }
+
+    @Test
+    public void uncachedStatement() throws Exception {
+        Db t = new Db("jdbc:sqlite:", null, "/com/icodici/db/migrate_");
+        t.setIntParam("test", 1);
+        int cached = t.getCachedStatementsCount();
+        String sql = "SELECT ivalue FROM vars WHERE name IN (?,?)";
+        for (int i = 0; i < 3; i++) {
+            try (PreparedStatement statement = t.uncachedStatement(sql, "test", "none");
+                 ResultSet rs = statement.executeQuery()) {
+                assertTrue(rs.next());
+                assertEquals(1, rs.getInt(1));
+            }
+        }
+        assertEquals(cached, t.getCachedStatementsCount());
+        assertEquals(3, t.getSqlStats().get(sql).getPrepares());
+        assertEquals(3, t.getSqlStats().get(sql).getExecutions());
+        t.close();
+    }
+}
@@ -19,8 +19,16 @@ import org.junit.Test;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.time.ZonedDateTime;
 import java.util.ArrayList;
 import java.util.Date;
@@ -357,6 +365,206 @@ public class TestBoss {
         assertEquals("buzz", res.getBinderOrThrow("c").getStringOrThrow("bar"));
     }
 
+    private Binder sampleTree() {
+        Binder nested = Binder.fromKeysValues("text", "Привет, мир", "empty", "", "bin", new byte[]{1, 2, 3});
+        List<Object> list = new ArrayList<>(asList(1, -1, 100000, -100000, 1L << 40, -(1L << 40),
+                new BigInteger("123456789012345678901234567890"), new BigInteger("-123456789012345678901234567890"),
+                17.37e-111, true, false, null, "repeated", "repeated"));
+        return Binder.fromKeysValues("nested", nested, "again", nested, "list", list,
+                "big", new byte[70000], "date", ZonedDateTime.now().withNano(0));
+    }
+
+    @Test
+    public void readFromByteBuffers() throws Exception {
+        Binder src = sampleTree();
+        byte[] packed = Boss.pack(src);
+        Binder fromStream = new Boss.Reader(new ByteArrayInputStream(packed)).read();
+
+        ByteBuffer heap = ByteBuffer.allocate(packed.length + 10);
+        heap.position(10);
+        heap.put(packed);
+        heap.position(10);
+        // heap buffer with array offset
+        ByteBuffer offset = heap.slice();
+        ByteBuffer direct = ByteBuffer.allocateDirect(packed.length);
+        direct.put(packed);
+        direct.flip();
+
+        for (ByteBuffer bb : asList(ByteBuffer.wrap(packed), offset, direct)) {
+            Binder res = Boss.load(bb);
+            assertEquals(fromStream, res);
+            assertEquals(packed.length, bb.position());
+            assertEquals("Привет, мир", res.getBinderOrThrow("again").getStringOrThrow("text"));
+            assertArrayEquals(new byte[]{1, 2, 3}, res.getBinderOrThrow("nested").getBinaryOrThrow("bin"));
+        }
+
+        Path file = Files.createTempFile("boss", ".bin");
+        try {
+            Files.write(file, packed);
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, packed.length);
+                assertEquals(fromStream, Boss.load(mapped));
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void readBinarySlices() throws Exception {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        Boss.Writer w = new Boss.Writer(bos);
+        w.write(new byte[]{1, 2, 3}, "text", new byte[0], Binder.fromKeysValues("b", new byte[]{4, 5}));
+        w.close();
+        ByteBuffer bb = ByteBuffer.wrap(bos.toByteArray());
+
+        Boss.Reader r = new Boss.Reader(bb);
+        r.setBinarySlices(true);
+        ByteBuffer slice = r.read();
+        assertTrue(slice.isReadOnly());
+        assertEquals(3, slice.remaining());
+        assertEquals(1, slice.get(0));
+        assertEquals(3, slice.get(2));
+        assertEquals("text", r.read());
+        assertEquals(0, ((ByteBuffer) r.read()).remaining());
+        Binder b = r.read();
+        ByteBuffer b2 = (ByteBuffer) b.get("b");
+        assertEquals(2, b2.remaining());
+        assertEquals(5, b2.get(1));
+        assertFalse(bb.hasRemaining());
+
+        // typed reads still copy
+        r = new Boss.Reader(bos.toByteArray());
+        r.setBinarySlices(true);
+        assertArrayEquals(new byte[]{1, 2, 3}, r.readBinary());
+        r.read();
+        assertEquals(0, r.readBytes().size());
+
+        try {
+            new Boss.Reader(new ByteArrayInputStream(new byte[0])).setBinarySlices(true);
+            fail("must not be allowed in stream");
+        } catch (IllegalStateException e) {
+        }
+    }
+
+    @Test
+    public void writeByteBuffers() throws Exception {
+        byte[] expected = Boss.pack(asList(new byte[]{2, 3, 4}, new byte[]{2, 3, 4}));
+
+        // only the remaining bytes are written, whatever the buffer is backed by
+        ByteBuffer positioned = ByteBuffer.wrap(new byte[]{1, 2, 3, 4, 5}, 1, 3);
+        ByteBuffer slice = positioned.slice();
+        ByteBuffer readOnly = slice.asReadOnlyBuffer();
+        ByteBuffer direct = ByteBuffer.allocateDirect(3);
+        direct.put(new byte[]{2, 3, 4}).flip();
+        for (ByteBuffer bb : asList(positioned, slice, readOnly, direct)) {
+            assertArrayEquals(expected, Boss.pack(asList(bb, new byte[]{2, 3, 4})));
+            assertEquals(3, bb.remaining());
+        }
+
+        // binary slices of the reader could be packed back as is
+        Boss.Reader r = new Boss.Reader(Boss.pack(Binder.fromKeysValues("b", new byte[]{2, 3, 4})));
+        r.setBinarySlices(true);
+        Binder b = r.read();
+        assertArrayEquals(expected, Boss.pack(asList(b.get("b"), new byte[]{2, 3, 4})));
+    }
+
+    @Test
+    public void streamModeFromByteBuffer() throws Exception {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        Boss.Writer w = new Boss.Writer(bos);
+        w.setStreamMode();
+        for (int i = 0; i < 3; i++)
+            w.write("test1", "test2", Binder.fromKeysValues("test1", i));
+        byte[] packed = bos.toByteArray();
+
+        Boss.Reader fromStream = new Boss.Reader(new ByteArrayInputStream(packed));
+        Boss.Reader fromBuffer = new Boss.Reader(ByteBuffer.wrap(packed));
+        for (int i = 0; i < 9; i++)
+            assertEquals((Object) fromStream.read(), fromBuffer.read());
+        try {
+            fromBuffer.read();
+            fail("must throw EOF");
+        } catch (EOFException e) {
+        }
+    }
+
+    @Test
+    public void truncatedByteBuffer() throws Exception {
+        byte[] packed = Boss.pack(sampleTree());
+        for (int length : new int[]{1, 10, packed.length / 2, packed.length - 1}) {
+            try {
+                new Boss.Reader(ByteBuffer.wrap(packed, 0, length)).read();
+                fail("must throw EOF");
+            } catch (EOFException e) {
+            }
+        }
+    }
+
+    private byte[] packToStream(Object... objects) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        new Boss.Writer(bos).write(objects);
+        return bos.toByteArray();
+    }
+
+    @Test
+    public void pooledWriterIsCompatible() throws Exception {
+        String[] texts = {"", "ascii", "Привет, мир", "\u20AC\uFFFF", "\uD83D\uDE00 emoji",
+                "unpaired \uD83D", "\uDE00 unpaired", "\uDE00\uD83D", new String(new char[20000]).replace('\0', 'ж')};
+        for (String text : texts) {
+            assertEquals(text.getBytes(StandardCharsets.UTF_8).length, Boss.Writer.utf8Length(text));
+            Boss.Writer w = Boss.Writer.acquire();
+            try {
+                w.write(text, text);
+                assertArrayEquals(packToStream(text, text), w.toByteArray());
+            } finally {
+                w.release();
+            }
+        }
+        Binder tree = sampleTree();
+        tree.put("bigint", new BigInteger("1234567890123456789012345678901234567890"));
+        tree.put("doubles", asList(0.0, 1.0, -1.0, 17.37e-111, Double.NaN));
+        assertArrayEquals(packToStream(tree), Boss.pack(tree));
+        assertEquals((Object) Boss.load(packToStream(tree)), Boss.load(Boss.pack(tree)));
+    }
+
+    @Test
+    public void pooledWriterReuse() throws Exception {
+        Boss.Writer w = Boss.Writer.acquire();
+        w.write("foo", "foo", new byte[Boss.Writer.POOLED_CAPACITY * 3]);
+        // nested use while acquired gets own writer
+        Boss.Writer nested = Boss.Writer.acquire();
+        assertNotSame(w, nested);
+        nested.write("foo");
+        assertArrayEquals(packToStream("foo"), nested.toByteArray());
+        nested.release();
+        assertArrayEquals(packToStream("foo", "foo", new byte[Boss.Writer.POOLED_CAPACITY * 3]), w.toByteArray());
+        w.release();
+
+        Boss.Writer again = Boss.Writer.acquire();
+        assertSame(w, again);
+        // cache and data are cleared
+        again.write("foo");
+        assertArrayEquals(packToStream("foo"), again.toByteArray());
+        again.setStreamMode();
+        again.release();
+        again = Boss.Writer.acquire();
+        again.write("foo", "foo");
+        assertArrayEquals(packToStream("foo", "foo"), again.toByteArray());
+
+        // getOut() appends to the buffer
+        again.getOut().write(new byte[]{1, 2});
+        byte[] packed = again.toByteArray();
+        assertEquals(2, packed[packed.length - 1]);
+        again.release();
+
+        Boss.Writer plain = new Boss.Writer();
+        plain.write("bar");
+        plain.reset();
+        plain.write("foo", "foo");
+        assertArrayEquals(packToStream("foo", "foo"), plain.toByteArray());
+    }
+
 //	@Test
 //	public void testBadCase1() {
 //		Bytes src = Bytes.fromBase64("L0t0aW1lc3RhbXB5IFdfEYVDaG9zdG5hbWUzZG8tMDAxU3N0YXJ0ZWRfYXR5\nbExdEYVbY29ubmVjdGlvbnPwo25vdGlmaWNhdGlvbnNfcGFzc2VkOA==");
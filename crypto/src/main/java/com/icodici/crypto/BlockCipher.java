@@ -47,4 +47,27 @@ public interface BlockCipher {
      *         if key or block has wrong size
      */
     byte[] transformBlock(byte[] block) throws EncryptionError;
+
+    /**
+     * Encrypt/decrypt one block from the source array into the destination array. Implementations should override it
+     * to process the block in place, this default goes through {@link #transformBlock(byte[])}.
+     *
+     * @param source
+     *         array with the source block
+     * @param sourceOffset
+     *         of the block in the source
+     * @param destination
+     *         array to put the transformed block to, could be the same as the source
+     * @param destinationOffset
+     *         of the transformed block in the destination
+     *
+     * @throws EncryptionError
+     *         if key is wrong
+     */
+    default void transformBlock(byte[] source, int sourceOffset, byte[] destination, int destinationOffset)
+            throws EncryptionError {
+        byte[] block = new byte[getBlockSize()];
+        System.arraycopy(source, sourceOffset, block, 0, block.length);
+        System.arraycopy(transformBlock(block), 0, destination, destinationOffset, block.length);
+    }
 }
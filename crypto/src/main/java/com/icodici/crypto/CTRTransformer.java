@@ -22,8 +22,8 @@ class CTRTransformer {
     private int counter;
     private int index = 0;
     private final int blockSize;
-    private byte[] source;
-    private final byte[] counterBytes;
+    private final byte[] source;
+    private final byte[] counterBlock;
 
     static public byte[] randomBytes(int length) {
         byte[] bytes = new byte[length];
@@ -69,20 +69,34 @@ class CTRTransformer {
 
         counter = 0;
         source = new byte[blockSize];
-        counterBytes = new byte[4];
+        counterBlock = new byte[blockSize];
 
         prepareBlock();
     }
 
+    /**
+     * Start over with the new IV, reusing the cipher and the buffers. The transformer then works the same as the new
+     * one created with this IV.
+     *
+     * @param iv
+     *         new IV, it is copied
+     *
+     * @throws EncryptionError
+     */
+    public void reset(byte[] iv) throws EncryptionError {
+        System.arraycopy(iv, 0, nonce, 0, blockSize);
+        counter = 0;
+        prepareBlock();
+    }
+
     private void prepareBlock() throws EncryptionError {
-        System.arraycopy(nonce, 0, source, 0, blockSize);
-        counterBytes[0] = (byte) (counter >> 24);
-        counterBytes[1] = (byte) (counter >> 16);
-        counterBytes[2] = (byte) (counter >> 8);
-        counterBytes[3] = (byte) counter;
-        applyXor(source, blockSize - 4, counterBytes);
+        System.arraycopy(nonce, 0, counterBlock, 0, blockSize);
+        counterBlock[blockSize - 4] ^= (byte) (counter >> 24);
+        counterBlock[blockSize - 3] ^= (byte) (counter >> 16);
+        counterBlock[blockSize - 2] ^= (byte) (counter >> 8);
+        counterBlock[blockSize - 1] ^= (byte) counter;
         synchronized (cipher) {
-            source = cipher.transformBlock(source);
+            cipher.transformBlock(counterBlock, 0, source, 0);
         }
         counter++;
         index = 0;
@@ -95,15 +109,34 @@ class CTRTransformer {
     }
 
 
-//    /**
-//     * Transforms in place data block
-//     * @param source
-//     * @throws EncryptionError
-//     */
-//    public void transform(byte[] source, int offset, int length) throws EncryptionError {
-//        for (int i = 0; i < source.length; i++)
-//            source[i] ^= nextByte();
-//    }
+    /**
+     * Transform the range of bytes, a key stream block at a time. Gives the same result as {@link
+     * #transformByte(int)} called for each byte, and could be mixed with it.
+     *
+     * @param source
+     *         data to transform
+     * @param sourceOffset
+     *         of the first byte to transform
+     * @param destination
+     *         where to put transformed data, could be the same array as the source
+     * @param destinationOffset
+     *         of the first transformed byte
+     * @param length
+     *         number of bytes to transform
+     *
+     * @throws EncryptionError
+     */
+    public void transform(byte[] source, int sourceOffset, byte[] destination, int destinationOffset, int length)
+            throws EncryptionError {
+        int end = sourceOffset + length;
+        while (sourceOffset < end) {
+            if (index >= blockSize)
+                prepareBlock();
+            int count = Math.min(blockSize - index, end - sourceOffset);
+            for (int i = 0; i < count; i++)
+                destination[destinationOffset++] = (byte) (source[sourceOffset++] ^ this.source[index++]);
+        }
+    }
 
     /**
      * Transform next byte
@@ -11,15 +11,21 @@ import com.icodici.crypto.digest.HMAC;
 import net.sergeych.tools.ByteRingBuffer;
 import net.sergeych.tools.Do;
 import net.sergeych.tools.Hashable;
+import org.spongycastle.crypto.digests.SHA256Digest;
+import org.spongycastle.crypto.macs.HMac;
+import org.spongycastle.crypto.params.KeyParameter;
 
 import java.io.*;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 /**
  * Symmetric key: main interface to the symmetric cipher used in attesta.
  * This implementation uses AES256 in CRT mode with IV to
- * encrypt / decrypt. To change it, derive your class and simply override {@link #getCipher()}.
+ * encrypt / decrypt. To change it, derive your class and simply override {@link #createCipher()}.
  * <p>
  * The cipher set and HMAC method maight be extended, using this class guaranteees compatibility.
  * <p>
@@ -209,10 +215,69 @@ public class SymmetricKey extends AbstractKey implements Serializable, Hashable
         }
     }
 
+    /**
+     * Cipher and HMAC state prepared for the key, used by the bulk EtA methods. The engine is used by one thread at a
+     * time: it is taken from the key's idle engines and returned back when done.
+     */
+    private final class EtaEngine {
+        private final byte[] engineKey;
+        private final CTRTransformer transformer;
+        private final HMac hmac = new HMac(new SHA256Digest());
+        private final byte[] iv;
+        private final byte[] mac;
+
+        private EtaEngine() throws EncryptionError {
+            engineKey = key;
+            BlockCipher engineCipher = createCipher();
+            iv = new byte[engineCipher.getBlockSize()];
+            transformer = new CTRTransformer(engineCipher, new byte[iv.length]);
+            hmac.init(new KeyParameter(key));
+            mac = new byte[hmac.getMacSize()];
+        }
+
+        /**
+         * @return size of IV + ciphertext + HMAC record
+         */
+        private int encrypt(byte[] in, int inOffset, int length, byte[] out, int outOffset) throws EncryptionError {
+            System.arraycopy(CTRTransformer.randomBytes(iv.length), 0, iv, 0, iv.length);
+            transformer.reset(iv);
+            System.arraycopy(iv, 0, out, outOffset, iv.length);
+            int cipherOffset = outOffset + iv.length;
+            transformer.transform(in, inOffset, out, cipherOffset, length);
+            hmac.update(out, cipherOffset, length);
+            hmac.doFinal(out, cipherOffset + length);
+            return iv.length + length + mac.length;
+        }
+
+        /**
+         * @return size of the plain data
+         */
+        private int decrypt(byte[] in, int inOffset, int length, byte[] out, int outOffset)
+                throws EncryptionError, AuthenticationFailed {
+            int cipherOffset = inOffset + iv.length;
+            int cipherLength = length - iv.length - mac.length;
+            hmac.update(in, cipherOffset, cipherLength);
+            hmac.doFinal(mac, 0);
+            int diff = 0;
+            for (int i = 0; i < mac.length; i++)
+                diff |= mac[i] ^ in[cipherOffset + cipherLength + i];
+            if (diff != 0)
+                throw new AuthenticationFailed("HMAC authentication failed, data corrupted");
+            System.arraycopy(in, inOffset, iv, 0, iv.length);
+            transformer.reset(iv);
+            transformer.transform(in, cipherOffset, out, outOffset, cipherLength);
+            return cipherLength;
+        }
+    }
+
+    private static final int MAX_IDLE_ETA_ENGINES = Runtime.getRuntime().availableProcessors();
+
     private byte[] key;
 
     private BlockCipher cipher = null;
 
+    private transient volatile ConcurrentLinkedQueue<EtaEngine> etaEngines = null;
+
     /**
      * Create random symmetric key (AES256, CTR)
      */
@@ -232,6 +297,7 @@ public class SymmetricKey extends AbstractKey implements Serializable, Hashable
 
     public void setKey(byte[] key) {
         cipher = null;
+        etaEngines = null;
         this.key = key;
     }
 
@@ -257,14 +323,44 @@ public class SymmetricKey extends AbstractKey implements Serializable, Hashable
         setKey((byte[]) hash.get("key"));
     }
 
+    /**
+     * Create the cipher initialized with this key for encryption.
+     *
+     * @return new cipher instance, {@link AES256} by default
+     */
+    protected BlockCipher createCipher() {
+        BlockCipher newCipher = new AES256();
+        newCipher.initialize(BlockCipher.Direction.ENCRYPT, this);
+        return newCipher;
+    }
+
     protected BlockCipher getCipher() {
-        if (cipher == null) {
-            cipher = new AES256();
-            cipher.initialize(BlockCipher.Direction.ENCRYPT, this);
-        }
+        if (cipher == null)
+            cipher = createCipher();
         return cipher;
     }
 
+    private EtaEngine acquireEtaEngine() throws EncryptionError {
+        ConcurrentLinkedQueue<EtaEngine> engines = etaEngines;
+        if (engines != null) {
+            EtaEngine engine = engines.poll();
+            if (engine != null)
+                return engine;
+        }
+        return new EtaEngine();
+    }
+
+    private void releaseEtaEngine(EtaEngine engine) {
+        ConcurrentLinkedQueue<EtaEngine> engines = etaEngines;
+        if (engines == null) {
+            engines = new ConcurrentLinkedQueue<>();
+            etaEngines = engines;
+        }
+        // an engine of the replaced key is just dropped
+        if (engine.engineKey == key && engines.size() < MAX_IDLE_ETA_ENGINES)
+            engines.offer(engine);
+    }
+
     public byte[] encrypt(byte[] plaintext) throws EncryptionError {
         return EncryptingStream.encrypt(getCipher(), plaintext);
     }
@@ -338,17 +434,87 @@ public class SymmetricKey extends AbstractKey implements Serializable, Hashable
      * @throws EncryptionError
      */
     public byte[] etaEncrypt(byte[] data) throws EncryptionError {
-        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        byte[] result = new byte[getEtaEncryptedSize(data.length)];
+        etaEncrypt(data, 0, data.length, result, 0);
+        return result;
+    }
+
+    /**
+     * Encrypt data using AE (EtA) with HMAC based on SHA256 directly to the buffer, the same way as {@link
+     * #etaEncrypt(byte[])} does.
+     *
+     * @param data
+     *         to encrypt
+     * @param out
+     *         buffer to put IV, encrypted data and HMAC record to, starting from its position, it should have at
+     *         least {@link #getEtaEncryptedSize(int)} bytes remaining
+     *
+     * @return number of bytes written, the buffer position is moved by it
+     *
+     * @throws EncryptionError
+     * @throws BufferOverflowException
+     *         if there is not enough space in the buffer
+     */
+    public int etaEncrypt(byte[] data, ByteBuffer out) throws EncryptionError {
+        return etaEncrypt(ByteBuffer.wrap(data), out);
+    }
+
+    /**
+     * Encrypt remaining bytes of the buffer using AE (EtA) with HMAC based on SHA256, see {@link
+     * #etaEncrypt(byte[])}. Works on whole cipher blocks and reuses the expanded key and HMAC state prepared for
+     * this key, so heap buffers are processed without allocations.
+     *
+     * @param in
+     *         data to encrypt, its position is moved to the limit
+     * @param out
+     *         buffer to put IV, encrypted data and HMAC record to, starting from its position, it should have at
+     *         least {@link #getEtaEncryptedSize(int)} bytes remaining
+     *
+     * @return number of bytes written, the buffer position is moved by it
+     *
+     * @throws EncryptionError
+     * @throws BufferOverflowException
+     *         if there is not enough space in the buffer
+     */
+    public int etaEncrypt(ByteBuffer in, ByteBuffer out) throws EncryptionError {
+        int length = in.remaining();
+        int size = getEtaEncryptedSize(length);
+        if (out.remaining() < size)
+            throw new BufferOverflowException();
+        if (in.hasArray() && out.hasArray()) {
+            etaEncrypt(in.array(), in.arrayOffset() + in.position(), length,
+                    out.array(), out.arrayOffset() + out.position());
+            in.position(in.limit());
+            out.position(out.position() + size);
+        } else {
+            byte[] data = new byte[length];
+            in.get(data);
+            byte[] result = new byte[size];
+            etaEncrypt(data, 0, length, result, 0);
+            out.put(result);
+        }
+        return size;
+    }
+
+    private void etaEncrypt(byte[] in, int inOffset, int length, byte[] out, int outOffset) throws EncryptionError {
+        EtaEngine engine = acquireEtaEngine();
         try {
-            final EtaEncryptingStream s = etaEncryptStream(bos);
-            s.write(data);
-            s.end();
-            return bos.toByteArray();
-        } catch (IOException e) {
-            throw new RuntimeException("unexpected IOError", e);
+            engine.encrypt(in, inOffset, length, out, outOffset);
+        } finally {
+            releaseEtaEngine(engine);
         }
     }
 
+    /**
+     * @param plainSize
+     *         size of the data to encrypt
+     *
+     * @return size of the data encrypted with {@link #etaEncrypt(byte[])}: IV, encrypted data and HMAC record
+     */
+    public int getEtaEncryptedSize(int plainSize) {
+        return getCipher().getBlockSize() + plainSize + 32;
+    }
+
     /**
      * Rare case: HMAC-signing data without ebcrypting it. Right now we use it only
      * for testing, but if need can extends with verification of the plain data.
@@ -385,12 +551,62 @@ public class SymmetricKey extends AbstractKey implements Serializable, Hashable
      *         if the authentication record does not match the data.
      */
     public byte[] etaDecrypt(byte[] data) throws EncryptionError, AuthenticationFailed {
+        int overhead = getEtaEncryptedSize(0);
+        if (data.length < overhead)
+            throw new AuthenticationFailed("stream corrupted: too short for the hmac record: " + data.length);
+        byte[] result = new byte[data.length - overhead];
+        etaDecrypt(data, 0, data.length, result, 0);
+        return result;
+    }
+
+    /**
+     * Decrypt remaining bytes of the buffer, encrypted with AE (EtA) and SHA256-based HMAC, see {@link
+     * #etaDecrypt(byte[])}. The HMAC record is checked before decryption, so nothing is written if it does not
+     * match. Like {@link #etaEncrypt(ByteBuffer, ByteBuffer)}, processes heap buffers without allocations.
+     *
+     * @param in
+     *         encrypted data: IV, ciphertext and HMAC record; its position is moved to the limit
+     * @param out
+     *         buffer to put decrypted data to, starting from its position
+     *
+     * @return number of bytes written, the buffer position is moved by it
+     *
+     * @throws EncryptionError
+     * @throws AuthenticationFailed
+     *         if the data are too short or the authentication record does not match the data.
+     * @throws BufferOverflowException
+     *         if there is not enough space in the buffer
+     */
+    public int etaDecrypt(ByteBuffer in, ByteBuffer out) throws EncryptionError, AuthenticationFailed {
+        int length = in.remaining();
+        int size = length - getEtaEncryptedSize(0);
+        if (size < 0)
+            throw new AuthenticationFailed("stream corrupted: too short for the hmac record: " + length);
+        if (out.remaining() < size)
+            throw new BufferOverflowException();
+        if (in.hasArray() && out.hasArray()) {
+            etaDecrypt(in.array(), in.arrayOffset() + in.position(), length,
+                    out.array(), out.arrayOffset() + out.position());
+            in.position(in.limit());
+            out.position(out.position() + size);
+        } else {
+            byte[] data = new byte[length];
+            in.get(data);
+            byte[] result = new byte[size];
+            etaDecrypt(data, 0, length, result, 0);
+            out.put(result);
+        }
+        return size;
+    }
+
+    private void etaDecrypt(byte[] in, int inOffset, int length, byte[] out, int outOffset)
+            throws EncryptionError, AuthenticationFailed {
+        EtaEngine engine = acquireEtaEngine();
+        // the engine state is reset by both successful and failed decryption, so it is reusable either way
         try {
-            return Do.read(etaDecryptStream(new ByteArrayInputStream(data)));
-        } catch (AuthenticationFailed e) {
-            throw e;
-        } catch (IOException e) {
-            throw new RuntimeException("unexpected IOError", e);
+            engine.decrypt(in, inOffset, length, out, outOffset);
+        } finally {
+            releaseEtaEngine(engine);
         }
     }
 
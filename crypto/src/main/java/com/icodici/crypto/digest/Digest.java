@@ -11,6 +11,7 @@ import net.sergeych.utils.Bytes;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 
 /**
  * Abstract base class for all MAC funtions (sha1, crc32 and so on). Provides utility interface to
@@ -151,6 +152,34 @@ public abstract class Digest {
         return digest();
     }
 
+    /**
+     * Update digest with the remaining bytes of the buffer, moving its position to the limit. Heap buffers are
+     * processed in place, others are copied by chunks. Can not be executed after any {@link #digest()} call.
+     *
+     * @param buffer data to process
+     *
+     * @return self
+     */
+    public Digest update(ByteBuffer buffer) {
+        if (buffer.hasArray()) {
+            update(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            buffer.position(buffer.limit());
+        } else {
+            byte[] chunk = new byte[Math.min(buffer.remaining(), 0x10000)];
+            while (buffer.hasRemaining()) {
+                int size = Math.min(chunk.length, buffer.remaining());
+                buffer.get(chunk, 0, size);
+                update(chunk, 0, size);
+            }
+        }
+        return this;
+    }
+
+    public byte[] digest(ByteBuffer buffer) {
+        update(buffer);
+        return digest();
+    }
+
     public byte[] digest(InputStream in) throws IOException {
         update(in);
         return digest();
@@ -10,15 +10,19 @@ package com.icodici.crypto;
 import com.icodici.crypto.digest.Digest;
 import com.icodici.crypto.digest.Sha256;
 import com.icodici.crypto.digest.Sha512;
+import net.sergeych.tools.Do;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
 import org.spongycastle.util.encoders.Hex;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.Random;
 
-import static org.junit.Assert.assertArrayEquals;
-import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.*;
 
 /**
  * Created by sergeych on 18.12.16.
@@ -43,6 +47,58 @@ public class SymmetricKeyTest {
         k.etaDecrypt(cipherText);
     }
 
+    @Test
+    public void etaBulkCompatibleWithStreams() throws Exception {
+        SymmetricKey k = new SymmetricKey();
+        Random random = new Random(1);
+        for (int size : new int[]{0, 1, 15, 16, 17, 31, 512, 10000}) {
+            byte[] plainText = new byte[size];
+            random.nextBytes(plainText);
+
+            // bulk encrypted is read by the stream
+            byte[] cipherText = k.etaEncrypt(plainText);
+            assertEquals(k.getEtaEncryptedSize(size), cipherText.length);
+            assertArrayEquals(plainText, Do.read(
+                    k.etaDecryptStream(new ByteArrayInputStream(cipherText))));
+
+            // stream encrypted is decrypted by bulk
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            SymmetricKey.EtaEncryptingStream s = k.etaEncryptStream(bos);
+            s.write(plainText);
+            s.end();
+            assertArrayEquals(plainText, k.etaDecrypt(bos.toByteArray()));
+
+            // buffers, with offsets and direct ones
+            ByteBuffer out = ByteBuffer.allocate(k.getEtaEncryptedSize(size) + 7);
+            out.position(7);
+            assertEquals(cipherText.length, k.etaEncrypt(plainText, out));
+            assertFalse(out.hasRemaining());
+            out.position(7);
+            ByteBuffer decrypted = ByteBuffer.allocateDirect(size);
+            assertEquals(size, k.etaDecrypt(out, decrypted));
+            decrypted.flip();
+            byte[] result = new byte[size];
+            decrypted.get(result);
+            assertArrayEquals(plainText, result);
+        }
+
+        // the failed check does not break the key for the next calls
+        byte[] cipherText = k.etaEncrypt("Hello, world!".getBytes());
+        cipherText[cipherText.length - 1] ^= 1;
+        try {
+            k.etaDecrypt(cipherText);
+            fail("should throw AuthenticationFailed");
+        } catch (SymmetricKey.AuthenticationFailed e) {
+        }
+        cipherText[cipherText.length - 1] ^= 1;
+        assertArrayEquals("Hello, world!".getBytes(), k.etaDecrypt(cipherText));
+        try {
+            k.etaDecrypt(new byte[40]);
+            fail("should throw AuthenticationFailed");
+        } catch (SymmetricKey.AuthenticationFailed e) {
+        }
+    }
+
     @Test
     public void testHashes() throws Exception {
         byte[] valid = Hex.decode("ba7816bf 8f01cfea 414140de 5dae2223 b00361a3 96177a9c b410ff61" +
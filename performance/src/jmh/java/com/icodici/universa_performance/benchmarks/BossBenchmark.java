@@ -0,0 +1,55 @@
+/*
+ * Copyright (c) 2018, iCodici S.n.C, All Rights Reserved
+ *
+ */
+
+package com.icodici.universa_performance.benchmarks;
+
+import com.icodici.crypto.PrivateKey;
+import com.icodici.universa.contract.Contract;
+import net.sergeych.boss.Boss;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Boss pack and unpack, without {@link net.sergeych.biserializer.BiAdapter}s, of the payloads the node handles most:
+ * <ul>
+ * <li>{@code contract}: the contract data of the sealed token revision split to 10 parts;</li>
+ * <li>{@code transaction}: the packed transaction of this split, e.g. the sealed binaries of all its contracts.</li>
+ * </ul>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BossBenchmark {
+
+    @Param({"contract", "transaction"})
+    public String payload;
+
+    private byte[] packed;
+    private Object tree;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        Contract split = ContractTrees.split(new PrivateKey(2048), 10);
+        if ("contract".equals(payload))
+            packed = Boss.unpack(split.getLastSealedBinary()).getBinaryOrThrow("data");
+        else
+            packed = split.getPackedTransaction();
+        tree = Boss.load(packed, null);
+    }
+
+    @Benchmark
+    public byte[] pack() {
+        return Boss.pack(tree);
+    }
+
+    @Benchmark
+    public Object unpack() {
+        return Boss.load(packed, null);
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2018, iCodici S.n.C, All Rights Reserved
+ *
+ */
+
+package com.icodici.universa_performance.benchmarks;
+
+import com.icodici.crypto.PrivateKey;
+import com.icodici.crypto.PublicKey;
+import com.icodici.universa.HashId;
+import com.icodici.universa.contract.Contract;
+import com.icodici.universa.node.ItemResult;
+import com.icodici.universa.node.ItemState;
+import com.icodici.universa.node2.ItemNotification;
+import com.icodici.universa.node2.NodeInfo;
+import com.icodici.universa.node2.Notification;
+import net.sergeych.biserializer.BossBiMapper;
+import net.sergeych.boss.Boss;
+import net.sergeych.tools.Binder;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Packing the hot Boss payloads with the new writer each time ({@code *Fresh}, as it was done before) and with the
+ * reusable writer of the thread ({@code *Pooled}):
+ * <ul>
+ * <li>datagram of notifications packed together with one writer;</li>
+ * <li>{@link PublicKey#pack()} data, and the whole call;</li>
+ * <li>the contract data {@link Contract#seal()} packs and signs, and the whole seal with the 2048 bit key.</li>
+ * </ul>
+ * Run with {@code -prof gc} to see the allocation rate.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BossWriterBenchmark {
+
+    @Param({"10", "100"})
+    public int notificationsCount;
+
+    private NodeInfo from;
+    private List<Notification> notifications;
+    private PublicKey publicKey;
+    private Object keyParts;
+    private Contract contract;
+    private Object contractData;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        PrivateKey privateKey = new PrivateKey(2048);
+        publicKey = privateKey.getPublicKey();
+        keyParts = Boss.load(publicKey.pack());
+
+        from = new NodeInfo(publicKey, 1, "node-1", "localhost", 7101, 7102, 7104);
+        notifications = new ArrayList<>();
+        ZonedDateTime now = ZonedDateTime.now();
+        for (int i = 0; i < notificationsCount; i++) {
+            ItemResult result = new ItemResult(ItemState.PENDING_POSITIVE, false, now, now.plusDays(30));
+            notifications.add(new ItemNotification(from, HashId.createRandom(), result, i % 2 == 0));
+        }
+
+        contract = new Contract(privateKey);
+        contract.getStateData().set("description", "Lorem ipsum dolor sit amet, consectetur adipiscing elit");
+        contract.seal();
+        contractData = BossBiMapper.serialize(Binder.of(
+                "contract", contract,
+                "revoking", new ArrayList<>(),
+                "new", new ArrayList<>()
+        ));
+    }
+
+    private void writeNotifications(Boss.Writer w) throws IOException {
+        w.write(1).write(from.getNumber()).write(notifications.size());
+        for (Notification n : notifications)
+            Notification.write(w, n);
+    }
+
+    @Benchmark
+    public byte[] notificationsFresh() throws IOException {
+        Boss.Writer w = new Boss.Writer();
+        writeNotifications(w);
+        return w.toByteArray();
+    }
+
+    @Benchmark
+    public byte[] notificationsPooled() throws IOException {
+        Boss.Writer w = Boss.Writer.acquire();
+        try {
+            writeNotifications(w);
+            return w.toByteArray();
+        } finally {
+            w.release();
+        }
+    }
+
+    @Benchmark
+    public byte[] publicKeyFresh() throws IOException {
+        Boss.Writer w = new Boss.Writer();
+        w.writeObject(keyParts);
+        return w.toByteArray();
+    }
+
+    @Benchmark
+    public byte[] publicKeyPooled() {
+        return Boss.pack(keyParts);
+    }
+
+    @Benchmark
+    public byte[] publicKeyPack() {
+        return publicKey.pack();
+    }
+
+    @Benchmark
+    public byte[] contractDataFresh() throws IOException {
+        Boss.Writer w = new Boss.Writer();
+        w.writeObject(contractData);
+        return w.toByteArray();
+    }
+
+    @Benchmark
+    public byte[] contractDataPooled() {
+        return Boss.pack(contractData);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public byte[] contractSeal() {
+        return contract.seal();
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2018, iCodici S.n.C, All Rights Reserved
+ *
+ */
+
+package com.icodici.universa_performance.benchmarks;
+
+import com.icodici.universa.HashId;
+import com.icodici.universa.node2.ExpiryWheel;
+import org.openjdk.jmh.annotations.*;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Node cache expiration: the periodic sweep of the whole cache, as ItemCache, ParcelCache and EnvCache did, against
+ * {@link ExpiryWheel}.
+ * <p>
+ * The cache holds {@code size} entries of 20 minutes age, with expiration times spread evenly, and expired entries are
+ * put back, so the size stays the same. {@code *Expire5s} benchmarks measure the expiration work for 5 seconds of
+ * the node time: one sweep pass (which was run every 5 seconds) or 5 ticks of the 1 second wheel. {@code *Put}
+ * benchmarks measure putting an entry to the cache together with its expiration.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CacheExpiryBenchmark {
+
+    private static final Duration MAX_AGE = Duration.ofMinutes(20);
+    private static final Duration TICK = Duration.ofSeconds(1);
+    private static final Duration SWEEP_PERIOD = Duration.ofSeconds(5);
+
+    @Param({"100000", "500000"})
+    public int size;
+
+    private HashId[] ids;
+    private int next;
+
+    // the way caches expired records before the wheel
+    private static class SweepRecord {
+        private final HashId id;
+        private final Instant expiresAt;
+
+        SweepRecord(HashId id, Instant expiresAt) {
+            this.id = id;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private ConcurrentHashMap<HashId, SweepRecord> sweepRecords;
+    private Instant sweepNow;
+
+    private ConcurrentHashMap<HashId, Object> wheelRecords;
+    private ExpiryWheel<HashId, Object> wheel;
+    private long wheelNow;
+    private final List<HashId> expired = new ArrayList<>();
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        ids = new HashId[size * 2];
+        for (int i = 0; i < ids.length; i++)
+            ids[i] = HashId.createRandom();
+
+        Random random = new Random(1);
+        sweepNow = Instant.now();
+        sweepRecords = new ConcurrentHashMap<>();
+        wheelNow = 0;
+        wheelRecords = new ConcurrentHashMap<>();
+        wheel = new ExpiryWheel<>(TICK, Integer.MAX_VALUE, (id, value) -> {
+            if (wheelRecords.remove(id, value))
+                expired.add(id);
+        }, () -> wheelNow);
+
+        for (int i = 0; i < size; i++) {
+            Duration ttl = Duration.ofMillis(random.nextInt((int) MAX_AGE.toMillis()));
+            HashId id = ids[i];
+            sweepRecords.put(id, new SweepRecord(id, sweepNow.plus(ttl)));
+            Object value = new Object();
+            wheelRecords.put(id, value);
+            wheel.schedule(id, value, ttl);
+        }
+        next = size;
+    }
+
+    @Benchmark
+    public int sweepExpire5s() {
+        sweepNow = sweepNow.plus(SWEEP_PERIOD);
+        Instant now = sweepNow;
+        List<HashId> removed = new ArrayList<>();
+        sweepRecords.values().forEach(r -> {
+            if (r.expiresAt.isBefore(now)) {
+                sweepRecords.remove(r.id);
+                removed.add(r.id);
+            }
+        });
+        for (HashId id : removed)
+            sweepRecords.put(id, new SweepRecord(id, now.plus(MAX_AGE)));
+        return removed.size();
+    }
+
+    @Benchmark
+    public int wheelExpire5s() {
+        wheelNow += SWEEP_PERIOD.toMillis();
+        expired.clear();
+        wheel.expire();
+        for (HashId id : expired) {
+            Object value = new Object();
+            wheelRecords.put(id, value);
+            wheel.schedule(id, value, MAX_AGE);
+        }
+        return expired.size();
+    }
+
+    private HashId nextId() {
+        HashId id = ids[next++];
+        if (next == ids.length)
+            next = 0;
+        return id;
+    }
+
+    @Benchmark
+    public Object sweepPut() {
+        HashId id = nextId();
+        return sweepRecords.put(id, new SweepRecord(id, Instant.now().plus(MAX_AGE)));
+    }
+
+    @Benchmark
+    public Object wheelPut() {
+        HashId id = nextId();
+        Object value = new Object();
+        Object old = wheelRecords.put(id, value);
+        wheel.schedule(id, value, MAX_AGE);
+        return old;
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright (c) 2018, iCodici S.n.C, All Rights Reserved
+ *
+ */
+
+package com.icodici.universa_performance.benchmarks;
+
+import com.icodici.crypto.PrivateKey;
+import com.icodici.universa.contract.Contract;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link Contract#check()} of the token split to {@code parts} contracts and of the join of these parts back, as the
+ * node checks them: each time on the contract just unpacked from the transaction.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ContractCheckBenchmark {
+
+    @Param({"split", "join"})
+    public String tree;
+
+    @Param({"2", "10"})
+    public int parts;
+
+    private byte[] packed;
+    private Contract contract;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        PrivateKey key = new PrivateKey(2048);
+        Contract split = ContractTrees.split(key, parts);
+        packed = ContractTrees.checkedTransaction("join".equals(tree) ? ContractTrees.join(key, split) : split);
+    }
+
+    @Setup(Level.Invocation)
+    public void unpack() throws Exception {
+        contract = Contract.fromPackedTransaction(packed);
+    }
+
+    @Benchmark
+    public boolean check() throws Exception {
+        return contract.check();
+    }
+}
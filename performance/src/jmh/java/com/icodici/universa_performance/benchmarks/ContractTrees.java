@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2018, iCodici S.n.C, All Rights Reserved
+ *
+ */
+
+package com.icodici.universa_performance.benchmarks;
+
+import com.icodici.crypto.PrivateKey;
+import com.icodici.universa.contract.Contract;
+import com.icodici.universa.contract.ContractsService;
+
+import java.util.Collections;
+import java.util.Set;
+
+/**
+ * Representative contract trees for the benchmarks: token split to many parts, and join of such parts back.
+ */
+class ContractTrees {
+
+    static final String AMOUNT = "amount";
+
+    private ContractTrees() {
+    }
+
+    /**
+     * Create new token contract and its revision split to {@code parts} contracts, e.g. revision and parts-1 siblings.
+     *
+     * @param key is the issuer and owner key
+     * @param parts is number of contracts after split, at least 2
+     * @return sealed split revision of the token with siblings as new items
+     */
+    static Contract split(PrivateKey key, int parts) {
+        Set<PrivateKey> keys = Collections.singleton(key);
+        Contract token = ContractsService.createTokenContract(keys, Collections.singleton(key.getPublicKey()),
+                                                              String.valueOf(parts * 100));
+        Contract revision = token.createRevision(key);
+        Contract[] siblings = revision.split(parts - 1);
+        for (Contract sibling : siblings) {
+            sibling.getStateData().set(AMOUNT, "100");
+            sibling.seal();
+        }
+        revision.getStateData().set(AMOUNT, "100");
+        revision.seal();
+        return revision;
+    }
+
+    /**
+     * Create revision of the split result that joins all its parts back.
+     *
+     * @param key is the owner key
+     * @param split is the result of {@link #split(PrivateKey, int)}
+     * @return sealed join revision with all the other parts as revoking items
+     */
+    static Contract join(PrivateKey key, Contract split) {
+        Contract join = split.createRevision(key);
+        Contract[] parts = split.getNew().toArray(new Contract[0]);
+        join.getStateData().set(AMOUNT, String.valueOf((parts.length + 1) * 100));
+        join.addRevokingItems(parts);
+        join.seal();
+        return join;
+    }
+
+    /**
+     * @return packed transaction of the contract checked to be valid
+     */
+    static byte[] checkedTransaction(Contract contract) throws Exception {
+        byte[] packed = contract.getPackedTransaction();
+        Contract unpacked = Contract.fromPackedTransaction(packed);
+        if (!unpacked.check())
+            throw new IllegalStateException("benchmark contract is not valid: " + unpacked.getErrors());
+        return packed;
+    }
+}
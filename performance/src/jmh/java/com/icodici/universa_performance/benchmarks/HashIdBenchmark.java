@@ -0,0 +1,51 @@
+/*
+ * Copyright (c) 2018, iCodici S.n.C, All Rights Reserved
+ *
+ */
+
+package com.icodici.universa_performance.benchmarks;
+
+import com.icodici.universa.HashId;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link HashId#of(byte[])}, the composite SHA-512/256 + SHA3-256 + GOST R 34.11-2012 digest, of the data of
+ * {@code size} bytes: from a small notification to a large contract with attachments, with the three digests computed
+ * one after another or concurrently (see {@link HashId#setParallelDigest(boolean)}).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HashIdBenchmark {
+
+    @Param({"256", "4096", "65536", "1048576"})
+    public int size;
+
+    @Param({"false", "true"})
+    public boolean parallel;
+
+    private byte[] data;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        data = new byte[size];
+        new Random(1).nextBytes(data);
+        HashId.setParallelDigest(parallel);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        HashId.setParallelDigest(false);
+    }
+
+    @Benchmark
+    public HashId of() {
+        return HashId.of(data);
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2018, iCodici S.n.C, All Rights Reserved
+ *
+ */
+
+package com.icodici.universa_performance.benchmarks;
+
+import com.icodici.universa.HashId;
+import com.icodici.universa.node.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link Ledger#getRecord(HashId)}, {@link StateRecord#save()}, {@link Ledger#findOrCreate(HashId)} of new records and
+ * {@link Ledger#findUnfinished()} of the ledger with {@code records} pending records, with and without the ledger
+ * records cache.
+ * <p>
+ * {@link SqliteLedger} works in the temporary file, {@link EmbeddedLedger} in the temporary directory, with writes
+ * forced to the disk as by default. {@link PostgresLedger} needs the empty database given by the
+ * {@code ledger.url} system property, e.g.
+ * <pre>
+ * ./gradlew :performance:jmh -PjmhArgs="Ledger -p ledger=embedded,postgres -jvmArgsAppend -Dledger.url=jdbc:postgresql://localhost/universa_bench"
+ * </pre>
+ * Records created by the benchmark are removed when it ends.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LedgerBenchmark {
+
+    @Param({"sqlite", "embedded"})
+    public String ledger;
+
+    @Param({"true", "false"})
+    public boolean cache;
+
+    @Param({"10000"})
+    public int records;
+
+    private Ledger theLedger;
+    private Path sqliteFile;
+    private Path embeddedDirectory;
+    private HashId[] ids;
+    private StateRecord[] saved;
+    private List<StateRecord> created = new ArrayList<>();
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        switch (ledger) {
+            case "sqlite":
+                sqliteFile = Files.createTempFile("ledger-benchmark", ".db");
+                SqliteLedger sqliteLedger = new SqliteLedger("jdbc:sqlite:" + sqliteFile);
+                sqliteLedger.enableCache(cache);
+                theLedger = sqliteLedger;
+                break;
+            case "embedded":
+                embeddedDirectory = Files.createTempDirectory("ledger-benchmark");
+                EmbeddedLedger embeddedLedger = new EmbeddedLedger(embeddedDirectory.toString());
+                embeddedLedger.enableCache(cache);
+                theLedger = embeddedLedger;
+                break;
+            case "postgres":
+                String url = System.getProperty("ledger.url");
+                if (url == null)
+                    throw new IllegalArgumentException("set ledger.url to the benchmark postgres database");
+                PostgresLedger postgresLedger = new PostgresLedger(url);
+                postgresLedger.enableCache(cache);
+                theLedger = postgresLedger;
+                break;
+            default:
+                throw new IllegalArgumentException("unknown ledger: " + ledger);
+        }
+        ids = new HashId[records];
+        saved = new StateRecord[records];
+        for (int i = 0; i < records; i++) {
+            ids[i] = HashId.createRandom();
+            saved[i] = theLedger.findOrCreate(ids[i]);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        for (StateRecord r : saved)
+            r.destroy();
+        for (StateRecord r : created)
+            r.destroy();
+        theLedger.close();
+        if (sqliteFile != null)
+            Files.deleteIfExists(sqliteFile);
+        if (embeddedDirectory != null) {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(embeddedDirectory)) {
+                for (Path f : files)
+                    Files.delete(f);
+            }
+            Files.delete(embeddedDirectory);
+        }
+    }
+
+    private int nextIndex() {
+        int i = next++;
+        if (next == records)
+            next = 0;
+        return i;
+    }
+
+    @Benchmark
+    public StateRecord getRecord() {
+        return theLedger.getRecord(ids[nextIndex()]);
+    }
+
+    @Benchmark
+    public StateRecord save() {
+        StateRecord r = saved[nextIndex()];
+        r.setExpiresAt(ZonedDateTime.now().plusDays(30));
+        r.save();
+        return r;
+    }
+
+    @Benchmark
+    public StateRecord findOrCreate() {
+        StateRecord r = theLedger.findOrCreate(HashId.createRandom());
+        created.add(r);
+        return r;
+    }
+
+    @Benchmark
+    public Map<HashId, StateRecord> findUnfinished() {
+        return theLedger.findUnfinished();
+    }
+}
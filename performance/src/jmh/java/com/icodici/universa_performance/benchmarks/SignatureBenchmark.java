@@ -0,0 +1,56 @@
+/*
+ * Copyright (c) 2018, iCodici S.n.C, All Rights Reserved
+ *
+ */
+
+package com.icodici.universa_performance.benchmarks;
+
+import com.icodici.crypto.PrivateKey;
+import com.icodici.crypto.PublicKey;
+import com.icodici.universa.contract.ExtendedSignature;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link ExtendedSignature#sign(PrivateKey, byte[])} and {@link ExtendedSignature#verify(PublicKey, byte[], byte[])}
+ * of the 4 KB data, about the size of the simple sealed contract, with 2048 and 4096 bit keys.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SignatureBenchmark {
+
+    @Param({"2048", "4096"})
+    public int keyBits;
+
+    private PrivateKey privateKey;
+    private PublicKey publicKey;
+    private byte[] data;
+    private byte[] signature;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        privateKey = new PrivateKey(keyBits);
+        publicKey = privateKey.getPublicKey();
+        data = new byte[4096];
+        new Random(1).nextBytes(data);
+        signature = ExtendedSignature.sign(privateKey, data);
+        if (ExtendedSignature.verify(publicKey, signature, data) == null)
+            throw new IllegalStateException("signature is not verified");
+    }
+
+    @Benchmark
+    public byte[] sign() {
+        return ExtendedSignature.sign(privateKey, data);
+    }
+
+    @Benchmark
+    public ExtendedSignature verify() {
+        return ExtendedSignature.verify(publicKey, signature, data);
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2018, iCodici S.n.C, All Rights Reserved
+ *
+ */
+
+package com.icodici.universa_performance.benchmarks;
+
+import com.icodici.crypto.SymmetricKey;
+import net.sergeych.tools.Do;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link SymmetricKey} EtA (AES256-CTR + HMAC-SHA256) of {@code size} bytes, from an UDP packet payload to a large
+ * HTTP command: the byte-by-byte {@link SymmetricKey.EtaEncryptingStream}/{@link SymmetricKey.EtaDecryptingStream}
+ * against the bulk {@link SymmetricKey#etaEncrypt(ByteBuffer, ByteBuffer)}/{@link
+ * SymmetricKey#etaDecrypt(ByteBuffer, ByteBuffer)}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SymmetricKeyBenchmark {
+
+    @Param({"64", "512", "16384"})
+    public int size;
+
+    private SymmetricKey key;
+    private byte[] plain;
+    private byte[] encrypted;
+    private ByteBuffer encryptBuffer;
+    private ByteBuffer decryptBuffer;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        key = new SymmetricKey();
+        plain = new byte[size];
+        new Random(1).nextBytes(plain);
+        encrypted = key.etaEncrypt(plain);
+        encryptBuffer = ByteBuffer.allocate(key.getEtaEncryptedSize(size));
+        decryptBuffer = ByteBuffer.allocate(size);
+    }
+
+    @Benchmark
+    public byte[] encryptStream() throws Exception {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        SymmetricKey.EtaEncryptingStream s = key.etaEncryptStream(bos);
+        s.write(plain);
+        s.end();
+        return bos.toByteArray();
+    }
+
+    @Benchmark
+    public ByteBuffer encryptBulk() throws Exception {
+        encryptBuffer.clear();
+        key.etaEncrypt(plain, encryptBuffer);
+        return encryptBuffer;
+    }
+
+    @Benchmark
+    public byte[] decryptStream() throws Exception {
+        return Do.read(key.etaDecryptStream(new ByteArrayInputStream(encrypted)));
+    }
+
+    @Benchmark
+    public ByteBuffer decryptBulk() throws Exception {
+        decryptBuffer.clear();
+        key.etaDecrypt(ByteBuffer.wrap(encrypted), decryptBuffer);
+        return decryptBuffer;
+    }
+}
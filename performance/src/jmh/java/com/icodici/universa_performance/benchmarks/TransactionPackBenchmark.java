@@ -0,0 +1,42 @@
+/*
+ * Copyright (c) 2018, iCodici S.n.C, All Rights Reserved
+ *
+ */
+
+package com.icodici.universa_performance.benchmarks;
+
+import com.icodici.crypto.PrivateKey;
+import com.icodici.universa.contract.Contract;
+import com.icodici.universa.contract.TransactionPack;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Unpacking of the {@link TransactionPack} with the token split to {@code parts} contracts: the first thing the node
+ * does with each incoming transaction.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TransactionPackBenchmark {
+
+    @Param({"2", "10", "50"})
+    public int parts;
+
+    private byte[] packed;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        Contract split = ContractTrees.split(new PrivateKey(2048), parts);
+        packed = ContractTrees.checkedTransaction(split);
+    }
+
+    @Benchmark
+    public TransactionPack unpack() throws Exception {
+        return TransactionPack.unpack(packed);
+    }
+}
@@ -17,7 +17,12 @@ import net.sergeych.tools.Do;
 import net.sergeych.utils.Base64;
 import net.sergeych.utils.Base64u;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Hash-based identity v3.
@@ -159,6 +164,55 @@ public class HashId implements Comparable<HashId> {
         return new HashId(data);
     }
 
+    /**
+     * Return new HashId of all the data read from the stream, without loading it all to memory. The stream is not
+     * closed.
+     *
+     * @param in stream to read to the end
+     * @return HashId instance of the stream data, the same as {@link #of(byte[])} of these bytes
+     * @throws IOException if the stream can't be read
+     */
+    public static HashId of(InputStream in) throws IOException {
+        return withDigest(new CompositeDigest().digest(in));
+    }
+
+    /**
+     * Return new HashId of the remaining bytes of the buffer, e.g. of the memory mapped file. Moves the buffer position
+     * to its limit.
+     *
+     * @param buffer data for hashing
+     * @return HashId instance of the buffer data, the same as {@link #of(byte[])} of these bytes
+     */
+    public static HashId of(ByteBuffer buffer) {
+        return withDigest(new CompositeDigest().digest(buffer));
+    }
+
+    /**
+     * Turn on or off computing 3 digests of the {@link CompositeDigest} concurrently for the large data. Results are
+     * the same in both modes.
+     *
+     * @param on true to compute concurrently, false by default
+     */
+    public static void setParallelDigest(boolean on) {
+        CompositeDigest.parallel = on;
+    }
+
+    public static boolean isParallelDigest() {
+        return CompositeDigest.parallel;
+    }
+
+    /**
+     * Set the size of data processed at once, from which the composite digest is computed concurrently when {@link
+     * #setParallelDigest(boolean)} is on. Smaller ones are faster in the calling thread.
+     *
+     * @param bytes minimal size, {@link CompositeDigest#DEFAULT_PARALLEL_THRESHOLD} by default
+     */
+    public static void setParallelDigestThreshold(int bytes) {
+        if (bytes < 1)
+            throw new IllegalArgumentException("threshold should be positive: " + bytes);
+        CompositeDigest.parallelThreshold = bytes;
+    }
+
     static {
         DefaultBiMapper.registerAdapter(HashId.class, new BiAdapter() {
             @Override
@@ -204,19 +258,82 @@ public class HashId implements Comparable<HashId> {
      * <p>
      * The classic usage scenatio is packed data of {@link Approvable} documents.
      * <p>
+     * When {@link HashId#setParallelDigest(boolean)} is on, large updates (see {@link
+     * HashId#setParallelDigestThreshold(int)}) are processed by the three algorithms concurrently: SHA2 and SHA3 on the
+     * shared digest pool, GOST, the slowest one, in the calling thread, which also runs the parts the pool has not
+     * started yet. So it takes about as long as GOST alone.
+     * <p>
      * Created by sergeych on 16/07/2017.
      */
     public static class CompositeDigest extends Digest {
 
+        public static final int DEFAULT_PARALLEL_THRESHOLD = 16 * 1024;
+
+        static volatile boolean parallel = false;
+        static volatile int parallelThreshold = DEFAULT_PARALLEL_THRESHOLD;
+
+        private static final AtomicInteger threadNumber = new AtomicInteger(1);
+
+        private static final ThreadPoolExecutor executor;
+
+        static {
+            int threads = Runtime.getRuntime().availableProcessors();
+            executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+                Thread thread = new Thread(r);
+                thread.setName("hash-digest-" + threadNumber.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            });
+            executor.allowCoreThreadTimeOut(true);
+        }
+
         private Sha512_256 sha2Digest = new Sha512_256();
         private Sha3_256 sha3Digest = new Sha3_256();
         private Gost3411_2012_256 gostDigest = new Gost3411_2012_256();
 
         @Override
         protected void _update(byte[] data, int offset, int size) {
-            sha2Digest.update(data, offset, size);
-            sha3Digest.update(data, offset, size);
-            gostDigest.update(data, offset, size);
+            if (parallel && size >= parallelThreshold) {
+                FutureTask<Void> sha2 = new FutureTask<>(() -> sha2Digest.update(data, offset, size), null);
+                FutureTask<Void> sha3 = new FutureTask<>(() -> sha3Digest.update(data, offset, size), null);
+                executor.execute(sha2);
+                executor.execute(sha3);
+                gostDigest.update(data, offset, size);
+                // does nothing if the pool has started it already
+                sha3.run();
+                sha2.run();
+                await(sha2);
+                await(sha3);
+            } else {
+                sha2Digest.update(data, offset, size);
+                sha3Digest.update(data, offset, size);
+                gostDigest.update(data, offset, size);
+            }
+        }
+
+        private static void await(FutureTask<Void> task) {
+            boolean interrupted = false;
+            try {
+                while (true) {
+                    try {
+                        task.get();
+                        return;
+                    } catch (InterruptedException e) {
+                        // the digest state must be complete before we return
+                        interrupted = true;
+                    } catch (ExecutionException e) {
+                        Throwable cause = e.getCause();
+                        if (cause instanceof RuntimeException)
+                            throw (RuntimeException) cause;
+                        if (cause instanceof Error)
+                            throw (Error) cause;
+                        throw new IllegalStateException("digest failed", cause);
+                    }
+                }
+            } finally {
+                if (interrupted)
+                    Thread.currentThread().interrupt();
+            }
         }
 
         @Override
@@ -98,6 +98,28 @@ public class Contract implements Approvable, BiSerializable, Cloneable {
 
     private static int testQuantaLimit = -1;
 
+    private static volatile boolean parallelSignatureVerification = false;
+
+    /**
+     * @return true if {@link #check()} verifies signatures of the whole contract tree concurrently, see
+     * {@link #setParallelSignatureVerification(boolean)}
+     */
+    public static boolean isParallelSignatureVerification() {
+        return parallelSignatureVerification;
+    }
+
+    /**
+     * Turn on or off parallel verification of signatures in {@link #check()}. When on, signatures of the main contract,
+     * its new and revoking items are collected first and then verified concurrently with
+     * {@link ParallelSignatureVerifier}. Quanta are calculated before verification exactly as in the serial mode, so
+     * quanta limit is reached at the same signature and verification results and errors are the same.
+     *
+     * @param parallel true to verify signatures concurrently, false by default
+     */
+    public static void setParallelSignatureVerification(boolean parallel) {
+        Contract.parallelSignatureVerification = parallel;
+    }
+
     public static String JSAPI_SCRIPT_FIELD = "scripts";
 
     /**
@@ -258,14 +280,14 @@ public class Contract implements Approvable, BiSerializable, Cloneable {
             }
         }
 
-        for(Reference ref : getReferences().values()) {
-
-            Set<Contract> referencedContracts = new HashSet<>(pack.getReferencedItems().values());
-            for(Approvable a : getNewItems()) {
-                if (a instanceof Contract) {
-                    referencedContracts.add((Contract) a);
-                }
+        Set<Contract> referencedContracts = new HashSet<>(pack.getReferencedItems().values());
+        for(Approvable a : getNewItems()) {
+            if (a instanceof Contract) {
+                referencedContracts.add((Contract) a);
             }
+        }
+
+        for(Reference ref : getReferences().values()) {
 
             for(Contract c : pack.getReferencedItems().values()) {
                 if(ref.isMatchingWith(c, referencedContracts)) {
@@ -633,16 +655,35 @@ public class Contract implements Approvable, BiSerializable, Cloneable {
      * @throws Quantiser.QuantiserException when quantas limit was reached during check
      */
     private void verifySealedKeys(boolean isQuantise) throws Quantiser.QuantiserException {
+        verifySealedKeys(isQuantise, null);
+    }
+
+    /**
+     * Verify signatures in sealed contract (if needed) and forms a map of sealed keys.
+     * If pending list is given, signatures are not verified but added to it, to be verified later with
+     * {@link #verifyPendingSignatures(List)}.
+     *
+     * @param isQuantise if needed quantisation verifying signatures
+     * @param pending where to collect signatures to verify, null to verify them at once
+     * @throws Quantiser.QuantiserException when quantas limit was reached during check
+     */
+    private void verifySealedKeys(boolean isQuantise, List<PendingSignature> pending) throws Quantiser.QuantiserException {
 
         if (sealedBinary == null)
             return;
 
         if (!isNeedVerifySealedKeys) {
-            if (isQuantise)
+            if (isQuantise) {
+                // quanta depends on the sealed keys, so signatures of this contract should be verified already
+                if (pending != null && pending.stream().anyMatch(ps -> ps.contract == this)) {
+                    verifyPendingSignatures(pending);
+                    pending.clear();
+                }
                 // Add key verify quanta again (we just reset quantiser)
                 for (PublicKey key : sealedByKeys.keySet())
                     if (key != null)
                         verifySignatureQuantized(key);
+            }
             return;
         }
 
@@ -700,17 +741,53 @@ public class Contract implements Approvable, BiSerializable, Cloneable {
                 if (isQuantise)
                     verifySignatureQuantized(key);
 
-                ExtendedSignature es = ExtendedSignature.verify(key, s, contractBytes);
-                if (es != null) {
-                    sealedByKeys.put(key, es);
-                } else
-                    addError(Errors.BAD_SIGNATURE, "keytag:" + key.info().getBase64Tag(), "the signature is broken");
+                if (pending != null) {
+                    pending.add(new PendingSignature(this, new ParallelSignatureVerifier.Task(key, s, contractBytes)));
+                } else {
+                    ExtendedSignature es = ExtendedSignature.verify(key, s, contractBytes);
+                    applySignatureVerification(key, es);
+                }
             }
         }
 
         isNeedVerifySealedKeys = false;
     }
 
+    private void applySignatureVerification(PublicKey key, ExtendedSignature es) {
+        if (es != null) {
+            sealedByKeys.put(key, es);
+        } else
+            addError(Errors.BAD_SIGNATURE, "keytag:" + key.info().getBase64Tag(), "the signature is broken");
+    }
+
+    /**
+     * Signature collected by {@link #verifySealedKeys(boolean, List)} for the parallel verification.
+     */
+    private static class PendingSignature {
+        private final Contract contract;
+        private final ParallelSignatureVerifier.Task task;
+
+        PendingSignature(Contract contract, ParallelSignatureVerifier.Task task) {
+            this.contract = contract;
+            this.task = task;
+        }
+    }
+
+    /**
+     * Verify collected signatures concurrently and apply results to their contracts in the order signatures were
+     * collected, so sealed keys and errors are the same as with the serial verification.
+     *
+     * @param pending signatures collected by {@link #verifySealedKeys(boolean, List)}
+     */
+    private static void verifyPendingSignatures(List<PendingSignature> pending) {
+        List<ParallelSignatureVerifier.Task> tasks = pending.stream().map(ps -> ps.task).collect(Collectors.toList());
+        List<ExtendedSignature> results = ParallelSignatureVerifier.verify(tasks);
+        for (int i = 0; i < pending.size(); i++) {
+            PendingSignature ps = pending.get(i);
+            ps.contract.applySignatureVerification(ps.task.getKey(), results.get(i));
+        }
+    }
+
     /**
      * Verify signatures in contract and all sub-items (if needed).
      * Errors found can be accessed in certain contract with {@link #getErrors()}
@@ -718,14 +795,35 @@ public class Contract implements Approvable, BiSerializable, Cloneable {
      * @throws Quantiser.QuantiserException when quantas limit was reached during check
      */
     private void verifySignatures() throws Quantiser.QuantiserException {
+        if (!parallelSignatureVerification) {
+            verifySignatures(null);
+            return;
+        }
+
+        List<PendingSignature> pending = new ArrayList<>();
+        try {
+            verifySignatures(pending);
+        } finally {
+            // signatures collected before the quanta limit is reached are verified in serial mode too
+            verifyPendingSignatures(pending);
+        }
+    }
+
+    /**
+     * Verify signatures in contract and all sub-items (if needed), or collect them to verify later.
+     *
+     * @param pending where to collect signatures to verify, null to verify them at once
+     * @throws Quantiser.QuantiserException when quantas limit was reached during check
+     */
+    private void verifySignatures(List<PendingSignature> pending) throws Quantiser.QuantiserException {
 
-        verifySealedKeys(true);
+        verifySealedKeys(true, pending);
 
         // verify signatures of new items
         for (Contract c: newItems) {
             // Add verification signatures from new item quanta
             c.quantiser.reset(quantiser.getQuantaLimit() - quantiser.getQuantaSum());
-            c.verifySignatures();
+            c.verifySignatures(pending);
             quantiser.addWorkCostFrom(c.quantiser);
         }
 
@@ -733,7 +831,7 @@ public class Contract implements Approvable, BiSerializable, Cloneable {
         for (Contract c: revokingItems) {
             // Add verification signatures from revoking item quanta
             c.quantiser.reset(quantiser.getQuantaLimit() - quantiser.getQuantaSum());
-            c.verifySealedKeys(true);
+            c.verifySealedKeys(true, pending);
             quantiser.addWorkCostFrom(c.quantiser);
         }
     }
@@ -857,6 +955,8 @@ public class Contract implements Approvable, BiSerializable, Cloneable {
         }
 
         Collection<Contract> neighbours = neighbourContracts.values();
+        // most of the references could match only few neighbours, which are selected by index
+        ReferencedItemsIndex neighboursIndex = new ReferencedItemsIndex(neighbours);
 
         // check each reference, all must be ok
         boolean allRefs_check = true;
@@ -870,7 +970,11 @@ public class Contract implements Approvable, BiSerializable, Cloneable {
             // use all neighbourContracts to check reference. at least one must be ok
             boolean rm_check = false;
             if(rm.type == Reference.TYPE_TRANSACTIONAL) {
-                for(Contract neighbour : neighbours) {
+                // new format of reference with conditions could match any neighbour, the old one - only by ids
+                List<Contract> candidates = neighboursIndex.byTransactional(rm.transactional_id, rm.contract_id);
+                if (rm.getConditions().size() > 0)
+                    candidates = neighboursIndex.union(rm.selectCandidates(neighboursIndex), candidates);
+                for(Contract neighbour : candidates) {
                     if ((((rm.transactional_id != null && neighbour.transactional != null && rm.transactional_id.equals(neighbour.transactional.id)) ||
                             (rm.contract_id != null && rm.contract_id.equals(neighbour.id))) && checkOneReference(rm, neighbour)) ||
                             (rm.getConditions().size() > 0))    // new format of reference with conditions, transactional_id - optional
@@ -882,7 +986,7 @@ public class Contract implements Approvable, BiSerializable, Cloneable {
                 }
             } else if ((rm.type == Reference.TYPE_EXISTING_DEFINITION) || (rm.type == Reference.TYPE_EXISTING_STATE)) {
 
-                for(Contract neighbour : neighbours) {
+                for(Contract neighbour : rm.selectCandidates(neighboursIndex)) {
                     if(rm.isMatchingWith(neighbour,neighbours)) {
                         rm.addMatchingItem(neighbour);
                     }
@@ -3747,16 +3851,17 @@ public class Contract implements Approvable, BiSerializable, Cloneable {
      * @throws IllegalArgumentException if javascript is not defined in contract's definition
      */
     public Object execJS(JSApiExecOptions execOptions, byte[] jsFileContent, String... params) throws Exception {
-        JSApiEnvironment env = JSApiEnvironment.execJS(
+        try (JSApiEnvironment env = JSApiEnvironment.execJS(
                 getDefinition().getData().getBinder(JSAPI_SCRIPT_FIELD, null),
                 getState().getData().getBinder(JSAPI_SCRIPT_FIELD, null),
                 execOptions,
                 jsFileContent,
                 this,
                 params
-        );
-        env.callEvent("main", true);
-        return env.getResult();
+        )) {
+            env.callEvent("main", true);
+            return env.getResult();
+        }
     }
 
     public Object execJS(byte[] jsFileContent, String... params) throws Exception {
@@ -3770,15 +3875,16 @@ public class Contract implements Approvable, BiSerializable, Cloneable {
      * @param scriptHash is {@link HashId} from js-file content.
      */
     public Object execJSByScriptHash(JSApiExecOptions execOptions, HashId scriptHash, String... params) throws Exception {
-        JSApiEnvironment env = JSApiEnvironment.execJSByScriptHash(
+        try (JSApiEnvironment env = JSApiEnvironment.execJSByScriptHash(
                 getDefinition().getData().getBinder(JSAPI_SCRIPT_FIELD, null),
                 getState().getData().getBinder(JSAPI_SCRIPT_FIELD, null),
                 execOptions,
                 scriptHash,
                 this,
                 params
-        );
-        return env.callEvent("main", true);
+        )) {
+            return env.callEvent("main", true);
+        }
     }
 
     public Object execJSByScriptHash(HashId scriptHash, String... params) throws Exception {
@@ -3789,15 +3895,16 @@ public class Contract implements Approvable, BiSerializable, Cloneable {
      * Executes attached javascript if only one js is attached. Also, it should be attached with putContentIntoContract == true.
      */
     public Object execJSByName(JSApiExecOptions execOptions, String jsFileName, String... params) throws Exception {
-        JSApiEnvironment env = JSApiEnvironment.execJSByName(
+        try (JSApiEnvironment env = JSApiEnvironment.execJSByName(
                 getDefinition().getData().getBinder(JSAPI_SCRIPT_FIELD, null),
                 getState().getData().getBinder(JSAPI_SCRIPT_FIELD, null),
                 execOptions,
                 jsFileName,
                 this,
                 params
-        );
-        return env.callEvent("main", true);
+        )) {
+            return env.callEvent("main", true);
+        }
     }
 
     public Object execJSByName(String jsFileName, String... params) throws Exception {
@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2018, iCodici S.n.C, All Rights Reserved
+ *
+ */
+
+package com.icodici.universa.contract;
+
+import com.icodici.crypto.PublicKey;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Verifies batches of {@link ExtendedSignature}s concurrently on the dedicated bounded pool. Used by
+ * {@link Contract#check()} when {@link Contract#isParallelSignatureVerification()} is on: the contract tree collects
+ * all the (key, signature, contract bytes) triples first, then verifies them here at once.
+ * <p>
+ * The calling thread does not just wait for the pool: it takes not yet started verifications of its batch and runs
+ * them itself, so the batch is never stuck behind other batches in the pool queue.
+ */
+public class ParallelSignatureVerifier {
+
+    /**
+     * One signature to verify: key, packed extended signature and the signed contract bytes.
+     */
+    public static class Task {
+        private final PublicKey key;
+        private final byte[] signature;
+        private final byte[] data;
+
+        public Task(PublicKey key, byte[] signature, byte[] data) {
+            this.key = key;
+            this.signature = signature;
+            this.data = data;
+        }
+
+        public PublicKey getKey() {
+            return key;
+        }
+
+        private ExtendedSignature verify() {
+            return ExtendedSignature.verify(key, signature, data);
+        }
+    }
+
+    private static final AtomicInteger threadNumber = new AtomicInteger(1);
+
+    private static int threadsCount = Runtime.getRuntime().availableProcessors();
+
+    private static volatile ThreadPoolExecutor executor = createExecutor(threadsCount);
+
+    private static ThreadPoolExecutor createExecutor(int threads) {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), r -> {
+            Thread thread = new Thread(r);
+            thread.setName("signature-verifier-" + threadNumber.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    /**
+     * Set the number of threads of the verification pool. Verifications already submitted are finished by the
+     * old pool.
+     *
+     * @param threads is threads count, at least 1
+     */
+    public static synchronized void setThreadsCount(int threads) {
+        if (threads < 1)
+            throw new IllegalArgumentException("threads count should be positive: " + threads);
+        if (threads != threadsCount) {
+            ThreadPoolExecutor old = executor;
+            executor = createExecutor(threads);
+            threadsCount = threads;
+            old.shutdown();
+        }
+    }
+
+    public static synchronized int getThreadsCount() {
+        return threadsCount;
+    }
+
+    /**
+     * Verify all the signatures of the batch.
+     *
+     * @param tasks signatures to verify
+     * @return list of verification results in the order of tasks, null for broken signature (see
+     * {@link ExtendedSignature#verify(PublicKey, byte[], byte[])})
+     */
+    public static List<ExtendedSignature> verify(List<Task> tasks) {
+        List<ExtendedSignature> results = new ArrayList<>(tasks.size());
+        if (tasks.size() < 2) {
+            tasks.forEach(t -> results.add(t.verify()));
+            return results;
+        }
+
+        ExecutorService pool = executor;
+        List<FutureTask<ExtendedSignature>> futures = new ArrayList<>(tasks.size());
+        for (Task t : tasks) {
+            FutureTask<ExtendedSignature> f = new FutureTask<>(t::verify);
+            futures.add(f);
+            try {
+                pool.execute(f);
+            } catch (RejectedExecutionException e) {
+                // pool is replaced or shut down, will run it here
+            }
+        }
+
+        // help the pool: FutureTask.run() does nothing if the task is already started by the pool
+        for (int i = futures.size() - 1; i >= 0; i--)
+            futures.get(i).run();
+
+        for (FutureTask<ExtendedSignature> f : futures) {
+            try {
+                results.add(f.get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("signatures verification interrupted", e);
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("signature verification failed", e.getCause());
+            }
+        }
+        return results;
+    }
+}
@@ -43,6 +43,7 @@ public class Reference implements BiSerializable {
     public List<String> roles = new ArrayList<>();
     public List<Approvable> matchingItems = new ArrayList<>();
     private Binder conditions = new Binder();
+    private CompiledCondition compiledConditions;
     private Contract baseContract;
     private String comment = null;
 
@@ -103,6 +104,7 @@ public class Reference implements BiSerializable {
         }
 
         conditions = data.getBinder("where");
+        compiledConditions = null;
     }
 
     @Override
@@ -202,6 +204,155 @@ public class Reference implements BiSerializable {
         CONSTOTHER
     }
 
+    enum operandSourceType {
+        NONE,           // constant or absent operand
+        REF,            // the contract to check for matching
+        THIS,           // the base contract
+        REFERENCE,      // the contract matching other reference of the base contract
+        NOW,            // current time
+        INVALID         // field without contract
+    }
+
+    /**
+     * Operand of the parsed condition with the contract it refers to resolved once, on compiling.
+     */
+    private static class Operand {
+        final String operand;                   // as parsed, for messages
+        final String path;                      // field name inside the contract, or the operand itself
+        final compareOperandType type;
+        final operandSourceType source;
+        final String referenceName;             // for operandSourceType.REFERENCE
+
+        Operand(String operand, compareOperandType type, boolean isLeftCanPlay) {
+            this.operand = operand;
+            this.type = type;
+            String path = operand;
+            String referenceName = null;
+            operandSourceType source = operandSourceType.NONE;
+            int firstPointPos;
+            if (operand == null) {
+                // defined / undefined or inherits
+            } else if (type == compareOperandType.FIELD) {
+                if (operand.startsWith("ref.")) {
+                    path = operand.substring(4);
+                    source = operandSourceType.REF;
+                } else if (operand.startsWith("this.")) {
+                    path = operand.substring(5);
+                    source = operandSourceType.THIS;
+                } else if ((firstPointPos = operand.indexOf(".")) > 0) {
+                    referenceName = operand.substring(0, firstPointPos);
+                    path = operand.substring(firstPointPos + 1);
+                    source = operandSourceType.REFERENCE;
+                } else
+                    source = operandSourceType.INVALID;
+            } else if (type == compareOperandType.CONSTOTHER) {
+                if (isLeftCanPlay) {
+                    if (operand.equals("ref"))
+                        source = operandSourceType.REF;
+                    else if (operand.equals("this"))
+                        source = operandSourceType.THIS;
+                    else {
+                        referenceName = operand;
+                        source = operandSourceType.REFERENCE;
+                    }
+                } else if (operand.equals("now"))
+                    source = operandSourceType.NOW;
+            }
+            this.path = path;
+            this.source = source;
+            this.referenceName = referenceName;
+        }
+    }
+
+    /**
+     * Conditions of the reference compiled to the tree of predicates, see {@link #compileConditions(Binder)}.
+     */
+    private interface CompiledCondition {
+        boolean check(Contract ref, Collection<Contract> contracts, int iteration);
+    }
+
+    private static final CompiledCondition NO_CONDITIONS = (ref, contracts, iteration) -> true;
+
+    private static class AllOf implements CompiledCondition {
+        final List<CompiledCondition> items;
+
+        AllOf(List<CompiledCondition> items) {
+            this.items = items;
+        }
+
+        @Override
+        public boolean check(Contract ref, Collection<Contract> contracts, int iteration) {
+            for (CompiledCondition item : items)
+                if (!item.check(ref, contracts, iteration))
+                    return false;
+            return true;
+        }
+    }
+
+    private static class AnyOf implements CompiledCondition {
+        final List<CompiledCondition> items;
+
+        AnyOf(List<CompiledCondition> items) {
+            this.items = items;
+        }
+
+        @Override
+        public boolean check(Contract ref, Collection<Contract> contracts, int iteration) {
+            for (CompiledCondition item : items)
+                if (item.check(ref, contracts, iteration))
+                    return true;
+            return false;
+        }
+    }
+
+    /**
+     * Condition that could not be compiled. It fails only when evaluated, as not compiled conditions did.
+     */
+    private static class Invalid implements CompiledCondition {
+        final RuntimeException error;
+
+        Invalid(RuntimeException error) {
+            this.error = error;
+        }
+
+        @Override
+        public boolean check(Contract ref, Collection<Contract> contracts, int iteration) {
+            throw error;
+        }
+    }
+
+    private class Comparison implements CompiledCondition {
+        final int operator;
+        final Operand left;
+        final Operand right;
+        final boolean isBigDecimalConversion;
+
+        Comparison(int operator, Operand left, Operand right, boolean isBigDecimalConversion) {
+            this.operator = operator;
+            this.left = left;
+            this.right = right;
+            this.isBigDecimalConversion = isBigDecimalConversion;
+        }
+
+        @Override
+        public boolean check(Contract ref, Collection<Contract> contracts, int iteration) {
+            return compareOperands(ref, this, contracts, iteration);
+        }
+
+        /**
+         * @return the field of the contract to check, if the condition is its equality to the string constant
+         */
+        Operand getRefFieldEqualsString() {
+            if (operator != EQUAL || isBigDecimalConversion)
+                return null;
+            if (left.source == operandSourceType.REF && left.type == compareOperandType.FIELD && right.type == compareOperandType.CONSTSTR)
+                return left;
+            if (right.source == operandSourceType.REF && right.type == compareOperandType.FIELD && left.type == compareOperandType.CONSTSTR)
+                return right;
+            return null;
+        }
+    }
+
     private boolean isObjectMayCastToDouble(Object obj) throws Exception {
         return obj.getClass().getName().endsWith("Float") || obj.getClass().getName().endsWith("Double");
     }
@@ -280,30 +431,60 @@ public class Reference implements BiSerializable {
         return val;
     }
 
+    /**
+     * Get the contract the field operand refers to.
+     *
+     * @param operand operand of the condition
+     * @param side "left" or "right", for messages
+     * @param refContract contract to check for matching
+     * @param contracts contract list to check for matching
+     * @param iteration check inside references iteration number
+     * @return contract or null if no contract matches the reference of the operand
+     */
+    private Contract getOperandContract(Operand operand, String side, Contract refContract, Collection<Contract> contracts, int iteration) {
+        if (operand.source == operandSourceType.REF)
+            return refContract;
+
+        if (baseContract == null)
+            throw new IllegalArgumentException("Use " + side + " operand in condition: " + operand.operand + ". But this contract not initialized.");
+
+        if (operand.source == operandSourceType.THIS)
+            return baseContract;
+
+        Reference ref = baseContract.findReferenceByName(operand.referenceName);
+        if (ref == null)
+            throw new IllegalArgumentException("Not found reference: " + operand.referenceName);
+
+        Contract found = null;
+        for (Contract checkedContract : contracts)
+            if (ref.isMatchingWith(checkedContract, contracts, iteration + 1))
+                found = checkedContract;
+
+        return found;
+    }
+
     /**
      *The comparison method for finding reference contract
      *
      * @param refContract contract to check for matching
-     * @param leftOperand field_selector
-     * @param rightOperand right operand  (constant | field_selector), constant = ("null" | number | string | true | false)
-     * @param typeOfRightOperand type of left operand (constant | field_selector), constant = ("null" | number | string | true | false)
-     * @param typeOfRightOperand type of right operand (constant | field_selector), constant = ("null" | number | string | true | false)
-     * @param indxOperator index operator in array of operators
+     * @param comparison compiled condition with operator, operands (constant | field_selector) and conversion,
+     *                   constant = ("null" | number | string | true | false)
      * @param contracts contract list to check for matching
      * @param iteration check inside references iteration number
      * @return true if match or false
      */
     private boolean compareOperands(Contract refContract,
-                                   String leftOperand,
-                                   String rightOperand,
-                                   compareOperandType typeOfLeftOperand,
-                                   compareOperandType typeOfRightOperand,
-                                   boolean isBigDecimalConversion,
-                                   int indxOperator,
+                                   Comparison comparison,
                                    Collection<Contract> contracts,
                                    int iteration)
     {
         boolean ret = false;
+        String leftOperand = comparison.left.operand;
+        String rightOperand = comparison.right.operand;
+        compareOperandType typeOfLeftOperand = comparison.left.type;
+        compareOperandType typeOfRightOperand = comparison.right.type;
+        boolean isBigDecimalConversion = comparison.isBigDecimalConversion;
+        int indxOperator = comparison.operator;
         Contract leftOperandContract = null;
         Contract rightOperandContract = null;
         Object left = null;
@@ -316,99 +497,38 @@ public class Reference implements BiSerializable {
         BigDecimal rightBigDecimal;
         boolean isLeftDouble = false;
         boolean isRightDouble = false;
-        int firstPointPos;
-
-        if (leftOperand != null) {
-            if (typeOfLeftOperand == compareOperandType.FIELD) {
-                if (leftOperand.startsWith("ref.")) {
-                    leftOperand = leftOperand.substring(4);
-                    leftOperandContract = refContract;
-                } else if (leftOperand.startsWith("this.")) {
-                    if (baseContract == null)
-                        throw new IllegalArgumentException("Use left operand in condition: " + leftOperand + ". But this contract not initialized.");
-
-                    leftOperand = leftOperand.substring(5);
-                    leftOperandContract = baseContract;
-                } else if ((firstPointPos = leftOperand.indexOf(".")) > 0) {
-                    if (baseContract == null)
-                        throw new IllegalArgumentException("Use left operand in condition: " + leftOperand + ". But this contract not initialized.");
-
-                    Reference ref = baseContract.findReferenceByName(leftOperand.substring(0, firstPointPos));
-                    if (ref == null)
-                        throw new IllegalArgumentException("Not found reference: " + leftOperand.substring(0, firstPointPos));
-
-                    for (Contract checkedContract : contracts)
-                        if (ref.isMatchingWith(checkedContract, contracts, iteration + 1))
-                            leftOperandContract = checkedContract;
-
-                    if (leftOperandContract == null)
-                        return false;
 
-                    leftOperand = leftOperand.substring(firstPointPos + 1);
-                } else
-                    throw new IllegalArgumentException("Invalid format of left operand in condition: " + leftOperand + ". Missing contract field.");
-            } else if (typeOfLeftOperand == compareOperandType.CONSTOTHER) {
-                if (indxOperator == CAN_PLAY) {
-                    if (leftOperand.equals("ref")) {
-                        leftOperandContract = refContract;
-                    } else if (leftOperand.equals("this")) {
-                        if (baseContract == null)
-                            throw new IllegalArgumentException("Use left operand in condition: " + leftOperand + ". But this contract not initialized.");
-
-                        leftOperandContract = baseContract;
-                    } else {
-                        if (baseContract == null)
-                            throw new IllegalArgumentException("Use left operand in condition: " + leftOperand + ". But this contract not initialized.");
-
-                        Reference ref = baseContract.findReferenceByName(leftOperand);
-                        if (ref == null)
-                            throw new IllegalArgumentException("Not found reference: " + leftOperand);
-
-                        for (Contract checkedContract : contracts)
-                            if (ref.isMatchingWith(checkedContract, contracts, iteration + 1))
-                                leftOperandContract = checkedContract;
-
-                        if (leftOperandContract == null)
-                            return false;
-                    }
-                } else if (leftOperand.equals("now"))
-                    left = ZonedDateTime.ofInstant(Instant.ofEpochSecond(ZonedDateTime.now().toEpochSecond()), ZoneId.systemDefault());
-            }
+        switch (comparison.left.source) {
+            case REF:
+            case THIS:
+            case REFERENCE:
+                leftOperandContract = getOperandContract(comparison.left, "left", refContract, contracts, iteration);
+                if (leftOperandContract == null)
+                    return false;
+                leftOperand = comparison.left.path;
+                break;
+            case NOW:
+                left = ZonedDateTime.ofInstant(Instant.ofEpochSecond(ZonedDateTime.now().toEpochSecond()), ZoneId.systemDefault());
+                break;
+            case INVALID:
+                throw new IllegalArgumentException("Invalid format of left operand in condition: " + leftOperand + ". Missing contract field.");
         }
 
         if (rightOperand != null) {     // if != null, rightOperand then FIELD or CONSTANT
-            if (typeOfRightOperand == compareOperandType.FIELD) {     // if typeOfRightOperand - FIELD
-                if (rightOperand.startsWith("ref.")) {
-                    rightOperand = rightOperand.substring(4);
-                    rightOperandContract = refContract;
-                } else if (rightOperand.startsWith("this.")) {
-                    if (baseContract == null)
-                        throw new IllegalArgumentException("Use right operand in condition: " + rightOperand + ". But this contract not initialized.");
-
-                    rightOperand = rightOperand.substring(5);
-                    rightOperandContract = baseContract;
-                } else if ((firstPointPos = rightOperand.indexOf(".")) > 0) {
-                    if (baseContract == null)
-                        throw new IllegalArgumentException("Use right operand in condition: " + rightOperand + ". But this contract not initialized.");
-
-                    Reference ref = baseContract.findReferenceByName(rightOperand.substring(0, firstPointPos));
-                    if (ref == null)
-                        throw new IllegalArgumentException("Not found reference: " + rightOperand.substring(0, firstPointPos));
-
-                    for (Contract checkedContract: contracts)
-                        if (ref.isMatchingWith(checkedContract, contracts, iteration + 1))
-                            rightOperandContract = checkedContract;
-
+            switch (comparison.right.source) {
+                case REF:
+                case THIS:
+                case REFERENCE:
+                    rightOperandContract = getOperandContract(comparison.right, "right", refContract, contracts, iteration);
                     if (rightOperandContract == null)
                         return false;
-
-                    rightOperand = rightOperand.substring(firstPointPos + 1);
-                }
-                else
-                    throw new IllegalArgumentException("Invalid format of right operand in condition: " + rightOperand + ". Missing contract field.");
-            } else if (typeOfRightOperand == compareOperandType.CONSTOTHER) {
-                if (rightOperand.equals("now"))
+                    rightOperand = comparison.right.path;
+                    break;
+                case NOW:
                     right = ZonedDateTime.ofInstant(Instant.ofEpochSecond(ZonedDateTime.now().toEpochSecond()), ZoneId.systemDefault());
+                    break;
+                case INVALID:
+                    throw new IllegalArgumentException("Invalid format of right operand in condition: " + rightOperand + ". Missing contract field.");
             }
 
             if ((leftOperandContract != null) && (indxOperator != CAN_PLAY))
@@ -952,14 +1072,11 @@ public class Reference implements BiSerializable {
     }
 
     /**
-     * Check condition of reference
-     * @param condition condition to check for matching
-     * @param ref contract to check for matching
-     * @param contracts contract list to check for matching
-     * @param iteration check inside references iteration number
-     * @return true if match or false
+     * Compile parsed condition of reference
+     * @param condition parsed condition
+     * @return compiled condition, with operands resolved
      */
-    private boolean checkCondition(Binder condition, Contract ref, Collection<Contract> contracts, int iteration) {
+    private CompiledCondition compileCondition(Binder condition) {
 
         Reference.compareOperandType typeOfLeftOperand;
         Reference.compareOperandType typeOfRightOperand;
@@ -990,21 +1107,10 @@ public class Reference implements BiSerializable {
 
         boolean isBigDecimalConversion = (leftConversion == CONVERSION_BIG_DECIMAL) || (rightConversion == CONVERSION_BIG_DECIMAL);
 
-        return compareOperands(ref, leftOperand, rightOperand, typeOfLeftOperand, typeOfRightOperand, isBigDecimalConversion, operator, contracts, iteration);
-    }
-
-    /**
-     * Check not pre-parsed condition of reference (old version)
-     * @param condition condition to check for matching
-     * @param ref contract to check for matching
-     * @param contracts contract list to check for matching
-     * @param iteration check inside references iteration number
-     * @return true if match or false
-     */
-    private boolean checkCondition(String condition, Contract ref, Collection<Contract> contracts, int iteration) {
-
-        Binder parsed = parseCondition(condition);
-        return checkCondition(parsed, ref, contracts, iteration);
+        return new Comparison(operator,
+                new Operand(leftOperand, typeOfLeftOperand, operator == CAN_PLAY),
+                new Operand(rightOperand, typeOfRightOperand, false),
+                isBigDecimalConversion);
     }
 
     /**
@@ -1055,58 +1161,82 @@ public class Reference implements BiSerializable {
     }
 
     /**
-     * Check conditions of references
-     * @param conditions binder with conditions to check for matching
-     * @param ref contract to check for matching
-     * @param contracts contract list to check for matching
-     * @param iteration check inside references iteration number
-     * @return true if match or false
+     * Compile conditions of reference, both parsed and not pre-parsed (old version), to the tree of predicates. Errors
+     * are reported only when the failed condition is evaluated.
+     * @param conditions binder with conditions
+     * @return compiled conditions
      */
-    private boolean checkConditions(Binder conditions, Contract ref, Collection<Contract> contracts, int iteration) {
-
-        boolean result;
+    private CompiledCondition compileConditions(Binder conditions) {
 
         if ((conditions == null) || (conditions.size() == 0))
-            return true;
+            return NO_CONDITIONS;
 
-        if (conditions.containsKey(all_of.name()))
-        {
-            List<Object> condList = conditions.getList(all_of.name(), null);
-            if (condList == null)
-                throw new IllegalArgumentException("Expected all_of conditions");
+        try {
+            boolean all = conditions.containsKey(all_of.name());
+            if (all || conditions.containsKey(any_of.name())) {
+                List<Object> condList = conditions.getList(all ? all_of.name() : any_of.name(), null);
+                if (condList == null)
+                    throw new IllegalArgumentException(all ? "Expected all_of conditions" : "Expected any_of conditions");
+
+                List<CompiledCondition> items = new ArrayList<>();
+                for (Object item : condList) {
+                    try {
+                        if (item.getClass().getName().endsWith("String"))
+                            items.add(compileCondition(parseCondition((String) item)));        // not pre-parsed (old) version
+                        else
+                            items.add(compileConditions((Binder) item));
+                    } catch (RuntimeException e) {
+                        items.add(new Invalid(e));
+                    }
+                }
 
-            result = true;
-            for (Object item: condList) {
-                if (item.getClass().getName().endsWith("String"))
-                    result = result && checkCondition((String) item, ref, contracts, iteration);        // not pre-parsed (old) version
-                else
-                    //LinkedHashMap<String, Binder> insideHashMap = (LinkedHashMap<String, Binder>) item;
-                    //Binder insideBinder = new Binder(insideHashMap);
-                    result = result && checkConditions((Binder) item, ref, contracts, iteration);
-            }
+                return all ? new AllOf(items) : new AnyOf(items);
+            } else if (conditions.containsKey("operator"))                                             // pre-parsed version
+                return compileCondition(conditions);
+            else
+                throw new IllegalArgumentException("Expected all_of or any_of");
+        } catch (RuntimeException e) {
+            return new Invalid(e);
         }
-        else if (conditions.containsKey(any_of.name()))
-        {
-            List<Object> condList = conditions.getList(any_of.name(), null);
-            if (condList == null)
-                throw new IllegalArgumentException("Expected any_of conditions");
+    }
 
-            result = false;
-            for (Object item: condList) {
-                if (item.getClass().getName().endsWith("String"))
-                    result = result || checkCondition((String) item, ref, contracts, iteration);        // not pre-parsed (old) version
-                else
-                    //LinkedHashMap<String, Binder> insideHashMap = (LinkedHashMap<String, Binder>) item;
-                    //Binder insideBinder = new Binder(insideHashMap);
-                    result = result || checkConditions((Binder) item, ref, contracts, iteration);
-            }
-        }
-        else if (conditions.containsKey("operator"))                                                    // pre-parsed version
-            result = checkCondition(conditions, ref, contracts, iteration);
-        else
-            throw new IllegalArgumentException("Expected all_of or any_of");
+    private CompiledCondition getCompiledConditions() {
+        CompiledCondition compiled = compiledConditions;
+        if (compiled == null)
+            compiledConditions = compiled = compileConditions(conditions);
+        return compiled;
+    }
 
-        return result;
+    /**
+     * Select the contracts that could match with the reference conditions, using the index. The conditions are
+     * checked in order, so the leading ones that compare the contract field with the string constant are false for
+     * the others, and nothing else is evaluated for them. The selected contracts still need {@link #isMatchingWith}.
+     * @param index neighbour contracts
+     * @return selected contracts, in the order of the index
+     */
+    List<Contract> selectCandidates(ReferencedItemsIndex index) {
+        CompiledCondition compiled = getCompiledConditions();
+        List<CompiledCondition> leading;
+        if (compiled instanceof AllOf)
+            leading = ((AllOf) compiled).items;
+        else
+            leading = Collections.singletonList(compiled);
+
+        List<Contract> best = index.all();
+        for (CompiledCondition condition : leading) {
+            if (!(condition instanceof Comparison))
+                break;
+            Comparison comparison = (Comparison) condition;
+            Operand field = comparison.getRefFieldEqualsString();
+            if (field == null)
+                break;
+            List<Contract> found = index.byField(field.path, field == comparison.left ? comparison.right.operand : comparison.left.operand);
+            if (found == null)
+                break;
+            if (found.size() < best.size())
+                best = found;
+        }
+        return best;
     }
 
     /**
@@ -1163,7 +1293,7 @@ public class Reference implements BiSerializable {
 
             //check conditions
             if (result) {
-                result = checkConditions(conditions, contract, contracts, iteration);
+                result = getCompiledConditions().check(contract, contracts, iteration);
             }
         }
 
@@ -1500,6 +1630,7 @@ public class Reference implements BiSerializable {
      */
     public Reference setConditions(Binder conditions) {
         this.conditions = parseConditions(conditions);
+        compiledConditions = null;
         return this;
     }
 
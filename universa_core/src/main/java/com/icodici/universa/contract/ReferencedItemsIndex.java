@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 2018, iCodici S.n.C, All Rights Reserved
+ *
+ */
+
+package com.icodici.universa.contract;
+
+import com.icodici.universa.HashId;
+
+import java.util.*;
+
+/**
+ * Neighbour contracts of the {@link Contract#check(String)}, indexed by the fields the references compare with
+ * constants, so that every reference evaluates its conditions only against the contracts that could match it.
+ * <p>
+ * The field indexes are built lazily, once per field path for all the references of the check. The lookups return
+ * contracts in the order of the original collection, as the first (or the last) matching contract might matter.
+ */
+class ReferencedItemsIndex {
+
+    private final List<Contract> contracts;
+    private final Map<Contract, Integer> positions = new IdentityHashMap<>();
+    private Map<String, List<Integer>> byTransactionalId;
+    private Map<HashId, List<Integer>> byId;
+    private final Map<String, FieldIndex> fields = new HashMap<>();
+
+    /**
+     * Positions of contracts by the value of one field. Values other than strings and {@link HashId} could match the
+     * string constant in many ways (or fail to), so contracts with such values are always the candidates.
+     */
+    private static class FieldIndex {
+        final Map<Object, List<Integer>> positions = new HashMap<>();
+        final List<Integer> others = new ArrayList<>();
+    }
+
+    ReferencedItemsIndex(Collection<Contract> contracts) {
+        this.contracts = new ArrayList<>(contracts);
+        for (int i = 0; i < this.contracts.size(); i++)
+            positions.put(this.contracts.get(i), i);
+    }
+
+    /**
+     * @return all the contracts
+     */
+    List<Contract> all() {
+        return contracts;
+    }
+
+    /**
+     * Contracts with the given transactional id or the given id, as the reference of {@link
+     * Reference#TYPE_TRANSACTIONAL} without conditions could match only them.
+     *
+     * @param transactionalId is {@link Reference#transactional_id}, could be null
+     * @param contractId is {@link Reference#contract_id}, could be null
+     * @return found contracts in the original order
+     */
+    List<Contract> byTransactional(String transactionalId, HashId contractId) {
+        if (byTransactionalId == null) {
+            byTransactionalId = new HashMap<>();
+            byId = new HashMap<>();
+            for (int i = 0; i < contracts.size(); i++) {
+                Contract c = contracts.get(i);
+                if (c.getTransactional() != null && c.getTransactional().getId() != null)
+                    byTransactionalId.computeIfAbsent(c.getTransactional().getId(), k -> new ArrayList<>()).add(i);
+                try {
+                    byId.computeIfAbsent(c.getId(), k -> new ArrayList<>()).add(i);
+                } catch (IllegalStateException e) {
+                    // not sealed, so it has no id to match
+                }
+            }
+        }
+        return toContracts(merge(transactionalId == null ? null : byTransactionalId.get(transactionalId),
+                contractId == null ? null : byId.get(contractId)));
+    }
+
+    /**
+     * Contracts which field could be equal to the string constant in the reference condition. The contracts with no
+     * such field are never returned, as the condition is always false for them.
+     *
+     * @param path is field name in 'dotted' notation, as for {@link Contract#get(String)}
+     * @param value is the string constant
+     * @return found contracts in the original order or null if the constant could not be compared this way
+     */
+    List<Contract> byField(String path, String value) {
+        HashId id = null;
+        try {
+            id = HashId.withDigest(value);
+        } catch (Exception e) {
+            // fields that are HashId would throw on comparing with it, so all must be checked
+            if (fieldIndex(path).positions.keySet().stream().anyMatch(k -> k instanceof HashId))
+                return null;
+        }
+        FieldIndex index = fieldIndex(path);
+        return toContracts(merge(merge(index.positions.get(value), id == null ? null : index.positions.get(id)), index.others));
+    }
+
+    private FieldIndex fieldIndex(String path) {
+        FieldIndex index = fields.get(path);
+        if (index == null) {
+            index = new FieldIndex();
+            for (int i = 0; i < contracts.size(); i++) {
+                Object value;
+                try {
+                    value = contracts.get(i).get(path);
+                } catch (Exception e) {
+                    // let the full check report it
+                    index.others.add(i);
+                    continue;
+                }
+                if (value instanceof String || value instanceof HashId)
+                    index.positions.computeIfAbsent(value, k -> new ArrayList<>()).add(i);
+                else if (value != null)
+                    index.others.add(i);
+            }
+            fields.put(path, index);
+        }
+        return index;
+    }
+
+    /**
+     * Union of the contracts selected by different lookups.
+     *
+     * @return contracts of both lists in the original order
+     */
+    List<Contract> union(List<Contract> a, List<Contract> b) {
+        if (a.size() == contracts.size() || b.isEmpty())
+            return a;
+        if (b.size() == contracts.size() || a.isEmpty())
+            return b;
+        return toContracts(merge(toPositions(a), toPositions(b)));
+    }
+
+    private List<Integer> toPositions(List<Contract> selected) {
+        List<Integer> result = new ArrayList<>(selected.size());
+        for (Contract c : selected)
+            result.add(positions.get(c));
+        return result;
+    }
+
+    /**
+     * Union of sorted lists of positions, sorted.
+     */
+    private static List<Integer> merge(List<Integer> a, List<Integer> b) {
+        if (a == null || a.isEmpty())
+            return b;
+        if (b == null || b.isEmpty())
+            return a;
+        List<Integer> result = new ArrayList<>(a.size() + b.size());
+        int i = 0, j = 0;
+        while (i < a.size() || j < b.size()) {
+            if (j >= b.size() || (i < a.size() && a.get(i) < b.get(j)))
+                result.add(a.get(i++));
+            else if (i >= a.size() || b.get(j) < a.get(i))
+                result.add(b.get(j++));
+            else {
+                result.add(a.get(i++));
+                j++;
+            }
+        }
+        return result;
+    }
+
+    private List<Contract> toContracts(List<Integer> positions) {
+        List<Contract> result = new ArrayList<>();
+        if (positions != null)
+            for (int i : positions)
+                result.add(contracts.get(i));
+        return result;
+    }
+}
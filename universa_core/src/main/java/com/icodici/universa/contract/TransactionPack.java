@@ -24,6 +24,8 @@ import net.sergeych.utils.Bytes;
 
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
 /**
@@ -65,6 +67,28 @@ import java.util.stream.Collectors;
 @BiType(name = "TransactionPack")
 public class TransactionPack implements BiSerializable {
 
+    /**
+     * Minimal number of independent subItems to create concurrently, see {@link #setParallelUnpack(boolean)}.
+     */
+    public static final int PARALLEL_UNPACK_THRESHOLD = 4;
+
+    private static volatile boolean parallelUnpack = false;
+
+    private static final AtomicInteger threadNumber = new AtomicInteger(1);
+
+    private static final ThreadPoolExecutor unpackExecutor;
+
+    static {
+        int threads = Runtime.getRuntime().availableProcessors();
+        unpackExecutor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+            Thread thread = new Thread(r);
+            thread.setName("transaction-pack-" + threadNumber.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        unpackExecutor.allowCoreThreadTimeOut(true);
+    }
+
     private byte[] packedBinary;
     private boolean reconstructed = false;
     private Map<HashId, Contract> subItems = new HashMap<>();
@@ -251,71 +275,8 @@ public class TransactionPack implements BiSerializable {
                     data.getListOrThrow("subItems")
             );
 
-            HashMap<ContractDependencies, Bytes> allContractsTrees = new HashMap<>();
-            List<HashId> allContractsHids = new ArrayList<>();
-            HashMap<ContractDependencies, Bytes> sortedSubItemsBytesList = new HashMap<>();
-
-            if (subItemsBytesList != null) {
-                // First of all extract contracts dependencies from subItems
-                for (Bytes b : subItemsBytesList) {
-                    ContractDependencies ct = new ContractDependencies(b.toArray());
-                    allContractsTrees.put(ct, b);
-                    allContractsHids.add(ct.id);
-                }
-
-                // then recursively from ends of dependencies tree to top go throw it level by level
-                // and add items to subItems on the each level of tree's hierarchy
-                do {
-                    // first add contract from ends of trees, means without own subitems
-                    sortedSubItemsBytesList = new HashMap<>();
-                    List<ContractDependencies> removingContractDependencies = new ArrayList<>();
-                    for (ContractDependencies ct : allContractsTrees.keySet()) {
-                        if (ct.dependencies.size() == 0) {
-                            sortedSubItemsBytesList.put(ct, allContractsTrees.get(ct));
-                            removingContractDependencies.add(ct);
-                        }
-                    }
-
-                    // remove found items from tree's list
-                    for (ContractDependencies ct : removingContractDependencies) {
-                        allContractsTrees.remove(ct);
-                    }
-
-                    // then add contract with already exist subitems in the subItems or will never find in the tree
-                    removingContractDependencies = new ArrayList<>();
-                    for (ContractDependencies ct : allContractsTrees.keySet()) {
-                        boolean allDependenciesSafe = true;
-                        for (HashId hid : ct.dependencies) {
-                            if (!subItems.containsKey(hid) && allContractsHids.contains(hid)) {
-                                allDependenciesSafe = false;
-                            }
-                        }
-                        if (allDependenciesSafe) {
-                            sortedSubItemsBytesList.put(ct, allContractsTrees.get(ct));
-                            removingContractDependencies.add(ct);
-                        }
-                    }
-
-                    // remove found items from tree's list
-                    for (ContractDependencies ct : removingContractDependencies) {
-                        allContractsTrees.remove(ct);
-                    }
-
-                    // add found binaries on the hierarchy level to subItems
-                    for (ContractDependencies ct : sortedSubItemsBytesList.keySet()) {
-                        Bytes b = sortedSubItemsBytesList.get(ct);
-                        createNeededContractAndAddToSubItems(ct, b, quantiser);
-                    }
-
-                    // then repeat until we can find hierarchy
-                } while (sortedSubItemsBytesList.size() != 0);
-
-                // finally add not found binaries on the hierarchy levels to subItems
-                for (ContractDependencies ct : allContractsTrees.keySet()) {
-                    Bytes b = allContractsTrees.get(ct);
-                    createNeededContractAndAddToSubItems(ct, b, quantiser);
-                }
-            }
+            if (subItemsBytesList != null)
+                unpackSubItems(subItemsBytesList, quantiser);
 
             byte[] bb = data.getBinaryOrThrow("contract");
 
@@ -354,6 +315,95 @@ public class TransactionPack implements BiSerializable {
         }
     }
 
+    /**
+     * Create subItems so that each one is created after all subItems it depends on, as contract constructor takes its
+     * revoking and new items from {@link #subItems}. Items are sorted topologically level by level: the level is
+     * items whose dependencies are all on the previous levels (or not in the pack), so items of the level are
+     * independent and are created concurrently, see {@link #setParallelUnpack(boolean)}. Items on the dependency
+     * cycles are created at the end, one by one.
+     *
+     * @param subItemsBytesList is sealed subItems
+     * @param quantiser is quantizer to control quantas spending
+     * @throws IOException if something went wrong
+     */
+    private void unpackSubItems(List<Bytes> subItemsBytesList, Quantiser quantiser) throws IOException {
+        List<ContractDependencies> allDependencies = invokeAll(subItemsBytesList.stream()
+                .map(b -> (Callable<ContractDependencies>) () -> new ContractDependencies(b.toArray()))
+                .collect(Collectors.toList()));
+
+        // the same item could be included more than once
+        Map<HashId, List<ContractDependencies>> itemsById = new LinkedHashMap<>();
+        for (ContractDependencies ct : allDependencies)
+            itemsById.computeIfAbsent(ct.id, k -> new ArrayList<>()).add(ct);
+
+        Map<HashId, Integer> waitingFor = new HashMap<>();
+        Map<HashId, List<HashId>> dependents = new HashMap<>();
+        List<HashId> level = new ArrayList<>();
+        itemsById.forEach((id, items) -> {
+            Set<HashId> dependencies = new HashSet<>();
+            for (ContractDependencies ct : items)
+                dependencies.addAll(ct.dependencies);
+            int count = 0;
+            for (HashId hid : dependencies) {
+                if (itemsById.containsKey(hid)) {
+                    dependents.computeIfAbsent(hid, k -> new ArrayList<>()).add(id);
+                    count++;
+                }
+            }
+            if (count == 0)
+                level.add(id);
+            else
+                waitingFor.put(id, count);
+        });
+
+        while (!level.isEmpty()) {
+            List<ContractDependencies> levelItems = new ArrayList<>();
+            for (HashId id : level)
+                levelItems.addAll(itemsById.get(id));
+            createNeededContractsAndAddToSubItems(levelItems, quantiser);
+
+            List<HashId> nextLevel = new ArrayList<>();
+            for (HashId id : level) {
+                for (HashId dependent : dependents.getOrDefault(id, Collections.emptyList())) {
+                    int count = waitingFor.merge(dependent, -1, Integer::sum);
+                    if (count == 0) {
+                        waitingFor.remove(dependent);
+                        nextLevel.add(dependent);
+                    }
+                }
+            }
+            level.clear();
+            level.addAll(nextLevel);
+        }
+
+        // finally add items that never got all their dependencies
+        for (HashId id : waitingFor.keySet()) {
+            for (ContractDependencies ct : itemsById.get(id))
+                createNeededContractAndAddToSubItems(ct, ct.sealed, quantiser);
+        }
+    }
+
+    /**
+     * Create independent subItems concurrently and add them to {@link #subItems} at once, in the calling thread.
+     * Legacy (v2) contracts add their own subItems while constructing, so they are created one by one before others.
+     */
+    private void createNeededContractsAndAddToSubItems(List<ContractDependencies> items, Quantiser quantiser)
+            throws IOException {
+        List<Callable<Contract>> tasks = new ArrayList<>();
+        for (ContractDependencies ct : items) {
+            if (ct.legacy)
+                createNeededContractAndAddToSubItems(ct, ct.sealed, quantiser);
+            else
+                tasks.add(() -> createNeededContract(ct, ct.sealed));
+        }
+        for (Contract c : invokeAll(tasks)) {
+            if (c != null) {
+                quantiser.addWorkCostFrom(c.getQuantiser());
+                subItems.put(c.getId(), c);
+            }
+        }
+    }
+
     /**
      * Work method to check if subItem is extended contract and create one, otherwise create simple contract.
      * @param ct is contract's tree for checking contract
@@ -362,6 +412,21 @@ public class TransactionPack implements BiSerializable {
      * @throws IOException if something went wrong
      */
     private void createNeededContractAndAddToSubItems(ContractDependencies ct, Bytes b, Quantiser quantiser) throws IOException {
+        Contract c = createNeededContract(ct, b);
+        if(c != null) {
+            quantiser.addWorkCostFrom(c.getQuantiser());
+            subItems.put(c.getId(), c);
+        }
+    }
+
+    /**
+     * Create extended contract if subItem is extended contract, otherwise create simple contract.
+     * @param ct is contract's tree for checking contract
+     * @param b is bytes array for contract creation
+     * @return created contract or null if its extended type is known but not supported
+     * @throws IOException if something went wrong
+     */
+    private Contract createNeededContract(ContractDependencies ct, Bytes b) throws IOException {
         Contract c = null;
         NSmartContract.SmartContractType scType = null;
         if(ct.extendedType != null) {
@@ -391,10 +456,76 @@ public class TransactionPack implements BiSerializable {
         } else {
             c = new Contract(b.toArray(), this);
         }
-        if(c != null) {
-            quantiser.addWorkCostFrom(c.getQuantiser());
-            subItems.put(c.getId(), c);
+        return c;
+    }
+
+    /**
+     * Turn on or off creating independent subItems of the deserialized pack concurrently. The resulting pack is the
+     * same in both modes.
+     *
+     * @param on true to create concurrently, false by default
+     */
+    public static void setParallelUnpack(boolean on) {
+        parallelUnpack = on;
+    }
+
+    public static boolean isParallelUnpack() {
+        return parallelUnpack;
+    }
+
+    /**
+     * Run the tasks on the unpack pool, the calling thread runs the tasks the pool has not started yet, and return
+     * their results in the same order. Small batches run in the calling thread.
+     */
+    private static <T> List<T> invokeAll(List<Callable<T>> tasks) throws IOException {
+        List<T> results = new ArrayList<>(tasks.size());
+        if (!parallelUnpack || tasks.size() < PARALLEL_UNPACK_THRESHOLD) {
+            try {
+                for (Callable<T> task : tasks)
+                    results.add(task.call());
+            } catch (IOException | RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IOException("failed to unpack transaction pack", e);
+            }
+            return results;
+        }
+        List<FutureTask<T>> futures = new ArrayList<>(tasks.size());
+        for (Callable<T> task : tasks) {
+            FutureTask<T> future = new FutureTask<>(task);
+            futures.add(future);
+            unpackExecutor.execute(future);
+        }
+        // does nothing for tasks the pool has started already
+        for (FutureTask<T> future : futures)
+            future.run();
+        boolean interrupted = false;
+        try {
+            for (FutureTask<T> future : futures) {
+                while (true) {
+                    try {
+                        results.add(future.get());
+                        break;
+                    } catch (InterruptedException e) {
+                        // all the tasks must be done before we go on
+                        interrupted = true;
+                    } catch (ExecutionException e) {
+                        Throwable cause = e.getCause();
+                        if (cause instanceof IOException)
+                            throw (IOException) cause;
+                        if (cause instanceof RuntimeException)
+                            throw (RuntimeException) cause;
+                        if (cause instanceof Error)
+                            throw (Error) cause;
+                        throw new IOException("failed to unpack transaction pack", cause);
+                    }
+                }
+            }
+        } finally {
+            if (interrupted)
+                Thread.currentThread().interrupt();
         }
+        return results;
     }
 
     @Override
@@ -527,9 +658,12 @@ public class TransactionPack implements BiSerializable {
         private final Set<HashId> dependencies = new HashSet<>();
         private final HashId id;
         private final String extendedType;
+        private final Bytes sealed;
+        private final boolean legacy;
 
         public ContractDependencies(byte[] sealed) throws IOException {
             this.id = HashId.of(sealed);
+            this.sealed = new Bytes(sealed);
             Binder data = Boss.unpack(sealed);
             byte[] contractBytes = data.getBinaryOrThrow("data");
 
@@ -542,6 +676,7 @@ public class TransactionPack implements BiSerializable {
             extendedType = payload.getBinder("contract").getBinder("definition").getString("extended_type", null);
 
             int apiLevel = data.getIntOrThrow("version");
+            legacy = apiLevel < 3;
 
             if (apiLevel < 3) {
                 // no need to build tree - subitems will be reconstructed from binary, not from subItems
@@ -0,0 +1,254 @@
+package com.icodici.universa.contract.jsapi;
+
+import com.icodici.universa.HashId;
+import jdk.nashorn.api.scripting.NashornScriptEngineFactory;
+import net.sergeych.tools.Binder;
+
+import javax.script.*;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Sandboxed nashorn engines for client javascript, with scripts compiled once per engine.
+ * <p>
+ * Creating the engine and parsing the script cost much more than running a typical contract script, so engines are
+ * reused: {@link #acquire()} takes an idle engine (or creates new one), {@link #release(Engine)} puts it back. Each
+ * execution gets its own global object from {@link Engine#createBindings()}, so scripts never see each other's
+ * variables. Engines are created with the class filter that denies all java classes, the same way it was done for
+ * each execution.
+ * <p>
+ * Scripts run in the shared daemon threads with {@link #execute(Callable, int, String)}, which stops waiting for them
+ * after the time limit of the script.
+ */
+public final class JSApiEnginePool {
+
+    /**
+     * Max number of compiled scripts kept by each engine, least recently used are dropped.
+     */
+    public static final int MAX_COMPILED_SCRIPTS = 256;
+
+    /**
+     * Max number of idle engines kept in the pool.
+     */
+    public static final int MAX_IDLE_ENGINES = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+    public static final class Engine {
+        private final ScriptEngine scriptEngine;
+
+        // accessed only by the thread that acquired the engine
+        private final LinkedHashMap<HashId, CompiledEntry> compiled =
+                new LinkedHashMap<HashId, CompiledEntry>(16, 0.75f, true) {
+                    @Override
+                    protected boolean removeEldestEntry(Map.Entry<HashId, CompiledEntry> eldest) {
+                        return size() > MAX_COMPILED_SCRIPTS;
+                    }
+                };
+
+        private Engine() {
+            scriptEngine = new NashornScriptEngineFactory().getScriptEngine(s -> false);
+            enginesCreated.increment();
+        }
+
+        /**
+         * @return new global object for a single execution
+         */
+        public Bindings createBindings() {
+            return scriptEngine.createBindings();
+        }
+
+        /**
+         * Get the script compiled by this engine, compiling it on the first use.
+         *
+         * @param scriptId    is {@link HashId} of the script file content
+         * @param compression of the file content, as the same content could be unpacked differently
+         * @param source      unpacks the script source, is called only if the script is not compiled yet
+         *
+         * @return compiled script to eval with the context from {@link #createContext(Bindings)}
+         *
+         * @throws ScriptException if the script has syntax errors
+         */
+        public CompiledScript compile(HashId scriptId, JSApiCompressionEnum compression, Supplier<String> source)
+                throws ScriptException {
+            CompiledEntry entry = compiled.get(scriptId);
+            if (entry != null && entry.compression == compression) {
+                cacheHits.increment();
+                return entry.script;
+            }
+            cacheMisses.increment();
+            CompiledScript script = ((Compilable) scriptEngine).compile(source.get());
+            compiled.put(scriptId, new CompiledEntry(compression, script));
+            return script;
+        }
+
+        public ScriptContext createContext(Bindings bindings) {
+            ScriptContext context = new SimpleScriptContext();
+            context.setBindings(bindings, ScriptContext.ENGINE_SCOPE);
+            return context;
+        }
+
+        /**
+         * @return the engine to invoke functions of the globals it created
+         */
+        public Invocable getInvocable() {
+            return (Invocable) scriptEngine;
+        }
+    }
+
+    private static final class CompiledEntry {
+        private final JSApiCompressionEnum compression;
+        private final CompiledScript script;
+
+        private CompiledEntry(JSApiCompressionEnum compression, CompiledScript script) {
+            this.compression = compression;
+            this.script = script;
+        }
+    }
+
+    private static final ConcurrentLinkedDeque<Engine> idleEngines = new ConcurrentLinkedDeque<>();
+    private static final AtomicInteger idleCount = new AtomicInteger();
+
+    private static final AtomicInteger threadNumber = new AtomicInteger();
+    // not bounded: the script that is over its time limit can not be stopped and keeps its thread
+    private static final ExecutorService executor = new ThreadPoolExecutor(0, Integer.MAX_VALUE,
+            60L, TimeUnit.SECONDS, new SynchronousQueue<>(), r -> {
+        Thread thread = new Thread(r, "jsapi-eval-" + threadNumber.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static final LongAdder enginesCreated = new LongAdder();
+    private static final LongAdder cacheHits = new LongAdder();
+    private static final LongAdder cacheMisses = new LongAdder();
+    private static final LongAdder executions = new LongAdder();
+    private static final LongAdder timeouts = new LongAdder();
+    private static final LongAdder executionNanos = new LongAdder();
+    private static final LongAccumulator maxExecutionNanos = new LongAccumulator(Math::max, 0);
+
+    private JSApiEnginePool() {
+    }
+
+    /**
+     * Take the idle engine, last released first so its compiled scripts are likely to be used, or create new one.
+     *
+     * @return engine to use exclusively until {@link #release(Engine)}
+     */
+    public static Engine acquire() {
+        Engine engine = idleEngines.pollFirst();
+        if (engine == null)
+            return new Engine();
+        idleCount.decrementAndGet();
+        return engine;
+    }
+
+    /**
+     * Return the engine to the pool. Do not release the engine that could still run a script: it is simply dropped
+     * then.
+     *
+     * @param engine got with {@link #acquire()}
+     */
+    public static void release(Engine engine) {
+        if (idleCount.incrementAndGet() <= MAX_IDLE_ENGINES)
+            idleEngines.offerFirst(engine);
+        else
+            idleCount.decrementAndGet();
+    }
+
+    /**
+     * Create engines in advance, so first executions do not wait for them.
+     *
+     * @param count is number of idle engines to have, not more than {@link #MAX_IDLE_ENGINES}
+     */
+    public static void prewarm(int count) {
+        int missing = Math.min(count, MAX_IDLE_ENGINES) - idleCount.get();
+        for (int i = 0; i < missing; i++) {
+            Engine engine = new Engine();
+            try {
+                engine.scriptEngine.eval("var result = 0;", engine.createContext(engine.createBindings()));
+            } catch (ScriptException e) {
+                throw new IllegalStateException("failed to prepare javascript engine", e);
+            }
+            release(engine);
+        }
+    }
+
+    /**
+     * Run the task in the script thread and wait for it not longer than the time limit.
+     *
+     * @param task            runs the script
+     * @param timeLimitMillis max time to wait for the task, 0 to wait until it finishes
+     * @param label           is added to the error messages, e.g. the name of the called function
+     * @param <T>             is type
+     *
+     * @return whatever the task returns
+     *
+     * @throws InterruptedException if the time limit is up or the waiting thread was interrupted
+     * @throws Exception            whatever the task throws
+     */
+    public static <T> T execute(Callable<T> task, int timeLimitMillis, String label) throws Exception {
+        long start = System.nanoTime();
+        Future<T> future = executor.submit(task);
+        try {
+            if (timeLimitMillis == 0)
+                return future.get();
+            return future.get(timeLimitMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            timeouts.increment();
+            throw new InterruptedException("error: client javascript" + label + " time limit is up (limit=" +
+                    timeLimitMillis + "ms)");
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            throw new InterruptedException("error: client javascript" + label + " was interrupted (limit=" +
+                    timeLimitMillis + "ms)");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception)
+                throw (Exception) cause;
+            throw (Error) cause;
+        } finally {
+            long elapsed = System.nanoTime() - start;
+            executions.increment();
+            executionNanos.add(elapsed);
+            maxExecutionNanos.accumulate(elapsed);
+        }
+    }
+
+    public static long getCacheHits() {
+        return cacheHits.sum();
+    }
+
+    public static long getCacheMisses() {
+        return cacheMisses.sum();
+    }
+
+    public static void resetStats() {
+        cacheHits.reset();
+        cacheMisses.reset();
+        executions.reset();
+        timeouts.reset();
+        executionNanos.reset();
+        maxExecutionNanos.reset();
+    }
+
+    /**
+     * @return engines, compiled scripts cache and executions statistics, times are in microseconds
+     */
+    public static Binder getStats() {
+        long count = executions.sum();
+        return Binder.fromKeysValues(
+                "engines_created", enginesCreated.sum(),
+                "engines_idle", idleCount.get(),
+                "cache_hits", cacheHits.sum(),
+                "cache_misses", cacheMisses.sum(),
+                "executions", count,
+                "timeouts", timeouts.sum(),
+                "avg_execution_us", count == 0 ? 0 : executionNanos.sum() / count / 1000,
+                "max_execution_us", maxExecutionNanos.get() / 1000
+        );
+    }
+}
@@ -2,22 +2,28 @@ package com.icodici.universa.contract.jsapi;
 
 import com.icodici.universa.HashId;
 import com.icodici.universa.contract.Contract;
-import jdk.nashorn.api.scripting.NashornScriptEngineFactory;
 import net.sergeych.tools.Binder;
 
+import javax.script.Bindings;
+import javax.script.CompiledScript;
 import javax.script.Invocable;
-import javax.script.ScriptEngine;
 import javax.script.ScriptException;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.concurrent.ConcurrentLinkedQueue;
 
-public class JSApiEnvironment {
+/**
+ * Globals of the executed client javascript, to call its event handlers later.
+ * <p>
+ * The environment keeps the pooled engine that has run the script, as its globals could only be used with that
+ * engine. {@link #close()} returns the engine to the {@link JSApiEnginePool}.
+ */
+public class JSApiEnvironment implements AutoCloseable {
 
     private Contract currentContract;
     private JSApiScriptParameters scriptParameters;
     private JSApi jsApi;
-    private ScriptEngine scriptEngine;
+    private JSApiEnginePool.Engine scriptEngine;
+    // the engine could still run the script that is over its time limit, so it is not returned to the pool
+    private boolean scriptEngineBusy = false;
+    private Bindings bindings;
     private Object result;
     private String handlerMethodName;
     private HashId slotId;
@@ -57,7 +63,7 @@ public class JSApiEnvironment {
         if (scriptBinder == null)
             scriptBinder = JSApiHelpers.findScriptBinder(stateScripts, jsFileHashId);
         if (scriptBinder != null) {
-            return execJSImpl(execOptions, jsFileContent, currentContract, scriptBinder, params);
+            return execJSImpl(execOptions, jsFileHashId, jsFileContent, currentContract, scriptBinder, params);
         } else {
             throw new IllegalArgumentException("error: cant exec javascript, script hash not found in contract.");
         }
@@ -71,7 +77,7 @@ public class JSApiEnvironment {
             scriptBinder = JSApiHelpers.findScriptBinder(stateScripts, jsFileHashId);
         if (scriptBinder != null) {
             byte[] jsFileContent = scriptBinder.getBinaryOrThrow("file_content");
-            return execJSImpl(execOptions, jsFileContent, currentContract, scriptBinder, params);
+            return execJSImpl(execOptions, HashId.of(jsFileContent), jsFileContent, currentContract, scriptBinder, params);
         } else {
             throw new IllegalArgumentException("error: cant exec javascript, script hash not found in contract.");
         }
@@ -85,7 +91,8 @@ public class JSApiEnvironment {
             scriptBinder = JSApiHelpers.findScriptBinderByFileName(stateScripts, jsFileName);
         if (scriptBinder != null) {
             byte[] jsFileContent = scriptBinder.getBinaryOrThrow("file_content");
-            JSApiEnvironment res = execJSImpl(execOptions, jsFileContent, currentContract, scriptBinder, params);
+            JSApiEnvironment res = execJSImpl(execOptions, HashId.of(jsFileContent), jsFileContent, currentContract,
+                    scriptBinder, params);
             res.jsFileName = jsFileName;
             return res;
         } else {
@@ -93,45 +100,38 @@ public class JSApiEnvironment {
         }
     }
 
-    private static JSApiEnvironment execJSImpl(JSApiExecOptions execOptions, byte[] jsFileContent, Contract currentContract,
-                                               Binder scriptBinder, String... params) throws Exception {
+    private static JSApiEnvironment execJSImpl(JSApiExecOptions execOptions, HashId jsFileHashId, byte[] jsFileContent,
+                                               Contract currentContract, Binder scriptBinder, String... params)
+            throws Exception {
         JSApiEnvironment environment = new JSApiEnvironment();
         environment.currentContract = currentContract;
         environment.scriptParameters = JSApiScriptParameters.fromBinder(scriptBinder);
-        environment.scriptEngine = new NashornScriptEngineFactory().getScriptEngine(s -> false);
         environment.jsApi = new JSApi(currentContract, execOptions, environment.scriptParameters);
-        environment.scriptEngine.put("jsApi", environment.jsApi);
         String[] stringParams = new String[params.length];
         for (int i = 0; i < params.length; ++i)
             stringParams[i] = params[i].toString();
-        environment.scriptEngine.put("jsApiParams", stringParams);
         environment.stringParams = stringParams;
-        String jsString = JSApiHelpers.unpackJSString(scriptBinder, jsFileContent);
-        List<Exception> exceptionsFromEval = new ArrayList<>();
-        Thread evalThread = new Thread(()-> {
-            try {
-                environment.scriptEngine.eval(jsString);
-            } catch (Exception e) {
-                exceptionsFromEval.add(e);
-            }
-        });
-        evalThread.start();
-        if (environment.scriptParameters.timeLimitMillis == 0) {
-            evalThread.join();
-        } else {
-            try {
-                evalThread.join(environment.scriptParameters.timeLimitMillis);
-                if (evalThread.isAlive())
-                    throw new InterruptedException("error: client javascript time limit is up (limit=" + environment.scriptParameters.timeLimitMillis + "ms)");
-            } catch (InterruptedException e) {
-                throw new InterruptedException("error: client javascript was interrupted (limit=" + environment.scriptParameters.timeLimitMillis + "ms)");
-            }
-        }
-        if (exceptionsFromEval.size() > 0) {
-            Exception e = exceptionsFromEval.get(0);
+        JSApiCompressionEnum compression = JSApiCompressionEnum.valueOf(scriptBinder.getStringOrThrow("compression"));
+        JSApiEnginePool.Engine engine = JSApiEnginePool.acquire();
+        Bindings bindings = engine.createBindings();
+        bindings.put("jsApi", environment.jsApi);
+        bindings.put("jsApiParams", stringParams);
+        try {
+            JSApiEnginePool.execute(() -> {
+                CompiledScript script = engine.compile(jsFileHashId, compression,
+                        () -> JSApiHelpers.unpackJSString(scriptBinder, jsFileContent));
+                return script.eval(engine.createContext(bindings));
+            }, environment.scriptParameters.timeLimitMillis, "");
+        } catch (InterruptedException e) {
+            // the engine could still run the script, so it is not returned to the pool
+            throw e;
+        } catch (Exception e) {
+            JSApiEnginePool.release(engine);
             throw e;
         }
-        environment.result = environment.scriptEngine.get("result");
+        environment.scriptEngine = engine;
+        environment.bindings = bindings;
+        environment.result = bindings.get("result");
         return environment;
     }
 
@@ -144,57 +144,60 @@ public class JSApiEnvironment {
                 newContract,
                 stringParams
         );
+        close();
         this.jsApi = env.jsApi;
         this.scriptEngine = env.scriptEngine;
+        this.scriptEngineBusy = env.scriptEngineBusy;
+        this.bindings = env.bindings;
         this.currentContract = env.currentContract;
         this.result = env.result;
     }
 
     public Object callEvent(String eventName, Boolean silently, Object... params) throws InterruptedException {
-        ConcurrentLinkedQueue<Object> mainResContainer = new ConcurrentLinkedQueue<>();
-        Thread evalThread = new Thread(()-> {
-            try {
-                Object jsApiEvents = scriptEngine.get("jsApiEvents");
-                if (jsApiEvents == null) {
+        try {
+            return JSApiEnginePool.execute(() -> {
+                try {
+                    Object jsApiEvents = bindings.get("jsApiEvents");
+                    if (jsApiEvents == null) {
+                        if (!silently)
+                            System.err.println("JSApiHttpServer error: jsApiEvents object not found in client javascript");
+                        return result;
+                    } else {
+                        Invocable invocable = scriptEngine.getInvocable();
+                        return invocable.invokeMethod(
+                                jsApiEvents,
+                                eventName,
+                                params
+                        );
+                    }
+                } catch (NoSuchMethodException e) {
                     if (!silently)
-                        System.err.println("JSApiHttpServer error: jsApiEvents object not found in client javascript");
-                    if (result != null)
-                        mainResContainer.add(result);
-                } else {
-                    Invocable invocable = (Invocable) scriptEngine;
-                    Object mainRes = invocable.invokeMethod(
-                            jsApiEvents,
-                            eventName,
-                            params
-                    );
-                    if (mainRes != null)
-                        mainResContainer.add(mainRes);
+                        System.err.println("JSApiEnvironment error(NoSuchMethodException) -  " + eventName + ": " + e);
+                    return result;
+                } catch (ScriptException e) {
+                    System.err.println("JSApiEnvironment error: " + e);
+                    e.printStackTrace();
+                    return null;
                 }
-            } catch (NoSuchMethodException e) {
-                if (!silently)
-                    System.err.println("JSApiEnvironment error(NoSuchMethodException) -  " + eventName + ": " + e);
-                if (result != null)
-                    mainResContainer.add(result);
-            } catch (ScriptException e) {
-                System.err.println("JSApiEnvironment error: " + e);
-                e.printStackTrace();
-            }
-        });
-        evalThread.start();
-        if (scriptParameters.timeLimitMillis == 0) {
-            evalThread.join();
-        } else {
-            try {
-                evalThread.join(scriptParameters.timeLimitMillis);
-                if (evalThread.isAlive())
-                    throw new InterruptedException("error: client javascript (eventName:"+eventName+") time limit is up (limit=" + scriptParameters.timeLimitMillis + "ms)");
-            } catch (InterruptedException e) {
-                throw new InterruptedException("error: client javascript (eventName:"+eventName+") was interrupted (limit=" + scriptParameters.timeLimitMillis + "ms)");
-            }
-        }
-        if (mainResContainer.isEmpty())
+            }, scriptParameters.timeLimitMillis, " (eventName:" + eventName + ")");
+        } catch (InterruptedException e) {
+            scriptEngineBusy = true;
+            throw e;
+        } catch (Exception e) {
+            System.err.println("JSApiEnvironment error: " + e);
+            e.printStackTrace();
             return null;
-        return mainResContainer.poll();
+        }
+    }
+
+    /**
+     * Return the engine to the pool. Events could not be called after it.
+     */
+    @Override
+    public synchronized void close() {
+        if (scriptEngine != null && !scriptEngineBusy)
+            JSApiEnginePool.release(scriptEngine);
+        scriptEngine = null;
     }
 
 }
@@ -68,6 +68,7 @@ public class JSApiHttpServer {
 
     public void stop() throws Exception {
         service.close();
+        endpoints.values().forEach(JSApiEnvironment::close);
     }
 
     public int getListenPort() {
@@ -0,0 +1,2309 @@
+/*
+ * Copyright (c) 2018, iCodici S.n.C, All Rights Reserved
+ *
+ */
+
+package com.icodici.universa.node;
+
+import com.icodici.crypto.PrivateKey;
+import com.icodici.crypto.PublicKey;
+import com.icodici.db.Db;
+import com.icodici.universa.Approvable;
+import com.icodici.universa.HashId;
+import com.icodici.universa.contract.Contract;
+import com.icodici.universa.contract.services.*;
+import com.icodici.universa.node2.*;
+import net.sergeych.boss.Boss;
+import net.sergeych.tools.Binder;
+import net.sergeych.utils.LogPrinter;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.LongPredicate;
+import java.util.function.Predicate;
+import java.util.zip.CRC32;
+
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * The ledger kept in the local directory by the pure java engine, with no database server. Is intended for tests and
+ * small private networks.
+ * <p>
+ * Every change is appended to the log file {@link #LOG_FILE} as the frame protected by CRC32. When the ledger is
+ * opened, the log is replayed into the memory mapped indexes ({@link MappedHashIndex}): digest fingerprint to record
+ * id, record id to the offset of the last version of the record in the log and the like; the log is cut off at the
+ * first damaged frame, that is, at the torn tail left by a crash. Then records are read from the log by their offsets.
+ * Changes made by {@link #transaction(Callable)} are written as frames that are replayed only if the commit frame
+ * that follows them was written too.
+ * <p>
+ * The log grows with every change, so {@link #cleanup(boolean)} compacts it when more than a half of it is garbage
+ * (see {@link #compact()}).
+ * <p>
+ * Smart contract environments, their subscriptions, storage and names, follower callbacks, keeping items, payments and
+ * node configuration are the rows of the tables named as in {@link PostgresLedger}, appended to the same log as Boss
+ * packed binders. Rows are small, so they are kept in memory along with the indexes to find them by; only the large
+ * columns (packed transactions, contract binaries, environment storage) are read back from the log.
+ */
+public class EmbeddedLedger implements Ledger {
+
+    private static LogPrinter log = new LogPrinter("ELDG");
+
+    public static final String LOG_FILE = "ledger.log";
+
+    /**
+     * {@link #cleanup(boolean)} compacts the log only if it is larger than this.
+     */
+    public static final long MIN_COMPACTION_SIZE = 64 * 1024 * 1024;
+
+    // "ULDG"
+    private static final int MAGIC = 0x554C4447;
+    private static final int VERSION = 1;
+    // magic, version, next record id, next row id
+    private static final int HEADER_SIZE = 24;
+    // payload length, CRC32 of the payload; the payload is the kind of the frame followed by operations
+    private static final int FRAME_HEADER_SIZE = 8;
+
+    private static final byte FRAME_AUTO = 0;
+    private static final byte FRAME_TX = 1;
+    private static final byte FRAME_COMMIT = 2;
+    private static final byte FRAME_ROLLBACK = 3;
+
+    // type, record id, state, created at, expires at, locked by id, digest length, digest
+    private static final byte OP_RECORD = 1;
+    private static final int RECORD_HEADER_SIZE = 36;
+    // type, record id
+    private static final byte OP_DELETE = 2;
+    private static final byte OP_DROP_ITEM = 4;
+    private static final int ID_OP_SIZE = 9;
+    // type, record id, keep till, length, packed transaction
+    private static final byte OP_ITEM = 3;
+    private static final int ITEM_HEADER_SIZE = 21;
+    // type, digest length, digest
+    private static final byte OP_TEST_MARK = 5;
+    private static final int TEST_MARK_HEADER_SIZE = 3;
+    // type, table, row id, length, Boss packed row
+    private static final byte OP_ROW = 6;
+    private static final int ROW_HEADER_SIZE = 14;
+    // type, table, row id
+    private static final byte OP_DROP_ROW = 7;
+    private static final int DROP_ROW_OP_SIZE = 10;
+
+    private static final byte ENVIRONMENTS = 1;
+    private static final byte CONTRACT_SUBSCRIPTION = 2;
+    private static final byte CONTRACT_STORAGE = 3;
+    private static final byte CONTRACT_BINARY = 4;
+    private static final byte FOLLOWER_ENVIRONMENTS = 5;
+    private static final byte FOLLOWER_CALLBACKS = 6;
+    private static final byte NAME_STORAGE = 7;
+    private static final byte PAYMENTS_SUMMARY = 8;
+    private static final byte CONFIG = 9;
+    private static final byte KEEPING_ITEMS = 10;
+
+    private static final int DIGEST_SIZE_GUESS = 96;
+    private static final int MAX_OPS_PER_FRAME = 1000;
+    private static final int COMPACTION_FRAME_SIZE = 1024 * 1024;
+
+    private static final Set<ItemState> UNFINISHED = EnumSet.of(ItemState.PENDING, ItemState.PENDING_POSITIVE,
+            ItemState.PENDING_NEGATIVE, ItemState.LOCKED, ItemState.LOCKED_FOR_CREATION);
+
+    private final File directory;
+    private final File logFile;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private FileChannel channel;
+    private FileLock fileLock;
+    private long logSize;
+    private long liveSize;
+    private long nextRecordId;
+    // digest fingerprint -> record id
+    private MappedHashIndex hashes;
+    // record id -> offset of the last version of the record
+    private MappedHashIndex records;
+    // record id -> offset of the item
+    private MappedHashIndex items;
+    // digest fingerprint -> offset of the mark
+    private MappedHashIndex testMarks;
+    // record id -> expires at, and -> keep its item till, for the cleanup not to read every record
+    private MappedHashIndex expiries;
+    private MappedHashIndex keepTills;
+    private final TreeSet<Long> unfinished = new TreeSet<>();
+    private long nextRowId;
+
+    private final List<Index<?>> indexes = new ArrayList<>();
+    private final Index<HashId> environmentsByContract = index();
+    private final Index<Long> subscriptionsByEnvironment = index();
+    private final Index<HashId> subscriptionsByContract = index();
+    private final Index<Long> storagesByEnvironment = index();
+    private final Index<HashId> storagesByContract = index();
+    private final Index<HashId> binariesByContract = index();
+    private final Index<HashId> callbacksById = index();
+    private final Index<Long> namesByEnvironment = index();
+    private final Index<String> namesByReducedName = index();
+    private final Index<String> namesByAddress = index();
+    private final Index<HashId> namesByOrigin = index();
+    private final Index<HashId> keepingItemsByHash = index();
+    private final Index<HashId> keepingItemsByOrigin = index();
+
+    private final Table[] tables = new Table[KEEPING_ITEMS + 1];
+    private final Table environments = new Table(ENVIRONMENTS, true, (rowId, row, add) ->
+            environmentsByContract.update(add, hashId(row, "ncontract_hash_id"), rowId),
+            "kv_storage", "transaction_pack");
+    private final Table subscriptions = new Table(CONTRACT_SUBSCRIPTION, true, (rowId, row, add) -> {
+        subscriptionsByEnvironment.update(add, row.getLongOrThrow("environment_id"), rowId);
+        subscriptionsByContract.update(add, hashId(row, "hash_id"), rowId);
+    });
+    private final Table storages = new Table(CONTRACT_STORAGE, true, (rowId, row, add) -> {
+        storagesByEnvironment.update(add, row.getLongOrThrow("environment_id"), rowId);
+        storagesByContract.update(add, hashId(row, "hash_id"), rowId);
+    });
+    private final Table binaries = new Table(CONTRACT_BINARY, true, (rowId, row, add) ->
+            binariesByContract.update(add, hashId(row, "hash_id"), rowId),
+            "bin_data");
+    // rows are keyed by environment ids
+    private final Table followerEnvironments = new Table(FOLLOWER_ENVIRONMENTS, false, null);
+    private final Table callbacks = new Table(FOLLOWER_CALLBACKS, true, (rowId, row, add) ->
+            callbacksById.update(add, hashId(row, "id"), rowId));
+    // name entries are kept in their name rows
+    private final Table names = new Table(NAME_STORAGE, true, (rowId, row, add) -> {
+        namesByEnvironment.update(add, row.getLongOrThrow("environment_id"), rowId);
+        namesByReducedName.update(add, row.getString("name_reduced", null), rowId);
+        for (Binder entry : row.getBinders("entries")) {
+            // entry ids are taken from the same sequence
+            nextRowId = Math.max(nextRowId, entry.getLongOrThrow("entry_id") + 1);
+            namesByAddress.update(add, entry.getString("short_addr", null), rowId);
+            namesByAddress.update(add, entry.getString("long_addr", null), rowId);
+            namesByOrigin.update(add, hashId(entry, "origin"), rowId);
+        }
+    });
+    // rows are keyed by days as unix time
+    private final Table payments = new Table(PAYMENTS_SUMMARY, false, null);
+    // rows are keyed by node numbers
+    private final Table config = new Table(CONFIG, false, null);
+    private final Table keepingItems = new Table(KEEPING_ITEMS, true, (rowId, row, add) -> {
+        keepingItemsByHash.update(add, hashId(row, "hash"), rowId);
+        keepingItemsByOrigin.update(add, hashId(row, "origin"), rowId);
+    }, "packed");
+
+    private Transaction transaction;
+    private volatile boolean syncWrites = true;
+
+    private Map<HashId, WeakReference<StateRecord>> cachedRecords = new WeakHashMap<>();
+    private boolean useCache = true;
+
+    /**
+     * Open the ledger in the directory, creating it if need.
+     *
+     * @param directory to keep the ledger files in, only one process could use it at a time
+     * @throws IOException if the directory is not accessible, is used by another process or its log is not the
+     *                     ledger log
+     */
+    public EmbeddedLedger(String directory) throws IOException {
+        this.directory = new File(directory);
+        if (!this.directory.isDirectory() && !this.directory.mkdirs())
+            throw new IOException("can't create ledger directory " + directory);
+        logFile = new File(this.directory, LOG_FILE);
+        open();
+    }
+
+    private static class Entry {
+        long recordId;
+        ItemState state;
+        long createdAt;
+        long expiresAt;
+        long lockedByRecordId;
+        byte[] digest;
+    }
+
+    private interface Undo {
+        void run() throws IOException;
+    }
+
+    private static class Transaction {
+        final long logSize;
+        final long liveSize;
+        final List<Undo> undo = new ArrayList<>();
+
+        Transaction(long logSize, long liveSize) {
+            this.logSize = logSize;
+            this.liveSize = liveSize;
+        }
+    }
+
+    /**
+     * The payload of the frame being built: the frame kind byte followed by the operations.
+     */
+    private static class Ops {
+        byte[] bytes = new byte[256];
+        int size = 1;
+        int count;
+
+        private ByteBuffer append(int length) {
+            if (size + length > bytes.length)
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + length));
+            ByteBuffer b = ByteBuffer.wrap(bytes, size, length);
+            size += length;
+            count++;
+            return b;
+        }
+
+        /**
+         * @return position of the operation in the payload
+         */
+        int putRecord(long recordId, ItemState state, long createdAt, long expiresAt, long lockedByRecordId,
+                      byte[] digest) {
+            int position = size;
+            append(RECORD_HEADER_SIZE + digest.length)
+                    .put(OP_RECORD)
+                    .putLong(recordId)
+                    .put((byte) state.ordinal())
+                    .putLong(createdAt)
+                    .putLong(expiresAt)
+                    .putLong(lockedByRecordId)
+                    .putShort((short) digest.length)
+                    .put(digest);
+            return position;
+        }
+
+        int putId(byte type, long recordId) {
+            int position = size;
+            append(ID_OP_SIZE).put(type).putLong(recordId);
+            return position;
+        }
+
+        int putItem(long recordId, long keepTill, byte[] packed) {
+            int position = size;
+            append(ITEM_HEADER_SIZE + packed.length)
+                    .put(OP_ITEM)
+                    .putLong(recordId)
+                    .putLong(keepTill)
+                    .putInt(packed.length)
+                    .put(packed);
+            return position;
+        }
+
+        int putTestMark(byte[] digest) {
+            int position = size;
+            append(TEST_MARK_HEADER_SIZE + digest.length)
+                    .put(OP_TEST_MARK)
+                    .putShort((short) digest.length)
+                    .put(digest);
+            return position;
+        }
+
+        int putRow(byte table, long rowId, byte[] packed) {
+            int position = size;
+            append(ROW_HEADER_SIZE + packed.length)
+                    .put(OP_ROW)
+                    .put(table)
+                    .putLong(rowId)
+                    .putInt(packed.length)
+                    .put(packed);
+            return position;
+        }
+
+        int putDropRow(byte table, long rowId) {
+            int position = size;
+            append(DROP_ROW_OP_SIZE).put(OP_DROP_ROW).put(table).putLong(rowId);
+            return position;
+        }
+    }
+
+    private static class StoredItem {
+        long keepTill;
+        byte[] packed;
+    }
+
+    /**
+     * Secondary index of the table: values of the column to ids of the rows that have them, in the order of ids.
+     */
+    private static class Index<K> {
+        private final Map<K, TreeSet<Long>> rowIds = new HashMap<>();
+
+        void update(boolean add, K key, long rowId) {
+            if (key == null)
+                return;
+            if (add)
+                rowIds.computeIfAbsent(key, k -> new TreeSet<>()).add(rowId);
+            else {
+                TreeSet<Long> ids = rowIds.get(key);
+                if (ids != null && ids.remove(rowId) && ids.isEmpty())
+                    rowIds.remove(key);
+            }
+        }
+
+        NavigableSet<Long> get(K key) {
+            TreeSet<Long> ids = rowIds.get(key);
+            return ids == null ? Collections.emptyNavigableSet() : ids;
+        }
+
+        Long first(K key) {
+            TreeSet<Long> ids = rowIds.get(key);
+            return ids == null ? null : ids.first();
+        }
+
+        void clear() {
+            rowIds.clear();
+        }
+    }
+
+    private <K> Index<K> index() {
+        Index<K> index = new Index<>();
+        indexes.add(index);
+        return index;
+    }
+
+    private interface Indexer {
+        void update(long rowId, Binder row, boolean add);
+    }
+
+    private static class Row {
+        // all the columns but the large ones
+        final Binder columns;
+        final long offset;
+        final int size;
+
+        Row(Binder columns, long offset, int size) {
+            this.columns = columns;
+            this.offset = offset;
+            this.size = size;
+        }
+    }
+
+    /**
+     * Rows of the table by their ids. The last version of every row is in the log; its columns, but the large ones, are
+     * in memory too. Should be accessed under the ledger lock.
+     */
+    private class Table {
+        final byte id;
+        // whether row ids are taken from nextRowId
+        final boolean sequence;
+        final Indexer indexer;
+        final Set<String> largeColumns;
+        final Map<Long, Row> rows = new HashMap<>();
+
+        Table(byte id, boolean sequence, Indexer indexer, String... largeColumns) {
+            this.id = id;
+            this.sequence = sequence;
+            this.indexer = indexer != null ? indexer : (rowId, row, add) -> {};
+            this.largeColumns = new HashSet<>(Arrays.asList(largeColumns));
+            tables[id] = this;
+        }
+
+        /**
+         * @return the row without its large columns, not to be modified, or null
+         */
+        Binder get(long rowId) {
+            Row row = rows.get(rowId);
+            return row == null ? null : row.columns;
+        }
+
+        /**
+         * @return copy of the whole row, read from the log if it has large columns, or null
+         */
+        Binder read(long rowId) throws IOException {
+            Row row = rows.get(rowId);
+            if (row == null)
+                return null;
+            if (largeColumns.isEmpty())
+                return new Binder(row.columns);
+            return Boss.unpack(readPacked(row));
+        }
+
+        byte[] readPacked(Row row) throws IOException {
+            return readAt(row.offset + ROW_HEADER_SIZE, row.size - ROW_HEADER_SIZE).array();
+        }
+
+        void apply(long rowId, Binder row, long offset, int size) {
+            Binder columns = row;
+            if (!largeColumns.isEmpty()) {
+                columns = new Binder(row);
+                columns.keySet().removeAll(largeColumns);
+            }
+            Row current = new Row(columns, offset, size);
+            Row previous = rows.put(rowId, current);
+            if (previous != null) {
+                indexer.update(rowId, previous.columns, false);
+                liveSize -= previous.size;
+            }
+            indexer.update(rowId, columns, true);
+            liveSize += size;
+            if (sequence)
+                nextRowId = Math.max(nextRowId, rowId + 1);
+            undo(() -> {
+                indexer.update(rowId, current.columns, false);
+                if (previous == null)
+                    rows.remove(rowId);
+                else {
+                    rows.put(rowId, previous);
+                    indexer.update(rowId, previous.columns, true);
+                }
+            });
+        }
+
+        void applyDrop(long rowId) {
+            Row previous = rows.remove(rowId);
+            if (previous == null)
+                return;
+            indexer.update(rowId, previous.columns, false);
+            liveSize -= previous.size;
+            undo(() -> {
+                rows.put(rowId, previous);
+                indexer.update(rowId, previous.columns, true);
+            });
+        }
+
+        void clear() {
+            rows.clear();
+        }
+    }
+
+    /**
+     * Rows of the environment and its parts, collected under the lock to make {@link NImmutableEnvironment} after it.
+     */
+    private static class StoredEnvironment {
+        final long id;
+        final HashId nContractHashId;
+        final byte[] kvStorage;
+        final byte[] transactionPack;
+        // rows by their ids
+        final Map<Long, Binder> subscriptions = new LinkedHashMap<>();
+        // with their bin_data
+        final Map<Long, Binder> storages = new LinkedHashMap<>();
+        final List<NNameRecord> nameRecords = new ArrayList<>();
+        Binder followerService;
+
+        StoredEnvironment(long id, Binder row) {
+            this.id = id;
+            nContractHashId = hashId(row, "ncontract_hash_id");
+            kvStorage = row.getBinaryOrThrow("kv_storage");
+            transactionPack = row.getBinaryOrThrow("transaction_pack");
+        }
+    }
+
+    // ------------------------------------------------------------------------------------------------ records
+
+    @Override
+    public StateRecord getRecord(HashId itemId) {
+        StateRecord sr = protect(() -> {
+            StateRecord cached = getFromCache(itemId);
+            if (cached != null)
+                return cached;
+            lock.readLock().lock();
+            try {
+                Entry entry = findEntry(itemId.getDigest());
+                return entry == null ? null : toRecord(itemId, entry);
+            } finally {
+                lock.readLock().unlock();
+            }
+        });
+        if (sr != null && sr.isExpired()) {
+            sr.destroy();
+            return null;
+        }
+        return sr;
+    }
+
+    @Override
+    public StateRecord createOutputLockRecord(long creatorRecordId, HashId newItemHashId) {
+        StateRecord r = new StateRecord(this);
+        r.setState(ItemState.LOCKED_FOR_CREATION);
+        r.setLockedByRecordId(creatorRecordId);
+        r.setId(newItemHashId);
+        try {
+            r.save();
+            return r;
+        } catch (Ledger.Failure e) {
+            return null;
+        }
+    }
+
+    @Override
+    public StateRecord getLockOwnerOf(StateRecord rc) {
+        StateRecord sr = protect(() -> {
+            lock.readLock().lock();
+            try {
+                Entry entry = readEntry(rc.getLockedByRecordId());
+                return entry == null ? null : toRecord(HashId.withDigest(entry.digest), entry);
+            } finally {
+                lock.readLock().unlock();
+            }
+        });
+        if (sr != null && sr.isExpired()) {
+            sr.destroy();
+            return null;
+        }
+        return sr;
+    }
+
+    @Override
+    public StateRecord findOrCreate(HashId itemId) {
+        return protect(() -> {
+            lock.writeLock().lock();
+            try {
+                StateRecord r = getRecord(itemId);
+                if (r == null) {
+                    r = new StateRecord(this);
+                    r.setId(itemId);
+                    r.setState(ItemState.PENDING);
+                    r.save();
+                }
+                return r;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        });
+    }
+
+    @Override
+    public void save(StateRecord stateRecord) {
+        if (stateRecord.getLedger() == null) {
+            stateRecord.setLedger(this);
+        } else if (stateRecord.getLedger() != this)
+            throw new IllegalStateException("can't save with  adifferent ledger (make a copy!)");
+
+        lock.writeLock().lock();
+        try {
+            long recordId = stateRecord.getRecordId();
+            byte[] digest = stateRecord.getId().getDigest();
+            if (recordId == 0) {
+                if (findEntry(digest) != null)
+                    throw new Failure("StateRecord save failed: record already exists: " + stateRecord.getId());
+                recordId = nextRecordId++;
+            } else if (records.get(recordId) == MappedHashIndex.NONE) {
+                // destroyed meanwhile, just like an update of the deleted row
+                return;
+            }
+            long expiresAt = StateRecord.unixTime(stateRecord.getExpiresAt());
+            Ops ops = new Ops();
+            int position = ops.putRecord(recordId, stateRecord.getState(),
+                    StateRecord.unixTime(stateRecord.getCreatedAt()),
+                    expiresAt,
+                    stateRecord.getLockedByRecordId(),
+                    digest);
+            long base = writeFrame(ops);
+            applyRecord(recordId, stateRecord.getState(), expiresAt, digest, base + position);
+            if (stateRecord.getRecordId() == 0) {
+                stateRecord.setRecordId(recordId);
+                putToCache(stateRecord);
+            }
+        } catch (IOException e) {
+            throw new Failure("StateRecord save failed:" + e, e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void reload(StateRecord stateRecord) throws StateRecord.NotFoundException {
+        lock.readLock().lock();
+        try {
+            Entry entry = findEntry(stateRecord.getId().getDigest());
+            if (entry == null)
+                throw new StateRecord.NotFoundException("record not found");
+            stateRecord.initFrom(entry.recordId, stateRecord.getId(), entry.state, entry.createdAt, entry.expiresAt,
+                    entry.lockedByRecordId);
+        } catch (StateRecord.NotFoundException e) {
+            throw e;
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to reload RecordSet", e);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void destroy(StateRecord record) {
+        long recordId = record.getRecordId();
+        if (recordId == 0) {
+            throw new IllegalStateException("can't destroy record without recordId");
+        }
+        protect(() -> {
+            lock.writeLock().lock();
+            try {
+                if (records.get(recordId) != MappedHashIndex.NONE) {
+                    Ops ops = new Ops();
+                    ops.putId(OP_DELETE, recordId);
+                    writeFrame(ops);
+                    applyDelete(recordId);
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+            removeFromCache(record.getId());
+            return null;
+        });
+    }
+
+    @Override
+    public <T> T transaction(Callable<T> callable) {
+        lock.writeLock().lock();
+        try {
+            if (transaction != null)
+                // nested transaction is the part of the outer one
+                return protect(callable);
+            Transaction tx = new Transaction(logSize, liveSize);
+            transaction = tx;
+            try {
+                T result = callable.call();
+                transaction = null;
+                writeFrame(FRAME_COMMIT, new Ops());
+                return result;
+            } catch (Throwable t) {
+                transaction = null;
+                rollback(tx);
+                // as Rollback exception is instanceof Db.RollbackException, it just returns null
+                if (t instanceof Db.RollbackException)
+                    return null;
+                if (t instanceof Error)
+                    throw (Error) t;
+                throw new Ledger.Failure("Ledger operation failed: " + t.getMessage(), t);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void rollback(Transaction tx) {
+        try {
+            for (int i = tx.undo.size() - 1; i >= 0; i--)
+                tx.undo.get(i).run();
+            liveSize = tx.liveSize;
+            // frames of the transaction are the last ones
+            channel.truncate(tx.logSize);
+            logSize = tx.logSize;
+        } catch (IOException e) {
+            log.e("ledger transaction rollback failed: %s", e);
+            try {
+                // frames of the transaction could not be removed, so the replay should skip them
+                writeFrame(FRAME_ROLLBACK, new Ops());
+            } catch (IOException e1) {
+                log.e("failed to write ledger rollback: %s", e1);
+            }
+        }
+    }
+
+    @Override
+    public long countRecords() {
+        lock.readLock().lock();
+        try {
+            return records.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Map<HashId, StateRecord> findUnfinished() {
+        Map<HashId, StateRecord> map = new HashMap<>();
+        List<StateRecord> expired = new ArrayList<>();
+        protect(() -> {
+            lock.readLock().lock();
+            try {
+                for (long recordId : unfinished) {
+                    Entry entry = readEntry(recordId);
+                    if (entry != null) {
+                        StateRecord record = toRecord(HashId.withDigest(entry.digest), entry);
+                        if (record.isExpired())
+                            expired.add(record);
+                        else
+                            map.put(record.getId(), record);
+                    }
+                }
+            } finally {
+                lock.readLock().unlock();
+            }
+            return null;
+        });
+        for (StateRecord record : expired)
+            record.destroy();
+        return map;
+    }
+
+    /**
+     * Reads all the records, so it takes time proportional to the ledger size.
+     */
+    @Override
+    public Map<ItemState, Integer> getLedgerSize(ZonedDateTime createdAfter) {
+        long after = createdAfter != null ? createdAfter.toEpochSecond() : 0;
+        Map<ItemState, Integer> result = new HashMap<>();
+        return protect(() -> {
+            lock.readLock().lock();
+            try {
+                records.forEach((recordId, offset) -> {
+                    Entry entry = readRecordAt(offset);
+                    if (entry.createdAt >= after)
+                        result.merge(entry.state, 1, Integer::sum);
+                });
+            } finally {
+                lock.readLock().unlock();
+            }
+            return result;
+        });
+    }
+
+    @Override
+    public void markTestRecord(HashId hash) {
+        protect(() -> {
+            lock.writeLock().lock();
+            try {
+                byte[] digest = hash.getDigest();
+                if (!findTestMark(digest)) {
+                    Ops ops = new Ops();
+                    int position = ops.putTestMark(digest);
+                    long base = writeFrame(ops);
+                    applyTestMark(digest, base + position);
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+            return null;
+        });
+    }
+
+    @Override
+    public boolean isTestnet(HashId itemId) {
+        return protect(() -> {
+            lock.readLock().lock();
+            try {
+                return findTestMark(itemId.getDigest());
+            } finally {
+                lock.readLock().unlock();
+            }
+        });
+    }
+
+    // ------------------------------------------------------------------------------------------------ items
+
+    @Override
+    public Approvable getItem(StateRecord record) {
+        return protect(() -> {
+            byte[] packed;
+            lock.readLock().lock();
+            try {
+                long offset = record.getRecordId() > 0 ? items.get(record.getRecordId()) : MappedHashIndex.NONE;
+                if (offset == MappedHashIndex.NONE)
+                    return null;
+                packed = readItemAt(offset).packed;
+            } finally {
+                lock.readLock().unlock();
+            }
+            return Contract.fromPackedTransaction(packed);
+        });
+    }
+
+    @Override
+    public void putItem(StateRecord record, Approvable item, Instant keepTill) {
+        if (item instanceof Contract) {
+            byte[] packed = ((Contract) item).getPackedTransaction();
+            lock.writeLock().lock();
+            try {
+                long recordId = record.getRecordId();
+                if (recordId == 0 || records.get(recordId) == MappedHashIndex.NONE)
+                    throw new Failure("item save failed: no record " + record.getId());
+                Ops ops = new Ops();
+                int position = ops.putItem(recordId, keepTill.getEpochSecond(), packed);
+                long base = writeFrame(ops);
+                applyItem(recordId, keepTill.getEpochSecond(), base + position, ITEM_HEADER_SIZE + packed.length);
+            } catch (IOException e) {
+                throw new Failure("item save failed:" + e, e);
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------------------------------ maintenance
+
+    /**
+     * Remove expired items, follower callbacks and, unless in permanent mode, expired records, then {@link #compact()}
+     * the log if more than a half of it is garbage and it is larger than {@link #MIN_COMPACTION_SIZE}.
+     * <p>
+     * Expired ones are found by the expiration indexes under the read lock, and are deleted by chunks of up to
+     * {@link #MAX_OPS_PER_FRAME}, taking the write lock for every chunk only, so the ledger is not blocked meanwhile.
+     */
+    @Override
+    public void cleanup(boolean isPermanetMode) {
+        long now = Instant.now().getEpochSecond();
+        Set<Long> expiredRecords = new LinkedHashSet<>();
+        Set<Long> expiredItems = new LinkedHashSet<>();
+        underReadLock(() -> {
+            if (!isPermanetMode)
+                expiries.forEach((recordId, expiresAt) -> {
+                    if (expiresAt < now)
+                        expiredRecords.add(recordId);
+                });
+            keepTills.forEach((recordId, keepTill) -> {
+                if (keepTill < now || expiries.get(recordId) < now)
+                    expiredItems.add(recordId);
+            });
+            return null;
+        });
+        // could be changed while the lock was released
+        writeIds(OP_DELETE, expiredRecords, recordId -> {
+            long expiresAt = expiries.get(recordId);
+            return expiresAt != MappedHashIndex.NONE && expiresAt < now;
+        });
+        writeIds(OP_DROP_ITEM, expiredItems, recordId -> {
+            long keepTill = keepTills.get(recordId);
+            return keepTill != MappedHashIndex.NONE && (keepTill < now || expiries.get(recordId) < now);
+        });
+        deleteWhere(callbacks, row -> row.getLongOrThrow("stored_until") < now);
+        underWriteLock(() -> {
+            if (transaction == null && logSize > MIN_COMPACTION_SIZE && logSize - liveSize > logSize / 2)
+                compactLog();
+            return null;
+        });
+    }
+
+    private void writeIds(byte type, Collection<Long> recordIds, LongPredicate isExpired) {
+        Iterator<Long> it = recordIds.iterator();
+        while (it.hasNext()) {
+            List<HashId> deleted = underWriteLock(() -> {
+                List<Long> batch = new ArrayList<>();
+                while (it.hasNext() && batch.size() < MAX_OPS_PER_FRAME) {
+                    long recordId = it.next();
+                    if (isExpired.test(recordId))
+                        batch.add(recordId);
+                }
+                List<HashId> ids = new ArrayList<>();
+                if (batch.isEmpty())
+                    return ids;
+                Ops ops = new Ops();
+                for (long recordId : batch)
+                    ops.putId(type, recordId);
+                writeFrame(ops);
+                for (long recordId : batch) {
+                    if (type == OP_DELETE) {
+                        byte[] digest = applyDelete(recordId);
+                        if (digest != null)
+                            ids.add(HashId.withDigest(digest));
+                    } else
+                        applyDropItem(recordId);
+                }
+                return ids;
+            });
+            for (HashId id : deleted)
+                removeFromCache(id);
+        }
+    }
+
+    /**
+     * Rewrite the log with the last versions of live records, items, marks and rows only, replacing the old log atomically.
+     * Blocks all other operations of the ledger for the time proportional to its live part.
+     */
+    public void compact() {
+        protect(() -> {
+            lock.writeLock().lock();
+            try {
+                if (transaction != null)
+                    throw new IllegalStateException("can't compact the ledger in transaction");
+                compactLog();
+            } finally {
+                lock.writeLock().unlock();
+            }
+            return null;
+        });
+    }
+
+    private void compactLog() throws IOException {
+        long before = logSize;
+        File compacted = new File(directory, LOG_FILE + ".compact");
+        try (FileChannel out = FileChannel.open(compacted.toPath(), CREATE, TRUNCATE_EXISTING, WRITE)) {
+            long[] position = {writeFully(out, header(nextRecordId, nextRowId), 0)};
+            Ops[] ops = {new Ops()};
+            MappedHashIndex.Visitor flush = (key, value) -> {
+                if (ops[0].size >= COMPACTION_FRAME_SIZE) {
+                    position[0] += writeFully(out, frame(FRAME_AUTO, ops[0]), position[0]);
+                    ops[0] = new Ops();
+                }
+            };
+            records.forEach((recordId, offset) -> {
+                Entry e = readRecordAt(offset);
+                ops[0].putRecord(recordId, e.state, e.createdAt, e.expiresAt, e.lockedByRecordId, e.digest);
+                long itemOffset = items.get(recordId);
+                if (itemOffset != MappedHashIndex.NONE) {
+                    StoredItem item = readItemAt(itemOffset);
+                    ops[0].putItem(recordId, item.keepTill, item.packed);
+                }
+                flush.visit(recordId, offset);
+            });
+            testMarks.forEach((fingerprint, offset) -> {
+                ops[0].putTestMark(readTestMarkAt(offset));
+                flush.visit(fingerprint, offset);
+            });
+            for (Table table : tables) {
+                if (table == null)
+                    continue;
+                for (Map.Entry<Long, Row> e : table.rows.entrySet()) {
+                    ops[0].putRow(table.id, e.getKey(), table.readPacked(e.getValue()));
+                    flush.visit(e.getKey(), e.getValue().offset);
+                }
+            }
+            if (ops[0].count > 0)
+                writeFully(out, frame(FRAME_AUTO, ops[0]), position[0]);
+            out.force(true);
+        }
+        Files.move(compacted.toPath(), logFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        open();
+        log.i("ledger log compacted from %d to %d bytes", before, logSize);
+    }
+
+    /**
+     * Set whether to force the committed changes to the disk before returning. It is on by default. Turning it off
+     * speeds writes up a lot, but the last changes could be lost if the machine (not just the process) fails.
+     *
+     * @param syncWrites true to force every commit to the disk
+     */
+    public void setSyncWrites(boolean syncWrites) {
+        this.syncWrites = syncWrites;
+    }
+
+    /**
+     * @return size of the log file in bytes
+     */
+    public long getLogSize() {
+        return logSize;
+    }
+
+    /**
+     * @return how many bytes of the log are the last versions of live records, items, marks and rows
+     */
+    public long getLiveSize() {
+        return liveSize;
+    }
+
+    @Override
+    public void close() {
+        lock.writeLock().lock();
+        try {
+            closeFiles();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // ------------------------------------------------------------------------------------------------ the log
+
+    private void open() throws IOException {
+        closeFiles();
+        channel = FileChannel.open(logFile.toPath(), CREATE, READ, WRITE);
+        fileLock = channel.tryLock();
+        if (fileLock == null) {
+            channel.close();
+            channel = null;
+            throw new IOException("ledger " + directory + " is used by another process");
+        }
+        // indexes left by the crashed process
+        File[] stale = directory.listFiles((dir, name) -> name.endsWith(".idx"));
+        if (stale != null)
+            for (File f : stale)
+                f.delete();
+        hashes = new MappedHashIndex(directory, "hashes");
+        records = new MappedHashIndex(directory, "records");
+        items = new MappedHashIndex(directory, "items");
+        testMarks = new MappedHashIndex(directory, "testmarks");
+        expiries = new MappedHashIndex(directory, "expiries");
+        keepTills = new MappedHashIndex(directory, "keeptills");
+        unfinished.clear();
+        for (Table table : tables)
+            if (table != null)
+                table.clear();
+        for (Index<?> index : indexes)
+            index.clear();
+        liveSize = 0;
+        nextRecordId = 1;
+        nextRowId = 1;
+        replay();
+    }
+
+    private void closeFiles() throws IOException {
+        for (MappedHashIndex index : new MappedHashIndex[]{hashes, records, items, testMarks, expiries, keepTills})
+            if (index != null)
+                index.close();
+        hashes = records = items = testMarks = expiries = keepTills = null;
+        if (channel != null) {
+            if (fileLock != null)
+                fileLock.release();
+            channel.close();
+            channel = null;
+            fileLock = null;
+        }
+    }
+
+    private static class PendingFrame {
+        final long base;
+        final byte[] payload;
+
+        PendingFrame(long base, byte[] payload) {
+            this.base = base;
+            this.payload = payload;
+        }
+    }
+
+    private void replay() throws IOException {
+        long size = channel.size();
+        logSize = size;
+        if (size < HEADER_SIZE) {
+            // new, or crashed before the header was written
+            channel.truncate(0);
+            writeFully(channel, header(nextRecordId, nextRowId), 0);
+            channel.force(true);
+            logSize = HEADER_SIZE;
+            return;
+        }
+        ByteBuffer header = readAt(0, HEADER_SIZE);
+        if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION)
+            throw new IOException("not a ledger log: " + logFile);
+        nextRecordId = Math.max(1, header.getLong(8));
+        nextRowId = Math.max(1, header.getLong(16));
+
+        long position = HEADER_SIZE;
+        long pendingStart = -1;
+        List<PendingFrame> pending = new ArrayList<>();
+        CRC32 crc = new CRC32();
+        // the stream is not closed as it would close the channel
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Channels.newInputStream(channel.position(HEADER_SIZE)), 64 * 1024));
+        try {
+            while (position + FRAME_HEADER_SIZE <= size) {
+                int length = in.readInt();
+                int checksum = in.readInt();
+                if (length < 1 || length > size - position - FRAME_HEADER_SIZE)
+                    break;
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                crc.reset();
+                crc.update(payload, 0, length);
+                if ((int) crc.getValue() != checksum)
+                    break;
+                long base = position + FRAME_HEADER_SIZE;
+                byte kind = payload[0];
+                if (kind == FRAME_AUTO) {
+                    applyFrame(base, payload);
+                } else if (kind == FRAME_TX) {
+                    if (pending.isEmpty())
+                        pendingStart = position;
+                    pending.add(new PendingFrame(base, payload));
+                } else if (kind == FRAME_COMMIT) {
+                    for (PendingFrame f : pending)
+                        applyFrame(f.base, f.payload);
+                    pending.clear();
+                } else if (kind == FRAME_ROLLBACK) {
+                    pending.clear();
+                } else
+                    break;
+                position = base + length;
+            }
+        } catch (EOFException ignored) {
+            // the file was shorter than it said, the same as the torn frame
+        }
+        long valid = pending.isEmpty() ? position : pendingStart;
+        if (valid < size) {
+            log.e("ledger log %s: dropping %d bytes of the incomplete tail at %d", logFile, size - valid, valid);
+            channel.truncate(valid);
+            channel.force(true);
+        }
+        logSize = valid;
+    }
+
+    private void applyFrame(long base, byte[] payload) throws IOException {
+        ByteBuffer b = ByteBuffer.wrap(payload);
+        int p = 1;
+        while (p < payload.length) {
+            switch (payload[p]) {
+                case OP_RECORD:
+                    Entry entry = parseRecord(b, p);
+                    applyRecord(entry.recordId, entry.state, entry.expiresAt, entry.digest, base + p);
+                    p += RECORD_HEADER_SIZE + entry.digest.length;
+                    break;
+                case OP_DELETE:
+                    applyDelete(b.getLong(p + 1));
+                    p += ID_OP_SIZE;
+                    break;
+                case OP_ITEM:
+                    int itemSize = ITEM_HEADER_SIZE + b.getInt(p + 17);
+                    applyItem(b.getLong(p + 1), b.getLong(p + 9), base + p, itemSize);
+                    p += itemSize;
+                    break;
+                case OP_DROP_ITEM:
+                    applyDropItem(b.getLong(p + 1));
+                    p += ID_OP_SIZE;
+                    break;
+                case OP_TEST_MARK:
+                    byte[] digest = new byte[b.getShort(p + 1) & 0xFFFF];
+                    ((ByteBuffer) b.duplicate().position(p + TEST_MARK_HEADER_SIZE)).get(digest);
+                    applyTestMark(digest, base + p);
+                    p += TEST_MARK_HEADER_SIZE + digest.length;
+                    break;
+                case OP_ROW:
+                    int rowSize = ROW_HEADER_SIZE + b.getInt(p + 10);
+                    Binder row = Boss.unpack(Arrays.copyOfRange(payload, p + ROW_HEADER_SIZE, p + rowSize));
+                    table(payload[p + 1]).apply(b.getLong(p + 2), row, base + p, rowSize);
+                    p += rowSize;
+                    break;
+                case OP_DROP_ROW:
+                    table(payload[p + 1]).applyDrop(b.getLong(p + 2));
+                    p += DROP_ROW_OP_SIZE;
+                    break;
+                default:
+                    throw new IOException("unknown ledger log operation " + payload[p] + " at " + (base + p));
+            }
+        }
+    }
+
+    private static ByteBuffer header(long nextRecordId, long nextRowId) {
+        ByteBuffer b = ByteBuffer.allocate(HEADER_SIZE);
+        b.putInt(MAGIC).putInt(VERSION).putLong(nextRecordId).putLong(nextRowId).flip();
+        return b;
+    }
+
+    private Table table(byte id) throws IOException {
+        Table table = id > 0 && id < tables.length ? tables[id] : null;
+        if (table == null)
+            throw new IOException("unknown ledger table " + id);
+        return table;
+    }
+
+    private static ByteBuffer frame(byte kind, Ops ops) {
+        ops.bytes[0] = kind;
+        CRC32 crc = new CRC32();
+        crc.update(ops.bytes, 0, ops.size);
+        ByteBuffer b = ByteBuffer.allocate(FRAME_HEADER_SIZE + ops.size);
+        b.putInt(ops.size).putInt((int) crc.getValue()).put(ops.bytes, 0, ops.size).flip();
+        return b;
+    }
+
+    private static int writeFully(FileChannel out, ByteBuffer buffer, long position) throws IOException {
+        int length = buffer.remaining();
+        while (buffer.hasRemaining())
+            position += out.write(buffer, position);
+        return length;
+    }
+
+    private long writeFrame(Ops ops) throws IOException {
+        return writeFrame(transaction != null ? FRAME_TX : FRAME_AUTO, ops);
+    }
+
+    /**
+     * Append the frame to the log.
+     *
+     * @return offset of the frame payload, to add operation positions to
+     */
+    private long writeFrame(byte kind, Ops ops) throws IOException {
+        long start = logSize;
+        try {
+            logSize += writeFully(channel, frame(kind, ops), start);
+        } catch (IOException e) {
+            // the torn frame would hide the next ones from the replay
+            logSize = start;
+            channel.truncate(start);
+            throw e;
+        }
+        if (syncWrites && kind != FRAME_TX)
+            channel.force(false);
+        return start + FRAME_HEADER_SIZE;
+    }
+
+    private ByteBuffer readAt(long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0)
+                throw new EOFException("unexpected end of the ledger log at " + position);
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static Entry parseRecord(ByteBuffer b, int p) {
+        Entry entry = new Entry();
+        entry.recordId = b.getLong(p + 1);
+        entry.state = ItemState.values()[b.get(p + 9)];
+        entry.createdAt = b.getLong(p + 10);
+        entry.expiresAt = b.getLong(p + 18);
+        entry.lockedByRecordId = b.getLong(p + 26);
+        entry.digest = new byte[b.getShort(p + 34) & 0xFFFF];
+        ((ByteBuffer) b.duplicate().position(p + RECORD_HEADER_SIZE)).get(entry.digest);
+        return entry;
+    }
+
+    private Entry readRecordAt(long offset) throws IOException {
+        int length = (int) Math.min(RECORD_HEADER_SIZE + DIGEST_SIZE_GUESS, logSize - offset);
+        ByteBuffer b = readAt(offset, length);
+        int digestLength = b.getShort(34) & 0xFFFF;
+        if (RECORD_HEADER_SIZE + digestLength > length)
+            b = readAt(offset, RECORD_HEADER_SIZE + digestLength);
+        return parseRecord(b, 0);
+    }
+
+    private Entry readEntry(long recordId) throws IOException {
+        if (recordId <= 0)
+            return null;
+        long offset = records.get(recordId);
+        return offset == MappedHashIndex.NONE ? null : readRecordAt(offset);
+    }
+
+    private Entry findEntry(byte[] digest) throws IOException {
+        for (long recordId : hashes.getAll(fingerprint(digest))) {
+            Entry entry = readEntry(recordId);
+            if (entry != null && Arrays.equals(entry.digest, digest))
+                return entry;
+        }
+        return null;
+    }
+
+    private StoredItem readItemAt(long offset) throws IOException {
+        ByteBuffer b = readAt(offset, ITEM_HEADER_SIZE);
+        StoredItem item = new StoredItem();
+        item.keepTill = b.getLong(9);
+        item.packed = readAt(offset + ITEM_HEADER_SIZE, b.getInt(17)).array();
+        return item;
+    }
+
+    private int itemSizeAt(long offset) throws IOException {
+        return ITEM_HEADER_SIZE + readAt(offset, ITEM_HEADER_SIZE).getInt(17);
+    }
+
+    private byte[] readTestMarkAt(long offset) throws IOException {
+        int length = readAt(offset, TEST_MARK_HEADER_SIZE).getShort(1) & 0xFFFF;
+        return readAt(offset + TEST_MARK_HEADER_SIZE, length).array();
+    }
+
+    private boolean findTestMark(byte[] digest) throws IOException {
+        for (long offset : testMarks.getAll(fingerprint(digest)))
+            if (Arrays.equals(readTestMarkAt(offset), digest))
+                return true;
+        return false;
+    }
+
+    /**
+     * Digests are cryptographic hashes, so their first bytes are good enough for the hash table key.
+     */
+    private static long fingerprint(byte[] digest) {
+        long result = 0;
+        for (int i = 0; i < 8 && i < digest.length; i++)
+            result = (result << 8) | (digest[i] & 0xFF);
+        return result;
+    }
+
+    // ------------------------------------------------------------------------------------------------ indexes
+
+    private void undo(Undo undo) {
+        if (transaction != null)
+            transaction.undo.add(undo);
+    }
+
+    private void setUnfinished(long recordId, boolean isUnfinished) {
+        if (isUnfinished)
+            unfinished.add(recordId);
+        else
+            unfinished.remove(recordId);
+    }
+
+    private void applyRecord(long recordId, ItemState state, long expiresAt, byte[] digest, long offset)
+            throws IOException {
+        long previous = records.put(recordId, offset);
+        long previousExpiresAt = expiries.put(recordId, expiresAt);
+        if (previous == MappedHashIndex.NONE) {
+            long fingerprint = fingerprint(digest);
+            hashes.add(fingerprint, recordId);
+            liveSize += RECORD_HEADER_SIZE + digest.length;
+            nextRecordId = Math.max(nextRecordId, recordId + 1);
+            undo(() -> {
+                records.remove(recordId);
+                expiries.remove(recordId);
+                hashes.remove(fingerprint, recordId);
+                unfinished.remove(recordId);
+                removeFromCache(HashId.withDigest(digest));
+            });
+        } else {
+            boolean wasUnfinished = unfinished.contains(recordId);
+            undo(() -> {
+                records.put(recordId, previous);
+                expiries.put(recordId, previousExpiresAt);
+                setUnfinished(recordId, wasUnfinished);
+            });
+        }
+        setUnfinished(recordId, UNFINISHED.contains(state));
+    }
+
+    /**
+     * @return digest of the deleted record or null if there was no record
+     */
+    private byte[] applyDelete(long recordId) throws IOException {
+        Entry entry = readEntry(recordId);
+        if (entry == null)
+            return null;
+        long offset = records.remove(recordId);
+        long expiresAt = expiries.remove(recordId);
+        long fingerprint = fingerprint(entry.digest);
+        hashes.remove(fingerprint, recordId);
+        boolean wasUnfinished = unfinished.remove(recordId);
+        liveSize -= RECORD_HEADER_SIZE + entry.digest.length;
+        undo(() -> {
+            records.put(recordId, offset);
+            expiries.put(recordId, expiresAt);
+            hashes.add(fingerprint, recordId);
+            setUnfinished(recordId, wasUnfinished);
+        });
+        applyDropItem(recordId);
+        return entry.digest;
+    }
+
+    private void applyItem(long recordId, long keepTill, long offset, int size) throws IOException {
+        long previous = items.put(recordId, offset);
+        long previousKeepTill = keepTills.put(recordId, keepTill);
+        if (previous != MappedHashIndex.NONE)
+            liveSize -= itemSizeAt(previous);
+        liveSize += size;
+        undo(() -> {
+            if (previous == MappedHashIndex.NONE) {
+                items.remove(recordId);
+                keepTills.remove(recordId);
+            } else {
+                items.put(recordId, previous);
+                keepTills.put(recordId, previousKeepTill);
+            }
+        });
+    }
+
+    private void applyDropItem(long recordId) throws IOException {
+        long previous = items.remove(recordId);
+        if (previous == MappedHashIndex.NONE)
+            return;
+        long keepTill = keepTills.remove(recordId);
+        liveSize -= itemSizeAt(previous);
+        undo(() -> {
+            items.put(recordId, previous);
+            keepTills.put(recordId, keepTill);
+        });
+    }
+
+    private void applyTestMark(byte[] digest, long offset) throws IOException {
+        long fingerprint = fingerprint(digest);
+        testMarks.add(fingerprint, offset);
+        liveSize += TEST_MARK_HEADER_SIZE + digest.length;
+        undo(() -> testMarks.remove(fingerprint, offset));
+    }
+
+    // ------------------------------------------------------------------------------------------------ cache
+
+    private StateRecord toRecord(HashId id, Entry entry) {
+        StateRecord cached = getFromCache(id);
+        if (cached != null)
+            return cached;
+        StateRecord record = new StateRecord(this);
+        record.initFrom(entry.recordId, id, entry.state, entry.createdAt, entry.expiresAt, entry.lockedByRecordId);
+        putToCache(record);
+        return record;
+    }
+
+    private StateRecord getFromCache(HashId itemId) {
+        if (useCache) {
+            synchronized (cachedRecords) {
+                WeakReference<StateRecord> ref = cachedRecords.get(itemId);
+                if (ref == null)
+                    return null;
+                StateRecord r = ref.get();
+                if (r == null) {
+                    cachedRecords.remove(itemId);
+                    return null;
+                }
+                return r;
+            }
+        } else
+            return null;
+    }
+
+    private void putToCache(StateRecord r) {
+        if (useCache) {
+            synchronized (cachedRecords) {
+                cachedRecords.put(r.getId(), new WeakReference<StateRecord>(r));
+            }
+        }
+    }
+
+    private void removeFromCache(HashId itemId) {
+        synchronized (cachedRecords) {
+            cachedRecords.remove(itemId);
+        }
+    }
+
+    /**
+     * Enable or disable records caching. USe it in tests only, in production it should always be enabled
+     *
+     * @param enable, if true it is enabling cache
+     */
+    public void enableCache(boolean enable) {
+        synchronized (cachedRecords) {
+            useCache = enable;
+            if (!enable)
+                cachedRecords.clear();
+        }
+    }
+
+    private <T> T protect(Callable<T> block) {
+        try {
+            return block.call();
+        } catch (Exception ex) {
+            throw new Ledger.Failure("Ledger operation failed: " + ex.getMessage(), ex);
+        }
+    }
+
+    private <T> T underReadLock(Callable<T> block) {
+        return protect(() -> {
+            lock.readLock().lock();
+            try {
+                return block.call();
+            } finally {
+                lock.readLock().unlock();
+            }
+        });
+    }
+
+    private <T> T underWriteLock(Callable<T> block) {
+        return protect(() -> {
+            lock.writeLock().lock();
+            try {
+                return block.call();
+            } finally {
+                lock.writeLock().unlock();
+            }
+        });
+    }
+
+    // ------------------------------------------------------------------------------------------------ rows
+
+    private static HashId hashId(Binder row, String column) {
+        byte[] digest = row.getBinary(column);
+        return digest == null ? null : HashId.withDigest(digest);
+    }
+
+    private static ZonedDateTime time(Binder row, String column) {
+        return StateRecord.getTime(row.getLongOrThrow(column));
+    }
+
+    /**
+     * Write the new version of the row. Should be called under the write lock.
+     */
+    private void putRow(Table table, long rowId, Binder row) throws IOException {
+        byte[] packed = Boss.pack(row);
+        Ops ops = new Ops();
+        int position = ops.putRow(table.id, rowId, packed);
+        long base = writeFrame(ops);
+        // the same as it will be replayed
+        table.apply(rowId, Boss.unpack(packed), base + position, ROW_HEADER_SIZE + packed.length);
+    }
+
+    /**
+     * Should be called under the write lock.
+     */
+    private void dropRows(Table table, Collection<Long> rowIds) throws IOException {
+        // the collection could be the index set that changes as rows are dropped
+        List<Long> ids = new ArrayList<>();
+        for (long rowId : rowIds)
+            if (table.rows.containsKey(rowId))
+                ids.add(rowId);
+        for (int from = 0; from < ids.size(); from += MAX_OPS_PER_FRAME) {
+            List<Long> chunk = ids.subList(from, Math.min(ids.size(), from + MAX_OPS_PER_FRAME));
+            Ops ops = new Ops();
+            for (long rowId : chunk)
+                ops.putDropRow(table.id, rowId);
+            writeFrame(ops);
+            for (long rowId : chunk)
+                table.applyDrop(rowId);
+        }
+    }
+
+    /**
+     * Should be called under the write lock.
+     */
+    private void updateRow(Table table, long rowId, String column, Object value) throws IOException {
+        Binder row = table.read(rowId);
+        if (row != null) {
+            row.put(column, value);
+            putRow(table, rowId, row);
+        }
+    }
+
+    /**
+     * Drop rows of the table that match the condition. They are found under the read lock and are dropped by chunks,
+     * taking the write lock for every chunk only.
+     */
+    private void deleteWhere(Table table, Predicate<Binder> condition) {
+        List<Long> found = underReadLock(() -> {
+            List<Long> ids = new ArrayList<>();
+            table.rows.forEach((rowId, row) -> {
+                if (condition.test(row.columns))
+                    ids.add(rowId);
+            });
+            return ids;
+        });
+        for (int from = 0; from < found.size(); from += MAX_OPS_PER_FRAME) {
+            List<Long> chunk = found.subList(from, Math.min(found.size(), from + MAX_OPS_PER_FRAME));
+            underWriteLock(() -> {
+                // could be changed while the lock was released
+                List<Long> ids = new ArrayList<>();
+                for (long rowId : chunk) {
+                    Binder row = table.get(rowId);
+                    if (row != null && condition.test(row))
+                        ids.add(rowId);
+                }
+                dropRows(table, ids);
+                return null;
+            });
+        }
+    }
+
+    // ------------------------------------------------------------------------------------------------ payments and config
+
+    @Override
+    public void savePayment(int amount, ZonedDateTime date) {
+        long day = date.truncatedTo(ChronoUnit.DAYS).toEpochSecond();
+        underWriteLock(() -> {
+            Binder row = payments.get(day);
+            int total = amount + (row == null ? 0 : row.getIntOrThrow("amount"));
+            putRow(payments, day, new Binder("date", day, "amount", total));
+            return null;
+        });
+    }
+
+    @Override
+    public Map<Integer, Integer> getPayments(ZonedDateTime fromDate) {
+        long from = fromDate.truncatedTo(ChronoUnit.DAYS).toEpochSecond();
+        return underReadLock(() -> {
+            Map<Integer, Integer> result = new HashMap<>();
+            payments.rows.forEach((day, row) -> {
+                if (day >= from)
+                    result.put(day.intValue(), row.columns.getIntOrThrow("amount"));
+            });
+            return result;
+        });
+    }
+
+    private static Binder configRow(NodeInfo nodeInfo) {
+        return new Binder(
+                "http_client_port", nodeInfo.getClientAddress().getPort(),
+                "http_server_port", nodeInfo.getServerAddress().getPort(),
+                "udp_server_port", nodeInfo.getNodeAddress().getPort(),
+                "node_number", nodeInfo.getNumber(),
+                "node_name", nodeInfo.getName(),
+                "public_host", nodeInfo.getPublicHost(),
+                "host", nodeInfo.getClientAddress().getHostName(),
+                "public_key", nodeInfo.getPublicKey().pack());
+    }
+
+    @Override
+    public void saveConfig(NodeInfo myInfo, NetConfig netConfig, PrivateKey nodeKey) {
+        transaction(() -> {
+            dropRows(config, config.rows.keySet());
+            for (NodeInfo nodeInfo : netConfig.toList()) {
+                Binder row = configRow(nodeInfo);
+                if (nodeInfo.getNumber() == myInfo.getNumber())
+                    row.put("private_key", nodeKey.pack());
+                putRow(config, nodeInfo.getNumber(), row);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * @return my node info, the network configuration and my node key
+     * @throws Failure if there is no saved configuration
+     */
+    @Override
+    public Object[] loadConfig() {
+        Object[] result = new Object[3];
+        List<NodeInfo> nodeInfos = new ArrayList<>();
+        underReadLock(() -> {
+            for (long number : new TreeSet<>(config.rows.keySet())) {
+                Binder row = config.get(number);
+                NodeInfo nodeInfo = new NodeInfo(new PublicKey(row.getBinaryOrThrow("public_key")), (int) number,
+                        row.getStringOrThrow("node_name"), row.getStringOrThrow("host"),
+                        row.getString("public_host", null), row.getIntOrThrow("udp_server_port"),
+                        row.getIntOrThrow("http_client_port"), row.getIntOrThrow("http_server_port"));
+                nodeInfos.add(nodeInfo);
+                byte[] packedKey = row.getBinary("private_key");
+                if (packedKey != null) {
+                    result[0] = nodeInfo;
+                    result[2] = new PrivateKey(packedKey);
+                }
+            }
+            return null;
+        });
+        if (nodeInfos.isEmpty())
+            throw new Failure("config not found");
+        result[1] = new NetConfig(nodeInfos);
+        return result;
+    }
+
+    @Override
+    public void addNode(NodeInfo nodeInfo) {
+        underWriteLock(() -> {
+            putRow(config, nodeInfo.getNumber(), configRow(nodeInfo));
+            return null;
+        });
+    }
+
+    @Override
+    public void removeNode(NodeInfo nodeInfo) {
+        underWriteLock(() -> {
+            dropRows(config, Collections.singleton((long) nodeInfo.getNumber()));
+            return null;
+        });
+    }
+
+    // ------------------------------------------------------------------------------------------------ keeping items
+
+    @Override
+    public byte[] getKeepingItem(HashId itemId) {
+        return underReadLock(() -> {
+            Long rowId = keepingItemsByHash.first(itemId);
+            return rowId == null ? null : keepingItems.read(rowId).getBinary("packed");
+        });
+    }
+
+    /**
+     * @return null if there are no approved items of the origin, the packed transaction if there is one, or the list
+     * of up to limit digests of the last ones otherwise
+     */
+    @Override
+    public Object getKeepingByOrigin(HashId origin, int limit) {
+        return underReadLock(() -> {
+            List<Long> found = new ArrayList<>();
+            for (long rowId : keepingItemsByOrigin.get(origin).descendingSet()) {
+                if (found.size() >= limit)
+                    break;
+                Entry entry = findEntry(keepingItems.get(rowId).getBinaryOrThrow("hash"));
+                if (entry != null && entry.state == ItemState.APPROVED)
+                    found.add(rowId);
+            }
+            if (found.isEmpty())
+                return null;
+            if (found.size() == 1)
+                return keepingItems.read(found.get(0)).getBinary("packed");
+            List<byte[]> contractIds = new ArrayList<>();
+            for (long rowId : found)
+                contractIds.add(keepingItems.get(rowId).getBinaryOrThrow("hash"));
+            return contractIds;
+        });
+    }
+
+    @Override
+    public void putKeepingItem(StateRecord record, Approvable item) {
+        if (item instanceof Contract) {
+            Contract contract = (Contract) item;
+            Binder row = new Binder(
+                    "hash", contract.getId().getDigest(),
+                    "origin", contract.getOrigin().getDigest(),
+                    "packed", contract.getPackedTransaction());
+            underWriteLock(() -> {
+                putRow(keepingItems, nextRowId++, row);
+                return null;
+            });
+        }
+    }
+
+    // ------------------------------------------------------------------------------------------------ environments
+
+    private long saveEnvironmentToStorage(String ncontractType, HashId ncontractHashId, byte[] kvStorage,
+                                          byte[] transactionPack) {
+        return underWriteLock(() -> {
+            Long rowId = environmentsByContract.first(ncontractHashId);
+            long id = rowId != null ? rowId : nextRowId++;
+            putRow(environments, id, new Binder(
+                    "ncontract_type", ncontractType,
+                    "ncontract_hash_id", ncontractHashId.getDigest(),
+                    "kv_storage", kvStorage,
+                    "transaction_pack", transactionPack));
+            return id;
+        });
+    }
+
+    @Override
+    public NImmutableEnvironment getEnvironment(long environmentId) {
+        StoredEnvironment env = underReadLock(() -> {
+            if (environments.get(environmentId) == null)
+                return null;
+            StoredEnvironment stored = new StoredEnvironment(environmentId, environments.read(environmentId));
+            for (long rowId : subscriptionsByEnvironment.get(environmentId))
+                stored.subscriptions.put(rowId, subscriptions.get(rowId));
+            for (long rowId : storagesByEnvironment.get(environmentId)) {
+                Binder storage = storages.get(rowId);
+                Long binaryId = binariesByContract.first(hashId(storage, "hash_id"));
+                if (binaryId != null) {
+                    storage = new Binder(storage);
+                    storage.put("bin_data", binaries.read(binaryId).getBinary("bin_data"));
+                    stored.storages.put(rowId, storage);
+                }
+            }
+            for (long rowId : namesByEnvironment.get(environmentId))
+                stored.nameRecords.add(toNameRecord(rowId, names.get(rowId)));
+            stored.followerService = followerEnvironments.get(environmentId);
+            return stored;
+        });
+        if (env == null)
+            return null;
+
+        return protect(() -> {
+            // every environment gets its own contract instance, as the node sets its node info provider
+            Contract contract = NSmartContract.fromPackedTransaction(env.transactionPack);
+            Contract findNContract = contract.getTransactionPack().getSubItem(env.nContractHashId);
+            NSmartContract smartContract = (NSmartContract) (findNContract == null ? contract : findNContract);
+
+            List<ContractSubscription> subscriptions = new ArrayList<>();
+            env.subscriptions.forEach((id, row) -> {
+                NContractSubscription css = new NContractSubscription(hashId(row, "hash_id"),
+                        row.getBoolean("subscription_on_chain", false), time(row, "expires_at"));
+                css.setId(id);
+                subscriptions.add(css);
+            });
+            List<ContractStorage> storages = new ArrayList<>();
+            env.storages.forEach((id, row) -> {
+                NContractStorage cst = new NContractStorage(row.getBinaryOrThrow("bin_data"), time(row, "expires_at"));
+                cst.setId(id);
+                storages.add(cst);
+            });
+            NFollowerService followerService = null;
+            if (env.followerService != null) {
+                Binder row = env.followerService;
+                followerService = new NFollowerService(this, time(row, "expires_at"), time(row, "muted_at"),
+                        env.id, ((Number) row.get("spent_for_callbacks")).doubleValue(),
+                        row.getIntOrThrow("started_callbacks"));
+            }
+
+            NImmutableEnvironment environment = new NImmutableEnvironment(smartContract, Boss.unpack(env.kvStorage),
+                    subscriptions, storages, new ArrayList<>(env.nameRecords), followerService, this);
+            environment.setId(env.id);
+            return environment;
+        });
+    }
+
+    @Override
+    public NImmutableEnvironment getEnvironment(HashId contractId) {
+        Long environmentId = underReadLock(() -> environmentsByContract.first(contractId));
+        return environmentId == null ? null : getEnvironment(environmentId);
+    }
+
+    @Override
+    public NImmutableEnvironment getEnvironment(NSmartContract smartContract) {
+        NImmutableEnvironment nim = getEnvironment(smartContract.getId());
+
+        if (nim == null && smartContract.getParent() != null)
+            nim = getEnvironment(smartContract.getParent());
+
+        if (nim == null) {
+            long envId = saveEnvironmentToStorage(smartContract.getExtendedType(), smartContract.getId(),
+                    Boss.pack(new Binder()), smartContract.getPackedTransaction());
+            nim = getEnvironment(envId);
+        } else {
+            nim.setContract(smartContract);
+        }
+        return nim;
+    }
+
+    @Override
+    public void updateEnvironment(long id, String ncontractType, HashId ncontractHashId, byte[] kvStorage,
+                                  byte[] transactionPack) {
+        underWriteLock(() -> {
+            if (environments.get(id) != null)
+                putRow(environments, id, new Binder(
+                        "ncontract_type", ncontractType,
+                        "ncontract_hash_id", ncontractHashId.getDigest(),
+                        "kv_storage", kvStorage,
+                        "transaction_pack", transactionPack));
+            return null;
+        });
+    }
+
+    /**
+     * Save the environment with all its parts in one transaction, unless its names, origins or addresses are taken by
+     * other environments.
+     *
+     * @return ids of the contracts of the environments that have taken them
+     */
+    @Override
+    public Set<HashId> saveEnvironment(NImmutableEnvironment environment) {
+        return transaction(() -> {
+            NSmartContract nsc = environment.getContract();
+            Set<Long> nameIds = new HashSet<>();
+            for (NameRecord nameRecord : environment.nameRecords()) {
+                nameIds.addAll(namesByReducedName.get(nameRecord.getNameReduced()));
+                for (NameRecordEntry entry : nameRecord.getEntries()) {
+                    nameIds.addAll(namesByOrigin.get(entry.getOrigin()));
+                    nameIds.addAll(namesByAddress.get(entry.getShortAddress()));
+                    nameIds.addAll(namesByAddress.get(entry.getLongAddress()));
+                }
+            }
+            Set<HashId> conflicts = new HashSet<>();
+            for (long nameId : nameIds) {
+                Binder env = environments.get(names.get(nameId).getLongOrThrow("environment_id"));
+                HashId owner = env == null ? null : hashId(env, "ncontract_hash_id");
+                if (owner != null && !owner.equals(nsc.getId()))
+                    conflicts.add(owner);
+            }
+            if (!conflicts.isEmpty())
+                return conflicts;
+
+            removeEnvironment(nsc.getId());
+            long envId = saveEnvironmentToStorage(nsc.getExtendedType(), nsc.getId(),
+                    Boss.pack(environment.getMutable().getKVStore()), nsc.getPackedTransaction());
+
+            for (NameRecord nr : environment.nameRecords()) {
+                NNameRecord nnr = (NNameRecord) nr;
+                nnr.setEnvironmentId(envId);
+                addNameRecord(nnr);
+            }
+
+            for (ContractSubscription css : environment.subscriptions())
+                saveSubscriptionInStorage(css.getHashId(), css.isChainSubscription(), css.expiresAt(), envId);
+
+            for (ContractStorage cst : environment.storages())
+                saveContractInStorage(cst.getContract().getId(), cst.getPackedContract(), cst.expiresAt(),
+                        cst.getContract().getOrigin(), envId);
+
+            FollowerService fs = environment.getFollowerService();
+            if (fs != null)
+                saveFollowerEnvironment(envId, fs.expiresAt(), fs.mutedAt(), fs.getCallbacksSpent(),
+                        fs.getStartedCallbacks());
+            return conflicts;
+        });
+    }
+
+    /**
+     * Remove the environment with its subscriptions, storages, names and follower service, and the contract binaries
+     * no more stored by any environment.
+     *
+     * @return id of the removed environment or 0 if there was none
+     */
+    @Override
+    public long removeEnvironment(HashId ncontractHashId) {
+        return transaction(() -> {
+            Long envId = environmentsByContract.first(ncontractHashId);
+            if (envId == null)
+                return 0L;
+            dropRows(subscriptions, subscriptionsByEnvironment.get(envId));
+            Set<HashId> stored = new HashSet<>();
+            for (long rowId : storagesByEnvironment.get(envId))
+                stored.add(hashId(storages.get(rowId), "hash_id"));
+            dropRows(storages, storagesByEnvironment.get(envId));
+            for (HashId contractId : stored)
+                if (storagesByContract.get(contractId).isEmpty())
+                    dropRows(binaries, binariesByContract.get(contractId));
+            dropRows(names, namesByEnvironment.get(envId));
+            dropRows(followerEnvironments, Collections.singleton(envId));
+            dropRows(environments, Collections.singleton(envId));
+            return envId;
+        });
+    }
+
+    @Override
+    public byte[] getSmartContractById(HashId smartContractId) {
+        return underReadLock(() -> {
+            Long rowId = environmentsByContract.first(smartContractId);
+            return rowId == null ? null : environments.read(rowId).getBinary("transaction_pack");
+        });
+    }
+
+    @Override
+    public Set<HashId> findBadReferencesOf(Set<HashId> ids) {
+        return underReadLock(() -> {
+            Set<HashId> result = new HashSet<>();
+            for (HashId id : ids) {
+                Entry entry = findEntry(id.getDigest());
+                if (entry == null || entry.state != ItemState.APPROVED)
+                    result.add(id);
+            }
+            return result;
+        });
+    }
+
+    @Override
+    public long saveSubscriptionInStorage(HashId hashId, boolean subscriptionOnChain, ZonedDateTime expiresAt,
+                                          long environmentId) {
+        return underWriteLock(() -> {
+            long id = nextRowId++;
+            putRow(subscriptions, id, new Binder(
+                    "hash_id", hashId.getDigest(),
+                    "subscription_on_chain", subscriptionOnChain,
+                    "expires_at", StateRecord.unixTime(expiresAt),
+                    "environment_id", environmentId));
+            return id;
+        });
+    }
+
+    @Override
+    public void updateSubscriptionInStorage(long subscriptionId, ZonedDateTime expiresAt) {
+        underWriteLock(() -> {
+            updateRow(subscriptions, subscriptionId, "expires_at", StateRecord.unixTime(expiresAt));
+            return null;
+        });
+    }
+
+    @Override
+    public void removeEnvironmentSubscription(long subscriptionId) {
+        underWriteLock(() -> {
+            dropRows(subscriptions, Collections.singleton(subscriptionId));
+            return null;
+        });
+    }
+
+    @Override
+    public Set<Long> getSubscriptionEnviromentIds(HashId id) {
+        return underReadLock(() -> {
+            Set<Long> environmentIds = new HashSet<>();
+            for (long rowId : subscriptionsByContract.get(id))
+                environmentIds.add(subscriptions.get(rowId).getLongOrThrow("environment_id"));
+            return environmentIds;
+        });
+    }
+
+    @Override
+    public long saveContractInStorage(HashId contractId, byte[] binData, ZonedDateTime expiresAt, HashId origin,
+                                      long environmentId) {
+        return transaction(() -> {
+            Long binaryId = binariesByContract.first(contractId);
+            putRow(binaries, binaryId != null ? binaryId : nextRowId++,
+                    new Binder("hash_id", contractId.getDigest(), "bin_data", binData));
+            long id = nextRowId++;
+            putRow(storages, id, new Binder(
+                    "hash_id", contractId.getDigest(),
+                    "origin", origin.getDigest(),
+                    "expires_at", StateRecord.unixTime(expiresAt),
+                    "environment_id", environmentId));
+            return id;
+        });
+    }
+
+    @Override
+    public void updateStorageExpiresAt(long storageId, ZonedDateTime expiresAt) {
+        underWriteLock(() -> {
+            updateRow(storages, storageId, "expires_at", StateRecord.unixTime(expiresAt));
+            return null;
+        });
+    }
+
+    @Override
+    public void removeEnvironmentStorage(long storageId) {
+        underWriteLock(() -> {
+            dropRows(storages, Collections.singleton(storageId));
+            return null;
+        });
+    }
+
+    @Override
+    public byte[] getContractInStorage(HashId contractId) {
+        return underReadLock(() -> {
+            Long rowId = binariesByContract.first(contractId);
+            return rowId == null ? null : binaries.read(rowId).getBinary("bin_data");
+        });
+    }
+
+    @Override
+    public byte[] getContractInStorage(HashId slotId, HashId contractId) {
+        return underReadLock(() -> {
+            List<byte[]> found = storedContracts(slotId, storage -> contractId.equals(hashId(storage, "hash_id")));
+            return found.isEmpty() ? null : found.get(0);
+        });
+    }
+
+    @Override
+    public List<byte[]> getContractsInStorageByOrigin(HashId slotId, HashId originId) {
+        return underReadLock(() -> storedContracts(slotId, storage -> originId.equals(hashId(storage, "origin"))));
+    }
+
+    /**
+     * Should be called under the lock.
+     *
+     * @return binaries of the contracts stored by the environment of the slot that match the condition
+     */
+    private List<byte[]> storedContracts(HashId slotId, Predicate<Binder> condition) throws IOException {
+        List<byte[]> result = new ArrayList<>();
+        Long envId = environmentsByContract.first(slotId);
+        if (envId == null)
+            return result;
+        for (long rowId : storagesByEnvironment.get(envId)) {
+            Binder storage = storages.get(rowId);
+            if (condition.test(storage)) {
+                Long binaryId = binariesByContract.first(hashId(storage, "hash_id"));
+                if (binaryId != null)
+                    result.add(binaries.read(binaryId).getBinary("bin_data"));
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void saveFollowerEnvironment(long environmentId, ZonedDateTime expiresAt, ZonedDateTime mutedAt,
+                                        double spent, int startedCallbacks) {
+        underWriteLock(() -> {
+            putRow(followerEnvironments, environmentId, new Binder(
+                    "environment_id", environmentId,
+                    "expires_at", StateRecord.unixTime(expiresAt),
+                    "muted_at", StateRecord.unixTime(mutedAt),
+                    "spent_for_callbacks", spent,
+                    "started_callbacks", startedCallbacks));
+            return null;
+        });
+    }
+
+    @Override
+    public void clearExpiredSubscriptions() {
+        long now = StateRecord.unixTime(ZonedDateTime.now());
+        deleteWhere(subscriptions, row -> row.getLongOrThrow("expires_at") < now);
+    }
+
+    @Override
+    public void clearExpiredStorages() {
+        long now = StateRecord.unixTime(ZonedDateTime.now());
+        deleteWhere(storages, row -> row.getLongOrThrow("expires_at") < now);
+    }
+
+    @Override
+    public void clearExpiredStorageContractBinaries() {
+        deleteWhere(binaries, row -> storagesByContract.get(hashId(row, "hash_id")).isEmpty());
+    }
+
+    @Override
+    public void removeExpiredStoragesAndSubscriptionsCascade() {
+        clearExpiredSubscriptions();
+        clearExpiredStorages();
+        clearExpiredStorageContractBinaries();
+    }
+
+    // ------------------------------------------------------------------------------------------------ follower callbacks
+
+    @Override
+    public CallbackService.FollowerCallbackState getFollowerCallbackStateById(HashId id) {
+        return underReadLock(() -> {
+            Long rowId = callbacksById.first(id);
+            if (rowId == null)
+                return CallbackService.FollowerCallbackState.UNDEFINED;
+            return CallbackService.FollowerCallbackState.values()[callbacks.get(rowId).getIntOrThrow("state")];
+        });
+    }
+
+    @Override
+    public Collection<CallbackRecord> getFollowerCallbacksToResyncByEnvId(long environmentId) {
+        return getFollowerCallbacksToResync(envId -> envId == environmentId);
+    }
+
+    @Override
+    public Collection<CallbackRecord> getFollowerCallbacksToResync() {
+        return getFollowerCallbacksToResync(envId -> true);
+    }
+
+    private Collection<CallbackRecord> getFollowerCallbacksToResync(LongPredicate ofEnvironment) {
+        long now = ZonedDateTime.now().toEpochSecond();
+        return underReadLock(() -> {
+            List<CallbackRecord> result = new ArrayList<>();
+            for (Row row : callbacks.rows.values()) {
+                long environmentId = row.columns.getLongOrThrow("environment_id");
+                CallbackService.FollowerCallbackState state =
+                        CallbackService.FollowerCallbackState.values()[row.columns.getIntOrThrow("state")];
+                if (ofEnvironment.test(environmentId) && row.columns.getLongOrThrow("expires_at") < now &&
+                        (state == CallbackService.FollowerCallbackState.STARTED ||
+                                state == CallbackService.FollowerCallbackState.EXPIRED))
+                    result.add(new CallbackRecord(hashId(row.columns, "id"), environmentId, state));
+            }
+            return result;
+        });
+    }
+
+    @Override
+    public void addFollowerCallback(HashId id, long environmentId, ZonedDateTime expiresAt, ZonedDateTime storedUntil) {
+        underWriteLock(() -> {
+            if (callbacksById.first(id) != null)
+                throw new Failure("follower callback save failed: duplicate id " + id);
+            putRow(callbacks, nextRowId++, new Binder(
+                    "id", id.getDigest(),
+                    "state", CallbackService.FollowerCallbackState.STARTED.ordinal(),
+                    "environment_id", environmentId,
+                    "expires_at", StateRecord.unixTime(expiresAt),
+                    "stored_until", StateRecord.unixTime(storedUntil)));
+            return null;
+        });
+    }
+
+    @Override
+    public void updateFollowerCallbackState(HashId id, CallbackService.FollowerCallbackState state) {
+        underWriteLock(() -> {
+            Long rowId = callbacksById.first(id);
+            if (rowId != null)
+                updateRow(callbacks, rowId, "state", state.ordinal());
+            return null;
+        });
+    }
+
+    @Override
+    public void removeFollowerCallback(HashId id) {
+        underWriteLock(() -> {
+            dropRows(callbacks, callbacksById.get(id));
+            return null;
+        });
+    }
+
+    // ------------------------------------------------------------------------------------------------ names
+
+    private static NNameRecord toNameRecord(long id, Binder row) {
+        UnsName unsName = new UnsName();
+        unsName.setUnsReducedName(row.getString("name_reduced", null));
+        unsName.setUnsName(row.getString("name_full", null));
+        unsName.setUnsDescription(row.getString("description", null));
+        unsName.setUnsURL(row.getString("url", null));
+        Set<NNameRecordEntry> entries = new HashSet<>();
+        for (Binder e : row.getBinders("entries")) {
+            NNameRecordEntry entry = new NNameRecordEntry(hashId(e, "origin"), e.getString("short_addr", null),
+                    e.getString("long_addr", null));
+            entry.setId(e.getLongOrThrow("entry_id"));
+            entry.setNameRecordId(id);
+            entries.add(entry);
+        }
+        return new NNameRecord(unsName, time(row, "expires_at"), entries, id, row.getLongOrThrow("environment_id"));
+    }
+
+    /**
+     * Save the name record, replacing the one with the same reduced name, and set ids of it and its entries.
+     */
+    @Override
+    public void addNameRecord(NNameRecord nameRecord) {
+        underWriteLock(() -> {
+            Long rowId = namesByReducedName.first(nameRecord.getNameReduced());
+            long id = rowId != null ? rowId : nextRowId++;
+            List<Binder> entries = new ArrayList<>();
+            for (NameRecordEntry nameRecordEntry : nameRecord.getEntries()) {
+                NNameRecordEntry entry = (NNameRecordEntry) nameRecordEntry;
+                entry.setId(nextRowId++);
+                entry.setNameRecordId(id);
+                entries.add(new Binder(
+                        "entry_id", entry.getId(),
+                        "short_addr", entry.getShortAddress(),
+                        "long_addr", entry.getLongAddress(),
+                        "origin", entry.getOrigin() == null ? null : entry.getOrigin().getDigest()));
+            }
+            putRow(names, id, new Binder(
+                    "name_reduced", nameRecord.getNameReduced(),
+                    "name_full", nameRecord.getName(),
+                    "description", nameRecord.getDescription(),
+                    "url", nameRecord.getUrl(),
+                    "expires_at", StateRecord.unixTime(nameRecord.expiresAt()),
+                    "environment_id", nameRecord.getEnvironmentId(),
+                    "entries", entries));
+            nameRecord.setId(id);
+            return null;
+        });
+    }
+
+    @Override
+    public void removeNameRecord(final String nameReduced) {
+        underWriteLock(() -> {
+            dropRows(names, namesByReducedName.get(nameReduced));
+            return null;
+        });
+    }
+
+    @Override
+    public void updateNameRecord(long nameRecordId, ZonedDateTime expiresAt) {
+        underWriteLock(() -> {
+            updateRow(names, nameRecordId, "expires_at", StateRecord.unixTime(expiresAt));
+            return null;
+        });
+    }
+
+    private NNameRecord getNameBy(Callable<Long> findRowId) {
+        return underReadLock(() -> {
+            Long rowId = findRowId.call();
+            return rowId == null ? null : toNameRecord(rowId, names.get(rowId));
+        });
+    }
+
+    @Override
+    public NNameRecord getNameRecord(final String nameReduced) {
+        return getNameBy(() -> namesByReducedName.first(nameReduced));
+    }
+
+    @Override
+    public NNameRecord getNameByAddress(String address) {
+        return getNameBy(() -> namesByAddress.first(address));
+    }
+
+    @Override
+    public NNameRecord getNameByOrigin(byte[] origin) {
+        return getNameBy(() -> namesByOrigin.first(HashId.withDigest(origin)));
+    }
+
+    /**
+     * @return the names that are taken
+     */
+    @Override
+    public List<String> isAllNameRecordsAvailable(final Collection<String> reducedNames) {
+        return underReadLock(() -> {
+            List<String> result = new ArrayList<>();
+            for (String name : reducedNames)
+                if (namesByReducedName.first(name) != null)
+                    result.add(name);
+            return result;
+        });
+    }
+
+    /**
+     * @return base64 strings of the origins that are taken
+     */
+    @Override
+    public List<String> isAllOriginsAvailable(final Collection<HashId> origins) {
+        return underReadLock(() -> {
+            List<String> result = new ArrayList<>();
+            for (HashId origin : origins)
+                if (namesByOrigin.first(origin) != null)
+                    result.add(origin.toBase64String());
+            return result;
+        });
+    }
+
+    /**
+     * @return both addresses of every name entry that has any of the addresses
+     */
+    @Override
+    public List<String> isAllAddressesAvailable(final Collection<String> addresses) {
+        return underReadLock(() -> {
+            List<String> result = new ArrayList<>();
+            Set<Long> entryIds = new HashSet<>();
+            for (String address : addresses)
+                for (long rowId : namesByAddress.get(address))
+                    for (Binder entry : names.get(rowId).getBinders("entries")) {
+                        String shortAddress = entry.getString("short_addr", null);
+                        String longAddress = entry.getString("long_addr", null);
+                        if ((address.equals(shortAddress) || address.equals(longAddress)) &&
+                                entryIds.add(entry.getLongOrThrow("entry_id"))) {
+                            result.add(shortAddress);
+                            result.add(longAddress);
+                        }
+                    }
+            return result;
+        });
+    }
+
+    @Override
+    public void clearExpiredNameRecords(Duration holdDuration) {
+        long before = StateRecord.unixTime(ZonedDateTime.now().minus(holdDuration));
+        deleteWhere(names, row -> row.getLongOrThrow("expires_at") < before);
+    }
+}
@@ -20,10 +20,7 @@ import com.icodici.universa.node2.NodeInfo;
 import java.time.Duration;
 import java.time.Instant;
 import java.time.ZonedDateTime;
-import java.util.Collection;
-import java.util.List;
-import java.util.Map;
-import java.util.Set;
+import java.util.*;
 import java.util.concurrent.Callable;
 
 /**
@@ -43,6 +40,22 @@ public interface Ledger {
      */
     StateRecord getRecord(HashId id);
 
+    /**
+     * Get records of many items at once. Implementations should read them with as few queries as possible.
+     *
+     * @param ids to retrieve
+     * @return found records by item ids, not found items are absent
+     */
+    default Map<HashId, StateRecord> getRecords(Collection<HashId> ids) {
+        Map<HashId, StateRecord> result = new HashMap<>();
+        for (HashId id : ids) {
+            StateRecord r = getRecord(id);
+            if (r != null)
+                result.put(id, r);
+        }
+        return result;
+    }
+
     /**
      * Create a record in {@link ItemState#LOCKED_FOR_CREATION} state locked by creatorRecordId. Does not check
      * anything, the business logic of it is in the {@link StateRecord}. Still, if a database logic prevents creation of
@@ -159,6 +172,20 @@ public interface Ledger {
 
     boolean isTestnet(HashId itemId);
 
+    /**
+     * Check many items with {@link #isTestnet(HashId)} at once.
+     *
+     * @param ids are items to check
+     * @return ids of the test items
+     */
+    default Set<HashId> getTestnetIds(Collection<HashId> ids) {
+        Set<HashId> result = new HashSet<>();
+        for (HashId id : ids)
+            if (isTestnet(id))
+                result.add(id);
+        return result;
+    }
+
     void updateSubscriptionInStorage(long id, ZonedDateTime expiresAt);
     void updateStorageExpiresAt(long storageId, ZonedDateTime expiresAt);
     void saveFollowerEnvironment(long environmentId, ZonedDateTime expiresAt, ZonedDateTime mutedAt, double spent, int startedCallbacks);
@@ -208,6 +235,22 @@ public interface Ledger {
     NImmutableEnvironment getEnvironment(HashId contractId);
     NImmutableEnvironment getEnvironment(NSmartContract smartContract);
 
+    /**
+     * Get many environments at once. Implementations should read them with as few queries as possible.
+     *
+     * @param environmentIds are ids of the environments
+     * @return found environments by ids, not found ones are absent
+     */
+    default Map<Long, NImmutableEnvironment> getEnvironments(Collection<Long> environmentIds) {
+        Map<Long, NImmutableEnvironment> result = new HashMap<>();
+        for (Long id : environmentIds) {
+            NImmutableEnvironment environment = getEnvironment(id);
+            if (environment != null)
+                result.put(id, environment);
+        }
+        return result;
+    }
+
     void updateEnvironment(long id, String ncontractType, HashId ncontractHashId, byte[] kvStorage, byte[] transactionPack);
 
     long saveContractInStorage(HashId contractId, byte[] binData, ZonedDateTime expiresAt, HashId origin, long environmentId);
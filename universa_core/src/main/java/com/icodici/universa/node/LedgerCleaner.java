@@ -0,0 +1,222 @@
+/*
+ * Copyright (c) 2018, iCodici S.n.C, All Rights Reserved
+ *
+ */
+
+package com.icodici.universa.node;
+
+import com.icodici.db.DbPool;
+import com.icodici.db.PooledDb;
+import net.sergeych.tools.Binder;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+/**
+ * Deletes expired rows of the postgres ledger in bounded batches.
+ * <p>
+ * Each batch is a separate short transaction deleting at most {@link #getBatchSize()} rows, found by their ctid, so
+ * a big expiry wave does not hold long locks or produce one huge WAL record, and the node keeps processing items
+ * while the cleanup goes. Throttled tasks keep the deletion rate under {@link #getMaxRowsPerSecond()} and wait
+ * while the busy check (e.g. too many elections in progress) returns true.
+ * <p>
+ * The progress is reported to the reporter, if any, at most every {@link #REPORT_INTERVAL_MILLIS} and when the task
+ * that has deleted something is done; the totals are available from {@link #getStats()}.
+ */
+public class LedgerCleaner {
+
+    public static final int DEFAULT_BATCH_SIZE = 1000;
+    public static final int DEFAULT_MAX_ROWS_PER_SECOND = 10000;
+
+    static final long BUSY_PAUSE_MILLIS = 1000;
+    static final long REPORT_INTERVAL_MILLIS = 10000;
+
+    private final DbPool dbPool;
+
+    private volatile int batchSize = DEFAULT_BATCH_SIZE;
+    private volatile int maxRowsPerSecond = DEFAULT_MAX_ROWS_PER_SECOND;
+    private volatile BooleanSupplier busyCheck = () -> false;
+    private volatile Consumer<String> reporter = null;
+
+    private volatile String currentTask = null;
+    private volatile long currentTaskDeleted = 0;
+    private volatile boolean paused = false;
+    private volatile double lastRowsPerSecond = 0;
+    private long totalDeleted = 0;
+    private long totalBatches = 0;
+
+    public LedgerCleaner(DbPool dbPool) {
+        this.dbPool = dbPool;
+    }
+
+    /**
+     * Delete all rows of the table selected by the condition, batch by batch, with throttling.
+     *
+     * @param task is name of the task for the progress reports
+     * @param table is table to delete from
+     * @param condition is SQL condition on the table rows, could use {@code t} as the table alias
+     * @param params are values of the condition parameters
+     * @return number of deleted rows
+     * @throws SQLException if the batch failed
+     * @throws InterruptedException if the thread is interrupted while paused
+     */
+    public long delete(String task, String table, String condition, Object... params)
+            throws SQLException, InterruptedException {
+        return delete(task, true, table, condition, params);
+    }
+
+    /**
+     * Same as {@link #delete(String, String, String, Object...)} but neither throttled nor paused, for callers that
+     * wait for the result.
+     */
+    public long deleteNow(String task, String table, String condition, Object... params) throws SQLException {
+        try {
+            return delete(task, false, table, condition, params);
+        } catch (InterruptedException e) {
+            // not throttled task does not wait
+            Thread.currentThread().interrupt();
+            return 0;
+        }
+    }
+
+    private long delete(String task, boolean throttled, String table, String condition, Object... params)
+            throws SQLException, InterruptedException {
+        String sql = "delete from " + table + " where ctid = any(array(select t.ctid from " + table + " t where " +
+                condition + " limit ?));";
+        Object[] batchParams = new Object[params.length + 1];
+        System.arraycopy(params, 0, batchParams, 0, params.length);
+
+        if (throttled) {
+            currentTask = task;
+            currentTaskDeleted = 0;
+        }
+        long deleted = 0;
+        long started = System.nanoTime();
+        long lastReport = System.currentTimeMillis();
+        try {
+            while (true) {
+                if (throttled)
+                    waitWhileBusy();
+                int limit = batchSize;
+                batchParams[params.length] = limit;
+                long batchStarted = System.nanoTime();
+                int count;
+                try (PooledDb db = dbPool.db(); PreparedStatement statement = db.statement(sql, batchParams)) {
+                    count = statement.executeUpdate();
+                }
+                deleted += count;
+                synchronized (this) {
+                    totalDeleted += count;
+                    totalBatches++;
+                }
+                if (count < limit)
+                    break;
+                if (throttled) {
+                    currentTaskDeleted = deleted;
+                    throttle(count, System.nanoTime() - batchStarted);
+                    if (System.currentTimeMillis() - lastReport >= REPORT_INTERVAL_MILLIS) {
+                        lastReport = System.currentTimeMillis();
+                        report(task + ": " + deleted + " rows deleted, " +
+                                Math.round(rowsPerSecond(deleted, started)) + " rows/s");
+                    }
+                }
+            }
+        } finally {
+            if (throttled) {
+                currentTask = null;
+                currentTaskDeleted = 0;
+            }
+        }
+        if (deleted > 0) {
+            double rate = rowsPerSecond(deleted, started);
+            if (throttled)
+                lastRowsPerSecond = rate;
+            report(task + " done: " + deleted + " rows deleted, " + Math.round(rate) + " rows/s");
+        }
+        return deleted;
+    }
+
+    private void waitWhileBusy() throws InterruptedException {
+        while (busyCheck.getAsBoolean()) {
+            paused = true;
+            Thread.sleep(BUSY_PAUSE_MILLIS);
+        }
+        paused = false;
+    }
+
+    /**
+     * Sleep so that the batch of count rows took at least the time the rate limit gives for it.
+     */
+    private void throttle(int count, long elapsedNanos) throws InterruptedException {
+        int rate = maxRowsPerSecond;
+        if (rate <= 0)
+            return;
+        long sleepNanos = count * 1_000_000_000L / rate - elapsedNanos;
+        if (sleepNanos > 0)
+            Thread.sleep(sleepNanos / 1_000_000, (int) (sleepNanos % 1_000_000));
+    }
+
+    private static double rowsPerSecond(long rows, long startedNanos) {
+        long elapsed = System.nanoTime() - startedNanos;
+        return elapsed > 0 ? rows * 1e9 / elapsed : 0;
+    }
+
+    private void report(String message) {
+        Consumer<String> r = reporter;
+        if (r != null)
+            r.accept("ledger cleanup: " + message);
+    }
+
+    /**
+     * @return current task and its progress, totals and the rate of the last throttled task
+     */
+    public Binder getStats() {
+        Binder result = new Binder();
+        synchronized (this) {
+            result.put("deleted", totalDeleted);
+            result.put("batches", totalBatches);
+        }
+        String task = currentTask;
+        if (task != null) {
+            result.put("task", task);
+            result.put("taskDeleted", currentTaskDeleted);
+        }
+        result.put("paused", paused);
+        result.put("rowsPerSecond", lastRowsPerSecond);
+        return result;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public void setBatchSize(int batchSize) {
+        if (batchSize < 1)
+            throw new IllegalArgumentException("batch size should be positive");
+        this.batchSize = batchSize;
+    }
+
+    public int getMaxRowsPerSecond() {
+        return maxRowsPerSecond;
+    }
+
+    /**
+     * @param maxRowsPerSecond is rate limit of the throttled deletion, 0 to disable it
+     */
+    public void setMaxRowsPerSecond(int maxRowsPerSecond) {
+        this.maxRowsPerSecond = maxRowsPerSecond;
+    }
+
+    /**
+     * @param busyCheck returns true while the throttled deletion should wait
+     */
+    public void setBusyCheck(BooleanSupplier busyCheck) {
+        this.busyCheck = busyCheck != null ? busyCheck : () -> false;
+    }
+
+    public void setReporter(Consumer<String> reporter) {
+        this.reporter = reporter;
+    }
+}
@@ -0,0 +1,270 @@
+/*
+ * Copyright (c) 2018, iCodici S.n.C, All Rights Reserved
+ *
+ */
+
+package com.icodici.universa.node;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Open addressing hash table of long keys to long values, with linear probing, kept in the memory mapped file so
+ * that large indexes of {@link EmbeddedLedger} do not load the java heap and could be paged out by the OS.
+ * <p>
+ * The file is a scratch space: it is created empty, deleted on {@link #close()} and is not expected to survive a
+ * restart. The table grows twice when it is 3/4 full, up to {@link #MAX_CAPACITY} slots.
+ * <p>
+ * Keys {@code 0} and {@code -1} mark free and deleted slots, so they are stored as {@code 1}: the index of hash
+ * fingerprints must check the values it finds anyway, and record ids are never 0 or -1.
+ * <p>
+ * Not thread safe: readers could work concurrently, but writers must be serialized with everybody else.
+ */
+class MappedHashIndex implements AutoCloseable {
+
+    /**
+     * What {@link #get(long)} and the like return when the key is not found.
+     */
+    static final long NONE = -1;
+
+    static final int MAX_CAPACITY = 1 << 26;
+    private static final int MIN_CAPACITY = 1 << 10;
+    private static final int SLOT_SIZE = 16;
+    private static final long FREE = 0;
+    private static final long DELETED = -1;
+
+    /**
+     * Key and value of one slot, for {@link #forEach(Visitor)}.
+     */
+    interface Visitor {
+        void visit(long key, long value) throws IOException;
+    }
+
+    private final File directory;
+    private final String name;
+    private File file;
+    private MappedByteBuffer buffer;
+    private int capacity;
+    private int size;
+    private int deleted;
+    private int generation;
+
+    /**
+     * Create the empty index in the new file.
+     *
+     * @param directory to create the file in
+     * @param name is the file name prefix
+     */
+    MappedHashIndex(File directory, String name) throws IOException {
+        this.directory = directory;
+        this.name = name;
+        map(MIN_CAPACITY);
+    }
+
+    private void map(int newCapacity) throws IOException {
+        File newFile = new File(directory, name + "." + generation++ + ".idx");
+        try (RandomAccessFile raf = new RandomAccessFile(newFile, "rw")) {
+            // the new file is zero filled, that is, all slots are free
+            raf.setLength(0);
+            raf.setLength((long) newCapacity * SLOT_SIZE);
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, (long) newCapacity * SLOT_SIZE);
+        }
+        file = newFile;
+        capacity = newCapacity;
+        size = 0;
+        deleted = 0;
+    }
+
+    private static long normalize(long key) {
+        return key == FREE || key == DELETED ? 1 : key;
+    }
+
+    private int slotOf(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & (capacity - 1);
+    }
+
+    private long keyAt(int slot) {
+        return buffer.getLong(slot * SLOT_SIZE);
+    }
+
+    private long valueAt(int slot) {
+        return buffer.getLong(slot * SLOT_SIZE + 8);
+    }
+
+    private void set(int slot, long key, long value) {
+        buffer.putLong(slot * SLOT_SIZE, key);
+        buffer.putLong(slot * SLOT_SIZE + 8, value);
+    }
+
+    private int next(int slot) {
+        return (slot + 1) & (capacity - 1);
+    }
+
+    private int find(long key) {
+        for (int slot = slotOf(key); ; slot = next(slot)) {
+            long k = keyAt(slot);
+            if (k == FREE)
+                return -1;
+            if (k == key)
+                return slot;
+        }
+    }
+
+    /**
+     * @return value of the first slot with the key or {@link #NONE}
+     */
+    long get(long key) {
+        int slot = find(normalize(key));
+        return slot < 0 ? NONE : valueAt(slot);
+    }
+
+    /**
+     * @return values of all slots with the key, usually none or one
+     */
+    long[] getAll(long key) {
+        key = normalize(key);
+        long[] result = new long[0];
+        for (int slot = slotOf(key); ; slot = next(slot)) {
+            long k = keyAt(slot);
+            if (k == FREE)
+                return result;
+            if (k == key) {
+                result = Arrays.copyOf(result, result.length + 1);
+                result[result.length - 1] = valueAt(slot);
+            }
+        }
+    }
+
+    /**
+     * Set the value of the key, replacing the value of the first slot with this key if any.
+     *
+     * @return previous value or {@link #NONE}
+     */
+    long put(long key, long value) throws IOException {
+        key = normalize(key);
+        int slot = find(key);
+        if (slot >= 0) {
+            long previous = valueAt(slot);
+            set(slot, key, value);
+            return previous;
+        }
+        add(key, value);
+        return NONE;
+    }
+
+    /**
+     * Add the slot even if there are other slots with the same key.
+     */
+    void add(long key, long value) throws IOException {
+        key = normalize(key);
+        if (size + deleted + 1 > capacity / 4 * 3)
+            rehash();
+        for (int slot = slotOf(key); ; slot = next(slot)) {
+            long k = keyAt(slot);
+            if (k == FREE || k == DELETED) {
+                if (k == DELETED)
+                    deleted--;
+                set(slot, key, value);
+                size++;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Remove the first slot with the key.
+     *
+     * @return its value or {@link #NONE}
+     */
+    long remove(long key) {
+        int slot = find(normalize(key));
+        if (slot < 0)
+            return NONE;
+        long value = valueAt(slot);
+        delete(slot);
+        return value;
+    }
+
+    /**
+     * Remove the slot with the key and exactly this value.
+     *
+     * @return true if it was found
+     */
+    boolean remove(long key, long value) {
+        key = normalize(key);
+        for (int slot = slotOf(key); ; slot = next(slot)) {
+            long k = keyAt(slot);
+            if (k == FREE)
+                return false;
+            if (k == key && valueAt(slot) == value) {
+                delete(slot);
+                return true;
+            }
+        }
+    }
+
+    private void delete(int slot) {
+        if (keyAt(next(slot)) == FREE) {
+            // the end of the probe chain, no need to keep the tombstone
+            set(slot, FREE, 0);
+        } else {
+            set(slot, DELETED, 0);
+            deleted++;
+        }
+        size--;
+    }
+
+    private void rehash() throws IOException {
+        int newCapacity = capacity;
+        // grow if the live slots take more than 3/8, otherwise it is enough to drop the tombstones
+        if (size + 1 > capacity / 8 * 3) {
+            if (capacity >= MAX_CAPACITY)
+                throw new IOException("index " + name + " is full: " + size + " keys");
+            newCapacity = capacity * 2;
+        }
+        MappedByteBuffer old = buffer;
+        int oldCapacity = capacity;
+        File oldFile = file;
+        map(newCapacity);
+        for (int slot = 0; slot < oldCapacity; slot++) {
+            long k = old.getLong(slot * SLOT_SIZE);
+            if (k != FREE && k != DELETED)
+                add(k, old.getLong(slot * SLOT_SIZE + 8));
+        }
+        oldFile.delete();
+    }
+
+    /**
+     * Visit all slots in no particular order. The index must not be changed meanwhile.
+     */
+    void forEach(Visitor visitor) throws IOException {
+        for (int slot = 0; slot < capacity; slot++) {
+            long k = keyAt(slot);
+            if (k != FREE && k != DELETED)
+                visitor.visit(k, valueAt(slot));
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    int capacity() {
+        return capacity;
+    }
+
+    /**
+     * Delete the file. The index could not be used anymore.
+     */
+    @Override
+    public void close() {
+        // the mapping itself is released when collected
+        buffer = null;
+        file.delete();
+    }
+}
@@ -12,6 +12,7 @@ import com.icodici.crypto.PrivateKey;
 import com.icodici.db.Db;
 import com.icodici.db.DbPool;
 import com.icodici.db.PooledDb;
+import com.icodici.db.SqlStats;
 import com.icodici.universa.Approvable;
 import com.icodici.universa.HashId;
 import com.icodici.universa.contract.Contract;
@@ -19,8 +20,8 @@ import com.icodici.universa.contract.services.*;
 import com.icodici.universa.node2.*;
 import net.sergeych.boss.Boss;
 import net.sergeych.tools.Binder;
+import org.postgresql.PGStatement;
 
-import java.lang.ref.WeakReference;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
@@ -31,6 +32,7 @@ import java.time.ZonedDateTime;
 import java.time.temporal.ChronoUnit;
 import java.util.*;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
 
@@ -44,24 +46,83 @@ import java.util.function.Consumer;
 public class PostgresLedger implements Ledger {
 
     private final static int MAX_CONNECTIONS = 64;
+    private final static int PREPARE_THRESHOLD = 1;
+
+    /**
+     * Records created during this period are counted by the second in the ledger_stats table.
+     */
+    public final static Duration DETAILED_STATS_PERIOD = Duration.ofDays(1);
+
+    private final static long STATS_HOUR_BUCKET = 3600;
+
+    /**
+     * Maximum number of hashes in one {@code IN (...)} list of the batch reads.
+     */
+    private final static int MAX_IDS_PER_QUERY = 500;
 
     private final DbPool dbPool;
 
     private boolean sqlite = false;
 
-    private Map<HashId, WeakReference<StateRecord>> cachedRecords = new WeakHashMap<>();
-    private Map<Long, WeakReference<StateRecord>> cachedRecordsById = new WeakHashMap<>();
-    private boolean useCache = true;
+    private final StateRecordCache cachedRecords = new StateRecordCache();
+    private volatile boolean useCache = true;
+
+    private final StateRecordWriter recordWriter;
+    private volatile boolean groupCommit = true;
+
+    /**
+     * Depth of {@link #transaction(Callable)} calls in the current thread: saves inside the transaction should use
+     * its connection, so they are not passed to the group commit writer.
+     */
+    private final ThreadLocal<int[]> transactionDepth = ThreadLocal.withInitial(() -> new int[1]);
+
+    private final Object ledgerStatsLock = new Object();
+    private long lastStatsMergeTime = 0;
+
+    private final LedgerCleaner cleaner;
 
     public PostgresLedger(String connectionString, Properties properties) throws SQLException {
-        dbPool = new DbPool(connectionString, properties, MAX_CONNECTIONS);
+        dbPool = new DbPool(connectionString, withDefaults(properties), MAX_CONNECTIONS);
         init(dbPool);
+        recordWriter = new StateRecordWriter(dbPool);
+        cleaner = new LedgerCleaner(dbPool);
     }
 
     public PostgresLedger(String connectionString) throws SQLException {
-        Properties properties = new Properties();
-        dbPool = new DbPool(connectionString, properties, MAX_CONNECTIONS);
-        init(dbPool);
+        this(connectionString, new Properties());
+    }
+
+    /**
+     * Most ledger statements have fixed text and are cached by the {@link com.icodici.db.Db}, so the driver can make
+     * them server-side prepared from the first execution rather than the fifth. Statements generated for the number
+     * of their parameters are made with {@link #generatedStatement(Db, String, Object...)} and are never prepared on
+     * the server.
+     */
+    private static Properties withDefaults(Properties properties) {
+        Properties result = new Properties();
+        if (properties != null)
+            result.putAll(properties);
+        if (!result.containsKey("prepareThreshold"))
+            result.setProperty("prepareThreshold", String.valueOf(PREPARE_THRESHOLD));
+        return result;
+    }
+
+    /**
+     * Get the statement for SQL generated for the number of its parameters, e.g. {@code IN} lists or multi-row
+     * inserts. Such texts rarely repeat, so the statement is neither cached nor prepared on the server, where it would
+     * take the place of the fixed ledger statements.
+     *
+     * @param db is connection to prepare the statement with
+     * @param sqlText sql text string with '?' for parameters
+     * @param args statement parameters
+     * @return statement ready to execute, must be closed by the caller
+     * @throws SQLException if the statement could not be prepared
+     */
+    static PreparedStatement generatedStatement(Db db, String sqlText, Object... args) throws SQLException {
+        PreparedStatement statement = db.uncachedStatement(sqlText, args);
+        if (statement.isWrapperFor(PGStatement.class))
+            statement.unwrap(PGStatement.class).setPrepareThreshold(0);
+        return statement;
     }
 
     private void init(DbPool dbPool) throws SQLException {
@@ -96,9 +157,7 @@ public class PostgresLedger implements Ledger {
                 return cached;
             try (ResultSet rs = inPool(db -> db.queryRow("SELECT * FROM ledger WHERE hash = ? limit 1", itemId.getDigest()))) {
                 if (rs != null) {
-                    StateRecord record = new StateRecord(this, rs);
-                    putToCache(record);
-                    return record;
+                    return putToCache(new StateRecord(this, rs));
                 }
             } catch (Exception e) {
                 e.printStackTrace();
@@ -113,49 +172,86 @@ public class PostgresLedger implements Ledger {
         return sr;
     }
 
-    private StateRecord getFromCache(HashId itemId) {
-        if (useCache) {
-            synchronized (cachedRecords) {
-                WeakReference<StateRecord> ref = cachedRecords.get(itemId);
-                if (ref == null)
-                    return null;
-                StateRecord r = ref.get();
-                if (r == null) {
-                    cachedRecords.remove(itemId);
-                    return null;
-                }
-                return r;
+    /**
+     * Read records missing in the cache by queries of up to {@link #MAX_IDS_PER_QUERY} hashes each.
+     */
+    @Override
+    public Map<HashId, StateRecord> getRecords(Collection<HashId> ids) {
+        Map<HashId, StateRecord> result = new HashMap<>();
+        List<HashId> toRead = new ArrayList<>();
+        for (HashId id : ids) {
+            StateRecord cached = getFromCache(id);
+            if (cached != null)
+                result.put(id, cached);
+            else
+                toRead.add(id);
+        }
+        forEachChunk(toRead, "SELECT * FROM ledger WHERE hash IN ", rs -> {
+            StateRecord r = putToCache(new StateRecord(this, rs));
+            result.put(r.getId(), r);
+        });
+        result.values().removeIf(r -> {
+            if (r.isExpired()) {
+                r.destroy();
+                return true;
             }
-        } else
-            return null;
+            return false;
+        });
+        return result;
     }
 
-    private StateRecord getFromCacheById(long recordId) {
-        if (useCache) {
-            synchronized (cachedRecordsById) {
-                WeakReference<StateRecord> ref = cachedRecordsById.get(recordId);
-                if (ref == null)
-                    return null;
-                StateRecord r = ref.get();
-                if (r == null) {
-                    cachedRecordsById.remove(recordId);
-                    return null;
+    /**
+     * Run the query with the hashes of ids appended as {@code (?,?,...)}, by chunks of {@link #MAX_IDS_PER_QUERY} ids.
+     *
+     * @param ids are item ids
+     * @param sqlPrefix is query text ending with {@code IN}
+     * @param rowConsumer is called for each found row
+     */
+    private void forEachChunk(List<HashId> ids, String sqlPrefix, RowConsumer rowConsumer) {
+        for (int from = 0; from < ids.size(); from += MAX_IDS_PER_QUERY) {
+            List<HashId> chunk = ids.subList(from, Math.min(ids.size(), from + MAX_IDS_PER_QUERY));
+            StringBuilder sql = new StringBuilder(sqlPrefix).append("(");
+            Object[] params = new Object[chunk.size()];
+            for (int i = 0; i < chunk.size(); i++) {
+                sql.append(i == 0 ? "?" : ",?");
+                params[i] = chunk.get(i).getDigest();
+            }
+            sql.append(")");
+            protect(() -> {
+                try (PooledDb db = dbPool.db();
+                     PreparedStatement statement = generatedStatement(db, sql.toString(), params);
+                     ResultSet rs = statement.executeQuery()) {
+                    while (rs.next())
+                        rowConsumer.accept(rs);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    throw e;
                 }
-                return r;
-            }
-        } else
-            return null;
+                return null;
+            });
+        }
     }
 
-    private void putToCache(StateRecord r) {
-        if (useCache) {
-            synchronized (cachedRecords) {
-                cachedRecords.put(r.getId(), new WeakReference<StateRecord>(r));
-            }
-            synchronized (cachedRecordsById) {
-                cachedRecordsById.put(r.getRecordId(), new WeakReference<StateRecord>(r));
-            }
-        }
+    private interface RowConsumer {
+        void accept(ResultSet rs) throws Exception;
+    }
+
+    private StateRecord getFromCache(HashId itemId) {
+        return useCache ? cachedRecords.get(itemId) : null;
+    }
+
+    private StateRecord getFromCacheById(long recordId) {
+        return useCache ? cachedRecords.getByRecordId(recordId) : null;
+    }
+
+    /**
+     * Put the record loaded from the database to the cache.
+     *
+     * @param r is loaded record
+     * @return the record instance to use: one already cached for the same item, if any, or r
+     */
+    private StateRecord putToCache(StateRecord r) {
+        return useCache ? cachedRecords.putIfAbsent(r) : r;
     }
 
 
@@ -188,9 +284,7 @@ public class PostgresLedger implements Ledger {
                     try (ResultSet rs = db.queryRow("SELECT * FROM ledger WHERE id = ? limit 1", rc.getLockedByRecordId())) {
                         if (rs == null)
                             return null;
-                        StateRecord r = new StateRecord(this, rs);
-                        putToCache(r);
-                        return r;
+                        return putToCache(new StateRecord(this, rs));
                     } catch (Exception e) {
                         e.printStackTrace();
                         throw e;
@@ -212,8 +306,7 @@ public class PostgresLedger implements Ledger {
             StateRecord record = getFromCache(itemId);
             if (record == null) {
                 try (ResultSet rs = inPool(db -> db.queryRow("select * from sr_find_or_create(?)", itemId.getDigest()))) {
-                    record = new StateRecord(this, rs);
-                    putToCache(record);
+                    record = putToCache(new StateRecord(this, rs));
                 } catch (Exception e) {
                     e.printStackTrace();
                     throw e;
@@ -372,6 +465,7 @@ public class PostgresLedger implements Ledger {
 
     @Override
     public void close() {
+        recordWriter.shutdown();
         try {
             dbPool.close();
         } catch (Exception e) {
@@ -390,16 +484,31 @@ public class PostgresLedger implements Ledger {
         }
     }
 
+    /**
+     * Counts records by state from the ledger_stats table, that is updated by the ledger triggers, so it does not scan
+     * the ledger. Records created during the last {@link #DETAILED_STATS_PERIOD} are counted by the second, older ones
+     * by the hour: if createdAfter is older than that, it is rounded down to the hour.
+     *
+     * @param createdAfter count records created at this time or later, all records if null
+     * @return number of records for each state
+     */
     @Override
     public Map<ItemState, Integer> getLedgerSize(ZonedDateTime createdAfter) {
             return protect(() -> {
-                try (ResultSet rs = inPool(db -> db.queryRow("select count(id), state from ledger where created_at >= ? group by state", createdAfter != null ? createdAfter.toEpochSecond() : 0))) {
+                compactLedgerStats();
+                long since = createdAfter != null ? createdAfter.toEpochSecond() : 0;
+                // hourly buckets are keyed by the start of the hour, so the one containing createdAfter must be included
+                if (since < Instant.now().getEpochSecond() - DETAILED_STATS_PERIOD.getSeconds())
+                    since -= since % STATS_HOUR_BUCKET;
+                long from = since;
+                try (ResultSet rs = inPool(db -> db.queryRow("select sum(count), state from ledger_stats where bucket >= ? group by state", from))) {
                     Map<ItemState, Integer> result = new HashMap<>();
                     if (rs != null) {
                         do {
                             int count = rs.getInt(1);
                             ItemState state = ItemState.values()[rs.getInt(2)];
-                            result.put(state, count);
+                            if (count != 0)
+                                result.put(state, count);
 
                         } while (rs.next());
                     }
@@ -411,6 +520,39 @@ public class PostgresLedger implements Ledger {
             });
     }
 
+    /**
+     * Moves changes of the ledger size, written by the triggers to ledger_stats_delta, to ledger_stats, and merges
+     * the per-second counters older than {@link #DETAILED_STATS_PERIOD} into per-hour ones. It takes time
+     * proportional to the number of changes since the last call, not to the ledger size.
+     */
+    public void compactLedgerStats() {
+        synchronized (ledgerStatsLock) {
+            try (PooledDb db = dbPool.db()) {
+                db.update("with moved as (delete from ledger_stats_delta returning created_at, state, delta) " +
+                        "insert into ledger_stats(bucket, state, count) " +
+                        "select created_at, state, sum(delta) from moved group by created_at, state " +
+                        "on conflict (bucket, state) do update set count = ledger_stats.count + excluded.count;");
+
+                long now = Instant.now().getEpochSecond();
+                if (now - lastStatsMergeTime >= STATS_HOUR_BUCKET) {
+                    long detailedSince = now - DETAILED_STATS_PERIOD.getSeconds();
+                    detailedSince -= detailedSince % STATS_HOUR_BUCKET;
+                    db.update("with moved as (delete from ledger_stats where bucket < ? and bucket % ? <> 0 " +
+                            "returning bucket, state, count) " +
+                            "insert into ledger_stats(bucket, state, count) " +
+                            "select bucket - bucket % ?, state, sum(count) from moved group by 1, 2 " +
+                            "on conflict (bucket, state) do update set count = ledger_stats.count + excluded.count;",
+                            detailedSince, STATS_HOUR_BUCKET, STATS_HOUR_BUCKET);
+                    db.update("delete from ledger_stats where count = 0;");
+                    lastStatsMergeTime = now;
+                }
+            } catch (SQLException se) {
+                se.printStackTrace();
+                throw new Failure("ledger stats compaction failed:" + se);
+            }
+        }
+    }
+
 
 //    @Override
 //    public List<StateRecord> getAllByState(ItemState is) {
@@ -432,11 +574,15 @@ public class PostgresLedger implements Ledger {
         return protect(() -> {
             // as Rollback exception is instanceof Db.Rollback, it will work as supposed by default:
             // rethrow unchecked exceotions and return null on rollback.
+            int[] depth = transactionDepth.get();
+            depth[0]++;
             try (Db db = dbPool.db()) {
                 return db.transaction(() -> callable.call());
             } catch (Exception e) {
                 e.printStackTrace();
                 throw e;
+            } finally {
+                depth[0]--;
             }
         });
     }
@@ -464,12 +610,7 @@ public class PostgresLedger implements Ledger {
                 d.update("DELETE FROM ledger WHERE id = ?", recordId);
                 return null;
             });
-            synchronized (cachedRecords) {
-                cachedRecords.remove(record.getId());
-            }
-            synchronized (cachedRecordsById) {
-                cachedRecordsById.remove(record.getRecordId());
-            }
+            cachedRecords.remove(record);
             return null;
         });
     }
@@ -506,6 +647,14 @@ public class PostgresLedger implements Ledger {
 
     }
 
+    @Override
+    public Set<HashId> getTestnetIds(Collection<HashId> ids) {
+        Set<HashId> result = new HashSet<>();
+        forEachChunk(new ArrayList<>(ids), "select hash from ledger_testrecords where hash in ",
+                rs -> result.add(HashId.withDigest(rs.getBytes(1))));
+        return result;
+    }
+
 
 
     @Override
@@ -515,6 +664,24 @@ public class PostgresLedger implements Ledger {
         } else if (stateRecord.getLedger() != this)
             throw new IllegalStateException("can't save with a different ledger (make a copy!)");
 
+        if (groupCommit && transactionDepth.get()[0] == 0) {
+            boolean isNew = stateRecord.getRecordId() == 0;
+            try {
+                recordWriter.save(stateRecord).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new Failure("StateRecord save interrupted");
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof Failure)
+                    throw (Failure) e.getCause();
+                e.printStackTrace();
+                return;
+            }
+            if (isNew && useCache)
+                cachedRecords.put(stateRecord);
+            return;
+        }
+
         // TODO: probably, it should take a PooledDb as an argument and reuse it
         try (PooledDb db = dbPool.db()) {
             if (stateRecord.getRecordId() == 0) {
@@ -540,7 +707,8 @@ public class PostgresLedger implements Ledger {
                     e.printStackTrace();
                     throw e;
                 }
-                putToCache(stateRecord);
+                if (useCache)
+                    cachedRecords.put(stateRecord);
             } else {
                 db.update("update ledger set state=?, expires_at=?, locked_by_id=? where id=?",
                         stateRecord.getState().ordinal(),
@@ -591,10 +759,38 @@ public class PostgresLedger implements Ledger {
         } else {
             this.useCache = false;
             cachedRecords.clear();
-            cachedRecordsById.clear();
         }
     }
 
+    /**
+     * Enable or disable group commit of saved records. When enabled (default), {@link #save(StateRecord)} called
+     * outside of {@link #transaction(Callable)} passes the record to {@link StateRecordWriter}, that writes records
+     * saved concurrently by many threads in one database transaction, and waits until it is committed.
+     *
+     * @param enable, if true records are saved in groups
+     */
+    public void enableGroupCommit(boolean enable) {
+        this.groupCommit = enable;
+    }
+
+    /**
+     * Get the group commit writer, to tune it or look at the batches it writes.
+     *
+     * @return records writer of the ledger
+     */
+    public StateRecordWriter getRecordWriter() {
+        return recordWriter;
+    }
+
+    /**
+     * Get records cache, to tune its limits or look at its hit rate.
+     *
+     * @return records cache of the ledger
+     */
+    public StateRecordCache getRecordCache() {
+        return cachedRecords;
+    }
+
     public Db getDb() throws SQLException {
         return dbPool.db();
     }
@@ -753,29 +949,52 @@ public class PostgresLedger implements Ledger {
         }
     }
 
+    /**
+     * Delete expired records, items and callbacks by {@link LedgerCleaner} batches, so it could take long but does
+     * not block the ledger.
+     */
     public void cleanup(boolean isPermanetMode) {
-        try (PooledDb db = dbPool.db()) {
-
+        try {
             long now = Instant.now().getEpochSecond();
-            String sqlText = "delete from items where id in (select id from ledger where expires_at < ?);";
-            db.update(sqlText, now);
+            cleaner.delete("expired items", "items",
+                    "t.id in (select id from ledger where expires_at < ?)", now);
 
-            if (!isPermanetMode) {
-                sqlText = "delete from ledger where expires_at < ?;";
-                db.update(sqlText, now);
-            }
+            if (!isPermanetMode)
+                cleaner.delete("expired ledger records", "ledger", "t.expires_at < ?", now);
 
-            sqlText = "delete from items where keepTill < ?;";
-            db.update(sqlText, now);
+            cleaner.delete("items to keep", "items", "t.keepTill < ?", now);
 
-            sqlText = "delete from follower_callbacks where stored_until < ?;";
-            db.update(sqlText, now);
+            cleaner.delete("follower callbacks", "follower_callbacks", "t.stored_until < ?", now);
 
         } catch (SQLException se) {
             se.printStackTrace();
             throw new Failure("cleanup failed:" + se);
-
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
+        // deleted records are counted out of the ledger stats
+        compactLedgerStats();
+    }
+
+    /**
+     * @return cleaner that deletes the expired data of this ledger, to set its limits
+     */
+    public LedgerCleaner getCleaner() {
+        return cleaner;
+    }
+
+    /**
+     * @return pool of the ledger database connections, to set its limits
+     */
+    public DbPool getDbPool() {
+        return dbPool;
+    }
+
+    /**
+     * @return execution statistics of the ledger SQL statements
+     */
+    public SqlStats getSqlStats() {
+        return dbPool.getSqlStats();
     }
 
     public void savePayment(int amount, ZonedDateTime date) {
@@ -853,157 +1072,184 @@ public class PostgresLedger implements Ledger {
 
 
 
-    private List<byte[]> getSmartContractForEnvironmentId(long environmentId) {
-        return protect(() -> {
-            try (ResultSet rs = inPool(db -> db.queryRow("" +
-                    "SELECT transaction_pack, kv_storage, ncontract_hash_id FROM environments " +
-                    "WHERE id=?", environmentId))) {
-                if (rs == null)
-                    return null;
-                List<byte[]> res = new ArrayList<>();
-                res.add(rs.getBytes(1));
-                res.add(rs.getBytes(2));
-                res.add(rs.getBytes(3));
-                return res;
-            } catch (Exception e) {
-                e.printStackTrace();
-                throw e;
-            }
-        });
-    }
+    /**
+     * Parts of the environments loaded by {@link #getEnvironments(Collection)}, by environment ids.
+     */
+    private static class EnvironmentRows {
+        final long id;
+        final byte[] transactionPack;
+        final byte[] kvStorage;
+        final HashId nContractHashId;
+        final List<ContractSubscription> subscriptions = new ArrayList<>();
+        final List<ContractStorage> storages = new ArrayList<>();
+        final List<NameRecord> nameRecords = new ArrayList<>();
+        NFollowerService followerService = null;
 
+        EnvironmentRows(long id, byte[] transactionPack, byte[] kvStorage, HashId nContractHashId) {
+            this.id = id;
+            this.transactionPack = transactionPack;
+            this.kvStorage = kvStorage;
+            this.nContractHashId = nContractHashId;
+        }
+    }
 
-    private Collection<ContractSubscription> getContractSubscriptions(long environmentId) {
-        try (PooledDb db = dbPool.db()) {
-            try (
-                PreparedStatement statement =
-                    db.statement(
-                        "SELECT hash_id, subscription_on_chain, expires_at, id FROM contract_subscription WHERE environment_id = ?"
-                    )
-            ) {
-                statement.setLong(1, environmentId);
-                statement.closeOnCompletion();
-                ResultSet rs = statement.executeQuery();
-                if (rs == null)
-                    throw new Failure("getContractSubscriptions failed: returning null");
-                List<ContractSubscription> res = new ArrayList<>();
+    /**
+     * Query of all parts of the environments with ids in the list that follows each of its statements. Statements
+     * are sent together, so the environments are loaded in one round trip.
+     */
+    private static String environmentsQuery(String idList) {
+        return "" +
+                "SELECT id, transaction_pack, kv_storage, ncontract_hash_id FROM environments " +
+                "WHERE id IN " + idList + ";" +
+                "SELECT environment_id, hash_id, subscription_on_chain, expires_at, id FROM contract_subscription " +
+                "WHERE environment_id IN " + idList + ";" +
+                "SELECT environment_id, bin_data, expires_at, id FROM contract_storage JOIN contract_binary " +
+                "ON contract_binary.hash_id = contract_storage.hash_id WHERE environment_id IN " + idList + ";" +
+                "SELECT environment_id, expires_at, muted_at, spent_for_callbacks, started_callbacks " +
+                "FROM follower_environments WHERE environment_id IN " + idList + ";" +
+                "SELECT name_storage.environment_id, name_storage.id, name_storage.name_reduced, " +
+                "name_storage.name_full, name_storage.description, name_storage.url, name_storage.expires_at, " +
+                "name_entry.entry_id, name_entry.short_addr, name_entry.long_addr, name_entry.origin " +
+                "FROM name_storage JOIN name_entry ON name_storage.id=name_entry.name_storage_id " +
+                "WHERE name_storage.environment_id IN " + idList + " ORDER BY name_storage.id";
+    }
+
+    private void loadEnvironments(List<Long> ids, Map<Long, EnvironmentRows> rows) throws Exception {
+        StringBuilder idList = new StringBuilder("(");
+        for (int i = 0; i < ids.size(); i++)
+            idList.append(i == 0 ? "?" : ",?");
+        idList.append(")");
+        Object[] params = new Object[ids.size() * 5];
+        for (int i = 0; i < params.length; i++)
+            params[i] = ids.get(i % ids.size());
+
+        try (PooledDb db = dbPool.db();
+             PreparedStatement statement = generatedStatement(db, environmentsQuery(idList.toString()), params)) {
+            if (!statement.execute())
+                throw new Failure("getEnvironments failed: no result");
+
+            try (ResultSet rs = statement.getResultSet()) {
                 while (rs.next()) {
-                    NContractSubscription css = new NContractSubscription(HashId.withDigest(rs.getBytes(1)),
-                            rs.getBoolean(2), StateRecord.getTime(rs.getLong(3)));
-                    css.setId(rs.getLong(4));
-                    res.add(css);
+                    long id = rs.getLong(1);
+                    rows.put(id, new EnvironmentRows(id, rs.getBytes(2), rs.getBytes(3), HashId.withDigest(rs.getBytes(4))));
                 }
-                rs.close();
-                return res;
             }
-        } catch (SQLException se) {
-            se.printStackTrace();
-            throw new Failure("getContractSubscriptions failed: " + se);
-        } catch (Exception e) {
-            e.printStackTrace();
-            throw new Failure("getContractSubscriptions failed: " + e);
-        }
-    }
+            if (rows.isEmpty())
+                return;
 
+            nextResult(statement);
+            try (ResultSet rs = statement.getResultSet()) {
+                while (rs.next()) {
+                    NContractSubscription css = new NContractSubscription(HashId.withDigest(rs.getBytes(2)),
+                            rs.getBoolean(3), StateRecord.getTime(rs.getLong(4)));
+                    css.setId(rs.getLong(5));
+                    rows.get(rs.getLong(1)).subscriptions.add(css);
+                }
+            }
 
-    private Collection<ContractStorage> getContractStorages(long environmentId) {
-        try (PooledDb db = dbPool.db()) {
-            try (
-                PreparedStatement statement =
-                    db.statement(
-                        "SELECT bin_data, expires_at, id FROM contract_storage JOIN contract_binary " +
-                        "ON contract_binary.hash_id = contract_storage.hash_id WHERE environment_id = ?"
-                    )
-            ) {
-                statement.setLong(1, environmentId);
-                statement.closeOnCompletion();
-                ResultSet rs = statement.executeQuery();
-                if (rs == null)
-                    throw new Failure("getContractStorages failed: returning null");
-                List<ContractStorage> res = new ArrayList<>();
+            nextResult(statement);
+            try (ResultSet rs = statement.getResultSet()) {
                 while (rs.next()) {
-                    NContractStorage cst = new NContractStorage(rs.getBytes(1), StateRecord.getTime(rs.getLong(2)));
-                    cst.setId(rs.getLong(3));
-                    res.add(cst);
+                    NContractStorage cst = new NContractStorage(rs.getBytes(2), StateRecord.getTime(rs.getLong(3)));
+                    cst.setId(rs.getLong(4));
+                    rows.get(rs.getLong(1)).storages.add(cst);
                 }
-                rs.close();
-                return res;
             }
-        } catch (SQLException se) {
-            se.printStackTrace();
-            throw new Failure("getContractStorages failed: " + se);
-        } catch (Exception e) {
-            e.printStackTrace();
-            throw new Failure("getContractStorages failed: " + e);
-        }
-    }
 
+            nextResult(statement);
+            try (ResultSet rs = statement.getResultSet()) {
+                while (rs.next()) {
+                    long id = rs.getLong(1);
+                    rows.get(id).followerService = new NFollowerService(this,
+                            StateRecord.getTime(rs.getLong(2)),
+                            StateRecord.getTime(rs.getLong(3)),
+                            id,
+                            rs.getDouble(4),
+                            rs.getInt(5));
+                }
+            }
 
-    private List<String> getReducedNames(long environmentId) {
-        try (PooledDb db = dbPool.db()) {
-            try (
-                    PreparedStatement statement =
-                            db.statement(
-                                    "" +
-                                            "SELECT DISTINCT name_storage.name_reduced AS name_reduced " +
-                                            "FROM name_storage JOIN name_entry ON name_storage.id=name_entry.name_storage_id " +
-                                            "WHERE name_storage.environment_id=?"
-                            )
-            ) {
-                statement.setLong(1, environmentId);
-                statement.closeOnCompletion();
-                ResultSet rs = statement.executeQuery();
-                if (rs == null)
-                    throw new Failure("getNames failed: returning null");
-                List<String> res = new ArrayList<>();
+            // rows are ordered by name, one row per name entry
+            nextResult(statement);
+            try (ResultSet rs = statement.getResultSet()) {
+                long environmentId = 0;
+                long nameRecordId = 0;
+                UnsName unsName = null;
+                ZonedDateTime expiresAt = null;
+                Set<NNameRecordEntry> entries = null;
                 while (rs.next()) {
-                    res.add(rs.getString(1));
+                    if (unsName == null || rs.getLong(2) != nameRecordId) {
+                        if (unsName != null)
+                            rows.get(environmentId).nameRecords.add(
+                                    new NNameRecord(unsName, expiresAt, entries, nameRecordId, environmentId));
+                        environmentId = rs.getLong(1);
+                        nameRecordId = rs.getLong(2);
+                        unsName = new UnsName();
+                        unsName.setUnsReducedName(rs.getString(3));
+                        unsName.setUnsName(rs.getString(4));
+                        unsName.setUnsDescription(rs.getString(5));
+                        unsName.setUnsURL(rs.getString(6));
+                        expiresAt = StateRecord.getTime(rs.getLong(7));
+                        entries = new HashSet<>();
+                    }
+                    NNameRecordEntry entry = new NNameRecordEntry(HashId.withDigest(rs.getBytes(11)),
+                            rs.getString(9), rs.getString(10));
+                    entry.setId(rs.getLong(8));
+                    entry.setNameRecordId(nameRecordId);
+                    entries.add(entry);
                 }
-                rs.close();
-                return res;
+                if (unsName != null)
+                    rows.get(environmentId).nameRecords.add(
+                            new NNameRecord(unsName, expiresAt, entries, nameRecordId, environmentId));
             }
-        } catch (SQLException se) {
-            se.printStackTrace();
-            throw new Failure("getNames failed: " + se);
-        } catch (Exception e) {
-            e.printStackTrace();
-            throw new Failure("getNames failed: " + e);
         }
     }
 
+    private static void nextResult(PreparedStatement statement) throws SQLException {
+        if (!statement.getMoreResults())
+            throw new Failure("getEnvironments failed: missing result");
+    }
 
-    private FollowerService getFollowerService(long environmentId) {
-        try (PooledDb db = dbPool.db()) {
-            try (
-                PreparedStatement statement =
-                    db.statement(
-                        "SELECT expires_at, muted_at, spent_for_callbacks, started_callbacks FROM follower_environments WHERE environment_id = ?"
-                )
-            ) {
-                statement.setLong(1, environmentId);
-                statement.closeOnCompletion();
-                ResultSet rs = statement.executeQuery();
-                if (rs == null)
-                    throw new Failure("getFollowerService failed: returning null");
+    /**
+     * Get the contract of the environment from its packed transaction. Every environment gets its own instance, as
+     * the node sets its node info provider and delivers subscription events to it.
+     */
+    private NSmartContract environmentContract(EnvironmentRows env) throws Exception {
+        Contract contract = NSmartContract.fromPackedTransaction(env.transactionPack);
+        Contract findNContract = contract.getTransactionPack().getSubItem(env.nContractHashId);
+        return (NSmartContract) (findNContract == null ? contract : findNContract);
+    }
 
-                NFollowerService fs = null;
-                if (rs.next())
-                    fs = new NFollowerService(this,
-                        StateRecord.getTime(rs.getLong(1)),
-                        StateRecord.getTime(rs.getLong(2)),
-                        environmentId,
-                        rs.getDouble(3),
-                        rs.getInt(4));
-                rs.close();
-                return fs;
-            }
-        } catch (SQLException se) {
-            se.printStackTrace();
-            throw new Failure("getFollowerSubscriptions failed: " + se);
-        } catch (Exception e) {
-            e.printStackTrace();
-            throw new Failure("getFollowerSubscriptions failed: " + e);
+    /**
+     * Load environments with all their subscriptions, storages, follower services and names, with one query for up
+     * to {@link #MAX_IDS_PER_QUERY} environments.
+     */
+    @Override
+    public Map<Long, NImmutableEnvironment> getEnvironments(Collection<Long> environmentIds) {
+        List<Long> ids = new ArrayList<>(new LinkedHashSet<>(environmentIds));
+        Map<Long, EnvironmentRows> rows = new HashMap<>();
+        for (int from = 0; from < ids.size(); from += MAX_IDS_PER_QUERY) {
+            List<Long> chunk = ids.subList(from, Math.min(ids.size(), from + MAX_IDS_PER_QUERY));
+            protect(() -> {
+                loadEnvironments(chunk, rows);
+                return null;
+            });
+        }
+
+        Map<Long, NImmutableEnvironment> result = new LinkedHashMap<>();
+        for (Long id : ids) {
+            EnvironmentRows env = rows.get(id);
+            if (env == null)
+                continue;
+            result.put(id, protect(() -> {
+                NImmutableEnvironment nImmutableEnvironment = new NImmutableEnvironment(environmentContract(env),
+                        Boss.unpack(env.kvStorage), env.subscriptions, env.storages, env.nameRecords,
+                        env.followerService, this);
+                nImmutableEnvironment.setId(env.id);
+                return nImmutableEnvironment;
+            }));
         }
+        return result;
     }
 
 
@@ -1025,29 +1271,7 @@ public class PostgresLedger implements Ledger {
 
     @Override
     public NImmutableEnvironment getEnvironment(long environmentId) {
-        return protect(() -> {
-            List<byte[]> smkv = getSmartContractForEnvironmentId(environmentId);
-            HashId nContractHashId = HashId.withDigest(smkv.get(2));
-            Contract contract = NSmartContract.fromPackedTransaction(smkv.get(0));
-            Contract findNContract = contract.getTransactionPack().getSubItem(nContractHashId);
-            contract = findNContract == null ? contract : findNContract;
-            NSmartContract nSmartContract = (NSmartContract) contract;
-            Binder kvBinder = Boss.unpack(smkv.get(1));
-            Collection<ContractSubscription> contractSubscriptions = getContractSubscriptions(environmentId);
-            Collection<ContractStorage> contractStorages = getContractStorages(environmentId);
-            FollowerService followerService = getFollowerService(environmentId);
-            List<String> reducedNames = getReducedNames(environmentId);
-            List<NameRecord> nameRecords = new ArrayList<>();
-            for (String reducedName : reducedNames) {
-                NNameRecord nr = getNameRecord(reducedName);
-                //nr.setId(nrModel.id);
-                nameRecords.add(nr);
-            }
-            NImmutableEnvironment nImmutableEnvironment = new NImmutableEnvironment(nSmartContract, kvBinder,
-                    contractSubscriptions, contractStorages, nameRecords, followerService, this);
-            nImmutableEnvironment.setId(environmentId);
-            return nImmutableEnvironment;
-        });
+        return getEnvironments(Collections.singletonList(environmentId)).get(environmentId);
     }
 
     @Override
@@ -1221,7 +1445,7 @@ public class PostgresLedger implements Ledger {
         try (PooledDb db = dbPool.db()) {
             try (
                     PreparedStatement statement =
-                            db.statement(sqlQuery)
+                            generatedStatement(db, sqlQuery)
             ) {
                 int i = 1;
                 for (String name : namesToCheck)
@@ -1292,7 +1516,7 @@ public class PostgresLedger implements Ledger {
             String queryPart = String.join(",", Collections.nCopies(ids.size(),"?"));
             try (
                     PreparedStatement statement =
-                            db.statement(
+                            generatedStatement(db,
                                     "" +
                                             "SELECT " +
                                             "  hash " +
@@ -1363,17 +1587,9 @@ public class PostgresLedger implements Ledger {
 
     @Override
     public void clearExpiredSubscriptions() {
-        try (PooledDb db = dbPool.db()) {
-            ZonedDateTime now = ZonedDateTime.now();
-            try (
-                    PreparedStatement statement =
-                            db.statement(
-                                    "DELETE FROM contract_subscription WHERE expires_at < ?"
-                            )
-            ) {
-                statement.setLong(1, StateRecord.unixTime(now));
-                db.updateWithStatement(statement);
-            }
+        try {
+            cleaner.delete("expired subscriptions", "contract_subscription", "t.expires_at < ?",
+                    StateRecord.unixTime(ZonedDateTime.now()));
         } catch (SQLException se) {
             se.printStackTrace();
             throw new Failure("clearExpiredSubscriptions failed: " + se);
@@ -1385,17 +1601,9 @@ public class PostgresLedger implements Ledger {
 
     @Override
     public void clearExpiredStorages() {
-        try (PooledDb db = dbPool.db()) {
-            ZonedDateTime now = ZonedDateTime.now();
-            try (
-                    PreparedStatement statement =
-                            db.statement(
-                                    "DELETE FROM contract_storage WHERE expires_at < ?"
-                            )
-            ) {
-                statement.setLong(1, StateRecord.unixTime(now));
-                db.updateWithStatement(statement);
-            }
+        try {
+            cleaner.delete("expired storages", "contract_storage", "t.expires_at < ?",
+                    StateRecord.unixTime(ZonedDateTime.now()));
         } catch (SQLException se) {
             se.printStackTrace();
             throw new Failure("clearExpiredStorages failed: " + se);
@@ -1407,15 +1615,17 @@ public class PostgresLedger implements Ledger {
 
     @Override
     public void clearExpiredStorageContractBinaries() {
+        clearUnusedContractBinaries(false);
+    }
+
+    private void clearUnusedContractBinaries(boolean throttled) {
         //TODO: add trigger for delete expired contracts after deleting all subscriptions, and remove this function
-        try (PooledDb db = dbPool.db()) {
-            try (
-                PreparedStatement statement = db.statement(
-                    "DELETE FROM contract_binary WHERE hash_id NOT IN (SELECT hash_id FROM contract_storage GROUP BY hash_id)"
-                )
-            ) {
-                db.updateWithStatement(statement);
-            }
+        String condition = "not exists (select 1 from contract_storage s where s.hash_id = t.hash_id)";
+        try {
+            if (throttled)
+                cleaner.delete("unused contract binaries", "contract_binary", condition);
+            else
+                cleaner.deleteNow("unused contract binaries", "contract_binary", condition);
         } catch (SQLException se) {
             se.printStackTrace();
             throw new Failure("clearExpiredStorageContractBinaries failed: " + se);
@@ -1916,7 +2126,7 @@ public class PostgresLedger implements Ledger {
     public void removeExpiredStoragesAndSubscriptionsCascade() {
         clearExpiredSubscriptions();
         clearExpiredStorages();
-        clearExpiredStorageContractBinaries();
+        clearUnusedContractBinaries(true);
     }
 
     private long addNameStorage(final NNameRecord nameRecord) {
@@ -2104,7 +2314,7 @@ public class PostgresLedger implements Ledger {
             String queryPart = String.join(",", Collections.nCopies(reducedNames.size(),"?"));
             try (
                     PreparedStatement statement =
-                            db.statement(
+                            generatedStatement(db,
                                     "" +
                                             "SELECT " +
                                             "  name_reduced " +
@@ -2150,7 +2360,7 @@ public class PostgresLedger implements Ledger {
             String queryPart = String.join(",", Collections.nCopies(origins.size(),"?"));
             try (
                     PreparedStatement statement =
-                            db.statement(
+                            generatedStatement(db,
                                     "" +
                                             "SELECT " +
                                             "  origin " +
@@ -2195,7 +2405,7 @@ public class PostgresLedger implements Ledger {
             String queryPart = String.join(",", Collections.nCopies(addresses.size(),"?"));
             try (
                     PreparedStatement statement =
-                            db.statement(
+                            generatedStatement(db,
                                     "" +
                                             "SELECT " +
                                             "  short_addr, " +
@@ -2241,18 +2451,9 @@ public class PostgresLedger implements Ledger {
 
 
     public void clearExpiredNameRecords(Duration holdDuration) {
-        try (PooledDb db = dbPool.db()) {
+        try {
             ZonedDateTime before = ZonedDateTime.now().minus(holdDuration);
-            try (
-                    PreparedStatement statement =
-                            db.statement(
-                                    "DELETE FROM name_storage WHERE expires_at < ? "
-                            )
-            ) {
-                statement.setLong(1, StateRecord.unixTime(before));
-                statement.closeOnCompletion();
-                statement.executeUpdate();
-            }
+            cleaner.delete("expired names", "name_storage", "t.expires_at < ?", StateRecord.unixTime(before));
         } catch (SQLException se) {
             se.printStackTrace();
             throw new Failure("clearExpiredNameRecords failed: " + se);
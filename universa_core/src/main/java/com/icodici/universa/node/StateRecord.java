@@ -60,6 +60,20 @@ public class StateRecord implements HashIdentifiable {
         lockedByRecordId = rs.getInt("locked_by_id");
     }
 
+    /**
+     * Set the fields read by the ledger that does not use SQL, the same way {@link #initFrom(ResultSet)} does.
+     */
+    void initFrom(long recordId, HashId id, ItemState state, long createdAt, long expiresAt, long lockedByRecordId) {
+        this.recordId = recordId;
+        this.id = id;
+        this.state = state;
+        this.createdAt = getTime(createdAt);
+        this.expiresAt = getTime(expiresAt);
+        if (this.expiresAt == null)
+            this.expiresAt = this.createdAt.plusMonths(3);
+        this.lockedByRecordId = lockedByRecordId;
+    }
+
     public StateRecord(Ledger ledger) {
         this.ledger = ledger;
         createdAt = ZonedDateTime.now();
@@ -0,0 +1,364 @@
+/*
+ * Copyright (c) 2018, iCodici S.n.C, All Rights Reserved
+ *
+ */
+
+package com.icodici.universa.node;
+
+import com.icodici.universa.HashId;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded concurrent cache of the ledger {@link StateRecord}s, by item id and by record id.
+ * <p>
+ * The cache keeps at most {@link #getMaxSize()} recently used records strongly reachable, and drops records not used
+ * for {@link #getMaxAge()}. Evicted record is not forgotten at once: it stays weakly referenced while someone else
+ * uses it, so there is always only one {@link StateRecord} instance per item id, the canonical one, and concurrent
+ * {@link StateRecord#save()} and {@link StateRecord#reload()} calls work with the same object.
+ * <p>
+ * Lookups of retained records are lock-free: they only mark the record as used. Retained records are kept in
+ * {@link #STRIPES} independently locked stripes, each holding its share of the size limit, and the stripe gives the
+ * marked records a second chance before evicting them (the "clock" approximation of LRU). Records not used for the
+ * max age are evicted as the stripe changes and by {@link #cleanUp()}, which the owner should call periodically.
+ */
+public class StateRecordCache {
+
+    static final int STRIPES = 32;
+
+    public static final int DEFAULT_MAX_SIZE = 100_000;
+    public static final Duration DEFAULT_MAX_AGE = Duration.ofMinutes(10);
+
+    private final ConcurrentHashMap<HashId, Ref> byHash = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Long, Ref> byId = new ConcurrentHashMap<>();
+    private final ReferenceQueue<StateRecord> collected = new ReferenceQueue<>();
+    private final Stripe[] stripes = new Stripe[STRIPES];
+
+    private volatile int maxSize;
+    private volatile long maxAgeMillis;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public StateRecordCache() {
+        this(DEFAULT_MAX_SIZE, DEFAULT_MAX_AGE);
+    }
+
+    /**
+     * Create cache.
+     *
+     * @param maxSize is how many records could be retained by the cache
+     * @param maxAge is how long unused record is retained by the cache
+     */
+    public StateRecordCache(int maxSize, Duration maxAge) {
+        setMaxSize(maxSize);
+        setMaxAge(maxAge);
+        for (int i = 0; i < STRIPES; i++)
+            stripes[i] = new Stripe();
+    }
+
+    /**
+     * Get canonical record for the item.
+     *
+     * @param itemId is item id
+     * @return cached record or null
+     */
+    public StateRecord get(HashId itemId) {
+        return found(byHash.get(itemId));
+    }
+
+    /**
+     * Get canonical record by its ledger record id.
+     *
+     * @param recordId is id of the record in the ledger
+     * @return cached record or null
+     */
+    public StateRecord getByRecordId(long recordId) {
+        return found(byId.get(recordId));
+    }
+
+    private StateRecord found(Ref ref) {
+        StateRecord r = ref != null ? ref.get() : null;
+        if (r == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        ref.accessedAt = System.currentTimeMillis();
+        if (ref.strong == r)
+            ref.used = true;
+        else
+            retain(ref, r);
+        return r;
+    }
+
+    /**
+     * Put record just loaded from the ledger unless there is an instance for the same item already. Callers should
+     * use the returned record.
+     *
+     * @param record is loaded record
+     * @return canonical record for the item: already cached or the given one
+     */
+    public StateRecord putIfAbsent(StateRecord record) {
+        purgeCollected();
+        HashId itemId = record.getId();
+        while (true) {
+            Ref current = byHash.get(itemId);
+            if (current != null) {
+                StateRecord r = current.get();
+                if (r != null) {
+                    retain(current, r);
+                    return r;
+                }
+                byHash.remove(itemId, current);
+                continue;
+            }
+            Ref ref = new Ref(record, collected);
+            if (byHash.putIfAbsent(itemId, ref) == null) {
+                if (ref.recordId != 0)
+                    byId.put(ref.recordId, ref);
+                retain(ref, record);
+                return record;
+            }
+        }
+    }
+
+    /**
+     * Put record making it the canonical instance for its item, used when the record is just written to the ledger.
+     *
+     * @param record is saved record
+     */
+    public void put(StateRecord record) {
+        purgeCollected();
+        Ref ref = new Ref(record, collected);
+        Ref old = byHash.put(ref.itemId, ref);
+        if (old != null && old.recordId != 0 && old.recordId != ref.recordId)
+            byId.remove(old.recordId, old);
+        if (ref.recordId != 0)
+            byId.put(ref.recordId, ref);
+        retain(ref, record);
+    }
+
+    /**
+     * Forget the record, e.g. when it is deleted from the ledger.
+     *
+     * @param record is record to forget
+     */
+    public void remove(StateRecord record) {
+        Ref ref = record.getId() != null ? byHash.remove(record.getId()) : null;
+        if (ref != null)
+            release(ref);
+        if (record.getRecordId() != 0) {
+            ref = byId.remove(record.getRecordId());
+            if (ref != null)
+                release(ref);
+        }
+    }
+
+    public void clear() {
+        byHash.clear();
+        byId.clear();
+        for (Stripe s : stripes)
+            synchronized (s) {
+                s.values().forEach(ref -> ref.strong = null);
+                s.clear();
+            }
+        purgeCollected();
+    }
+
+    private Stripe stripeOf(HashId itemId) {
+        return stripes[(itemId.hashCode() & 0x7FFFFFFF) % STRIPES];
+    }
+
+    private void retain(Ref ref, StateRecord record) {
+        long now = System.currentTimeMillis();
+        ref.accessedAt = now;
+        Stripe s = stripeOf(ref.itemId);
+        synchronized (s) {
+            ref.strong = record;
+            ref.used = false;
+            // moves the record to the most recently used position
+            s.remove(ref.itemId);
+            s.put(ref.itemId, ref);
+            s.trim(Math.max(1, maxSize / STRIPES));
+            s.expire(now - maxAgeMillis);
+        }
+    }
+
+    private void release(Ref ref) {
+        Stripe s = stripeOf(ref.itemId);
+        synchronized (s) {
+            ref.strong = null;
+            s.remove(ref.itemId, ref);
+        }
+    }
+
+    private void purgeCollected() {
+        Reference<? extends StateRecord> r;
+        while ((r = collected.poll()) != null) {
+            Ref ref = (Ref) r;
+            byHash.remove(ref.itemId, ref);
+            if (ref.recordId != 0)
+                byId.remove(ref.recordId, ref);
+        }
+    }
+
+    /**
+     * Evict records not used for the max age from all stripes. Lookups do not do it, so it should be called
+     * periodically.
+     */
+    public void cleanUp() {
+        long oldest = System.currentTimeMillis() - maxAgeMillis;
+        for (Stripe s : stripes)
+            synchronized (s) {
+                s.expire(oldest);
+            }
+        purgeCollected();
+    }
+
+    /**
+     * @return number of records retained by the cache
+     */
+    public int size() {
+        int size = 0;
+        for (Stripe s : stripes)
+            synchronized (s) {
+                size += s.size();
+            }
+        return size;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Set how many records could be retained by the cache. Lowering the limit takes effect as records are accessed.
+     *
+     * @param maxSize is records count, positive
+     */
+    public void setMaxSize(int maxSize) {
+        if (maxSize < 1)
+            throw new IllegalArgumentException("cache size should be positive: " + maxSize);
+        this.maxSize = maxSize;
+    }
+
+    public Duration getMaxAge() {
+        return Duration.ofMillis(maxAgeMillis);
+    }
+
+    public void setMaxAge(Duration maxAge) {
+        if (maxAge.isNegative() || maxAge.isZero())
+            throw new IllegalArgumentException("cache age should be positive: " + maxAge);
+        this.maxAgeMillis = maxAge.toMillis();
+    }
+
+    /**
+     * @return number of lookups that found the record
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return number of lookups that did not find the record
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return number of records dropped by the cache because of size or age limits
+     */
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * @return share of lookups that found the record, 0 if there were no lookups
+     */
+    public double getHitRate() {
+        long h = hits.sum();
+        long total = h + misses.sum();
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    public void resetStats() {
+        hits.reset();
+        misses.reset();
+        evictions.reset();
+    }
+
+    @Override
+    public String toString() {
+        return "StateRecordCache{size=" + size() + ", hits=" + getHits() + ", misses=" + getMisses() +
+                ", evictions=" + getEvictions() + "}";
+    }
+
+    /**
+     * Index entry: weak reference to the canonical record, strong one while the record is retained by the cache.
+     */
+    private static class Ref extends WeakReference<StateRecord> {
+        private final HashId itemId;
+        private final long recordId;
+        private volatile StateRecord strong;
+        private volatile long accessedAt;
+        // used since it took its place in the stripe
+        private volatile boolean used;
+
+        Ref(StateRecord record, ReferenceQueue<StateRecord> queue) {
+            super(record, queue);
+            itemId = record.getId();
+            recordId = record.getRecordId();
+        }
+    }
+
+    /**
+     * Retained records of one stripe, in the order they took their places. A record used since then is moved to the
+     * end instead of being evicted.
+     */
+    private class Stripe extends LinkedHashMap<HashId, Ref> {
+
+        /**
+         * Evict records above the limit, the ones not used since they took their places first.
+         */
+        void trim(int limit) {
+            while (size() > limit) {
+                Ref eldest = values().iterator().next();
+                remove(eldest.itemId);
+                if (eldest.used) {
+                    eldest.used = false;
+                    put(eldest.itemId, eldest);
+                } else {
+                    eldest.strong = null;
+                    evictions.increment();
+                }
+            }
+        }
+
+        void expire(long oldestAccess) {
+            // a record is moved only when used, so the first one not used is accessed not earlier than it took its
+            // place, and so are all the next ones
+            for (int n = size(); n > 0; n--) {
+                Ref eldest = values().iterator().next();
+                if (eldest.accessedAt >= oldestAccess && !eldest.used)
+                    break;
+                remove(eldest.itemId);
+                if (eldest.accessedAt >= oldestAccess) {
+                    eldest.used = false;
+                    put(eldest.itemId, eldest);
+                } else {
+                    eldest.strong = null;
+                    evictions.increment();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,333 @@
+/*
+ * Copyright (c) 2018, iCodici S.n.C, All Rights Reserved
+ *
+ */
+
+package com.icodici.universa.node;
+
+import com.icodici.db.DbPool;
+import com.icodici.db.PooledDb;
+import com.icodici.universa.HashId;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Group commit writer of the {@link StateRecord}s to the postgres ledger.
+ * <p>
+ * Records saved concurrently by many threads are queued and written by the single writer thread: all the records
+ * queued while the previous batch was being written go to the next batch, which is written in one database
+ * transaction, new records with multi-row {@code INSERT ... RETURNING}, the changed ones with the JDBC batch of
+ * updates. The future returned by {@link #save(StateRecord)} completes when the transaction of its batch is committed.
+ * <p>
+ * Values of the record are taken at the moment of {@link #save(StateRecord)}, so the record could be changed while
+ * it waits in the queue. If the batch fails (e.g. unique index violation by one of the records), its records are
+ * written one by one, so the error is reported only to the callers of failed records.
+ */
+public class StateRecordWriter {
+
+    /**
+     * Rows per one multi-row insert statement, 5 parameters each.
+     */
+    static final int MAX_INSERT_ROWS = 500;
+
+    public static final int DEFAULT_MAX_BATCH = 1000;
+
+    private final DbPool dbPool;
+    private final LinkedBlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+    private final Thread writerThread;
+    private volatile boolean stopped = false;
+
+    /**
+     * Queued by {@link #shutdown()} to wake up and stop the writer thread.
+     */
+    private static final Pending STOP = new Pending();
+
+    private volatile long flushWindowMicros = 0;
+    private volatile int maxBatch = DEFAULT_MAX_BATCH;
+
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder records = new LongAdder();
+    private final LongAdder failedBatches = new LongAdder();
+
+    private static final AtomicInteger writerThreadNumber = new AtomicInteger(1);
+
+    public StateRecordWriter(DbPool dbPool) {
+        this.dbPool = dbPool;
+        writerThread = new Thread(this::run);
+        writerThread.setName("ledger-writer-" + writerThreadNumber.getAndIncrement());
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    /**
+     * Queue the record to save.
+     *
+     * @param record is record to insert (if it has no recordId yet) or update
+     * @return future completed when the record is committed to the ledger, with {@link Ledger.Failure} if it could
+     * not be written
+     */
+    public CompletableFuture<StateRecord> save(StateRecord record) {
+        Pending p = new Pending(record);
+        if (stopped) {
+            p.future.completeExceptionally(new Ledger.Failure("ledger writer is stopped"));
+            return p.future;
+        }
+        queue.add(p);
+        return p.future;
+    }
+
+    /**
+     * Stop the writer thread after writing records already queued.
+     */
+    public void shutdown() {
+        stopped = true;
+        queue.add(STOP);
+        try {
+            writerThread.join(10000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // the queue could be filled after the writer thread is gone
+        List<Pending> left = new ArrayList<>();
+        queue.drainTo(left);
+        left.stream().filter(p -> p != STOP)
+                .forEach(p -> p.future.completeExceptionally(new Ledger.Failure("ledger writer is stopped")));
+    }
+
+    private void run() {
+        boolean running = true;
+        while (running) {
+            List<Pending> batch = new ArrayList<>();
+            try {
+                batch.add(queue.take());
+                queue.drainTo(batch, maxBatch - batch.size());
+                long window = flushWindowMicros;
+                if (window > 0 && !stopped) {
+                    long deadline = System.nanoTime() + window * 1000;
+                    while (batch.size() < maxBatch) {
+                        long left = deadline - System.nanoTime();
+                        if (left <= 0)
+                            break;
+                        Pending p = queue.poll(left, TimeUnit.NANOSECONDS);
+                        if (p == null)
+                            break;
+                        batch.add(p);
+                        queue.drainTo(batch, maxBatch - batch.size());
+                    }
+                }
+            } catch (InterruptedException e) {
+                running = false;
+            }
+            if (batch.remove(STOP)) {
+                // write everything queued before shutdown
+                queue.drainTo(batch);
+                batch.remove(STOP);
+                running = false;
+            }
+            for (int from = 0; from < batch.size(); from += maxBatch)
+                write(batch.subList(from, Math.min(batch.size(), from + maxBatch)));
+        }
+    }
+
+    private void write(List<Pending> batch) {
+        try {
+            Map<Pending, Long> insertedIds = writeBatch(batch);
+            batches.increment();
+            records.add(batch.size());
+            complete(batch, insertedIds);
+        } catch (Exception e) {
+            if (batch.size() == 1) {
+                e.printStackTrace();
+                batch.get(0).future.completeExceptionally(e instanceof SQLException ?
+                        new Ledger.Failure("StateRecord save failed:" + e) :
+                        new Ledger.Failure("StateRecord save failed: " + e.getMessage(), e));
+            } else {
+                failedBatches.increment();
+                batch.forEach(p -> write(Collections.singletonList(p)));
+            }
+        } catch (Throwable t) {
+            t.printStackTrace();
+            batch.forEach(p -> p.future.completeExceptionally(t));
+        }
+    }
+
+    private void complete(List<Pending> batch, Map<Pending, Long> insertedIds) {
+        // ids are assigned only after commit, so failed batch does not leave records with ids of rolled back rows
+        insertedIds.forEach((p, id) -> p.record.setRecordId(id));
+        batch.forEach(p -> p.future.complete(p.record));
+    }
+
+    /**
+     * Write the whole batch in one transaction.
+     *
+     * @return ids of the inserted records
+     */
+    private Map<Pending, Long> writeBatch(List<Pending> batch) throws Exception {
+        // record saved more than once in the batch is inserted once, then updated
+        Map<StateRecord, Pending> firstInserts = new IdentityHashMap<>();
+        List<Pending> inserts = new ArrayList<>();
+        List<Pending> updates = new ArrayList<>();
+        for (Pending p : batch) {
+            if (p.record.getRecordId() == 0 && firstInserts.putIfAbsent(p.record, p) == null)
+                inserts.add(p);
+            else
+                updates.add(p);
+        }
+
+        Map<Pending, Long> insertedIds = new HashMap<>();
+        try (PooledDb db = dbPool.db()) {
+            db.transaction(() -> {
+                for (int from = 0; from < inserts.size(); from += MAX_INSERT_ROWS)
+                    insert(db, inserts.subList(from, Math.min(inserts.size(), from + MAX_INSERT_ROWS)), insertedIds);
+                if (!updates.isEmpty())
+                    update(db, updates, firstInserts, insertedIds);
+                return null;
+            });
+        }
+        return insertedIds;
+    }
+
+    private void insert(PooledDb db, List<Pending> rows, Map<Pending, Long> insertedIds) throws SQLException {
+        StringBuilder sql = new StringBuilder("insert into ledger(hash,state,created_at,expires_at,locked_by_id) values ");
+        for (int i = 0; i < rows.size(); i++)
+            sql.append(i == 0 ? "(?,?,?,?,?)" : ",(?,?,?,?,?)");
+        sql.append(" returning id, hash;");
+
+        try (PreparedStatement statement = PostgresLedger.generatedStatement(db, sql.toString())) {
+            int index = 1;
+            Map<HashId, Pending> byHash = new HashMap<>();
+            for (Pending p : rows) {
+                statement.setBytes(index++, p.itemId.getDigest());
+                statement.setInt(index++, p.state);
+                statement.setLong(index++, p.createdAt);
+                statement.setLong(index++, p.expiresAt);
+                statement.setLong(index++, p.lockedByRecordId);
+                byHash.put(p.itemId, p);
+            }
+            try (ResultSet rs = statement.executeQuery()) {
+                while (rs.next()) {
+                    Pending p = byHash.get(HashId.withDigest(rs.getBytes(2)));
+                    if (p != null)
+                        insertedIds.put(p, rs.getLong(1));
+                }
+            }
+            if (insertedIds.size() < rows.size())
+                throw new SQLException("generated keys are not returned for all the inserted records");
+        }
+    }
+
+    private void update(PooledDb db, List<Pending> rows, Map<StateRecord, Pending> firstInserts,
+                        Map<Pending, Long> insertedIds) throws SQLException {
+        try (PreparedStatement statement =
+                     db.statement("update ledger set state=?, expires_at=?, locked_by_id=? where id=?")) {
+            for (Pending p : rows) {
+                long recordId = p.record.getRecordId();
+                if (recordId == 0)
+                    recordId = insertedIds.get(firstInserts.get(p.record));
+                statement.setInt(1, p.state);
+                statement.setLong(2, p.expiresAt);
+                statement.setLong(3, p.lockedByRecordId);
+                statement.setLong(4, recordId);
+                statement.addBatch();
+            }
+            statement.executeBatch();
+        }
+    }
+
+    /**
+     * @return how long the writer waits for more records after the first one of the batch arrives
+     */
+    public Duration getFlushWindow() {
+        return Duration.ofNanos(flushWindowMicros * 1000);
+    }
+
+    /**
+     * Set how long the writer waits for more records after the first one of the batch arrives. By default it does not
+     * wait: the batch is formed by the records queued while the previous batch is being written, which keeps the
+     * latency of the single save the same as without batching.
+     *
+     * @param flushWindow is the wait time, zero to not wait
+     */
+    public void setFlushWindow(Duration flushWindow) {
+        if (flushWindow.isNegative())
+            throw new IllegalArgumentException("flush window can't be negative: " + flushWindow);
+        flushWindowMicros = flushWindow.toNanos() / 1000;
+    }
+
+    public int getMaxBatch() {
+        return maxBatch;
+    }
+
+    public void setMaxBatch(int maxBatch) {
+        if (maxBatch < 1)
+            throw new IllegalArgumentException("max batch should be positive: " + maxBatch);
+        this.maxBatch = maxBatch;
+    }
+
+    /**
+     * @return number of committed batches
+     */
+    public long getBatches() {
+        return batches.sum();
+    }
+
+    /**
+     * @return number of records written in committed batches
+     */
+    public long getRecords() {
+        return records.sum();
+    }
+
+    /**
+     * @return number of batches that failed and were written record by record
+     */
+    public long getFailedBatches() {
+        return failedBatches.sum();
+    }
+
+    /**
+     * @return average records per committed batch, 0 if nothing is written yet
+     */
+    public double getRecordsPerBatch() {
+        long b = batches.sum();
+        return b == 0 ? 0 : (double) records.sum() / b;
+    }
+
+    /**
+     * Queued save: the record and its values at the moment of save.
+     */
+    private static class Pending {
+        private final StateRecord record;
+        private final HashId itemId;
+        private final int state;
+        private final long createdAt;
+        private final long expiresAt;
+        private final long lockedByRecordId;
+        private final CompletableFuture<StateRecord> future = new CompletableFuture<>();
+
+        private Pending() {
+            record = null;
+            itemId = null;
+            state = 0;
+            createdAt = expiresAt = lockedByRecordId = 0;
+        }
+
+        Pending(StateRecord record) {
+            this.record = record;
+            itemId = record.getId();
+            state = record.getState().ordinal();
+            createdAt = StateRecord.unixTime(record.getCreatedAt());
+            expiresAt = StateRecord.unixTime(record.getExpiresAt());
+            lockedByRecordId = record.getLockedByRecordId();
+        }
+    }
+}
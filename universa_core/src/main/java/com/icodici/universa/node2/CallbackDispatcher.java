@@ -0,0 +1,336 @@
+/*
+ * Copyright (c) 2018, iCodici S.n.C, All Rights Reserved
+ *
+ */
+
+package com.icodici.universa.node2;
+
+import net.sergeych.tools.Do;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sends HTTP POST requests of the follower callbacks on its own threads, so slow or dead callback endpoints do not
+ * occupy the node executors.
+ * <p>
+ * Requests to the same host ({@code host:port}) are limited to {@link #getMaxRequestsPerHost()} at a time, the rest
+ * wait in the host queue. Connections are kept alive and reused by {@link HttpURLConnection}, as responses are read
+ * to the end and never disconnected. After {@link #getFailuresToOpenCircuit()} failures in a row (connection errors,
+ * timeouts and 5xx responses) the host circuit opens: its requests fail at once with {@link CircuitOpenException}
+ * for {@link #getOpenCircuitTime()}, after that one probe request is let through and its result closes or opens the
+ * circuit again.
+ */
+public class CallbackDispatcher {
+
+    public static final int DEFAULT_THREADS = 8;
+    public static final int DEFAULT_MAX_REQUESTS_PER_HOST = 2;
+    public static final int DEFAULT_MAX_QUEUED_PER_HOST = 256;
+    public static final int DEFAULT_FAILURES_TO_OPEN_CIRCUIT = 3;
+    public static final Duration DEFAULT_OPEN_CIRCUIT_TIME = Duration.ofSeconds(30);
+    public static final Duration DEFAULT_CONNECT_TIMEOUT = Duration.ofSeconds(2);
+    public static final Duration DEFAULT_READ_TIMEOUT = Duration.ofSeconds(5);
+
+    /**
+     * Request failed without sending because its host failed too many times recently.
+     */
+    public static class CircuitOpenException extends IOException {
+        public CircuitOpenException(String host) {
+            super("callback host " + host + " is not available");
+        }
+    }
+
+    private final ThreadPoolExecutor executor;
+    private final ConcurrentHashMap<String, Host> hosts = new ConcurrentHashMap<>();
+
+    private volatile int maxRequestsPerHost = DEFAULT_MAX_REQUESTS_PER_HOST;
+    private volatile int maxQueuedPerHost = DEFAULT_MAX_QUEUED_PER_HOST;
+    private volatile int failuresToOpenCircuit = DEFAULT_FAILURES_TO_OPEN_CIRCUIT;
+    private volatile Duration openCircuitTime = DEFAULT_OPEN_CIRCUIT_TIME;
+    private volatile Duration connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+    private volatile Duration readTimeout = DEFAULT_READ_TIMEOUT;
+
+    private static final AtomicInteger dispatcherNumber = new AtomicInteger(1);
+
+    public CallbackDispatcher() {
+        this(DEFAULT_THREADS);
+    }
+
+    /**
+     * @param threads is maximum number of requests sent at the same time to all hosts
+     */
+    public CallbackDispatcher(int threads) {
+        String prefix = "callback-dispatcher-" + dispatcherNumber.getAndIncrement() + "-";
+        AtomicInteger threadNumber = new AtomicInteger(1);
+        executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+            Thread thread = new Thread(r);
+            thread.setName(prefix + threadNumber.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Queue POST request.
+     *
+     * @param url is URL to post to
+     * @param headers are request properties
+     * @param body is request body
+     * @param onSent is called when the body is sent, before waiting for the response, could be null
+     * @return future completed with the response body if the response code is 200, with null for other codes, or
+     * with {@link IOException} if the request failed
+     */
+    public CompletableFuture<byte[]> post(String url, Map<String, String> headers, byte[] body, Runnable onSent) {
+        CompletableFuture<byte[]> future = new CompletableFuture<>();
+        if (executor.isShutdown()) {
+            future.completeExceptionally(new IOException("callback dispatcher is stopped"));
+            return future;
+        }
+        URL parsed;
+        try {
+            parsed = new URL(url);
+        } catch (IOException e) {
+            future.completeExceptionally(e);
+            return future;
+        }
+        String hostKey = parsed.getHost() + ":" + (parsed.getPort() != -1 ? parsed.getPort() : parsed.getDefaultPort());
+        Host host = hosts.computeIfAbsent(hostKey, Host::new);
+        host.submit(new Request(host, parsed, headers, body, onSent, future));
+        return future;
+    }
+
+    /**
+     * Stop sending, requests that are not sent yet fail.
+     */
+    public void shutdown() {
+        IOException stopped = new IOException("callback dispatcher is stopped");
+        for (Runnable r : executor.shutdownNow())
+            ((Request) r).future.completeExceptionally(stopped);
+        for (Host host : hosts.values())
+            host.failWaiting(stopped);
+    }
+
+    /**
+     * @return true if the circuit of the host ({@code host:port}) is open now
+     */
+    public boolean isCircuitOpen(String hostKey) {
+        Host host = hosts.get(hostKey);
+        return host != null && host.isOpen(System.currentTimeMillis());
+    }
+
+    private class Request implements Runnable {
+        final Host host;
+        final URL url;
+        final Map<String, String> headers;
+        final byte[] body;
+        final Runnable onSent;
+        final CompletableFuture<byte[]> future;
+
+        Request(Host host, URL url, Map<String, String> headers, byte[] body, Runnable onSent,
+                CompletableFuture<byte[]> future) {
+            this.host = host;
+            this.url = url;
+            this.headers = headers;
+            this.body = body;
+            this.onSent = onSent;
+            this.future = future;
+        }
+
+        @Override
+        public void run() {
+            byte[] answer = null;
+            IOException error = null;
+            boolean failed;
+            try {
+                int[] code = new int[1];
+                answer = send(code);
+                failed = code[0] >= 500;
+            } catch (IOException e) {
+                error = e;
+                failed = true;
+            } catch (Exception e) {
+                error = new IOException(e);
+                failed = true;
+            }
+            host.done(failed);
+            if (error != null)
+                future.completeExceptionally(error);
+            else
+                future.complete(answer);
+        }
+
+        private byte[] send(int[] code) throws IOException {
+            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setConnectTimeout((int) connectTimeout.toMillis());
+            connection.setReadTimeout((int) readTimeout.toMillis());
+            connection.setFixedLengthStreamingMode(body.length);
+            if (headers != null)
+                headers.forEach(connection::setRequestProperty);
+
+            try (OutputStream output = connection.getOutputStream()) {
+                output.write(body);
+            }
+            if (onSent != null)
+                onSent.run();
+
+            code[0] = connection.getResponseCode();
+            // read the response to the end and close it, so the connection returns to the keep-alive cache
+            try (InputStream input = code[0] < 400 ? connection.getInputStream() : connection.getErrorStream()) {
+                if (input == null)
+                    return null;
+                byte[] answer = Do.read(input);
+                return code[0] == 200 ? answer : null;
+            }
+        }
+    }
+
+    private class Host {
+        final String key;
+        final ArrayDeque<Request> waiting = new ArrayDeque<>();
+        int running = 0;
+        int failures = 0;
+        long openUntil = 0;
+        boolean probing = false;
+
+        Host(String key) {
+            this.key = key;
+        }
+
+        synchronized boolean isOpen(long now) {
+            return failures >= failuresToOpenCircuit && (now < openUntil || probing);
+        }
+
+        void submit(Request request) {
+            IOException rejected = null;
+            synchronized (this) {
+                long now = System.currentTimeMillis();
+                if (failures >= failuresToOpenCircuit) {
+                    if (now < openUntil || probing || running > 0)
+                        rejected = new CircuitOpenException(key);
+                    else
+                        probing = true;
+                }
+                if (rejected == null) {
+                    if (running < maxRequestsPerHost) {
+                        if (!start(request))
+                            rejected = new IOException("callback dispatcher is stopped");
+                    } else if (waiting.size() < maxQueuedPerHost) {
+                        waiting.add(request);
+                    } else {
+                        rejected = new IOException("too many callbacks queued to " + key);
+                    }
+                }
+            }
+            if (rejected != null)
+                request.future.completeExceptionally(rejected);
+        }
+
+        void done(boolean failed) {
+            List<Request> rejected = null;
+            synchronized (this) {
+                running--;
+                probing = false;
+                if (failed) {
+                    if (++failures >= failuresToOpenCircuit) {
+                        openUntil = System.currentTimeMillis() + openCircuitTime.toMillis();
+                        rejected = new ArrayList<>(waiting);
+                        waiting.clear();
+                    }
+                } else
+                    failures = 0;
+                if (rejected == null && !waiting.isEmpty()) {
+                    Request next = waiting.poll();
+                    if (!start(next))
+                        rejected = Collections.singletonList(next);
+                }
+            }
+            if (rejected != null)
+                rejected.forEach(r -> r.future.completeExceptionally(new CircuitOpenException(key)));
+        }
+
+        /**
+         * Run the request, must be called under the host lock.
+         */
+        private boolean start(Request request) {
+            try {
+                executor.execute(request);
+                running++;
+                return true;
+            } catch (RejectedExecutionException e) {
+                probing = false;
+                return false;
+            }
+        }
+
+        void failWaiting(IOException error) {
+            List<Request> rejected;
+            synchronized (this) {
+                rejected = new ArrayList<>(waiting);
+                waiting.clear();
+            }
+            rejected.forEach(r -> r.future.completeExceptionally(error));
+        }
+    }
+
+    public int getMaxRequestsPerHost() {
+        return maxRequestsPerHost;
+    }
+
+    public void setMaxRequestsPerHost(int maxRequestsPerHost) {
+        this.maxRequestsPerHost = maxRequestsPerHost;
+    }
+
+    public int getMaxQueuedPerHost() {
+        return maxQueuedPerHost;
+    }
+
+    public void setMaxQueuedPerHost(int maxQueuedPerHost) {
+        this.maxQueuedPerHost = maxQueuedPerHost;
+    }
+
+    public int getFailuresToOpenCircuit() {
+        return failuresToOpenCircuit;
+    }
+
+    public void setFailuresToOpenCircuit(int failuresToOpenCircuit) {
+        this.failuresToOpenCircuit = failuresToOpenCircuit;
+    }
+
+    public Duration getOpenCircuitTime() {
+        return openCircuitTime;
+    }
+
+    public void setOpenCircuitTime(Duration openCircuitTime) {
+        this.openCircuitTime = openCircuitTime;
+    }
+
+    public Duration getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    public void setConnectTimeout(Duration connectTimeout) {
+        this.connectTimeout = connectTimeout;
+    }
+
+    public Duration getReadTimeout() {
+        return readTimeout;
+    }
+
+    public void setReadTimeout(Duration readTimeout) {
+        this.readTimeout = readTimeout;
+    }
+}
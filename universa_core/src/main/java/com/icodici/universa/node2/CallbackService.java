@@ -14,23 +14,16 @@ import com.icodici.universa.node2.network.DatagramAdapter;
 import com.icodici.universa.node2.network.Network;
 import net.sergeych.boss.Boss;
 import net.sergeych.tools.Binder;
-import net.sergeych.tools.Do;
 import net.sergeych.utils.Ut;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.io.PrintWriter;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.net.URLConnection;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.time.ZonedDateTime;
-import java.util.Collection;
-import java.util.List;
-import java.util.TreeSet;
+import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Universa network callback service. The service creates a callback processor, sends a callback to distant callback URL,
@@ -48,6 +41,7 @@ public class CallbackService {
     private final Network network;
     private final PrivateKey nodeKey;
     private final ScheduledExecutorService executorService;
+    private final CallbackDispatcher callbackDispatcher = new CallbackDispatcher();
 
     private ConcurrentHashMap<HashId, CallbackProcessor> callbackProcessors = new ConcurrentHashMap<>();
     private ConcurrentHashMap<HashId, CallbackNotification> deferredCallbackNotifications = new ConcurrentHashMap<>();
@@ -188,89 +182,80 @@ public class CallbackService {
 
     /**
      * Request distant callback URL. Send new revision of following contract and signature (by node key).
-     * Receive answer and return it if HTTP response code equals 200.
+     * The request is sent by {@link CallbackDispatcher}, so it does not occupy the node executors.
      *
      * @param callback is callback processor
      * @param callbackURL is callback URL
      * @param packedData is packed new revision of following contract or identifier of revoking following contract
      *
-     * @return callback receipt (signed with callback key identifier of following contract) or null (if connection error)
+     * @return future completed with callback receipt (signed with callback key identifier of following contract) or
+     * null (if HTTP response code is not 200 or the answer has no receipt), or with {@link IOException} if connection
+     * failed
      *
      */
-    private byte[] requestFollowerCallback(CallbackProcessor callback, String callbackURL, byte[] packedData) throws IOException {
-        synchronized (this) {
-            String charset = "UTF-8";
-
-            Binder call;
-
-            if (callback.getState() == ItemState.APPROVED)
-                call = Binder.fromKeysValues(
-                        "event", "new",
-                        "data", packedData,
-                        "signature", nodeKey.sign(packedData, HashType.SHA512),
-                        "key", nodeKey.getPublicKey().pack()
-                );
-            else if (callback.getState() == ItemState.REVOKED)
-                call = Binder.fromKeysValues(
-                        "event", "revoke",
-                        "id", packedData,
-                        "signature", nodeKey.sign(packedData, HashType.SHA512),
-                        "key", nodeKey.getPublicKey().pack()
-                );
-            else
-                return null;
-
-            byte[] data = Boss.pack(call);
-
-            final String CRLF = "\r\n"; // Line separator required by multipart/form-data.
-            String boundary = "==boundary==" + Ut.randomString(48);
-
-            URLConnection connection = new URL(callbackURL).openConnection();
-
-            connection.setDoOutput(true);
-            connection.setConnectTimeout(2000);
-            connection.setReadTimeout(5000);
-            connection.setRequestProperty("Content-Type", "multipart/form-data; boundary=" + boundary);
-            connection.setRequestProperty("User-Agent", "Universa Node");
-
-            try (
-                    OutputStream output = connection.getOutputStream();
-                    PrintWriter writer = new PrintWriter(new OutputStreamWriter(output, charset), true);
-            ) {
-                // Send binary file.
-                writer.append("--" + boundary).append(CRLF);
-                writer.append("Content-Disposition: form-data; name=\"callbackData\"; filename=\"callbackData.boss\"").append(CRLF);
-                writer.append("Content-Type: application/octet-stream").append(CRLF);
-                writer.append("Content-Transfer-Encoding: binary").append(CRLF);
-                writer.append(CRLF).flush();
-                output.write(data);
-                output.flush(); // Important before continuing with writer!
-                writer.append(CRLF).flush(); // CRLF is important! It indicates end of boundary.
-
-                // End of multipart/form-data.
-                writer.append("--" + boundary + "--").append(CRLF).flush();
-            }
-
-            callback.setItemSended();
-
-            HttpURLConnection httpConnection = (HttpURLConnection) connection;
-            byte[] answer = null;
-
-            if (httpConnection.getResponseCode() == 200)
-                answer = Do.read(httpConnection.getInputStream());
-
-            httpConnection.disconnect();
-
-            // get receipt from answer
-            if (answer == null)
-                return null;
-
-            Binder res = Boss.unpack(answer);
-            if (!res.containsKey("receipt"))
-                return null;
+    private CompletableFuture<byte[]> requestFollowerCallback(CallbackProcessor callback, String callbackURL, byte[] packedData)
+            throws EncryptionError {
+        Binder call;
+
+        if (callback.getState() == ItemState.APPROVED)
+            call = Binder.fromKeysValues(
+                    "event", "new",
+                    "data", packedData,
+                    "signature", nodeKey.sign(packedData, HashType.SHA512),
+                    "key", nodeKey.getPublicKey().pack()
+            );
+        else if (callback.getState() == ItemState.REVOKED)
+            call = Binder.fromKeysValues(
+                    "event", "revoke",
+                    "id", packedData,
+                    "signature", nodeKey.sign(packedData, HashType.SHA512),
+                    "key", nodeKey.getPublicKey().pack()
+            );
+        else
+            return CompletableFuture.completedFuture(null);
+
+        byte[] data = Boss.pack(call);
+
+        final String CRLF = "\r\n"; // Line separator required by multipart/form-data.
+        String boundary = "==boundary==" + Ut.randomString(48);
+
+        // Send binary file.
+        ByteArrayOutputStream body = new ByteArrayOutputStream(data.length + 512);
+        String header = "--" + boundary + CRLF +
+                "Content-Disposition: form-data; name=\"callbackData\"; filename=\"callbackData.boss\"" + CRLF +
+                "Content-Type: application/octet-stream" + CRLF +
+                "Content-Transfer-Encoding: binary" + CRLF +
+                CRLF;
+        byte[] headerBytes = header.getBytes(StandardCharsets.UTF_8);
+        body.write(headerBytes, 0, headerBytes.length);
+        body.write(data, 0, data.length);
+        // CRLF is important! It indicates end of boundary. End of multipart/form-data.
+        byte[] footer = (CRLF + "--" + boundary + "--" + CRLF).getBytes(StandardCharsets.UTF_8);
+        body.write(footer, 0, footer.length);
+
+        Map<String, String> headers = new HashMap<>();
+        headers.put("Content-Type", "multipart/form-data; boundary=" + boundary);
+        headers.put("User-Agent", "Universa Node");
+
+        return callbackDispatcher.post(callbackURL, headers, body.toByteArray(), callback::setItemSended)
+                .thenApply(answer -> {
+                    // get receipt from answer
+                    if (answer == null)
+                        return null;
+
+                    Binder res = Boss.unpack(answer);
+                    if (!res.containsKey("receipt"))
+                        return null;
+
+                    return res.getBinary("receipt");
+                });
+    }
 
-            return res.getBinary("receipt");
-        }
+    /**
+     * Stop sending follower callbacks.
+     */
+    public void shutdown() {
+        callbackDispatcher.shutdown();
     }
 
     /**
@@ -349,7 +334,9 @@ public class CallbackService {
         private String callbackURL;
         private PublicKey callbackKey;
         private ScheduledFuture<?> executor;
-        private boolean isItemSended;
+        private volatile boolean isItemSended;
+        private final AtomicBoolean isRequesting = new AtomicBoolean(false);
+        private final AtomicBoolean isFinished = new AtomicBoolean(false);
         private ConcurrentSkipListSet<Integer> nodesSendCallback = new ConcurrentSkipListSet<>();
         private final CallbackService callbackService;
 
@@ -467,6 +454,10 @@ public class CallbackService {
         }
 
         private void complete() {
+            // could be called by network notifications and by the callback request completion
+            if (!isFinished.compareAndSet(false, true))
+                return;
+
             synchronized (callbackService) {
                 // full environment
                 Binder fullEnvironment = node.getFullEnvironment(environmentId);
@@ -495,6 +486,9 @@ public class CallbackService {
         }
 
         private void fail() {
+            if (!isFinished.compareAndSet(false, true))
+                return;
+
             synchronized (callbackService) {
                 // full environment
                 Binder fullEnvironment = node.getFullEnvironment(environmentId);
@@ -538,24 +532,28 @@ public class CallbackService {
 
                     addNodeToSended(myInfo.getNumber());
                     checkForComplete();
-                } else {     // callback not previously called
-                    // request HTTP follower callback
-                    byte[] signature = null;
+                } else if (isRequesting.compareAndSet(false, true)) {     // callback not previously called
+                    // request HTTP follower callback, the answer is processed in the dispatcher thread
+                    byte[] packedData = (state == ItemState.APPROVED) ? packedItem : itemId.getDigest();
+                    CompletableFuture<byte[]> request;
                     try {
-                        if (state == ItemState.APPROVED)
-                            signature = requestFollowerCallback(this, callbackURL, packedItem);
-                        else if (state == ItemState.REVOKED)
-                            signature = requestFollowerCallback(this, callbackURL, itemId.getDigest());
-                    } catch (IOException e) {
+                        request = requestFollowerCallback(this, callbackURL, packedData);
+                    } catch (EncryptionError e) {
                         e.printStackTrace();
-                        System.err.println("error request HTTP follower callback");
-                    }
-
-                    if ((signature != null) && checkCallbackSignature(signature)) {
-                        network.broadcast(myInfo, new CallbackNotification(myInfo, id,
-                                CallbackNotification.CallbackNotificationType.COMPLETED, signature));
-                        complete();
+                        isRequesting.set(false);
+                        return;
                     }
+                    request.whenComplete((signature, e) -> {
+                        isRequesting.set(false);
+                        if (e != null) {
+                            node.report(DatagramAdapter.VerboseLevel.BASE, "error request HTTP follower callback ",
+                                    id.toBase64String(), ": ", e.getMessage());
+                        } else if ((signature != null) && checkCallbackSignature(signature)) {
+                            network.broadcast(myInfo, new CallbackNotification(myInfo, id,
+                                    CallbackNotification.CallbackNotificationType.COMPLETED, signature));
+                            complete();
+                        }
+                    });
                 }
             }
         }
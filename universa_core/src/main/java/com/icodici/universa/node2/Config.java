@@ -103,6 +103,14 @@ public class Config {
         config.followerCallbackStateStoreTime = followerCallbackStateStoreTime;
         config.followerCallbackSynchronizationInterval = followerCallbackSynchronizationInterval;
         config.ratioNodesSendFollowerCallbackToComplete = ratioNodesSendFollowerCallbackToComplete;
+        config.ledgerCleanupBatchSize = ledgerCleanupBatchSize;
+        config.ledgerCleanupMaxRowsPerSecond = ledgerCleanupMaxRowsPerSecond;
+        config.ledgerCleanupMaxElections = ledgerCleanupMaxElections;
+        config.ledgerMinConnections = ledgerMinConnections;
+        config.ledgerMaxConnections = ledgerMaxConnections;
+        config.ledgerConnectionBorrowTimeout = ledgerConnectionBorrowTimeout;
+        config.ledgerConnectionLeakThreshold = ledgerConnectionLeakThreshold;
+        config.ledgerConnectionLeakTrace = ledgerConnectionLeakTrace;
         return config;
     }
 
@@ -214,6 +222,14 @@ public class Config {
     private Duration followerCallbackStateStoreTime = Duration.ofDays(3);
     private Duration followerCallbackSynchronizationInterval = Duration.ofHours(12);
     private BigDecimal ratioNodesSendFollowerCallbackToComplete = BigDecimal.valueOf(0.3);
+    private int ledgerCleanupBatchSize = 1000;
+    private int ledgerCleanupMaxRowsPerSecond = 10000;
+    private int ledgerCleanupMaxElections = 200;
+    private int ledgerMinConnections = 4;
+    private int ledgerMaxConnections = 64;
+    private Duration ledgerConnectionBorrowTimeout = Duration.ofSeconds(30);
+    private Duration ledgerConnectionLeakThreshold = Duration.ofMinutes(1);
+    private boolean ledgerConnectionLeakTrace = false;
 
     private Boolean permanetMode = null;
     private Boolean isFreeRegistrationsLimited = null;
@@ -547,4 +563,87 @@ public class Config {
     public void setRatioNodesSendFollowerCallbackToComplete(BigDecimal ratioNodesSendFollowerCallbackToComplete) {
         this.ratioNodesSendFollowerCallbackToComplete = ratioNodesSendFollowerCallbackToComplete;
     }
+
+    public int getLedgerCleanupBatchSize() {
+        return ledgerCleanupBatchSize;
+    }
+
+    public void setLedgerCleanupBatchSize(int ledgerCleanupBatchSize) {
+        this.ledgerCleanupBatchSize = ledgerCleanupBatchSize;
+    }
+
+    /**
+     * @return rate limit of the expired ledger data deletion, rows per second, 0 for no limit
+     */
+    public int getLedgerCleanupMaxRowsPerSecond() {
+        return ledgerCleanupMaxRowsPerSecond;
+    }
+
+    public void setLedgerCleanupMaxRowsPerSecond(int ledgerCleanupMaxRowsPerSecond) {
+        this.ledgerCleanupMaxRowsPerSecond = ledgerCleanupMaxRowsPerSecond;
+    }
+
+    /**
+     * @return number of elections and parcels in progress above which the ledger cleanup pauses
+     */
+    public int getLedgerCleanupMaxElections() {
+        return ledgerCleanupMaxElections;
+    }
+
+    public void setLedgerCleanupMaxElections(int ledgerCleanupMaxElections) {
+        this.ledgerCleanupMaxElections = ledgerCleanupMaxElections;
+    }
+
+    /**
+     * @return number of ledger database connections kept open even when idle
+     */
+    public int getLedgerMinConnections() {
+        return ledgerMinConnections;
+    }
+
+    public void setLedgerMinConnections(int ledgerMinConnections) {
+        this.ledgerMinConnections = ledgerMinConnections;
+    }
+
+    public int getLedgerMaxConnections() {
+        return ledgerMaxConnections;
+    }
+
+    public void setLedgerMaxConnections(int ledgerMaxConnections) {
+        this.ledgerMaxConnections = ledgerMaxConnections;
+    }
+
+    /**
+     * @return time to wait for a free ledger database connection before the operation fails
+     */
+    public Duration getLedgerConnectionBorrowTimeout() {
+        return ledgerConnectionBorrowTimeout;
+    }
+
+    public void setLedgerConnectionBorrowTimeout(Duration ledgerConnectionBorrowTimeout) {
+        this.ledgerConnectionBorrowTimeout = ledgerConnectionBorrowTimeout;
+    }
+
+    /**
+     * @return time a ledger database connection could be held before it is reported as leaked, zero to not trace
+     */
+    public Duration getLedgerConnectionLeakThreshold() {
+        return ledgerConnectionLeakThreshold;
+    }
+
+    public void setLedgerConnectionLeakThreshold(Duration ledgerConnectionLeakThreshold) {
+        this.ledgerConnectionLeakThreshold = ledgerConnectionLeakThreshold;
+    }
+
+    /**
+     * @return true to report leaked ledger database connections with the stack of the code that took them, which
+     * costs a stack capture on every borrow
+     */
+    public boolean isLedgerConnectionLeakTrace() {
+        return ledgerConnectionLeakTrace;
+    }
+
+    public void setLedgerConnectionLeakTrace(boolean ledgerConnectionLeakTrace) {
+        this.ledgerConnectionLeakTrace = ledgerConnectionLeakTrace;
+    }
 }
@@ -13,40 +13,41 @@ import com.icodici.universa.node.ItemResult;
 import org.checkerframework.checker.nullness.qual.Nullable;
 
 import java.time.Duration;
-import java.time.Instant;
-import java.util.Timer;
-import java.util.TimerTask;
 import java.util.concurrent.ConcurrentHashMap;
 
 public class EnvCache {
 
-    private final Timer cleanerTimer = new Timer();
+    public static final int DEFAULT_MAX_ENTRIES = 100_000;
+
     private final Duration maxAge;
+    private final ExpiryWheel<Long, NImmutableEnvironment> expiry;
 
     public EnvCache(Duration maxAge) {
+        this(maxAge, DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * Create cache.
+     *
+     * @param maxAge is how long the environment is kept since it was put
+     * @param maxEntries is max environments count, least recently put environments are dropped above it
+     */
+    public EnvCache(Duration maxAge, int maxEntries) {
         this.maxAge = maxAge;
-        cleanerTimer.schedule(new TimerTask() {
-            @Override
-            public void run() {
-                cleanUp();
-            }
-        }, 5000, 5000);
+        this.expiry = new ExpiryWheel<>(ExpiryWheel.tickFor(maxAge), maxEntries, this::expired);
+    }
+
+    private void expired(Long envId, NImmutableEnvironment env) {
+        if(environemtsById.remove(envId, env))
+            environemtsByContract.remove(env.getContract().getId(), env);
     }
 
     final void cleanUp() {
-        // we should avoid creating an object for each check:
-        Instant now = Instant.now();
-        environmetsExpiration.keySet().forEach(envId -> {
-            if(environmetsExpiration.get(envId).isBefore(now)) {
-                environmetsExpiration.remove(envId);
-                environemtsByContract.remove(environemtsById.remove(envId).getContract().getId());
-            }
-        });
+        expiry.expire();
     }
 
     public void shutdown() {
-        cleanerTimer.cancel();
-        cleanerTimer.purge();
+        expiry.shutdown();
     }
 
     public @Nullable NImmutableEnvironment get(HashId itemId) {
@@ -59,12 +60,11 @@ public class EnvCache {
         //TODO: fixed env cache related errors. swapping ids etc
         //environemtsByContract.put(env.getContract().getId(),env);
         //environemtsById.put(env.getId(),env);
-        //environmetsExpiration.put(env.getId(),Instant.now().plus(maxAge));
+        //expiry.schedule(env.getId(),env,maxAge);
     }
 
     private ConcurrentHashMap<HashId,NImmutableEnvironment> environemtsByContract = new ConcurrentHashMap();
     private ConcurrentHashMap<Long,NImmutableEnvironment> environemtsById = new ConcurrentHashMap();
-    private ConcurrentHashMap<Long,Instant> environmetsExpiration = new ConcurrentHashMap();
 
 
     public int size() {
@@ -80,7 +80,7 @@ public class EnvCache {
         if(env != null) {
             long envId = env.getId();
             environemtsById.remove(envId);
-            environmetsExpiration.remove(envId);
+            expiry.remove(envId);
         }
     }
 }
@@ -0,0 +1,309 @@
+/*
+ * Copyright (c) 2018, iCodici S.n.C, All Rights Reserved
+ *
+ */
+
+package com.icodici.universa.node2;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.LongSupplier;
+
+/**
+ * Expiration engine for the node caches: hierarchical timing wheel with the entries count limit.
+ * <p>
+ * Each scheduled key is put to the slot of the wheel level that covers its expiration time: the lowest level has
+ * {@link #SLOTS} slots of one tick, each next one has {@link #SLOTS} slots as long as the whole previous level. Every
+ * tick expires the entries of one slot of the lowest level, and when a level turns around, entries of the next slot of
+ * the level above are moved down. Schedule, reschedule and removal are O(1), and a tick costs only the entries that
+ * expire or move down, so unlike the sweep of the whole cache it does not depend on the cache size.
+ * <p>
+ * When more than max entries are scheduled, the least recently scheduled or touched entries are evicted before they
+ * expire. Expired and evicted entries are passed to the listener with the value they were scheduled with, so the cache
+ * can remove exactly that value (e.g. with {@link java.util.concurrent.ConcurrentHashMap#remove(Object, Object)})
+ * even if the key was scheduled again meanwhile.
+ * <p>
+ * All the wheels are ticked by one shared daemon thread; {@link #shutdown()} detaches the wheel from it.
+ *
+ * @param <K> key type
+ * @param <V> value type, passed back to the listener
+ */
+public class ExpiryWheel<K, V> {
+
+    static final int SLOT_BITS = 6;
+    static final int SLOTS = 1 << SLOT_BITS;
+    static final int LEVELS = 4;
+
+    /**
+     * Longest delay the wheel covers, in ticks. Longer ones are placed at the upper bound and rescheduled there.
+     */
+    static final long MAX_DELAY_TICKS = (1L << (SLOT_BITS * LEVELS)) - 1;
+
+    private static final ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r);
+        thread.setName("cache-expiry");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final long tickMillis;
+    private final int maxEntries;
+    private final BiConsumer<K, V> listener;
+    private final LongSupplier clock;
+    private final long startMillis;
+
+    private final Entry<K, V>[][] wheel;
+    private final HashMap<K, Entry<K, V>> entries = new HashMap<>();
+    // least recently scheduled/touched first
+    private final Entry<K, V> lru = new Entry<>(null, null, 0);
+
+    private long currentTick = 0;
+    private ScheduledFuture<?> tickTask;
+
+    /**
+     * Create wheel ticked by the shared thread.
+     *
+     * @param tick is the expiration precision
+     * @param maxEntries is the entries limit, the least recently used are evicted above it
+     * @param listener is called with expired or evicted key and value, outside of the wheel lock
+     */
+    public ExpiryWheel(Duration tick, int maxEntries, BiConsumer<K, V> listener) {
+        this(tick, maxEntries, listener, System::currentTimeMillis);
+        tickTask = ticker.scheduleAtFixedRate(this::expire, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Create wheel that expires entries only on {@link #expire()} calls, with the given time source. Useful to tick
+     * the wheel from the owner's own thread, and in tests and benchmarks.
+     *
+     * @param tick is the expiration precision
+     * @param maxEntries is the entries limit, the least recently used are evicted above it
+     * @param listener is called with expired or evicted key and value, outside of the wheel lock
+     * @param clock is time source in milliseconds
+     */
+    @SuppressWarnings("unchecked")
+    public ExpiryWheel(Duration tick, int maxEntries, BiConsumer<K, V> listener, LongSupplier clock) {
+        if (tick.toMillis() < 1)
+            throw new IllegalArgumentException("tick should be at least 1ms: " + tick);
+        if (maxEntries < 1)
+            throw new IllegalArgumentException("max entries should be positive: " + maxEntries);
+        this.tickMillis = tick.toMillis();
+        this.maxEntries = maxEntries;
+        this.listener = listener;
+        this.clock = clock;
+        this.startMillis = clock.getAsLong();
+        wheel = new Entry[LEVELS][SLOTS];
+        lru.lruPrev = lru.lruNext = lru;
+    }
+
+    /**
+     * Tick for the cache with the given max age: 1/64 of it, so the wheel expires entries not later than 1.5% of their
+     * age, but not more often than each millisecond and not less often than each second.
+     *
+     * @param maxAge is max age of the cache entries
+     * @return tick to create the wheel with
+     */
+    public static Duration tickFor(Duration maxAge) {
+        long millis = Math.max(1, Math.min(1000, maxAge.toMillis() / SLOTS));
+        return Duration.ofMillis(millis);
+    }
+
+    /**
+     * Schedule expiration of the key, replacing the previous schedule of this key if any.
+     *
+     * @param key is key to expire
+     * @param value is value to pass to the listener
+     * @param ttl is time to live
+     */
+    public void schedule(K key, V value, Duration ttl) {
+        List<Entry<K, V>> evicted = null;
+        synchronized (this) {
+            long expiresTick = currentTick + Math.max(1, (ttl.toMillis() + tickMillis - 1) / tickMillis);
+            Entry<K, V> e = entries.get(key);
+            if (e != null) {
+                unlinkSlot(e);
+                unlinkLru(e);
+                e.value = value;
+                e.expiresTick = expiresTick;
+            } else {
+                e = new Entry<>(key, value, expiresTick);
+                entries.put(key, e);
+            }
+            place(e, 1);
+            linkLru(e);
+            while (entries.size() > maxEntries) {
+                Entry<K, V> eldest = lru.lruNext;
+                drop(eldest);
+                if (evicted == null)
+                    evicted = new ArrayList<>();
+                evicted.add(eldest);
+            }
+        }
+        if (evicted != null)
+            evicted.forEach(e -> listener.accept(e.key, e.value));
+    }
+
+    /**
+     * Mark the key as recently used, so it is evicted by the entries limit later. Does not change its expiration.
+     *
+     * @param key is used key
+     */
+    public synchronized void touch(K key) {
+        Entry<K, V> e = entries.get(key);
+        if (e != null && lru.lruPrev != e) {
+            unlinkLru(e);
+            linkLru(e);
+        }
+    }
+
+    /**
+     * Forget the key without calling the listener.
+     *
+     * @param key is key to forget
+     */
+    public synchronized void remove(K key) {
+        Entry<K, V> e = entries.get(key);
+        if (e != null)
+            drop(e);
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Expire entries up to the current time. Called by the shared ticker thread.
+     */
+    public void expire() {
+        List<Entry<K, V>> expired = new ArrayList<>();
+        synchronized (this) {
+            long nowTick = (clock.getAsLong() - startMillis) / tickMillis;
+            while (currentTick < nowTick) {
+                currentTick++;
+                for (int level = LEVELS - 1; level > 0; level--) {
+                    if ((currentTick & ((1L << (SLOT_BITS * level)) - 1)) == 0)
+                        cascade(level, slotOf(currentTick, level));
+                }
+                Entry<K, V> e = wheel[0][slotOf(currentTick, 0)];
+                while (e != null) {
+                    Entry<K, V> next = e.next;
+                    if (e.expiresTick <= currentTick) {
+                        drop(e);
+                        expired.add(e);
+                    } else {
+                        // was placed at the upper bound of the wheel
+                        unlinkSlot(e);
+                        place(e, 1);
+                    }
+                    e = next;
+                }
+            }
+        }
+        for (Entry<K, V> e : expired) {
+            try {
+                listener.accept(e.key, e.value);
+            } catch (Exception ex) {
+                ex.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Stop ticking this wheel.
+     */
+    public void shutdown() {
+        if (tickTask != null)
+            tickTask.cancel(false);
+    }
+
+    private static int slotOf(long tick, int level) {
+        return (int) ((tick >>> (SLOT_BITS * level)) & (SLOTS - 1));
+    }
+
+    private void cascade(int level, int slot) {
+        Entry<K, V> e = wheel[level][slot];
+        wheel[level][slot] = null;
+        while (e != null) {
+            Entry<K, V> next = e.next;
+            e.prev = e.next = null;
+            // entries expiring right now go to the lowest level slot being expired
+            place(e, 0);
+            e = next;
+        }
+    }
+
+    /**
+     * Put the entry to the slot of its expiration tick.
+     *
+     * @param minDelay is 1 for entries placed between ticks, 0 for entries moved down during the tick
+     */
+    private void place(Entry<K, V> e, int minDelay) {
+        long delay = e.expiresTick - currentTick;
+        long placeTick = delay > MAX_DELAY_TICKS ?
+                currentTick + MAX_DELAY_TICKS : Math.max(e.expiresTick, currentTick + minDelay);
+        delay = placeTick - currentTick;
+        int level = 0;
+        while (level < LEVELS - 1 && delay >= (1L << (SLOT_BITS * (level + 1))))
+            level++;
+        int slot = slotOf(placeTick, level);
+        e.level = level;
+        e.slot = slot;
+        e.prev = null;
+        e.next = wheel[level][slot];
+        if (e.next != null)
+            e.next.prev = e;
+        wheel[level][slot] = e;
+    }
+
+    private void unlinkSlot(Entry<K, V> e) {
+        if (e.prev != null)
+            e.prev.next = e.next;
+        else
+            wheel[e.level][e.slot] = e.next;
+        if (e.next != null)
+            e.next.prev = e.prev;
+        e.prev = e.next = null;
+    }
+
+    private void linkLru(Entry<K, V> e) {
+        e.lruPrev = lru.lruPrev;
+        e.lruNext = lru;
+        lru.lruPrev.lruNext = e;
+        lru.lruPrev = e;
+    }
+
+    private void unlinkLru(Entry<K, V> e) {
+        e.lruPrev.lruNext = e.lruNext;
+        e.lruNext.lruPrev = e.lruPrev;
+        e.lruPrev = e.lruNext = null;
+    }
+
+    private void drop(Entry<K, V> e) {
+        unlinkSlot(e);
+        unlinkLru(e);
+        entries.remove(e.key);
+    }
+
+    private static class Entry<K, V> {
+        private final K key;
+        private V value;
+        private long expiresTick;
+        private int level;
+        private int slot;
+        private Entry<K, V> prev, next;
+        private Entry<K, V> lruPrev, lruNext;
+
+        Entry(K key, V value, long expiresTick) {
+            this.key = key;
+            this.value = value;
+            this.expiresTick = expiresTick;
+        }
+    }
+}
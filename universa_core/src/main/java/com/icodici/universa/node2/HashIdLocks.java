@@ -0,0 +1,285 @@
+/*
+ * Copyright (c) 2018, iCodici S.n.C, All Rights Reserved
+ *
+ */
+
+package com.icodici.universa.node2;
+
+import com.icodici.universa.HashId;
+import net.sergeych.tools.Binder;
+
+import java.time.Duration;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Table of reentrant locks, one per {@link HashId}, base of {@link ItemLock} and {@link ParcelLock}.
+ * <p>
+ * Equal ids always get the same lock, no matter which {@link HashId} instances are used. The lock is kept in the table
+ * while it is referenced: by the threads in {@link #synchronize(HashId, Function)} or waiting for it, and by the
+ * owners that {@link #retain(Object)} it to use it as a mutex after {@code synchronize} returns. The last {@link
+ * #release(Object)} removes it, so the table holds only the locks in use, without global locking and without waiting
+ * for the garbage collector.
+ * <p>
+ * The table counts acquisitions, time spent waiting for and holding the locks, and contended acquisitions of the ids
+ * to find the hot ones, see {@link #getStats()}.
+ */
+public class HashIdLocks {
+
+    /**
+     * How many ids are tracked for {@link #getHotIds(int)}, contention of other ids is counted only in total.
+     */
+    static final int MAX_HOT_IDS = 1000;
+
+    /**
+     * The lock of the id. It is the object passed to the callable of {@link #synchronize(HashId, Function)}.
+     */
+    public static final class Lock extends ReentrantLock {
+        private final HashId id;
+        // guarded by the table map bin lock (compute)
+        private int references = 0;
+
+        private Lock(HashId id) {
+            this.id = id;
+        }
+
+        public HashId getId() {
+            return id;
+        }
+    }
+
+    private final ConcurrentHashMap<HashId, Lock> locks = new ConcurrentHashMap<>();
+
+    private final LongAdder acquisitions = new LongAdder();
+    private final LongAdder contended = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder waitNanos = new LongAdder();
+    private final LongAccumulator maxWaitNanos = new LongAccumulator(Math::max, 0);
+    private final LongAdder holdNanos = new LongAdder();
+    private final LongAccumulator maxHoldNanos = new LongAccumulator(Math::max, 0);
+    private final ConcurrentHashMap<HashId, LongAdder> contentionById = new ConcurrentHashMap<>();
+
+    /**
+     * Execute a callable holding the lock of a given {@link HashId}. Lock is released upon callable return.
+     *
+     * @param id       to get a lock to
+     * @param callable lambda to execute exclusively for the id, gets the {@link Lock}
+     * @param <T>      is type
+     *
+     * @return whatever the callable returns
+     *
+     * @throws Exception whatever callable throws
+     */
+    public <T> T synchronize(HashId id, Function<Object, T> callable) throws Exception {
+        Lock lock = retain(id);
+        try {
+            long start = System.nanoTime();
+            boolean free = lock.tryLock();
+            if (!free)
+                lock.lock();
+            return callLocked(lock, start, free, callable);
+        } finally {
+            release(lock);
+        }
+    }
+
+    /**
+     * The same as {@link #synchronize(HashId, Function)}, but waits for the lock not longer than the timeout.
+     *
+     * @param id       to get a lock to
+     * @param timeout  max time to wait for the lock
+     * @param callable lambda to execute exclusively for the id, gets the {@link Lock}
+     * @param <T>      is type
+     *
+     * @return whatever the callable returns
+     *
+     * @throws TimeoutException if the lock is not acquired in time, the callable is not executed then
+     * @throws Exception        whatever callable throws
+     */
+    public <T> T synchronize(HashId id, Duration timeout, Function<Object, T> callable) throws Exception {
+        Lock lock = retain(id);
+        try {
+            long start = System.nanoTime();
+            boolean free = lock.tryLock();
+            if (!free && !lock.tryLock(timeout.toNanos(), TimeUnit.NANOSECONDS)) {
+                timeouts.increment();
+                countContention(id);
+                throw new TimeoutException("lock of " + id + " is not acquired in " + timeout);
+            }
+            return callLocked(lock, start, free, callable);
+        } finally {
+            release(lock);
+        }
+    }
+
+    private <T> T callLocked(Lock lock, long start, boolean free, Function<Object, T> callable) {
+        long acquired = System.nanoTime();
+        acquisitions.increment();
+        if (!free) {
+            long wait = acquired - start;
+            waitNanos.add(wait);
+            maxWaitNanos.accumulate(wait);
+            countContention(lock.id);
+        }
+        try {
+            return callable.apply(lock);
+        } finally {
+            long hold = System.nanoTime() - acquired;
+            lock.unlock();
+            holdNanos.add(hold);
+            maxHoldNanos.accumulate(hold);
+        }
+    }
+
+    private void countContention(HashId id) {
+        contended.increment();
+        LongAdder counter = contentionById.get(id);
+        if (counter == null && contentionById.size() < MAX_HOT_IDS)
+            counter = contentionById.computeIfAbsent(id, k -> new LongAdder());
+        if (counter != null)
+            counter.increment();
+    }
+
+    private Lock retain(HashId id) {
+        return locks.compute(id, (k, lock) -> {
+            if (lock == null)
+                lock = new Lock(k);
+            lock.references++;
+            return lock;
+        });
+    }
+
+    /**
+     * Keep the lock got in {@link #synchronize(HashId, Function)} in the table after it returns, so the next callers
+     * get the same lock while the caller uses it as a mutex. Must be paired with {@link #release(Object)}.
+     *
+     * @param lock the object passed to the callable
+     *
+     * @return the lock
+     */
+    public Lock retain(Object lock) {
+        Lock l = (Lock) lock;
+        locks.compute(l.id, (k, existing) -> {
+            if (existing != l)
+                throw new IllegalStateException("lock of " + k + " is not in use, retain it inside synchronize");
+            l.references++;
+            return l;
+        });
+        return l;
+    }
+
+    /**
+     * Release the lock retained with {@link #retain(Object)}.
+     *
+     * @param lock retained lock
+     */
+    public void release(Object lock) {
+        Lock l = (Lock) lock;
+        locks.computeIfPresent(l.id, (k, existing) -> {
+            if (existing != l)
+                return existing;
+            return --l.references == 0 ? null : l;
+        });
+    }
+
+    /**
+     * Number of locks in the table: locked, waited for or retained.
+     *
+     * @return number of the locks in use
+     */
+    public int size() {
+        return locks.size();
+    }
+
+    public long getAcquisitions() {
+        return acquisitions.sum();
+    }
+
+    /**
+     * @return number of acquisitions (and timeouts) that had to wait for the lock
+     */
+    public long getContended() {
+        return contended.sum();
+    }
+
+    public long getTimeouts() {
+        return timeouts.sum();
+    }
+
+    /**
+     * @return total time of waiting for the locks
+     */
+    public Duration getWaitTime() {
+        return Duration.ofNanos(waitNanos.sum());
+    }
+
+    public Duration getMaxWaitTime() {
+        return Duration.ofNanos(maxWaitNanos.get());
+    }
+
+    /**
+     * @return total time the locks were held by {@link #synchronize(HashId, Function)}
+     */
+    public Duration getHoldTime() {
+        return Duration.ofNanos(holdNanos.sum());
+    }
+
+    public Duration getMaxHoldTime() {
+        return Duration.ofNanos(maxHoldNanos.get());
+    }
+
+    /**
+     * Ids with the most contended acquisitions since the last {@link #resetStats()}. Only first {@link #MAX_HOT_IDS}
+     * contended ids are tracked.
+     *
+     * @param count max number of ids to return
+     *
+     * @return ids and their contended acquisitions, most contended first
+     */
+    public List<Map.Entry<HashId, Long>> getHotIds(int count) {
+        List<Map.Entry<HashId, Long>> result = new ArrayList<>();
+        contentionById.forEach((id, counter) -> result.add(new AbstractMap.SimpleEntry<>(id, counter.sum())));
+        result.sort((a, b) -> Long.compare(b.getValue(), a.getValue()));
+        return result.size() > count ? new ArrayList<>(result.subList(0, count)) : result;
+    }
+
+    public void resetStats() {
+        acquisitions.reset();
+        contended.reset();
+        timeouts.reset();
+        waitNanos.reset();
+        maxWaitNanos.reset();
+        holdNanos.reset();
+        maxHoldNanos.reset();
+        contentionById.clear();
+    }
+
+    /**
+     * @return statistics of the locks, times are in microseconds, with 10 hottest ids
+     */
+    public Binder getStats() {
+        return Binder.fromKeysValues(
+                "locks", size(),
+                "acquisitions", getAcquisitions(),
+                "contended", getContended(),
+                "timeouts", getTimeouts(),
+                "wait_us", waitNanos.sum() / 1000,
+                "max_wait_us", maxWaitNanos.get() / 1000,
+                "hold_us", holdNanos.sum() / 1000,
+                "max_hold_us", maxHoldNanos.get() / 1000,
+                "hot_ids", getHotIds(10).stream()
+                        .map(e -> Binder.fromKeysValues("id", e.getKey().toBase64String(), "contended", e.getValue()))
+                        .collect(Collectors.toList())
+        );
+    }
+}
@@ -14,39 +14,42 @@ import net.sergeych.utils.Base64;
 import org.checkerframework.checker.nullness.qual.Nullable;
 
 import java.time.Duration;
-import java.time.Instant;
-import java.util.Timer;
-import java.util.TimerTask;
 import java.util.concurrent.ConcurrentHashMap;
 
 public class ItemCache {
 
-    private final Timer cleanerTimer = new Timer();
+    public static final int DEFAULT_MAX_ENTRIES = 500_000;
+
     private final Duration maxAge;
+    private final ExpiryWheel<HashId, Record> expiry;
 
     public ItemCache(Duration maxAge) {
+        this(maxAge, DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * Create cache.
+     *
+     * @param maxAge is how long the item is kept since it was put
+     * @param maxEntries is max items count, least recently used items are dropped above it
+     */
+    public ItemCache(Duration maxAge, int maxEntries) {
         this.maxAge = maxAge;
-        cleanerTimer.schedule(new TimerTask() {
-            @Override
-            public void run() {
-                cleanUp();
-            }
-        }, 5000, 5000);
+        this.expiry = new ExpiryWheel<>(ExpiryWheel.tickFor(maxAge), maxEntries, records::remove);
     }
 
     final void cleanUp() {
-        // we should avoid creating an object for each check:
-        Instant now = Instant.now();
-        records.values().forEach(r->r.checkExpiration(now));
+        expiry.expire();
     }
 
     public void shutdown() {
-        cleanerTimer.cancel();
-        cleanerTimer.purge();
+        expiry.shutdown();
     }
 
     public @Nullable Approvable get(HashId itemId) {
         Record i = records.get(itemId);
+        if( i != null )
+            i.touch();
         if( i != null && i.item == null )
             throw new RuntimeException("cache: record with empty item");
         return i != null ? i.item : null;
@@ -56,12 +59,16 @@ public class ItemCache {
         Record r = records.get(itemId);
         if( r != null && r.item == null )
             throw new RuntimeException("cache: record with empty item");
+        if( r != null )
+            r.touch();
         return r != null ? r.result : null;
     }
 
-    public void put(Approvable item, ItemResult result) {
+    public synchronized void put(Approvable item, ItemResult result) {
         // this will plainly override current if any
         Record r = new Record(item, result);
+        records.put(item.getId(), r);
+        expiry.schedule(item.getId(), r, maxAge);
     }
 
     public void update(HashId itemId, ItemResult result) {
@@ -90,21 +97,22 @@ public class ItemCache {
     }
 
     private class Record {
-        private Instant expiresAt;
         private Approvable item;
         private ItemResult result;
+        private volatile long touchedAt;
 
         private Record(Approvable item, ItemResult result) {
-            expiresAt = Instant.now().plus(maxAge);
             this.item = item;
             this.result = result;
-            records.put(item.getId(), this);
+            touchedAt = System.currentTimeMillis();
         }
 
-        private void checkExpiration(Instant now) {
-            if( expiresAt.isBefore(now) ) {
-//                System.out.println("cache expired "+item.getId());
-                records.remove(item.getId());
+        private void touch() {
+            // no need to lock the wheel on every access, once a second is enough for the entries limit
+            long now = System.currentTimeMillis();
+            if( now - touchedAt > 1000 ) {
+                touchedAt = now;
+                expiry.touch(item.getId());
             }
         }
     }
@@ -12,6 +12,10 @@ import com.icodici.crypto.PublicKey;
 import com.icodici.universa.Core;
 import com.icodici.universa.HashId;
 import com.icodici.universa.contract.Contract;
+import com.icodici.universa.contract.ParallelSignatureVerifier;
+import com.icodici.universa.contract.TransactionPack;
+import com.icodici.universa.node.EmbeddedLedger;
+import com.icodici.universa.node.Ledger;
 import com.icodici.universa.node.PostgresLedger;
 import com.icodici.universa.node.StateRecord;
 import com.icodici.universa.node2.network.ClientHTTPServer;
@@ -34,7 +38,7 @@ import static java.util.Arrays.asList;
 
 public class Main {
     public static final String NODE_VERSION = Core.VERSION;
-    private PostgresLedger ledger;
+    private Ledger ledger;
     private OptionParser parser;
     private OptionSet options;
     public final Reporter reporter = new Reporter();
@@ -71,6 +75,9 @@ public class Main {
                 acceptsAll(asList("d", "database"), "database connection url")
                         .withRequiredArg().ofType(String.class)
                         .describedAs("db_url");
+                accepts("ledger-directory", "directory of the embedded ledger to use instead of the database")
+                        .withRequiredArg().ofType(String.class)
+                        .describedAs("ledger_dir");
                 accepts("test", "intended to be used in integration tests");
                 accepts("nolog", "do not buffer log messages (good for testing)");
                 accepts("verbose", "sets verbose level to nothing, base or detail")
@@ -109,8 +116,11 @@ public class Main {
                 loadNetConfig();
 
                 ledger.saveConfig(myInfo,netConfig,nodeKey);
-            } else if(options.has("database")) {
-                ledger = new PostgresLedger((String) options.valueOf("database"));
+            } else if(options.has("database") || options.has("ledger-directory")) {
+                if (options.has("ledger-directory"))
+                    ledger = new EmbeddedLedger((String) options.valueOf("ledger-directory"));
+                else
+                    ledger = new PostgresLedger((String) options.valueOf("database"));
                 log("ledger constructed");
                 Object[] result = ledger.loadConfig();
                 myInfo = (NodeInfo) result[0];
@@ -337,7 +347,39 @@ public class Main {
         config.setIsFreeRegistrationsAllowedFromYaml(settings.getBoolean("allow_free_registrations", false));
         config.setPermanetMode(settings.getBoolean("permanet_mode", false));
 
-        ledger = new PostgresLedger(settings.getStringOrThrow("database"));
+        if (settings.containsKey("ledger_min_connections"))
+            config.setLedgerMinConnections(settings.getIntOrThrow("ledger_min_connections"));
+        if (settings.containsKey("ledger_max_connections"))
+            config.setLedgerMaxConnections(settings.getIntOrThrow("ledger_max_connections"));
+        if (settings.containsKey("ledger_connection_borrow_timeout"))
+            config.setLedgerConnectionBorrowTimeout(
+                    Duration.ofSeconds(settings.getIntOrThrow("ledger_connection_borrow_timeout")));
+        if (settings.containsKey("ledger_connection_leak_threshold"))
+            config.setLedgerConnectionLeakThreshold(
+                    Duration.ofSeconds(settings.getIntOrThrow("ledger_connection_leak_threshold")));
+        config.setLedgerConnectionLeakTrace(settings.getBoolean("ledger_connection_leak_trace", false));
+        if (settings.containsKey("ledger_cleanup_batch_size"))
+            config.setLedgerCleanupBatchSize(settings.getIntOrThrow("ledger_cleanup_batch_size"));
+        if (settings.containsKey("ledger_cleanup_max_rows_per_second"))
+            config.setLedgerCleanupMaxRowsPerSecond(settings.getIntOrThrow("ledger_cleanup_max_rows_per_second"));
+        if (settings.containsKey("ledger_cleanup_max_elections"))
+            config.setLedgerCleanupMaxElections(settings.getIntOrThrow("ledger_cleanup_max_elections"));
+
+        Contract.setParallelSignatureVerification(settings.getBoolean("parallel_signature_verification", false));
+        if (settings.containsKey("signature_verification_threads"))
+            ParallelSignatureVerifier.setThreadsCount(settings.getIntOrThrow("signature_verification_threads"));
+        HashId.setParallelDigest(settings.getBoolean("parallel_hash_digest", false));
+        TransactionPack.setParallelUnpack(settings.getBoolean("parallel_transaction_unpack", false));
+        if (settings.containsKey("udp_worker_threads"))
+            UDPAdapter.setWorkerThreadsCount(settings.getIntOrThrow("udp_worker_threads"));
+        if (settings.containsKey("udp_dispatch_threads"))
+            UDPAdapter.setDispatchThreadsCount(settings.getIntOrThrow("udp_dispatch_threads"));
+
+        // the embedded ledger needs no database server, for tests and small private networks
+        if (settings.containsKey("ledger_directory"))
+            ledger = new EmbeddedLedger(settings.getStringOrThrow("ledger_directory"));
+        else
+            ledger = new PostgresLedger(settings.getStringOrThrow("database"));
         log("ledger constructed");
 
         log("key loaded: " + nodeKey.info());
@@ -8,9 +8,12 @@
 package com.icodici.universa.node2;
 
 import com.icodici.crypto.*;
+import com.icodici.db.DbPool;
+import com.icodici.db.SqlStats;
 import com.icodici.universa.*;
 import com.icodici.universa.contract.Contract;
 import com.icodici.universa.contract.Parcel;
+import com.icodici.universa.contract.jsapi.JSApiEnginePool;
 import com.icodici.universa.contract.permissions.ChangeOwnerPermission;
 import com.icodici.universa.contract.permissions.ModifyDataPermission;
 import com.icodici.universa.contract.permissions.Permission;
@@ -67,6 +70,7 @@ import java.util.stream.Collectors;
 public class Node {
 
     private static final int MAX_SANITATING_RECORDS = 64;
+    private static final int MAX_METRICS_SQL_QUERIES = 20;
 
     NodeStats nodeStats = new NodeStats();
 
@@ -111,6 +115,12 @@ public class Node {
     private ConcurrentHashMap<HashId, ParcelProcessor> parcelProcessors = new ConcurrentHashMap();
     private ConcurrentHashMap<HashId, ResyncProcessor> resyncProcessors = new ConcurrentHashMap<>();
 
+    private final NodeMetrics metrics = new NodeMetrics();
+    private static final String[] ITEM_PHASES = Arrays.stream(ItemProcessingState.values())
+            .map(state -> "item." + state.name().toLowerCase()).toArray(String[]::new);
+    private static final String[] PARCEL_PHASES = Arrays.stream(ParcelProcessingState.values())
+            .map(state -> "parcel." + state.name().toLowerCase()).toArray(String[]::new);
+
     private ConcurrentHashMap<PublicKey, Integer> keyRequests = new ConcurrentHashMap();
     private ConcurrentHashMap<PublicKey, ZonedDateTime> keysUnlimited = new ConcurrentHashMap();
     private Long epochMinute = new Long(0);
@@ -192,6 +202,15 @@ public class Node {
 
         label = "Node(" + myInfo.getNumber() + ") ";
 
+        metrics.registerGauge("itemProcessors", () -> processors.size());
+        metrics.registerGauge("parcelProcessors", () -> parcelProcessors.size());
+        metrics.registerGauge("resyncProcessors", () -> resyncProcessors.size());
+        metrics.registerGauge("executorQueue", () -> ((ThreadPoolExecutor) executorService).getQueue().size());
+        metrics.registerGauge("executorActive", () -> ((ThreadPoolExecutor) executorService).getActiveCount());
+        metrics.registerGauge("lowPrioExecutorQueue", () -> ((ThreadPoolExecutor) lowPrioExecutorService).getQueue().size());
+        if (ledger instanceof PostgresLedger)
+            configureDbPool(((PostgresLedger) ledger).getDbPool());
+
         network.subscribe(myInfo, notification -> executorService.submit(()->onNotification(notification)));
 
         recordsToSanitate = ledger.findUnfinished();
@@ -212,10 +231,38 @@ public class Node {
         // start callback service
         callbackService = new CallbackService(this, config, myInfo, ledger, network, nodeKey, lowPrioExecutorService);
 
+        // creating the javascript engine takes much longer than running a contract script
+        lowPrioExecutorService.submit(() -> JSApiEnginePool.prewarm(2));
+
         pulseStartCleanup();
     }
 
+    private void configureDbPool(DbPool dbPool) {
+        dbPool.setMaxConnections(config.getLedgerMaxConnections());
+        dbPool.setMinConnections(config.getLedgerMinConnections());
+        dbPool.setBorrowTimeout(config.getLedgerConnectionBorrowTimeout());
+        dbPool.setLeakThreshold(config.getLedgerConnectionLeakThreshold());
+        dbPool.setLeakTraceEnabled(config.isLedgerConnectionLeakTrace());
+        dbPool.setReporter(message -> report(getLabel(), message, DatagramAdapter.VerboseLevel.BASE));
+        LatencyHistogram borrowWait = metrics.phase("db.borrow");
+        dbPool.setBorrowWaitListener(nanos -> borrowWait.record(nanos / 1000));
+        metrics.registerGauge("dbActive", dbPool::getActiveCount);
+        metrics.registerGauge("dbIdle", dbPool::getIdleCount);
+        metrics.registerGauge("dbWaiting", dbPool::getWaitingCount);
+        metrics.registerGauge("dbTimeouts", dbPool::getTimeoutsCount);
+        metrics.registerGauge("dbLeaks", dbPool::getLeaksCount);
+    }
+
     private void pulseStartCleanup() {
+        if (ledger instanceof PostgresLedger) {
+            LedgerCleaner cleaner = ((PostgresLedger) ledger).getCleaner();
+            cleaner.setBatchSize(config.getLedgerCleanupBatchSize());
+            cleaner.setMaxRowsPerSecond(config.getLedgerCleanupMaxRowsPerSecond());
+            cleaner.setBusyCheck(() -> processors.size() + parcelProcessors.size() > config.getLedgerCleanupMaxElections());
+            cleaner.setReporter(message -> report(getLabel(), message, DatagramAdapter.VerboseLevel.BASE));
+            StateRecordCache recordCache = ((PostgresLedger) ledger).getRecordCache();
+            lowPrioExecutorService.scheduleAtFixedRate(recordCache::cleanUp, 1, 1, TimeUnit.MINUTES);
+        }
         lowPrioExecutorService.scheduleAtFixedRate(() -> ledger.cleanup(config.isPermanetMode()),1,config.getMaxDiskCacheAge().getSeconds(),TimeUnit.SECONDS);
         lowPrioExecutorService.scheduleAtFixedRate(() -> ledger.removeExpiredStoragesAndSubscriptionsCascade(),config.getExpriedStorageCleanupInterval().getSeconds(),config.getExpriedStorageCleanupInterval().getSeconds(),TimeUnit.SECONDS);
         lowPrioExecutorService.scheduleAtFixedRate(() -> ledger.clearExpiredNameRecords(config.getHoldDuration()),config.getExpriedNamesCleanupInterval().getSeconds(),config.getExpriedNamesCleanupInterval().getSeconds(),TimeUnit.SECONDS);
@@ -425,6 +472,61 @@ public class Node {
         return ir;
     }
 
+    /**
+     * Check states of many items, like {@link #checkItem(HashId)} does for each of them. Items that are neither being
+     * processed nor have a cached result with consensus found are read from the ledger by a single batch.
+     *
+     * @param itemIds items to check
+     * @return results by item ids in the order of itemIds
+     */
+    public @NonNull Map<HashId, ItemResult> checkItems(Collection<HashId> itemIds) {
+        Map<HashId, ItemResult> results = new LinkedHashMap<>();
+        List<HashId> toRead = new ArrayList<>();
+        for (HashId itemId : itemIds) {
+            if (results.containsKey(itemId))
+                continue;
+            ItemProcessor ip = processors.get(itemId);
+            ItemResult cached = cache.getResult(itemId);
+            if (ip != null)
+                results.put(itemId, ip.getResult());
+            else if (cached != null && cached.state.isConsensusFound())
+                results.put(itemId, cached);
+            else {
+                // not the shared ItemResult.UNDEFINED: errors and testnet flag are set for each item below
+                results.put(itemId, new ItemResult(ItemState.UNDEFINED, false, null, null));
+                toRead.add(itemId);
+            }
+        }
+
+        if (!toRead.isEmpty()) {
+            Map<HashId, StateRecord> records = ledger.getRecords(toRead);
+            for (HashId itemId : toRead) {
+                StateRecord r = records.get(itemId);
+                if (r != null && !r.isPending()) {
+                    ItemResult result = cache.getResult(itemId);
+                    results.put(itemId, result != null ? result : new ItemResult(r, cache.get(itemId) != null));
+                } else {
+                    ResyncProcessor rp = resyncProcessors.get(itemId);
+                    if (rp != null)
+                        results.put(itemId, rp.getResult());
+                }
+            }
+        }
+
+        Set<HashId> testnetIds = ledger.getTestnetIds(results.keySet());
+        results.forEach((itemId, ir) -> {
+            ItemInformer.Record record = informer.takeFor(itemId);
+            if (record != null)
+                ir.errors = record.errorRecords;
+            ir.isTestnet = testnetIds.contains(itemId);
+        });
+
+        report(getLabel(), () -> concatReportMessage("checked states of ", results.size(), " items"),
+                DatagramAdapter.VerboseLevel.DETAILED);
+
+        return results;
+    }
+
     /**
      * Check the parcel's processing state. If parcel is not under processing (not start or already finished)
      * return ParcelProcessingState.NOT_EXIST
@@ -632,6 +734,24 @@ public class Node {
         return result;
     }
 
+    /**
+     * Load the environments that are not in the cache yet with one ledger call.
+     *
+     * @return loaded environments by ids; the cached and the not found ones are absent
+     */
+    private Map<Long, NImmutableEnvironment> prefetchEnvironments(Collection<Long> environmentIds) {
+        List<Long> missing = new ArrayList<>();
+        for (Long id : environmentIds) {
+            if (envCache.get(id) == null)
+                missing.add(id);
+        }
+        if (missing.size() < 2)
+            return Collections.emptyMap();
+        Map<Long, NImmutableEnvironment> loaded = ledger.getEnvironments(missing);
+        loaded.values().forEach(envCache::put);
+        return loaded;
+    }
+
     private void removeEnvironment(HashId id) {
         envCache.remove(id);
         ledger.removeEnvironment(id);
@@ -1076,6 +1196,7 @@ public class Node {
         System.out.println(toString() + "please wait, executorService is shutting down");
         executorService.shutdown();
         lowPrioExecutorService.shutdown();
+        callbackService.shutdown();
         try {
             executorService.awaitTermination(5, TimeUnit.SECONDS);
         } catch (InterruptedException e) {
@@ -1181,6 +1302,33 @@ public class Node {
         return result;
     }
 
+    /**
+     * Get runtime metrics of the node: latency histograms of item and parcel processing phases, named after the
+     * processing states ("item.polling" is the time items spent in {@link ItemProcessingState#POLLING}, "item.total"
+     * is the time from the processor creation to the consensus), votes received by node numbers and gauges. With
+     * {@link PostgresLedger}, "sql" has the ledger queries that took the most time.
+     *
+     * @param reset if true, histograms and counters start from zero after the call
+     * @return metrics, latencies are in microseconds
+     */
+    public Binder provideMetrics(boolean reset) {
+        Binder result = metrics.toBinder();
+        if (ledger instanceof PostgresLedger) {
+            SqlStats sqlStats = ((PostgresLedger) ledger).getSqlStats();
+            result.put("sql", sqlStats.toBinder(MAX_METRICS_SQL_QUERIES));
+            if (reset)
+                sqlStats.reset();
+        }
+        if (reset)
+            metrics.reset();
+        result.put("nodeNumber", myInfo.getNumber());
+        return result;
+    }
+
+    public NodeMetrics getMetrics() {
+        return metrics;
+    }
+
     public void setNeworkVerboseLevel(int level) {
         if(network instanceof NetworkV2) {
             ((NetworkV2)network).setVerboseLevel(level);
@@ -1262,8 +1410,12 @@ public class Node {
         private HashMap<NodeInfo, ItemState> paymentDelayedVotes = new HashMap<>();
         private HashMap<NodeInfo, ItemState> payloadDelayedVotes = new HashMap<>();
         private ParcelProcessingState processingState;
+        private final long createdAt = System.nanoTime();
+        private long stateChangedAt = createdAt;
+        private boolean isTotalRecorded = false;
 
-        private final Object mutex;
+        private final HashIdLocks.Lock mutex;
+        private final AtomicBoolean lockReleased = new AtomicBoolean(false);
 
         private ScheduledFuture<?> downloader;
         private ScheduledFuture<?> processSchedule;
@@ -1290,7 +1442,7 @@ public class Node {
          * @param lock is lock object for parcel.
          */
         public ParcelProcessor(HashId parcelId, Parcel parcel, Object lock) {
-            mutex = lock;
+            mutex = parcelLock.retain(lock);
 
             this.parcelId = parcelId;
             this.parcel = parcel;
@@ -1319,11 +1471,14 @@ public class Node {
                     parcelId, " :: pulseProcessing, state ", processingState),
                     DatagramAdapter.VerboseLevel.BASE);
             if(processingState.canContinue()) {
-                synchronized (mutex) {
+                mutex.lock();
+                try {
                     if (processSchedule == null || processSchedule.isDone()) {
                         processSchedule = (ScheduledFuture<?>) executorService.submit(() -> process(),
                                 Node.this.toString() + " pp > parcel " + parcelId + " :: pulseProcessing -> process");
                     }
+                } finally {
+                    mutex.unlock();
                 }
             }
         }
@@ -1340,20 +1495,20 @@ public class Node {
                     DatagramAdapter.VerboseLevel.BASE);
             if(processingState.canContinue()) {
 
-                processingState = ParcelProcessingState.PREPARING;
+                setProcessingState(ParcelProcessingState.PREPARING);
                 try {
                     report(getLabel(), () -> concatReportMessage("parcel processor for: ",
                             parcelId, " :: check payment, state ", processingState),
                             DatagramAdapter.VerboseLevel.BASE);
                     // wait payment
                     if (paymentResult == null) {
-                        processingState = ParcelProcessingState.PAYMENT_CHECKING;
+                        setProcessingState(ParcelProcessingState.PAYMENT_CHECKING);
 
                         for (NodeInfo ni : paymentDelayedVotes.keySet())
                             paymentProcessor.vote(ni, paymentDelayedVotes.get(ni));
                         paymentDelayedVotes.clear();
 
-                        processingState = ParcelProcessingState.PAYMENT_POLLING;
+                        setProcessingState(ParcelProcessingState.PAYMENT_POLLING);
                         if(!paymentProcessor.isDone()) {
                             paymentProcessor.doneEvent.await();
                         }
@@ -1382,7 +1537,7 @@ public class Node {
 
                             if (payloadResult == null) {
 
-                                processingState = ParcelProcessingState.PAYLOAD_CHECKING;
+                                setProcessingState(ParcelProcessingState.PAYLOAD_CHECKING);
 
                                 payload.getQuantiser().reset(parcel.getQuantasLimit());
 
@@ -1393,7 +1548,7 @@ public class Node {
                                     payloadProcessor.vote(ni, payloadDelayedVotes.get(ni));
                                 payloadDelayedVotes.clear();
 
-                                processingState = ParcelProcessingState.PAYLOAD_POLLING;
+                                setProcessingState(ParcelProcessingState.PAYLOAD_POLLING);
                                 if (!payloadProcessor.isDone()) {
                                     payloadProcessor.doneEvent.await();
                                 }
@@ -1422,7 +1577,7 @@ public class Node {
                     }
 
                     // we got payment and payload result, can fire done event for waiters
-                    processingState = ParcelProcessingState.FINISHED;
+                    setProcessingState(ParcelProcessingState.FINISHED);
 
                     report(getLabel(), () -> concatReportMessage("parcel processor for: ",
                             parcelId, " :: processing finished, state ", processingState),
@@ -1439,11 +1594,11 @@ public class Node {
                     }
                 } catch (InterruptedException e) {
                     e.printStackTrace();
-                    processingState = ParcelProcessingState.FINISHED;
+                    setProcessingState(ParcelProcessingState.FINISHED);
                     doneEvent.fire();
                 } catch (Exception e) {
                     e.printStackTrace();
-                    processingState = ParcelProcessingState.FINISHED;
+                    setProcessingState(ParcelProcessingState.FINISHED);
                     doneEvent.fire();
                 }
 
@@ -1462,13 +1617,16 @@ public class Node {
             if(processingState.canContinue()) {
 
                 if (!processingState.isProcessedToConsensus()) {
-                    processingState = ParcelProcessingState.DOWNLOADING;
+                    setProcessingState(ParcelProcessingState.DOWNLOADING);
 
-                    synchronized (mutex) {
+                    mutex.lock();
+                    try {
                         if (parcel == null && (downloader == null || downloader.isDone())) {
                             downloader = (ScheduledFuture<?>) executorService.submit(() -> download(),
                                     Node.this.toString() + " > parcel " + parcelId + " :: parcel pulseDownload -> download");
                         }
+                    } finally {
+                        mutex.unlock();
                     }
                 }
             }
@@ -1522,7 +1680,8 @@ public class Node {
                 payload = parcel.getPayloadContract();
 
                 // create item processors or get results for payment and payload
-                synchronized (mutex) {
+                mutex.lock();
+                try {
 
                     payment.getQuantiser().reset(config.getPaymentQuantaLimit());
 
@@ -1572,6 +1731,8 @@ public class Node {
                                 ", item state ", payloadResult.state),
                                 DatagramAdapter.VerboseLevel.BASE);
                     }
+                } finally {
+                    mutex.unlock();
                 }
 
                 pulseProcessing();
@@ -1587,6 +1748,23 @@ public class Node {
 
         //////////// polling section /////////////
 
+        /**
+         * Change the processing state, counting the time spent in the previous one to {@link #getMetrics()}.
+         */
+        private void setProcessingState(ParcelProcessingState newState) {
+            if (newState != processingState) {
+                long now = System.nanoTime();
+                metrics.phase(PARCEL_PHASES[processingState.ordinal()]).record((now - stateChangedAt) / 1000);
+                stateChangedAt = now;
+                if (!isTotalRecorded && (newState == ParcelProcessingState.FINISHED ||
+                        newState == ParcelProcessingState.EMERGENCY_BREAK)) {
+                    isTotalRecorded = true;
+                    metrics.phase("parcel.total").record((now - createdAt) / 1000);
+                }
+            }
+            processingState = newState;
+        }
+
         private final void vote(NodeInfo node, ItemState state, boolean isU) {
             if(processingState.canContinue()) {
 
@@ -1701,6 +1879,8 @@ public class Node {
                     DatagramAdapter.VerboseLevel.BASE);
             if(processingState.canRemoveSelf()) {
                 parcelProcessors.remove(parcelId);
+                if (lockReleased.compareAndSet(false, true))
+                    parcelLock.release(mutex);
 
                 stopDownloader();
                 stopProcesser();
@@ -1720,8 +1900,11 @@ public class Node {
         }
 
         public <T> T lock(Supplier<T> c) {
-            synchronized (mutex) {
+            mutex.lock();
+            try {
                 return (T) c.get();
+            } finally {
+                mutex.unlock();
             }
         }
     }
@@ -1738,6 +1921,9 @@ public class Node {
         private final StateRecord record;
         private final ItemState stateWas;
         private ItemProcessingState processingState;
+        private final long createdAt = System.nanoTime();
+        private long stateChangedAt = createdAt;
+        private boolean isTotalRecorded = false;
         private Set<NodeInfo> sources = new HashSet<>();
 
         private Set<NodeInfo> positiveNodes = new HashSet<>();
@@ -1762,7 +1948,8 @@ public class Node {
         private final AsyncEvent<Void> pollingReadyEvent = new AsyncEvent<>();
         private final AsyncEvent<Void> removedEvent = new AsyncEvent<>();
 
-        private final Object mutex;
+        private final HashIdLocks.Lock mutex;
+        private final AtomicBoolean lockReleased = new AtomicBoolean(false);
 
         private ScheduledFuture<?> downloader;
         private RunnableWithDynamicPeriod poller;
@@ -1820,7 +2007,7 @@ public class Node {
         public ItemProcessor(HashId itemId, HashId parcelId, Approvable item, Object lock, boolean isCheckingForce) {
 
 
-            mutex = lock;
+            mutex = itemLock.retain(lock);
             this.isCheckingForce = isCheckingForce;
 
             processingState = ItemProcessingState.INIT;
@@ -1867,14 +2054,17 @@ public class Node {
 
                 if (!processingState.isProcessedToConsensus()) {
                     if(!processingState.isProcessedToConsensus()) {
-                        processingState = ItemProcessingState.DOWNLOADING;
+                        setProcessingState(ItemProcessingState.DOWNLOADING);
                     }
 
-                    synchronized (mutex) {
+                    mutex.lock();
+                    try {
                         if (item == null && (downloader == null || downloader.isDone())) {
                             downloader = (ScheduledFuture<?>) executorService.submit(() -> download(),
                                     Node.this.toString() + toString() + " :: item pulseDownload -> download");
                         }
+                    } finally {
+                        mutex.unlock();
                     }
                 }
             }
@@ -1920,9 +2110,12 @@ public class Node {
                 }
 
 
-                synchronized (mutex) {
+                mutex.lock();
+                try {
                     //save item in disk cache
                     ledger.putItem(record, item, Instant.now().plus(config.getMaxDiskCacheAge()));
+                } finally {
+                    mutex.unlock();
                 }
 
                 if(item instanceof Contract) {
@@ -1932,7 +2125,7 @@ public class Node {
                 }
 
                 if(!processingState.isProcessedToConsensus()) {
-                    processingState = ItemProcessingState.DOWNLOADED;
+                    setProcessingState(ItemProcessingState.DOWNLOADED);
                 }
                 if(isCheckingForce) {
                     checkItem();
@@ -1969,7 +2162,7 @@ public class Node {
                     }
 
                     if(!processingState.isProcessedToConsensus()) {
-                        processingState = ItemProcessingState.CHECKING;
+                        setProcessingState(ItemProcessingState.CHECKING);
                     }
 
                     // Check the internal state
@@ -2130,7 +2323,8 @@ public class Node {
                             checkingItem.addError(Errors.BAD_REVOKE, revokingItem.getId().toString(), "can't revoke: " + er);
                         }
 
-                        synchronized (mutex) {
+                        mutex.lock();
+                        try {
                             try {
                                 if (record.getState() == ItemState.APPROVED) {
                                     // item can be approved by network consensus while our node do checking
@@ -2150,6 +2344,8 @@ public class Node {
                             } catch (Exception e) {
                                 e.printStackTrace();
                             }
+                        } finally {
+                            mutex.unlock();
                         }
                     }
                 }
@@ -2186,7 +2382,8 @@ public class Node {
                         if (!newItem.getErrors().isEmpty()) {
                             checkingItem.addError(Errors.BAD_NEW_ITEM, newItem.getId().toString(), "bad new item: not passed check");
                         } else {
-                            synchronized (mutex) {
+                            mutex.lock();
+                            try {
                                 try {
                                     if (record.getState() == ItemState.APPROVED) {
                                         // item can be approved by network consensus while our node do checking
@@ -2206,6 +2403,8 @@ public class Node {
                                 } catch (Exception e) {
                                     e.printStackTrace();
                                 }
+                            } finally {
+                                mutex.unlock();
                             }
                         }
                     }
@@ -2227,7 +2426,8 @@ public class Node {
                         informer.inform(item);
                     }
 
-                    synchronized (mutex) {
+                    mutex.lock();
+                    try {
                         if (record.getState() == ItemState.PENDING) {
                             if (checkPassed) {
                                 setState(ItemState.PENDING_POSITIVE);
@@ -2254,10 +2454,12 @@ public class Node {
                             emergencyBreak();
                             return;
                         }
+                    } finally {
+                        mutex.unlock();
                     }
 
                     if(!processingState.isProcessedToConsensus()) {
-                        processingState = ItemProcessingState.POLLING;
+                        setProcessingState(ItemProcessingState.POLLING);
                     }
 
                     vote(myInfo, record.getState());
@@ -2344,7 +2546,8 @@ public class Node {
                 if (!processingState.isProcessedToConsensus()) {
 
                     // at this point the item is with us, so we can start
-                    synchronized (mutex) {
+                    mutex.lock();
+                    try {
                         if (!processingState.isProcessedToConsensus()) {
                             if (poller == null) {
                                 List<Integer> pollTimes = config.getPollTime();
@@ -2355,6 +2558,8 @@ public class Node {
                                 poller.run();
                             }
                         }
+                    } finally {
+                        mutex.unlock();
                     }
                 }
             }
@@ -2364,17 +2569,20 @@ public class Node {
 
             if(processingState.canContinue()) {
                 if (!processingState.isProcessedToConsensus()) {
-                    synchronized (mutex) {
+                    mutex.lock();
+                    try {
                         if (isPollingExpired()) {
                             // cancel by timeout expired
 
-                            processingState = ItemProcessingState.GOT_CONSENSUS;
+                            setProcessingState(ItemProcessingState.GOT_CONSENSUS);
 
                             stopPoller();
                             stopDownloader();
                             rollbackChanges(ItemState.UNDEFINED);
                             return;
                         }
+                    } finally {
+                        mutex.unlock();
                     }
                     // at this point we should requery the nodes that did not yet answered us
                     Notification notification;
@@ -2394,7 +2602,26 @@ public class Node {
             }
         }
 
+        /**
+         * Change the processing state, counting the time spent in the previous one to {@link #getMetrics()}.
+         */
+        private void setProcessingState(ItemProcessingState newState) {
+            if (newState != processingState) {
+                long now = System.nanoTime();
+                metrics.phase(ITEM_PHASES[processingState.ordinal()]).record((now - stateChangedAt) / 1000);
+                stateChangedAt = now;
+                if (!isTotalRecorded && (newState.isDone() || newState == ItemProcessingState.EMERGENCY_BREAK)) {
+                    isTotalRecorded = true;
+                    metrics.phase("item.total").record((now - createdAt) / 1000);
+                }
+            }
+            processingState = newState;
+        }
+
         private final void vote(NodeInfo node, ItemState state) {
+            // own votes are not received from the network
+            if (!node.equals(myInfo))
+                metrics.countVote(node.getNumber());
             if(processingState.canContinue()) {
                 report(getLabel(), () -> concatReportMessage("item processor for item: ",
                         itemId, " from parcel: ", parcelId,
@@ -2409,7 +2636,8 @@ public class Node {
                         (!state.isPositive() && negativeNodes.contains(node))) {
                     return;
                 }
-                synchronized (mutex) {
+                mutex.lock();
+                try {
 
                     if(processingState.canRemoveSelf()) {
                         return;
@@ -2435,13 +2663,15 @@ public class Node {
 
                     if (negativeNodes.size() >= config.getNegativeConsensus()) {
                         negativeConsensus = true;
-                        processingState = ItemProcessingState.GOT_CONSENSUS;
+                        setProcessingState(ItemProcessingState.GOT_CONSENSUS);
                     } else if (positiveNodes.size() >= config.getPositiveConsensus()) {
                         positiveConsensus = true;
-                        processingState = ItemProcessingState.GOT_CONSENSUS;
+                        setProcessingState(ItemProcessingState.GOT_CONSENSUS);
                     }
                     if (!processingState.isProcessedToConsensus())
                         return;
+                } finally {
+                    mutex.unlock();
                 }
 
 
@@ -2530,10 +2760,14 @@ public class Node {
                                 r.save();
 
                                 //save newItem to DB in Permanet mode
-                                if (config.isPermanetMode())
-                                    synchronized (mutex) {
+                                if (config.isPermanetMode()) {
+                                    mutex.lock();
+                                    try {
                                         ledger.putKeepingItem(record, newItem);
+                                    } finally {
+                                        mutex.unlock();
                                     }
+                                }
 
                                 Binder newExtraResult = new Binder();
                                 // if new item is smart contract node calls method onCreated or onUpdated
@@ -2624,7 +2858,8 @@ public class Node {
                     // lockedToRevoke/lockedToCreate, as, due to conflicts, these could differ from what the item
                     // yields. We just clean them up afterwards:
 
-                    synchronized (mutex) {
+                    mutex.lock();
+                    try {
                         // first, commit all subitems of our item
                         downloadAndCommitSubItemsOf(item);
 
@@ -2641,10 +2876,14 @@ public class Node {
                                 }
 
                                 //save item to DB in Permanet mode
-                                if (config.isPermanetMode())
-                                    synchronized (mutex) {
+                                if (config.isPermanetMode()) {
+                                    mutex.lock();
+                                    try {
                                         ledger.putKeepingItem(record, item);
+                                    } finally {
+                                        mutex.unlock();
                                     }
+                                }
                             }
                         } catch (Ledger.Failure failure) {
                             emergencyBreak();
@@ -2654,6 +2893,8 @@ public class Node {
                         if (record.getState() != ItemState.APPROVED) {
                             log.e("record is not approved " + record.getState());
                         }
+                    } finally {
+                        mutex.unlock();
                     }
 
                     try {
@@ -2703,7 +2944,7 @@ public class Node {
                     lowPrioExecutorService.schedule(() -> checkSpecialItem(item),100,TimeUnit.MILLISECONDS);
 
                     if(!resyncingItems.isEmpty()) {
-                        processingState = ItemProcessingState.RESYNCING;
+                        setProcessingState(ItemProcessingState.RESYNCING);
                         startResync();
                         return;
                     }
@@ -2773,9 +3014,12 @@ public class Node {
                     environmentIds.addAll(environmentIdsForOrigin);
                 }
 
+                Map<Long, NImmutableEnvironment> prefetched = prefetchEnvironments(environmentIds);
                 for (Long environmentId : environmentIds) {
                     synchronized (callbackService) {
-                        NImmutableEnvironment ime = getEnvironment(environmentId);
+                        NImmutableEnvironment ime = prefetched.get(environmentId);
+                        if (ime == null)
+                            ime = getEnvironment(environmentId);
                         ime.setNameCache(nameCache);
                         NSmartContract contract = ime.getContract();
                         contract.setNodeInfoProvider(nodeInfoProvider);
@@ -2936,7 +3180,8 @@ public class Node {
                                     config.getRevokedItemExpiration() : config.getDeclinedItemExpiration());
                     record.setExpiresAt(expiration);
                     try {
-                        synchronized (mutex) {
+                        mutex.lock();
+                        try {
                             if (newState != ItemState.UNDEFINED) {
                                 record.save(); // TODO: current implementation will cause an inner dbPool.db() invocation
 
@@ -2949,6 +3194,8 @@ public class Node {
 //                                log.e("Can not rollback to ItemState.UNDEFINED, will destroy item");
                                 record.destroy();
                             }
+                        } finally {
+                            mutex.unlock();
                         }
                     } catch (Ledger.Failure failure) {
                         failure.printStackTrace();
@@ -2978,9 +3225,10 @@ public class Node {
                     DatagramAdapter.VerboseLevel.BASE);
             if(processingState.canContinue()) {
 
-                processingState = ItemProcessingState.SENDING_CONSENSUS;
+                setProcessingState(ItemProcessingState.SENDING_CONSENSUS);
 
-                synchronized (mutex) {
+                mutex.lock();
+                try {
                     if(consensusReceivedChecker == null) {
                         List<Integer> periodsMillis = config.getConsensusReceivedCheckTime();
                         consensusReceivedChecker = new RunnableWithDynamicPeriod(() -> sendNewConsensusNotification(),
@@ -2989,6 +3237,8 @@ public class Node {
                         );
                         consensusReceivedChecker.run();
                     }
+                } finally {
+                    mutex.unlock();
                 }
             }
         }
@@ -2999,7 +3249,8 @@ public class Node {
                 if (processingState.isConsensusSentAndReceived())
                     return;
 
-                synchronized (mutex) {
+                mutex.lock();
+                try {
                     if (isConsensusReceivedExpired()) {
 
                         report(getLabel(), () -> concatReportMessage("consensus received expired ",
@@ -3008,11 +3259,13 @@ public class Node {
                                 DatagramAdapter.VerboseLevel.NOTHING);
 
                         // cancel by timeout expired
-                        processingState = ItemProcessingState.FINISHED;
+                        setProcessingState(ItemProcessingState.FINISHED);
                         stopConsensusReceivedChecker();
                         removeSelf();
                         return;
                     }
+                } finally {
+                    mutex.unlock();
                 }
                 // at this point we should requery the nodes that did not yet answered us
                 Notification notification;
@@ -3045,7 +3298,7 @@ public class Node {
                 Boolean allReceived = nodes.size() <= positiveNodes.size() + negativeNodes.size();
 
                 if (allReceived) {
-                    processingState = ItemProcessingState.FINISHED;
+                    setProcessingState(ItemProcessingState.FINISHED);
                     stopConsensusReceivedChecker();
                 }
 
@@ -3070,7 +3323,7 @@ public class Node {
             if(processingState.canContinue()) {
 
                 if (!processingState.isProcessedToConsensus()) {
-                    processingState = ItemProcessingState.RESYNCING;
+                    setProcessingState(ItemProcessingState.RESYNCING);
 
                     resyncingItems.forEach((k, v)-> {
                         resync(k, (re)->onResyncItemFinished(re));
@@ -3092,7 +3345,7 @@ public class Node {
         }
 
         private final void onAllResyncItemsFinished() {
-            processingState = ItemProcessingState.CHECKING;
+            setProcessingState(ItemProcessingState.CHECKING);
             try {
                 checkSubItems();
             } catch (Exception e) {
@@ -3142,7 +3395,7 @@ public class Node {
                     DatagramAdapter.VerboseLevel.BASE);
 
             if(processingState.canContinue())
-                processingState = ItemProcessingState.DONE;
+                setProcessingState(ItemProcessingState.DONE);
 
             stopPoller();
 
@@ -3175,7 +3428,7 @@ public class Node {
 
             boolean doRollback = !processingState.isDone();
 
-            processingState = ItemProcessingState.EMERGENCY_BREAK;
+            setProcessingState(ItemProcessingState.EMERGENCY_BREAK);
 
             stopDownloader();
             stopPoller();
@@ -3192,7 +3445,7 @@ public class Node {
             else
                 close();
 
-            processingState = ItemProcessingState.FINISHED;
+            setProcessingState(ItemProcessingState.FINISHED);
         }
 
         private ItemState getState() {
@@ -3200,8 +3453,11 @@ public class Node {
         }
 
         private final void setState(ItemState newState) {
-            synchronized (mutex) {
+            mutex.lock();
+            try {
                 record.setState(newState);
+            } finally {
+                mutex.unlock();
             }
         }
 
@@ -3218,6 +3474,8 @@ public class Node {
         //used in test purposes
         private void forceRemoveSelf() {
             processors.remove(itemId);
+            if (lockReleased.compareAndSet(false, true))
+                itemLock.release(mutex);
 
             stopDownloader();
             stopPoller();
@@ -3265,8 +3523,11 @@ public class Node {
         }
 
         public <T> T lock(Supplier<T> c) {
-            synchronized (mutex) {
+            mutex.lock();
+            try {
                 return (T) c.get();
+            } finally {
+                mutex.unlock();
             }
         }
 
@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2018, iCodici S.n.C, All Rights Reserved
+ *
+ */
+
+package com.icodici.universa.node2;
+
+import net.sergeych.tools.Binder;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Runtime metrics of the node: {@link LatencyHistogram} of each processing phase, votes received from each node,
+ * and gauges read at the moment of {@link #toBinder()}. Unlike {@link NodeStats}, which is built from the ledger
+ * periodically, these are updated by the processors as they go.
+ */
+public class NodeMetrics {
+
+    private final ConcurrentHashMap<String, LatencyHistogram> phases = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, LongAdder> votes = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+
+    /**
+     * @param name is phase name, like "item.checking"
+     * @return histogram of the phase, created on the first call
+     */
+    public LatencyHistogram phase(String name) {
+        return phases.computeIfAbsent(name, n -> new LatencyHistogram());
+    }
+
+    /**
+     * Count time spent in the phase since startNanos.
+     *
+     * @param name is phase name
+     * @param startNanos is {@link System#nanoTime()} at the start of the phase
+     */
+    public void recordPhase(String name, long startNanos) {
+        phase(name).recordSince(startNanos);
+    }
+
+    /**
+     * Count the vote received from the other node.
+     *
+     * @param nodeNumber is number of the voting node
+     */
+    public void countVote(int nodeNumber) {
+        votes.computeIfAbsent(nodeNumber, n -> new LongAdder()).increment();
+    }
+
+    /**
+     * Register the gauge, replacing the one with the same name if any.
+     *
+     * @param name is gauge name
+     * @param value returns the current value, should be cheap to call
+     */
+    public void registerGauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    /**
+     * Forget the histograms and vote counters, gauges stay.
+     */
+    public void reset() {
+        phases.values().forEach(LatencyHistogram::reset);
+        votes.clear();
+    }
+
+    /**
+     * @return "phases" with histograms by phase names (microseconds), "votes" with counters by node numbers and
+     * "gauges" with current values by names
+     */
+    public Binder toBinder() {
+        Binder phasesBinder = new Binder();
+        new TreeMap<>(phases).forEach((name, histogram) -> phasesBinder.put(name, histogram.toBinder()));
+
+        Binder votesBinder = new Binder();
+        new TreeMap<>(votes).forEach((node, counter) -> votesBinder.put(String.valueOf(node), counter.sum()));
+
+        Binder gaugesBinder = new Binder();
+        for (Map.Entry<String, LongSupplier> e : new TreeMap<>(gauges).entrySet())
+            gaugesBinder.put(e.getKey(), e.getValue().getAsLong());
+
+        return Binder.of(
+                "phases", phasesBinder,
+                "votes", votesBinder,
+                "gauges", gaugesBinder
+        );
+    }
+}
@@ -89,7 +89,7 @@ abstract public class Notification {
      * @return
      */
     static byte[] pack(Collection<Notification> notifications) {
-        Boss.Writer writer = new Boss.Writer();
+        Boss.Writer writer = Boss.Writer.acquire();
         try {
             for (Notification n : notifications) {
                 write(writer, n);
@@ -97,6 +97,8 @@ abstract public class Notification {
             return writer.toByteArray();
         } catch (IOException e) {
             throw new RuntimeException("failed to pack notification", e);
+        } finally {
+            writer.release();
         }
     }
 
@@ -12,47 +12,52 @@ import net.sergeych.utils.Base64;
 import org.checkerframework.checker.nullness.qual.Nullable;
 
 import java.time.Duration;
-import java.time.Instant;
-import java.util.Timer;
-import java.util.TimerTask;
 import java.util.concurrent.ConcurrentHashMap;
 
 public class ParcelCache {
 
-    private final Timer cleanerTimer = new Timer();
+    public static final int DEFAULT_MAX_ENTRIES = 100_000;
+
     private final Duration maxAge;
+    private final ExpiryWheel<HashId, Record> expiry;
 
     public ParcelCache(Duration maxAge) {
+        this(maxAge, DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * Create cache.
+     *
+     * @param maxAge is how long the parcel is kept since it was put
+     * @param maxEntries is max parcels count, least recently used parcels are dropped above it
+     */
+    public ParcelCache(Duration maxAge, int maxEntries) {
         this.maxAge = maxAge;
-        cleanerTimer.schedule(new TimerTask() {
-            @Override
-            public void run() {
-                cleanUp();
-            }
-        }, 5000, 5000);
+        this.expiry = new ExpiryWheel<>(ExpiryWheel.tickFor(maxAge), maxEntries, records::remove);
     }
 
     final void cleanUp() {
-        // we should avoid creating an object for each check:
-        Instant now = Instant.now();
-        records.values().forEach(r->r.checkExpiration(now));
+        expiry.expire();
     }
 
     public void shutdown() {
-        cleanerTimer.cancel();
-        cleanerTimer.purge();
+        expiry.shutdown();
     }
 
     public @Nullable Parcel get(HashId itemId) {
         Record i = records.get(itemId);
         if( i != null && i.parcel == null )
             throw new RuntimeException("cache: record with empty item");
+        if( i != null )
+            i.touch();
         return i != null ? i.parcel : null;
     }
 
-    public void put(Parcel parcel) {
+    public synchronized void put(Parcel parcel) {
         // this will plainly override current if any
-        new Record(parcel);
+        Record r = new Record(parcel);
+        records.put(parcel.getId(), r);
+        expiry.schedule(parcel.getId(), r, maxAge);
     }
 
     private ConcurrentHashMap<HashId,Record> records = new ConcurrentHashMap();
@@ -71,19 +76,20 @@ public class ParcelCache {
     }
 
     private class Record {
-        private Instant expiresAt;
         private Parcel parcel;
+        private volatile long touchedAt;
 
         private Record(Parcel parcel) {
-            expiresAt = Instant.now().plus(maxAge);
             this.parcel = parcel;
-            records.put(parcel.getId(), this);
+            touchedAt = System.currentTimeMillis();
         }
 
-        private void checkExpiration(Instant now) {
-            if( expiresAt.isBefore(now) ) {
-                //System.out.println("cache expired "+parcel.getId());
-                records.remove(parcel.getId());
+        private void touch() {
+            // no need to lock the wheel on every access, once a second is enough for the entries limit
+            long now = System.currentTimeMillis();
+            if( now - touchedAt > 1000 ) {
+                touchedAt = now;
+                expiry.touch(parcel.getId());
             }
         }
     }
@@ -512,6 +512,18 @@ public class Client {
         return protect(() -> httpClient.command("getStats","showDays",showPaymentsDays));
     }
 
+    /**
+     * Get runtime metrics of the node: latency histograms of item and parcel processing phases (in microseconds),
+     * votes received from other nodes and gauges of processors and executor queues. Accessible to node owners
+     * (with node {@link PrivateKey} as session key) and network admins
+     * @param reset if true, the node starts histograms and counters from zero after answering
+     * @return dictionary with "phases", "votes" and "gauges"
+     * @throws ClientError
+     */
+    public Binder getMetrics(boolean reset) throws ClientError {
+        return protect(() -> httpClient.command("getMetrics", "reset", reset));
+    }
+
     /**
      * Get processing state of given parcel
      * @param parcelId id of the parcel to get state of
@@ -623,6 +635,100 @@ public class Client {
         });
     }
 
+    /**
+     * Get states of many items from all the nodes in parallel, like {@link #getState(HashId, Reporter)} does for one
+     * item. Nodes are asked with getStates commands of up to {@link ClientHTTPServer#MAX_GET_STATES_IDS} ids each;
+     * nodes that do not support the command are asked with getState for each item.
+     *
+     * @param itemIds items to get states of
+     * @return consensus results (the same state is reported by at least a third of the nodes) by item ids; items
+     * without consensus are absent
+     * @throws ClientError
+     */
+    public Map<HashId, ItemResult> getStates(Collection<HashId> itemIds) throws ClientError {
+        final List<HashId> ids = new ArrayList<>(new LinkedHashSet<>(itemIds));
+        final ExecutorService pool = Executors.newCachedThreadPool();
+
+        final AsyncEvent<Void> consensusFound = new AsyncEvent<>();
+        final int checkConsensus = Math.max(1, getNodes().size() / 3);
+
+        final AtomicInteger nodesLeft = new AtomicInteger(nodes.size());
+        final int chunks = (ids.size() + ClientHTTPServer.MAX_GET_STATES_IDS - 1) / ClientHTTPServer.MAX_GET_STATES_IDS;
+
+        return protect(() -> {
+            final Map<HashId, Map<ItemState, List<ItemResult>>> states = new HashMap<>();
+            final Set<HashId> undecided = new HashSet<>(ids);
+            if (ids.isEmpty() || nodes.isEmpty())
+                return new LinkedHashMap<>();
+
+            for (int i = 0; i < nodes.size(); i++) {
+                final int nn = i;
+                pool.submit(() -> {
+                    try {
+                        Client c = getClient(nn);
+                        for (int from = 0; from < ids.size(); from += ClientHTTPServer.MAX_GET_STATES_IDS) {
+                            List<HashId> chunk = new ArrayList<>(ids.subList(from,
+                                    Math.min(ids.size(), from + ClientHTTPServer.MAX_GET_STATES_IDS)));
+                            List<ItemResult> results = getStatesFromNode(c, chunk);
+                            synchronized (states) {
+                                for (int k = 0; k < chunk.size() && k < results.size(); k++) {
+                                    ItemResult r = results.get(k);
+                                    if (r == null)
+                                        continue;
+                                    List<ItemResult> list = states
+                                            .computeIfAbsent(chunk.get(k), id -> new HashMap<>())
+                                            .computeIfAbsent(r.state, state -> new ArrayList<>());
+                                    list.add(r);
+                                    if (list.size() >= checkConsensus)
+                                        undecided.remove(chunk.get(k));
+                                }
+                                // Now we should check the consensus
+                                if (undecided.isEmpty())
+                                    consensusFound.fire();
+                            }
+                        }
+                    } catch (IOException e) {
+                        // the node is not available, others could still give the consensus
+                    }
+                    if (nodesLeft.decrementAndGet() < 1)
+                        consensusFound.fire();
+                });
+            }
+
+            consensusFound.await(10000L * chunks);
+
+            pool.shutdownNow();
+
+            Map<HashId, ItemResult> consensus = new LinkedHashMap<>();
+            synchronized (states) {
+                for (HashId id : ids) {
+                    Map<ItemState, List<ItemResult>> itemStates = states.get(id);
+                    if (itemStates == null)
+                        continue;
+                    itemStates.values().stream()
+                            .filter(itemResults -> itemResults.size() >= checkConsensus)
+                            .max(Comparator.comparingInt(List::size))
+                            .ifPresent(itemResults -> consensus.put(id, itemResults.get(0)));
+                }
+            }
+            return consensus;
+        });
+    }
+
+    private List<ItemResult> getStatesFromNode(Client c, List<HashId> ids) throws IOException {
+        try {
+            return c.command("getStates", "itemIds", ids).getListOrThrow("itemResults");
+        } catch (CommandFailedException e) {
+            if (e.getErrorRecord() == null || e.getErrorRecord().getError() != Errors.UNKNOWN_COMMAND)
+                throw e;
+            // the node is older than the getStates command
+            List<ItemResult> results = new ArrayList<>(ids.size());
+            for (HashId id : ids)
+                results.add(c.command("getState", "itemId", id).getOrThrow("itemResult"));
+            return results;
+        }
+    }
+
     /**
      * Get number of node cliet connection is established with
      * @return number of node
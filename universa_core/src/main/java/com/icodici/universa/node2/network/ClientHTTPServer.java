@@ -34,6 +34,7 @@ import java.time.ZonedDateTime;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -42,6 +43,11 @@ public class ClientHTTPServer extends BasicHttpServer {
 
     private static final String API_VERSION = "3.1.0";
 
+    /**
+     * Maximum number of item ids in one getStates command.
+     */
+    public static final int MAX_GET_STATES_IDS = 1000;
+
     private final BufferedLogger log;
     private ItemCache cache;
     private ParcelCache parcelCache;
@@ -184,7 +190,9 @@ public class ClientHTTPServer extends BasicHttpServer {
         });
 
         addSecureEndpoint("getStats", this::getStats);
+        addSecureEndpoint("getMetrics", this::getMetrics);
         addSecureEndpoint("getState", this::getState);
+        addSecureEndpoint("getStates", this::getStates);
         addSecureEndpoint("getParcelProcessingState", this::getParcelProcessingState);
         addSecureEndpoint("approve", this::approve);
         addSecureEndpoint("resyncItem", this::resyncItem);
@@ -462,6 +470,22 @@ public class ClientHTTPServer extends BasicHttpServer {
         }
     }
 
+    private Binder getStates(Binder params, Session session) throws IOException {
+
+        checkNode(session, true);
+
+        List<HashId> itemIds = params.getListOrThrow("itemIds");
+        if (itemIds.size() > MAX_GET_STATES_IDS)
+            throw new IOException("too many item ids, the limit is " + MAX_GET_STATES_IDS);
+
+        Map<HashId, ItemResult> results = node.checkItems(itemIds);
+        List<ItemResult> itemResults = new ArrayList<>(itemIds.size());
+        for (HashId itemId : itemIds)
+            itemResults.add(results.get(itemId));
+
+        return Binder.of("itemResults", itemResults);
+    }
+
     private Binder resyncItem(Binder params, Session session) throws CommandFailedException {
 
         checkNode(session, true);
@@ -568,12 +592,7 @@ public class ClientHTTPServer extends BasicHttpServer {
 
         checkNode(session, true);
 
-        if (config == null || node == null || !(
-                config.getNetworkAdminKeyAddress().isMatchingKey(session.getPublicKey()) ||
-                node.getNodeKey().equals(session.getPublicKey()) ||
-                config.getKeysWhiteList().contains(session.getPublicKey()) ||
-                config.getAddressesWhiteList().stream().anyMatch(addr -> addr.isMatchingKey(session.getPublicKey()))
-        )) {
+        if (!isAdminSession(session)) {
             System.out.println("command needs admin key");
             return Binder.of(
                     "itemResult", itemResultOfError(Errors.BAD_CLIENT_KEY,"getStats", "command needs admin key"));
@@ -581,6 +600,27 @@ public class ClientHTTPServer extends BasicHttpServer {
         return node.provideStats(params.getInt("showDays",null));
     }
 
+    private Binder getMetrics(Binder params, Session session) throws CommandFailedException {
+
+        checkNode(session, true);
+
+        if (!isAdminSession(session)) {
+            System.out.println("command needs admin key");
+            return Binder.of(
+                    "itemResult", itemResultOfError(Errors.BAD_CLIENT_KEY,"getMetrics", "command needs admin key"));
+        }
+        return node.provideMetrics(params.getBoolean("reset", false));
+    }
+
+    private boolean isAdminSession(Session session) {
+        return config != null && node != null && (
+                config.getNetworkAdminKeyAddress().isMatchingKey(session.getPublicKey()) ||
+                node.getNodeKey().equals(session.getPublicKey()) ||
+                config.getKeysWhiteList().contains(session.getPublicKey()) ||
+                config.getAddressesWhiteList().stream().anyMatch(addr -> addr.isMatchingKey(session.getPublicKey()))
+        );
+    }
+
     private Binder getParcelProcessingState(Binder params, Session session) throws CommandFailedException {
 
         checkNode(session, true);
@@ -48,22 +48,43 @@ public abstract class DatagramAdapter {
     static public final int RETRANSMIT_MAX_ATTEMPTS = 20;
 
     /**
-     * Maxmimum number of data blocks in the sending queue after which oldest
-     * items are discarded and overflow flag is set. Defaults to 50.
+     * Maxmimum number of data blocks in the sending queue of the session. When it is full, {@link #send(NodeInfo,
+     * byte[])} refuses the new blocks, so that slow or dead node does not stall the sender.
      */
     static public final int MAX_QUEUE_SIZE = 50000;
 
     /**
-     * Maximum number of data blocks in the retransmit queue after which new
-     * sending blocks are delayed in output queue.
+     * Size of the session sliding window: packet ids of the unacknowledged data blocks are less than this apart.
+     * Blocks above the window are delayed in output queue.
      */
     static public final int MAX_RETRANSMIT_QUEUE_SIZE = 5000;
 
     /**
-     * Time between attempts to retransmit a DATA block, in milliseconds
+     * Initial time between attempts to retransmit a DATA block, in milliseconds. Later it is calculated from
+     * measured round trip time.
      */
     static public final int RETRANSMIT_TIME = 250;
 
+    /**
+     * Lower bound of the retransmission timeout calculated from round trip time, in milliseconds.
+     */
+    static public final int MIN_RETRANSMIT_TIME = 50;
+
+    /**
+     * Upper bound of the retransmission timeout and of the delay between retransmits, in milliseconds.
+     */
+    static public final int MAX_RETRANSMIT_TIME = 1000;
+
+    /**
+     * Receiver sends ACK when it has got this many DATA blocks, or earlier, if there are no more packets to process.
+     */
+    static public final int ACK_EVERY_PACKETS = 32;
+
+    /**
+     * Max number of selectively acknowledged ranges of packet ids in the ACK packet.
+     */
+    static public final int MAX_ACK_RANGES = 32;
+
     /**
      * Each next retransmit delayed little bit more than previous. This factor uses in calculation of delay.
      */
@@ -102,7 +123,15 @@ public abstract class DatagramAdapter {
         this.ownPrivateKey = ownPrivateKey;
     }
 
-    public abstract void send(NodeInfo destination, byte[] payload) throws EncryptionError, InterruptedException;
+    /**
+     * Send the payload to the remote node. Never waits: if the sending queue for the node is full, the payload is not
+     * taken and false is returned, so the caller could hold it and try again later.
+     *
+     * @param destination is {@link NodeInfo} of the remote node
+     * @param payload data to send
+     * @return true if the payload is queued for sending, false if the sending queue for the node is full
+     */
+    public abstract boolean send(NodeInfo destination, byte[] payload) throws EncryptionError;
 
 
     /**
@@ -33,6 +33,7 @@ public class NetworkV2 extends Network {
     private final NodeInfo myInfo;
     private final PrivateKey myKey;
     private UDPAdapter adapter;
+    private final NotificationBatcher batcher;
 
 //    private Map<NodeInfo, Node> nodes = new HashMap<>();
 
@@ -49,6 +50,8 @@ public class NetworkV2 extends Network {
 //        adapter.setVerboseLevel(DatagramAdapter.VerboseLevel.BASE);
         adapter.receive(this::onReceived);
         adapter.addErrorsCallback(this::exceptionCallback);
+
+        batcher = new NotificationBatcher(count -> packHeader(myInfo, count), this::sendPacked);
     }
 
     private final void onReceived(byte[] packedNotifications) {
@@ -100,42 +103,75 @@ public class NetworkV2 extends Network {
         }
     }
 
-    private final byte[] packNotifications(NodeInfo from, Collection<Notification> notifications) {
-        Boss.Writer w = new Boss.Writer();
+    /**
+     * Pack the header of the notifications datagram, the notifications packed by the {@link NotificationBatcher}
+     * follow it.
+     */
+    private final byte[] packHeader(NodeInfo from, int count) {
+        Boss.Writer w = Boss.Writer.acquire();
         try {
             w.write(1)                                      // packet type code
                     .write(from.getNumber())                // from number
-                    .write(notifications.size());           // count notifications
-            notifications.forEach(n -> {
-                try {
-                    Notification.write(w, n);
-                } catch (IOException e) {
-                    throw new RuntimeException("notificaiton pack failure", e);
-                }
-            });
+                    .write(count);                          // count notifications
             return w.toByteArray();
         } catch (IOException e) {
             throw new RuntimeException("notificaiton pack failure", e);
+        } finally {
+            w.release();
         }
     }
 
     @Override
     public void deliver(NodeInfo toNode, Notification notification) {
         try {
-            byte[] data = packNotifications(myInfo, Do.listOf(notification));
             logNotification(notification,toNode);
+            batcher.deliver(toNode, notification);
+        } catch (Exception e) {
+            report(getLabel(), "deliver exception: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Deliver notification to all nodes except one. The notification is packed into the outbound batches of all
+     * nodes at once, see {@link NotificationBatcher#broadcast(Collection, Notification)}.
+     *
+     * @param exceptNode   if not null, do not deliver to it.
+     * @param notification notification fo deliver
+     */
+    @Override
+    public void broadcast(NodeInfo exceptNode, Notification notification) {
+        try {
+            List<NodeInfo> destinations = new ArrayList<>();
+            netConfig.forEachNode(node -> {
+                if (exceptNode != null && !exceptNode.equals(node)) {
+                    logNotification(notification, node);
+                    destinations.add(node);
+                }
+            });
+            batcher.broadcast(destinations, notification);
+        } catch (Exception e) {
+            report(getLabel(), "broadcast exception: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
 
+    /**
+     * @return false if the adapter can't take the data now and it should be sent later, true if it is sent or it
+     * can't be sent at all
+     */
+    private boolean sendPacked(NodeInfo toNode, byte[] data) {
+        try {
             if(adapter != null) {
-                adapter.send(toNode, data);
+                return adapter.send(toNode, data);
             } else {
                 report(getLabel(), "UDPAdapter is null");
             }
-        } catch (InterruptedException e) {
-            report(getLabel(), "Expected interrupted exception");
         } catch (Exception e) {
             report(getLabel(), "deliver exception: " + e.getMessage());
             e.printStackTrace();
         }
+        return true;
     }
 
     private void logNotification(Notification notification, NodeInfo to) {
@@ -284,6 +320,7 @@ public class NetworkV2 extends Network {
     }
 
     public void shutdown() {
+        batcher.shutdown();
         if(adapter != null)
             adapter.shutdown();
     }
@@ -327,6 +364,13 @@ public class NetworkV2 extends Network {
         return adapter;
     }
 
+    /**
+     * @return outbound {@link NotificationBatcher}, to tune flush window and batch size or read its counters
+     */
+    public NotificationBatcher getNotificationBatcher() {
+        return batcher;
+    }
+
     public String getLabel()
     {
         return "Network Node " + myInfo.getNumber() + ": ";
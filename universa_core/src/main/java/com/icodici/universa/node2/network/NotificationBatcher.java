@@ -0,0 +1,400 @@
+/*
+ * Copyright (c) 2018, iCodici S.n.C, All Rights Reserved
+ *
+ */
+
+package com.icodici.universa.node2.network;
+
+import com.icodici.universa.node2.NodeInfo;
+import com.icodici.universa.node2.Notification;
+import net.sergeych.boss.Boss;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiPredicate;
+import java.util.function.IntFunction;
+
+/**
+ * Outbound notifications batcher. Collects {@link Notification}s per destination node and passes them to the sender
+ * packed together, so one datagram carries as many notifications as fit into it instead of one datagram per
+ * notification.
+ * <p>
+ * The batch for a node is flushed when the flush window, counted from the first notification put to it, expires, or
+ * immediately when the next notification would make packed batch bigger than {@link #getMaxBatchBytes()}. Zero flush
+ * window turns batching off: each notification is sent at once, as it was before.
+ * <p>
+ * Each notification is packed once, in the Boss stream mode (without the cache), so its packed bytes do not depend on
+ * the notifications around it. The same bytes go to the batches of all destinations, and the size of the batch is
+ * exactly its header plus the sizes of its packed notifications.
+ * <p>
+ * The sender may refuse a datagram when the destination can't take it now (its sending queue is full). Refused
+ * datagrams are held for that destination and retried every {@link #RETRY_DELAY}, in order and before the newer ones,
+ * so a slow node does not delay the others. Not more than {@link #MAX_HELD_DATAGRAMS} are held per destination, the
+ * oldest ones are dropped beyond that.
+ */
+public class NotificationBatcher {
+
+    /**
+     * Bytes the {@link UDPAdapter} adds to the packed notifications in the DATA packet: packet header with the window
+     * offset, random tail, IV and HMAC of the session encryption and CRC32.
+     */
+    static public final int DATAGRAM_OVERHEAD = 84;
+
+    /**
+     * Upper bound for the packed notifications batch, the whole DATA packet should fit into
+     * {@link DatagramAdapter#MAX_PACKET_SIZE}.
+     */
+    static public final int MAX_BATCH_BYTES = DatagramAdapter.MAX_PACKET_SIZE - DATAGRAM_OVERHEAD;
+
+    /**
+     * Receiving side rejects packets with more notifications than this.
+     */
+    static public final int MAX_NOTIFICATIONS_PER_BATCH = 1000;
+
+    static public final Duration DEFAULT_FLUSH_WINDOW = Duration.ofMillis(5);
+
+    /**
+     * How long the datagrams refused by the sender wait before the next attempt.
+     */
+    static public final Duration RETRY_DELAY = Duration.ofMillis(50);
+
+    /**
+     * How many refused datagrams could wait for one destination.
+     */
+    static public final int MAX_HELD_DATAGRAMS = 256;
+
+    /**
+     * Reserved for the batch header: packet type code, sender node number and notifications count.
+     */
+    static private final int HEADER_BYTES = 16;
+
+    private final IntFunction<byte[]> header;
+    private final BiPredicate<NodeInfo, byte[]> sender;
+    private final ConcurrentHashMap<Integer, Batch> batches = new ConcurrentHashMap<>();
+
+    private volatile long flushWindowMillis = DEFAULT_FLUSH_WINDOW.toMillis();
+    private volatile int maxBatchBytes = MAX_BATCH_BYTES;
+
+    private final AtomicLong datagramsSent = new AtomicLong();
+    private final AtomicLong notificationsSent = new AtomicLong();
+    private final AtomicInteger maxNotificationsPerDatagram = new AtomicInteger();
+    private final AtomicLong datagramsRefused = new AtomicLong();
+    private final AtomicLong datagramsDropped = new AtomicLong();
+
+    /** Uses for flusher threads naming. (In local tests we can see many networks running on one machine.) */
+    private static final AtomicInteger flusherThreadNumber = new AtomicInteger(1);
+
+    private final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r);
+        thread.setName("notification-batcher-" + flusherThreadNumber.getAndIncrement());
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Create batcher.
+     *
+     * @param header packs the header of the datagram payload for the given number of notifications, not more than 16
+     *               bytes; packed notifications follow it
+     * @param sender sends packed payload to the destination node, returns false if the destination can't take it
+     *               now, must not throw
+     */
+    public NotificationBatcher(IntFunction<byte[]> header, BiPredicate<NodeInfo, byte[]> sender) {
+        this.header = header;
+        this.sender = sender;
+    }
+
+    /**
+     * Put the notification to the batch of the destination node.
+     *
+     * @param destination is {@link NodeInfo} of node for sending
+     * @param notification is sending {@link Notification}
+     */
+    public void deliver(NodeInfo destination, Notification notification) {
+        byte[] packed = pack(notification);
+        if (flushWindowMillis <= 0) {
+            sendNow(destination, Collections.singletonList(packed));
+            return;
+        }
+        add(destination, packed);
+    }
+
+    /**
+     * Put the same notification to the batches of all destination nodes. The notification is packed only once for
+     * all of them; each batch is still flushed by its own flush window or size.
+     *
+     * @param destinations nodes to send to
+     * @param notification is sending {@link Notification}
+     */
+    public void broadcast(Collection<NodeInfo> destinations, Notification notification) {
+        byte[] packed = pack(notification);
+        if (flushWindowMillis <= 0) {
+            List<byte[]> single = Collections.singletonList(packed);
+            destinations.forEach(node -> sendNow(node, single));
+            return;
+        }
+        destinations.forEach(node -> add(node, packed));
+    }
+
+    private Batch batch(NodeInfo destination) {
+        Batch batch = batches.computeIfAbsent(destination.getNumber(), (k) -> new Batch(destination));
+        // the node could be re-added to the network with the new address
+        synchronized (batch) {
+            batch.destination = destination;
+        }
+        return batch;
+    }
+
+    private void sendNow(NodeInfo destination, List<byte[]> notifications) {
+        Batch batch = batch(destination);
+        synchronized (batch) {
+            send(batch, notifications);
+        }
+    }
+
+    private void add(NodeInfo destination, byte[] packed) {
+        Batch batch = batch(destination);
+        synchronized (batch) {
+            if (!batch.notifications.isEmpty() &&
+                    (batch.bytes + packed.length > maxBatchBytes ||
+                            batch.notifications.size() >= MAX_NOTIFICATIONS_PER_BATCH))
+                send(batch, batch.take());
+            batch.notifications.add(packed);
+            batch.bytes += packed.length;
+            if (batch.bytes >= maxBatchBytes)
+                send(batch, batch.take());
+            else if (batch.flushTask == null)
+                batch.flushTask = flusher.schedule(() -> flush(batch), flushWindowMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void flush(Batch batch) {
+        synchronized (batch) {
+            batch.flushTask = null;
+            List<byte[]> ready = batch.take();
+            if (!ready.isEmpty())
+                send(batch, ready);
+        }
+    }
+
+    private void retry(Batch batch) {
+        synchronized (batch) {
+            batch.retryTask = null;
+            while (!batch.held.isEmpty() && transmit(batch.destination, batch.held.peek()))
+                batch.held.poll();
+            if (!batch.held.isEmpty())
+                scheduleRetry(batch);
+        }
+    }
+
+    private void scheduleRetry(Batch batch) {
+        // after the shutdown the held datagrams get only the last attempt
+        if (!flusher.isShutdown())
+            batch.retryTask = flusher.schedule(() -> retry(batch), RETRY_DELAY.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Send all pending notifications right now.
+     */
+    public void flushAll() {
+        batches.values().forEach(this::flush);
+    }
+
+    /**
+     * Pack the datagram and pass it to the sender, or hold it if the sender refuses it or there are older datagrams
+     * held for the destination. Should be called under the batch lock.
+     */
+    private void send(Batch batch, List<byte[]> notifications) {
+        byte[] head = header.apply(notifications.size());
+        int size = head.length;
+        for (byte[] packed : notifications)
+            size += packed.length;
+        byte[] data = Arrays.copyOf(head, size);
+        int offset = head.length;
+        for (byte[] packed : notifications) {
+            System.arraycopy(packed, 0, data, offset, packed.length);
+            offset += packed.length;
+        }
+        Datagram datagram = new Datagram(data, notifications.size());
+        if (batch.held.isEmpty() && transmit(batch.destination, datagram))
+            return;
+        if (batch.held.size() >= MAX_HELD_DATAGRAMS) {
+            batch.held.poll();
+            datagramsDropped.incrementAndGet();
+        }
+        batch.held.add(datagram);
+        if (batch.retryTask == null)
+            scheduleRetry(batch);
+    }
+
+    private boolean transmit(NodeInfo destination, Datagram datagram) {
+        if (!sender.test(destination, datagram.data)) {
+            datagramsRefused.incrementAndGet();
+            return false;
+        }
+        datagramsSent.incrementAndGet();
+        notificationsSent.addAndGet(datagram.notifications);
+        maxNotificationsPerDatagram.accumulateAndGet(datagram.notifications, Math::max);
+        return true;
+    }
+
+    /**
+     * Flush pending notifications, try to send the held ones once more and stop the flusher thread.
+     */
+    public void shutdown() {
+        flushAll();
+        flusher.shutdownNow();
+        batches.values().forEach(this::retry);
+    }
+
+    /**
+     * Pack the notification in the stream mode, so it could be read after any other notifications.
+     */
+    static byte[] pack(Notification notification) {
+        Boss.Writer w = Boss.Writer.acquire();
+        try {
+            w.setStreamMode();
+            Notification.write(w, notification);
+            return w.toByteArray();
+        } catch (IOException e) {
+            throw new RuntimeException("notificaiton pack failure", e);
+        } finally {
+            w.release();
+        }
+    }
+
+    public Duration getFlushWindow() {
+        return Duration.ofMillis(flushWindowMillis);
+    }
+
+    /**
+     * Set how long the first notification of a batch may wait for others to join it.
+     *
+     * @param flushWindow is the batch delay, zero to send each notification at once
+     */
+    public void setFlushWindow(Duration flushWindow) {
+        if (flushWindow.isNegative())
+            throw new IllegalArgumentException("flush window can't be negative: " + flushWindow);
+        flushWindowMillis = flushWindow.toMillis();
+        if (flushWindowMillis <= 0)
+            flushAll();
+    }
+
+    public int getMaxBatchBytes() {
+        return maxBatchBytes;
+    }
+
+    /**
+     * Set the size limit for the packed batch.
+     *
+     * @param maxBatchBytes is limit in bytes, from header size up to {@link #MAX_BATCH_BYTES}
+     */
+    public void setMaxBatchBytes(int maxBatchBytes) {
+        if (maxBatchBytes <= HEADER_BYTES || maxBatchBytes > MAX_BATCH_BYTES)
+            throw new IllegalArgumentException("max batch bytes should be in (" + HEADER_BYTES + ".." +
+                    MAX_BATCH_BYTES + "], got " + maxBatchBytes);
+        this.maxBatchBytes = maxBatchBytes;
+    }
+
+    /**
+     * @return number of datagrams passed to the sender
+     */
+    public long getDatagramsSent() {
+        return datagramsSent.get();
+    }
+
+    /**
+     * @return number of notifications passed to the sender
+     */
+    public long getNotificationsSent() {
+        return notificationsSent.get();
+    }
+
+    /**
+     * @return average number of notifications per sent datagram, 0 if nothing was sent yet
+     */
+    public double getNotificationsPerDatagram() {
+        long datagrams = datagramsSent.get();
+        return datagrams == 0 ? 0 : (double) notificationsSent.get() / datagrams;
+    }
+
+    /**
+     * @return the biggest number of notifications sent in one datagram
+     */
+    public int getMaxNotificationsPerDatagram() {
+        return maxNotificationsPerDatagram.get();
+    }
+
+    /**
+     * @return number of times the sender refused a datagram, each refused datagram is counted on every attempt
+     */
+    public long getDatagramsRefused() {
+        return datagramsRefused.get();
+    }
+
+    /**
+     * @return number of refused datagrams dropped because too many were held for the destination
+     */
+    public long getDatagramsDropped() {
+        return datagramsDropped.get();
+    }
+
+    public void resetStats() {
+        datagramsSent.set(0);
+        notificationsSent.set(0);
+        maxNotificationsPerDatagram.set(0);
+        datagramsRefused.set(0);
+        datagramsDropped.set(0);
+    }
+
+    /**
+     * Pending notifications and held datagrams for one destination node.
+     */
+    private class Batch {
+        private NodeInfo destination;
+        // packed notifications
+        private List<byte[]> notifications = new ArrayList<>();
+        private int bytes = HEADER_BYTES;
+        private ScheduledFuture<?> flushTask;
+        // packed datagrams refused by the sender, oldest first
+        private final ArrayDeque<Datagram> held = new ArrayDeque<>();
+        private ScheduledFuture<?> retryTask;
+
+        Batch(NodeInfo destination) {
+            this.destination = destination;
+        }
+
+        /**
+         * Take all collected notifications and make the batch empty. Should be called under the batch lock.
+         *
+         * @return collected notifications
+         */
+        List<byte[]> take() {
+            if (flushTask != null) {
+                flushTask.cancel(false);
+                flushTask = null;
+            }
+            List<byte[]> result = notifications;
+            notifications = new ArrayList<>();
+            bytes = HEADER_BYTES;
+            return result;
+        }
+    }
+
+    /**
+     * Packed payload with the number of notifications in it.
+     */
+    private static class Datagram {
+        private final byte[] data;
+        private final int notifications;
+
+        Datagram(byte[] data, int notifications) {
+            this.data = data;
+            this.notifications = notifications;
+        }
+    }
+}
@@ -13,27 +13,70 @@ import com.icodici.universa.Errors;
 import com.icodici.universa.node2.NetConfig;
 import com.icodici.universa.node2.NodeInfo;
 import net.sergeych.boss.Boss;
+import net.sergeych.tools.Binder;
 import net.sergeych.tools.Do;
 import net.sergeych.utils.Bytes;
 
 import java.io.IOException;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.time.Duration;
 import java.time.Instant;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
 import java.util.function.Function;
 
 public class UDPAdapter extends DatagramAdapter {
 
-    private DatagramSocket socket;
+    /**
+     * Max number of received packets waiting for each {@link PacketWorker}, packets above it are dropped.
+     */
+    static public final int WORKER_QUEUE_SIZE = 8192;
+
+    /**
+     * Max number of received payloads waiting for each {@link Dispatcher}.
+     */
+    static public final int DISPATCH_QUEUE_SIZE = 8192;
+
+    /**
+     * Max number of DATA packets retransmitted to one remote node by each retransmission pulse, the rest of timed out
+     * packets wait for the next pulse.
+     */
+    static public final int RETRANSMIT_BURST = 128;
+
+    /**
+     * Period of retransmission pulses. Each pulse checks only sessions which have packets to retransmit by now.
+     */
+    static private final int RETRANSMIT_PULSE_TIME = MIN_RETRANSMIT_TIME / 2;
+
+    private static final int DEFAULT_THREADS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    private static volatile int workerThreadsCount = DEFAULT_THREADS;
+    private static volatile int dispatchThreadsCount = DEFAULT_THREADS;
+
+    private volatile DatagramChannel channel;
     private SocketListenThread socketListenThread;
+    private PacketWorker[] workers;
+    private Dispatcher[] dispatchers;
+    private final LongAdder receivedPackets = new LongAdder();
+    private final LongAdder droppedPackets = new LongAdder();
+    private final LongAdder droppedPayloads = new LongAdder();
+    private final LongAdder dispatchedPayloads = new LongAdder();
+    private final LongAdder sentAcks = new LongAdder();
+    private final LongAdder retransmittedPackets = new LongAdder();
+    private final LongAccumulator maxWorkerQueueSize = new LongAccumulator(Math::max, 0);
+    private final LongAccumulator maxDispatchQueueSize = new LongAccumulator(Math::max, 0);
     private ConcurrentHashMap<Integer, Session> sessionsByRemoteId = new ConcurrentHashMap<>();
     private ConcurrentHashMap<Integer, SessionReader> sessionReaders = new ConcurrentHashMap<>();
     private ConcurrentHashMap<Integer, SessionReader> sessionReaderCandidates = new ConcurrentHashMap<>();
     private String logLabel = "";
-    private Integer nextPacketId = 1;
+    private ConcurrentLinkedQueue<DatagramPacket> shuffledPackets = new ConcurrentLinkedQueue<>();
     private Timer timerHandshake = new Timer();
     private Timer timerRetransmit = new Timer();
     private Timer timerProtectionFromDuple = new Timer();
@@ -54,12 +97,20 @@ public class UDPAdapter extends DatagramAdapter {
 
         logLabel = "udp" + myNodeInfo.getNumber() + ": ";
 
-        nextPacketId = new Random().nextInt(Integer.MAX_VALUE)+1;
+        channel = openChannel();
 
-        socket = new DatagramSocket(myNodeInfo.getNodeAddress().getPort());
-        socket.setReuseAddress(true);
+        workers = new PacketWorker[workerThreadsCount];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new PacketWorker(i);
+            workers[i].start();
+        }
+        dispatchers = new Dispatcher[dispatchThreadsCount];
+        for (int i = 0; i < dispatchers.length; i++) {
+            dispatchers[i] = new Dispatcher(i);
+            dispatchers[i].start();
+        }
 
-        socketListenThread = new SocketListenThread(socket);
+        socketListenThread = new SocketListenThread();
         socketListenThread.start();
 
         timerHandshake.scheduleAtFixedRate(new TimerTask() {
@@ -74,7 +125,7 @@ public class UDPAdapter extends DatagramAdapter {
             public void run() {
                 pulseRetransmit();
             }
-        }, RETRANSMIT_TIME, RETRANSMIT_TIME);
+        }, RETRANSMIT_PULSE_TIME, RETRANSMIT_PULSE_TIME);
 
         int dupleProtectionPeriod = 2 * RETRANSMIT_TIME_GROW_FACTOR * RETRANSMIT_TIME * RETRANSMIT_MAX_ATTEMPTS;
         timerProtectionFromDuple.scheduleAtFixedRate(new TimerTask() {
@@ -86,46 +137,124 @@ public class UDPAdapter extends DatagramAdapter {
     }
 
 
+    /**
+     * Payloads go through the output queue of the session, so they are sent in order when the handshake completes and
+     * when the session window has room for them. If the queue is still full after sending what the window allows, the
+     * payload is refused and counted as "send_dropped" in {@link #getStats()}. Payloads sent after the adapter is
+     * stopped are silently ignored.
+     */
     @Override
-    synchronized public void send(NodeInfo destination, byte[] payload) throws InterruptedException {
+    public boolean send(NodeInfo destination, byte[] payload) {
         report(logLabel, () -> "send to "+destination.getNumber()+", isActive: "+socketListenThread.isActive.get(), VerboseLevel.DETAILED);
 
         if (!socketListenThread.isActive.get())
-            return;
+            return true;
 
         Session session = getOrCreateSession(destination);
-        if (session.state.get() == Session.STATE_HANDSHAKE) {
-            session.addPayloadToOutputQueue(destination, payload);
-        } else {
-            if (session.retransmitMap.size() > MAX_RETRANSMIT_QUEUE_SIZE)
-                session.addPayloadToOutputQueue(destination, payload);
-            else
-                sendPayload(session, payload);
-        }
+        if (!session.addPayloadToOutputQueue(destination, payload))
+            return false;
+        session.sendAllFromOutputQueue();
+        return true;
     }
 
 
     /**
-     * Method creates {@link DatagramPacket} from given {@link Packet} and sends it to address:port from destination.
+     * Method sends given {@link Packet} as datagram to address:port from destination.
      * @param destination instance of {@link NodeInfo} with net address for sending.
      * @param packet data to send. It's {@link Packet#makeByteArray()} should returns data with size less than {@link DatagramAdapter#MAX_PACKET_SIZE}
      */
     private void sendPacket(NodeInfo destination, Packet packet) {
         byte[] payload = packet.makeByteArray();
-        DatagramPacket dp = new DatagramPacket(payload, payload.length, destination.getNodeAddress().getAddress(), destination.getNodeAddress().getPort());
         try {
             report(logLabel, ()->"sendPacket datagram size: " + payload.length, VerboseLevel.DETAILED);
             if ((testMode == TestModes.LOST_PACKETS || testMode == TestModes.LOST_AND_SHUFFLE_PACKETS)
                 && (new Random().nextInt(100) < lostPacketsPercent))
                 report(logLabel, ()->"test mode: skip socket.send", VerboseLevel.BASE);
-            else
-                socket.send(dp);
+            else if ((testMode == TestModes.SHUFFLE_PACKETS || testMode == TestModes.LOST_AND_SHUFFLE_PACKETS)
+                && (new Random().nextInt(100) < 50)) {
+                report(logLabel, ()->"test mode: delay socket.send", VerboseLevel.DETAILED);
+                shuffledPackets.add(new DatagramPacket(payload, payload.length, destination.getNodeAddress()));
+            } else {
+                sendDatagram(payload, destination.getNodeAddress());
+                sendShuffledPackets();
+            }
         } catch (Exception e) {
             callErrorCallbacks("sendPacket exception: " + e);
         }
     }
 
 
+    /**
+     * In test modes with shuffled packets some packets are delayed until the next one is sent, or until the next
+     * retransmission pulse.
+     */
+    private void sendShuffledPackets() throws IOException {
+        DatagramPacket delayed;
+        while ((delayed = shuffledPackets.poll()) != null)
+            sendDatagram(delayed.getData(), (InetSocketAddress) delayed.getSocketAddress());
+    }
+
+
+    /**
+     * Interrupt of the thread that does I/O on the channel closes the channel, and senders (e.g. cancelled pollers) could
+     * be interrupted at any moment. So interrupted status is cleared while the datagram is sent and restored after.
+     * @param data to send
+     * @param address of the remote node
+     * @throws IOException if the datagram can not be sent
+     */
+    private void sendDatagram(byte[] data, InetSocketAddress address) throws IOException {
+        boolean interrupted = Thread.interrupted();
+        try {
+            channel.send(ByteBuffer.wrap(data), address);
+        } finally {
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+
+
+    private DatagramChannel openChannel() throws IOException {
+        DatagramChannel newChannel = DatagramChannel.open();
+        try {
+            newChannel.bind(new InetSocketAddress(myNodeInfo.getNodeAddress().getPort()));
+            newChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        } catch (IOException e) {
+            newChannel.close();
+            throw e;
+        }
+        return newChannel;
+    }
+
+
+    /**
+     * Open the channel again if it has been closed while the adapter is active. Waits for a while if the port can not
+     * be bound yet.
+     */
+    private synchronized void reopenChannel() {
+        if (channel.isOpen())
+            return;
+        try {
+            channel = openChannel();
+        } catch (IOException e) {
+            callErrorCallbacks("can't reopen channel: " + e);
+            try {
+                Thread.sleep(RETRANSMIT_TIME);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+
+    private void closeChannel() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            report(logLabel, ()->"channel close failed: " + e, VerboseLevel.BASE);
+        }
+    }
+
+
     /**
      * All packets data ({@link Packet#payload}) of type {@link PacketTypes#DATA}
      * must be encrypted with sessionKey ({@link SymmetricKey}).
@@ -139,7 +268,7 @@ public class UDPAdapter extends DatagramAdapter {
             byte[] payloadWithRandomChunk = new byte[payload.length + 2];
             System.arraycopy(payload, 0, payloadWithRandomChunk, 0, payload.length);
             System.arraycopy(Bytes.random(2).toArray(), 0, payloadWithRandomChunk, payload.length, 2);
-            byte[] encryptedPayload = new SymmetricKey(sessionKey.getKey()).etaEncrypt(payloadWithRandomChunk);
+            byte[] encryptedPayload = sessionKey.etaEncrypt(payloadWithRandomChunk);
             byte[] crc32 = new Crc32().digest(encryptedPayload);
             byte[] dataToSend = new byte[encryptedPayload.length + crc32.length];
             System.arraycopy(encryptedPayload, 0, dataToSend, 0, encryptedPayload.length);
@@ -155,30 +284,37 @@ public class UDPAdapter extends DatagramAdapter {
     /**
      * Creates {@link Packet} of type {@link PacketTypes#DATA} and sends it to network, initiates retransmission.
      * It is normal data sending procedure when {@link Session} with remote node is already established.
+     * Should be called with the session locked, when the session window has room for the packet.
      * @param session {@link Session} with remote node
      * @param payload data to send
      */
     private void sendPayload(Session session, byte[] payload) {
-        byte[] dataToSend = preparePayloadForSession(session.sessionKey, payload);
-        Packet packet = new Packet(getNextPacketId(), myNodeInfo.getNumber(),
-                session.remoteNodeInfo.getNumber(), PacketTypes.DATA, dataToSend);
+        Packet packet = session.createDataPacket(session.getNextPacketId(), payload);
         sendPacket(session.remoteNodeInfo, packet);
         session.addPacketToRetransmitMap(packet.packetId, packet, payload);
     }
 
 
     /**
-     * Generates next serial packetId from sequence [1..{@link Integer#MAX_VALUE}], with cycle.
-     * Used for packet confirmations, in retransmission algorithm.
-     * @return new packet id for sending
+     * Packet ids are taken from sequence [1..{@link Integer#MAX_VALUE}], with cycle.
+     * @param packetId is id to start from
+     * @param count is number of ids to step forward (or backward, if negative)
+     * @return packet id count steps after the given one
+     */
+    static int packetIdAfter(int packetId, int count) {
+        return (int) (Math.floorMod((long) packetId - 1 + count, (long) Integer.MAX_VALUE) + 1);
+    }
+
+
+    /**
+     * @see UDPAdapter#packetIdAfter(int, int)
+     * @return number of steps from one packet id to another, negative if the second one is before the first one
      */
-    synchronized private Integer getNextPacketId() {
-        Integer res = nextPacketId;
-        if (nextPacketId == Integer.MAX_VALUE)
-            nextPacketId = 1;
-        else
-            ++nextPacketId;
-        return res;
+    static int packetIdDistance(int fromPacketId, int toPacketId) {
+        long distance = Math.floorMod((long) toPacketId - fromPacketId, (long) Integer.MAX_VALUE);
+        if (distance > Integer.MAX_VALUE / 2)
+            distance -= Integer.MAX_VALUE;
+        return (int) distance;
     }
 
 
@@ -186,7 +322,11 @@ public class UDPAdapter extends DatagramAdapter {
     public void shutdown() {
         report(logLabel, ()->"shutting down...", VerboseLevel.BASE);
         socketListenThread.isActive.set(false);
-        socket.close();
+        closeChannel();
+        for (PacketWorker worker : workers)
+            worker.interrupt();
+        for (Dispatcher dispatcher : dispatchers)
+            dispatcher.interrupt();
         timerHandshake.cancel();
         timerHandshake.purge();
         timerRetransmit.cancel();
@@ -195,6 +335,10 @@ public class UDPAdapter extends DatagramAdapter {
         timerProtectionFromDuple.purge();
         try {
             socketListenThread.join();
+            for (PacketWorker worker : workers)
+                worker.join();
+            for (Dispatcher dispatcher : dispatchers)
+                dispatcher.join();
         } catch (InterruptedException e) {
             report(logLabel, ()->"shutting down... InterruptedException: "+e, VerboseLevel.BASE);
         }
@@ -325,6 +469,11 @@ public class UDPAdapter extends DatagramAdapter {
         sessionReaders.forEach((k, sr) -> sr.pulseRetransmit());
         sessionReaderCandidates.forEach((k, sr) -> sr.pulseRetransmit());
         sessionsByRemoteId.forEach((k, s)->s.sendAllFromOutputQueue());
+        try {
+            sendShuffledPackets();
+        } catch (IOException e) {
+            callErrorCallbacks("(pulseRetransmit) IOException: " + e);
+        }
     }
 
 
@@ -355,16 +504,71 @@ public class UDPAdapter extends DatagramAdapter {
     }
 
 
+    /**
+     * Number of {@link PacketWorker} threads for adapters created after the call.
+     * @param count is number of threads, at least 1
+     */
+    public static void setWorkerThreadsCount(int count) {
+        workerThreadsCount = Math.max(1, count);
+    }
+
+    public static int getWorkerThreadsCount() {
+        return workerThreadsCount;
+    }
+
+    /**
+     * Number of {@link Dispatcher} threads for adapters created after the call.
+     * @param count is number of threads, at least 1
+     */
+    public static void setDispatchThreadsCount(int count) {
+        dispatchThreadsCount = Math.max(1, count);
+    }
+
+    public static int getDispatchThreadsCount() {
+        return dispatchThreadsCount;
+    }
+
+
+    /**
+     * @return counters of the receive pipeline and current (and max) sizes of its queues, numbers of sent ACKs and
+     * retransmitted DATA packets
+     */
+    public Binder getStats() {
+        int workerQueue = 0;
+        for (PacketWorker worker : workers)
+            workerQueue += worker.queue.size();
+        int dispatchQueue = 0;
+        for (Dispatcher dispatcher : dispatchers)
+            dispatchQueue += dispatcher.queue.size();
+        return Binder.fromKeysValues(
+                "received", receivedPackets.sum(),
+                "dropped", droppedPackets.sum(),
+                "send_dropped", droppedPayloads.sum(),
+                "dispatched", dispatchedPayloads.sum(),
+                "acks_sent", sentAcks.sum(),
+                "retransmitted", retransmittedPackets.sum(),
+                "worker_threads", workers.length,
+                "worker_queue", workerQueue,
+                "worker_queue_max", maxWorkerQueueSize.get(),
+                "dispatch_threads", dispatchers.length,
+                "dispatch_queue", dispatchQueue,
+                "dispatch_queue_max", maxDispatchQueueSize.get()
+        );
+    }
+
+
     /**
      * for debug
      */
     public void printInternalState() {
         System.out.println("\nprintInternalState "+logLabel);
         System.out.println("  inputQueue.size(): " + inputQueue.size());
+        System.out.println("  receive pipeline: " + getStats());
         sessionsByRemoteId.forEach((k, s)->{
             System.out.println("  session with node="+k+":");
             System.out.println("    outputQueue.size(): " + s.outputQueue.size());
             System.out.println("    retransmitMap.size(): " + s.retransmitMap.size());
+            System.out.println("    retransmitTimeout: " + s.getRetransmitTimeout());
             System.out.println("    protectionFromDuple0.size(): " + s.protectionFromDuple0.size());
             System.out.println("    protectionFromDuple1.size(): " + s.protectionFromDuple1.size());
         });
@@ -391,7 +595,7 @@ public class UDPAdapter extends DatagramAdapter {
         try {
             report(logLabel, () -> "send hello to " + session.remoteNodeInfo.getNumber(), VerboseLevel.BASE);
             byte[] helloNonce = Do.randomBytes(64);
-            Packet packet = new Packet(getNextPacketId(), myNodeInfo.getNumber(),
+            Packet packet = new Packet(session.getNextPacketId(), myNodeInfo.getNumber(),
                     session.remoteNodeInfo.getNumber(), PacketTypes.HELLO, new PublicKey(session.remoteNodeInfo.getPublicKey().pack()).encrypt(helloNonce));
             sendPacket(session.remoteNodeInfo, packet);
             session.addPacketToRetransmitMap(packet.packetId, packet, helloNonce);
@@ -412,7 +616,7 @@ public class UDPAdapter extends DatagramAdapter {
             byte[] data = sessionReader.localNonce;
             byte[] sign = new PrivateKey(ownPrivateKey.pack()).sign(data, HashType.SHA512);
             byte[] payload = Boss.dumpToArray(Arrays.asList(data, sign));
-            Packet packet = new Packet(getNextPacketId(), myNodeInfo.getNumber(),
+            Packet packet = new Packet(sessionReader.getNextPacketId(), myNodeInfo.getNumber(),
                     sessionReader.remoteNodeInfo.getNumber(), PacketTypes.WELCOME, payload);
             sendPacket(sessionReader.remoteNodeInfo, packet);
             sessionReader.removeHandshakePacketsFromRetransmitMap();
@@ -428,14 +632,14 @@ public class UDPAdapter extends DatagramAdapter {
      * and have got {@link PacketTypes#WELCOME} typed {@link Packet} - it means we can continue handshake and send
      * request for session's keys. KEY_REQ's payload is more than 512 bytes, so used two parts here.
      * @param session is {@link Session} in which sending is.
-     * @param payloadPart1 is prepared in {@link SocketListenThread#onReceiveWelcome(Packet)}
-     * @param payloadPart2 is prepared in {@link SocketListenThread#onReceiveWelcome(Packet)}
+     * @param payloadPart1 is prepared in {@link PacketWorker#onReceiveWelcome(Packet)}
+     * @param payloadPart2 is prepared in {@link PacketWorker#onReceiveWelcome(Packet)}
      */
     private void sendKeyReq(Session session, byte[] payloadPart1, byte[] payloadPart2) throws EncryptionError {
         report(logLabel, ()->"send key_req to "+session.remoteNodeInfo.getNumber(), VerboseLevel.BASE);
-        Packet packet1 = new Packet(getNextPacketId(), myNodeInfo.getNumber(),
+        Packet packet1 = new Packet(session.getNextPacketId(), myNodeInfo.getNumber(),
                 session.remoteNodeInfo.getNumber(), PacketTypes.KEY_REQ_PART1, payloadPart1);
-        Packet packet2 = new Packet(getNextPacketId(), myNodeInfo.getNumber(),
+        Packet packet2 = new Packet(session.getNextPacketId(), myNodeInfo.getNumber(),
                 session.remoteNodeInfo.getNumber(), PacketTypes.KEY_REQ_PART2, payloadPart2);
         sendPacket(session.remoteNodeInfo, packet1);
         sendPacket(session.remoteNodeInfo, packet2);
@@ -459,9 +663,9 @@ public class UDPAdapter extends DatagramAdapter {
         byte[] encrypted = new PublicKey(sessionReader.remoteNodeInfo.getPublicKey().pack()).encrypt(packed);
         byte[] sign = new PrivateKey(ownPrivateKey.pack()).sign(encrypted, HashType.SHA512);
 
-        Packet packet1 = new Packet(getNextPacketId(), myNodeInfo.getNumber(),
+        Packet packet1 = new Packet(sessionReader.getNextPacketId(), myNodeInfo.getNumber(),
                 sessionReader.remoteNodeInfo.getNumber(), PacketTypes.SESSION_PART1, encrypted);
-        Packet packet2 = new Packet(getNextPacketId(), myNodeInfo.getNumber(),
+        Packet packet2 = new Packet(sessionReader.getNextPacketId(), myNodeInfo.getNumber(),
                 sessionReader.remoteNodeInfo.getNumber(), PacketTypes.SESSION_PART2, sign);
         sendPacket(sessionReader.remoteNodeInfo, packet1);
         sendPacket(sessionReader.remoteNodeInfo, packet2);
@@ -471,16 +675,34 @@ public class UDPAdapter extends DatagramAdapter {
 
 
     /**
-     * Each adapter will try to send blocks until have got special {@link Packet} with type {@link PacketTypes#ACK},
-     * that means receiver have got block. So when we got packet and all is ok - call this method.
+     * Each adapter will try to send blocks until have got special {@link Packet} with type {@link PacketTypes#RANGE_ACK},
+     * that means receiver have got block. One ACK confirms all the blocks received by the session reader so far, see
+     * {@link ReceiveWindow#makeAck()}. {@link PacketWorker} calls this method when it has got
+     * {@link UDPAdapter#ACK_EVERY_PACKETS} blocks from the remote node, or when it has no more packets to process.
      * @param sessionReader is {@link SessionReader} in which sending is.
-     * @param packetId is id of packet we have got.
      */
-    private void sendAck(SessionReader sessionReader, Integer packetId) throws EncryptionError {
+    private void sendAck(SessionReader sessionReader) throws EncryptionError {
         report(logLabel, ()->"send ack to "+sessionReader.remoteNodeInfo.getNumber(), VerboseLevel.DETAILED);
         Packet packet = new Packet(0, myNodeInfo.getNumber(),
-                sessionReader.remoteNodeInfo.getNumber(), PacketTypes.ACK, new SymmetricKey(sessionReader.sessionKey.getKey()).etaEncrypt(Boss.pack(packetId)));
+                sessionReader.remoteNodeInfo.getNumber(), PacketTypes.RANGE_ACK,
+                sessionReader.sessionKey.etaEncrypt(Boss.pack(sessionReader.receiveWindow.makeAck())));
         sendPacket(sessionReader.remoteNodeInfo, packet);
+        sentAcks.increment();
+    }
+
+
+    /**
+     * Older nodes do not understand {@link PacketTypes#RANGE_ACK}, each their DATA packet is acknowledged at once with
+     * {@link PacketTypes#ACK} of its id.
+     * @param sessionReader is {@link SessionReader} in which sending is.
+     * @param packetId is id of received DATA packet
+     */
+    private void sendSingleAck(SessionReader sessionReader, Integer packetId) throws EncryptionError {
+        report(logLabel, ()->"send single ack to "+sessionReader.remoteNodeInfo.getNumber(), VerboseLevel.DETAILED);
+        Packet packet = new Packet(0, myNodeInfo.getNumber(),
+                sessionReader.remoteNodeInfo.getNumber(), PacketTypes.ACK, sessionReader.sessionKey.etaEncrypt(Boss.pack(packetId)));
+        sendPacket(sessionReader.remoteNodeInfo, packet);
+        sentAcks.increment();
     }
 
 
@@ -493,7 +715,7 @@ public class UDPAdapter extends DatagramAdapter {
     private void sendSessionAck(Session session) throws EncryptionError {
         report(logLabel, ()->"send session_ack to "+session.remoteNodeInfo.getNumber(), VerboseLevel.BASE);
         Packet packet = new Packet(0, myNodeInfo.getNumber(),
-                session.remoteNodeInfo.getNumber(), PacketTypes.SESSION_ACK, new SymmetricKey(session.sessionKey.getKey()).etaEncrypt(Do.randomBytes(32)));
+                session.remoteNodeInfo.getNumber(), PacketTypes.SESSION_ACK, session.sessionKey.etaEncrypt(Do.randomBytes(32)));
         sendPacket(session.remoteNodeInfo, packet);
     }
 
@@ -501,7 +723,7 @@ public class UDPAdapter extends DatagramAdapter {
     /**
      * Each adapter will try to send blocks until have got special {@link Packet} with type {@link PacketTypes#ACK},
      * that means receiver have got block. So when we got block, but something went wrong - call this method. Note that
-     * for success blocks needs to call {@link UDPAdapter#sendAck(SessionReader, Integer)}
+     * for success blocks needs to call {@link UDPAdapter#sendAck(SessionReader)}
      * @param nodeNumber node id in which sending is
      * @param packetId is id of block we have got.
      */
@@ -528,96 +750,165 @@ public class UDPAdapter extends DatagramAdapter {
     private static int socketListenThreadNumber = 1;
 
     /**
-     * This thread listen socket for packets and processes them by types.
+     * This thread receives datagrams from the channel and passes them to the {@link PacketWorker} of the sender.
      */
     private class SocketListenThread extends Thread {
 
         private AtomicBoolean isActive = new AtomicBoolean(false);
-        private final DatagramSocket threadSocket;
-        private DatagramPacket receivedDatagram;
         private String logLabel = "";
 
-        public SocketListenThread(DatagramSocket socket){
-            byte[] buf = new byte[DatagramAdapter.MAX_PACKET_SIZE];
-            receivedDatagram = new DatagramPacket(buf, buf.length);
-            threadSocket = socket;
-            try {
-                threadSocket.setSoTimeout(500);
-            } catch (SocketException e) {
-                report(logLabel, ()->"setSoTimeout failed, exception: " + e, VerboseLevel.BASE);
-            }
-        }
-
         @Override
         public void run() {
             setName("UDP-socket-listener-" + socketListenThreadNumber++);
             logLabel = myNodeInfo.getNumber() + "-" + getName() + ": ";
 
             isActive.set(true);
+            ByteBuffer buffer = ByteBuffer.allocate(DatagramAdapter.MAX_PACKET_SIZE);
             while(isActive.get()) {
-                boolean isDatagramReceived = false;
                 try {
-                    threadSocket.receive(receivedDatagram);
-                    isDatagramReceived = true;
-                } catch (SocketException e) {
-                    report(logLabel, ()->"received SocketException: " + e, VerboseLevel.BASE);
-                } catch (SocketTimeoutException e) {
-                    report(logLabel, ()->"received nothing", VerboseLevel.BASE);
+                    buffer.clear();
+                    channel.receive(buffer);
+                    buffer.flip();
+                    byte[] data = new byte[buffer.remaining()];
+                    buffer.get(data);
+                    receivedPackets.increment();
+
+                    Packet packet = new Packet();
+                    packet.parseFromByteArray(data);
+                    workers[Math.floorMod(packet.senderNodeId, workers.length)].enqueue(packet);
+                } catch (ClosedChannelException e) {
+                    if (isActive.get()) {
+                        report(logLabel, ()->"channel is closed, reopen it: " + e, VerboseLevel.BASE);
+                        reopenChannel();
+                    }
                 } catch (IOException e) {
-                    e.printStackTrace();
+                    report(logLabel, ()->"received IOException: " + e, VerboseLevel.BASE);
+                } catch (Exception e) {
+                    callErrorCallbacks("SocketListenThread exception: " + e);
                 }
+            }
 
-                if (isDatagramReceived) {
-                    try {
-                        byte[] data = Arrays.copyOfRange(receivedDatagram.getData(), 0, receivedDatagram.getLength());
-                        Packet packet = new Packet();
-                        packet.parseFromByteArray(data);
-
-                        switch (packet.type) {
-                            case PacketTypes.HELLO:
-                                onReceiveHello(packet);
-                                break;
-                            case PacketTypes.WELCOME:
-                                onReceiveWelcome(packet);
-                                break;
-                            case PacketTypes.KEY_REQ_PART1:
-                                onReceiveKeyReqPart1(packet);
-                                break;
-                            case PacketTypes.KEY_REQ_PART2:
-                                onReceiveKeyReqPart2(packet);
-                                break;
-                            case PacketTypes.SESSION_PART1:
-                                onReceiveSessionPart1(packet);
-                                break;
-                            case PacketTypes.SESSION_PART2:
-                                onReceiveSessionPart2(packet);
-                                break;
-                            case PacketTypes.DATA:
-                                onReceiveData(packet);
-                                break;
-                            case PacketTypes.ACK:
-                                onReceiveAck(packet);
-                                break;
-                            case PacketTypes.NACK:
-                                onReceiveNack(packet);
-                                break;
-                            case PacketTypes.SESSION_ACK:
-                                onReceiveSessionAck(packet);
-                                break;
-                            default:
-                                report(logLabel, () -> "received unknown packet type: " + packet.type, VerboseLevel.BASE);
-                                break;
-                        }
-                    } catch (Exception e) {
-                        callErrorCallbacks("SocketListenThread exception: " + e);
+            closeChannel();
+
+            report(logLabel, ()->"SocketListenThread has finished", VerboseLevel.BASE);
+        }
+    }
+
+
+    /**
+     * Processes packets by types: checks, decrypts, acknowledges them and runs the handshake. Packets of each sender
+     * are processed by the same worker in the order they have been received, as the listen thread did it before.
+     * Received payloads go to the {@link Dispatcher} of the sender. Received DATA packets are acknowledged together,
+     * when the worker queue is drained.
+     */
+    private class PacketWorker extends Thread {
+
+        private final BlockingQueue<Packet> queue = new LinkedBlockingQueue<>(WORKER_QUEUE_SIZE);
+        private final Set<SessionReader> pendingAcks = new LinkedHashSet<>();
+        private String logLabel = "";
+
+        PacketWorker(int index) {
+            setName("UDP-worker-" + myNodeInfo.getNumber() + "-" + index);
+            setDaemon(true);
+            logLabel = myNodeInfo.getNumber() + "-" + getName() + ": ";
+        }
+
+        /**
+         * Put the packet to the worker queue. If the queue is full, the packet is dropped, the sender will retransmit
+         * it.
+         * @param packet received {@link Packet}
+         */
+        public void enqueue(Packet packet) {
+            if (queue.offer(packet)) {
+                maxWorkerQueueSize.accumulate(queue.size());
+            } else {
+                droppedPackets.increment();
+                report(logLabel, ()->"worker queue is full, packet from " + packet.senderNodeId + " dropped", VerboseLevel.DETAILED);
+            }
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Packet packet;
+                try {
+                    packet = queue.take();
+                } catch (InterruptedException e) {
+                    break;
+                }
+                try {
+                    switch (packet.type) {
+                        case PacketTypes.HELLO:
+                            onReceiveHello(packet);
+                            break;
+                        case PacketTypes.WELCOME:
+                            onReceiveWelcome(packet);
+                            break;
+                        case PacketTypes.KEY_REQ_PART1:
+                            onReceiveKeyReqPart1(packet);
+                            break;
+                        case PacketTypes.KEY_REQ_PART2:
+                            onReceiveKeyReqPart2(packet);
+                            break;
+                        case PacketTypes.SESSION_PART1:
+                            onReceiveSessionPart1(packet);
+                            break;
+                        case PacketTypes.SESSION_PART2:
+                            onReceiveSessionPart2(packet);
+                            break;
+                        case PacketTypes.DATA:
+                            onReceiveData(packet);
+                            break;
+                        case PacketTypes.ACK:
+                        case PacketTypes.RANGE_ACK:
+                            onReceiveAck(packet);
+                            break;
+                        case PacketTypes.NACK:
+                            onReceiveNack(packet);
+                            break;
+                        case PacketTypes.SESSION_ACK:
+                            onReceiveSessionAck(packet);
+                            break;
+                        default:
+                            report(logLabel, () -> "received unknown packet type: " + packet.type, VerboseLevel.BASE);
+                            break;
                     }
+                } catch (Exception e) {
+                    callErrorCallbacks("PacketWorker exception: " + e);
                 }
+                if (queue.isEmpty())
+                    sendPendingAcks();
             }
+        }
 
-            socket.close();
-            socket.disconnect();
 
-            report(logLabel, ()->"SocketListenThread has finished", VerboseLevel.BASE);
+        /**
+         * Remember that the DATA packet should be acknowledged. ACK is sent at once if there are enough packets to
+         * acknowledge, otherwise it waits for the worker queue to be drained.
+         * @param sessionReader is {@link SessionReader} the packet is received by
+         * @param packet received {@link Packet}
+         */
+        private void ackLater(SessionReader sessionReader, Packet packet) throws EncryptionError {
+            if (!packet.windowed)
+                sendSingleAck(sessionReader, packet.packetId);
+            else if (sessionReader.receiveWindow.onReceive(packet.packetId, packet.windowOffset) >= ACK_EVERY_PACKETS) {
+                pendingAcks.remove(sessionReader);
+                sendAck(sessionReader);
+            } else {
+                pendingAcks.add(sessionReader);
+            }
+        }
+
+
+        private void sendPendingAcks() {
+            for (SessionReader sessionReader : pendingAcks) {
+                try {
+                    sendAck(sessionReader);
+                } catch (EncryptionError e) {
+                    callErrorCallbacks("(sendPendingAcks) EncryptionError: " + e);
+                }
+            }
+            pendingAcks.clear();
         }
 
 
@@ -819,6 +1110,7 @@ public class UDPAdapter extends DatagramAdapter {
                             session.reconstructSessionKey(sessionKey);
                             session.state.set(Session.STATE_EXCHANGING);
                             session.sendAllFromOutputQueue();
+                            session.resetPulseTime();
                             session.pulseRetransmit();
                         }
                     }
@@ -846,12 +1138,12 @@ public class UDPAdapter extends DatagramAdapter {
                     if (sessionReader != null) {
                         if (sessionReader.sessionKey != null) {
                             try {
-                                byte[] decrypted = new SymmetricKey(sessionReader.sessionKey.getKey()).etaDecrypt(encryptedPayload);
+                                byte[] decrypted = sessionReader.sessionKey.etaDecrypt(encryptedPayload);
                                 if (decrypted.length > 2) {
                                     byte[] payload = new byte[decrypted.length - 2];
                                     System.arraycopy(decrypted, 0, payload, 0, payload.length);
-                                    sendAck(sessionReader, packet.packetId);
-                                    sessionReader.protectFromDuples(packet.packetId, ()->receiver.accept(payload));
+                                    ackLater(sessionReader, packet);
+                                    sessionReader.protectFromDuples(packet.packetId, ()->dispatch(packet.senderNodeId, payload));
                                 } else {
                                     callErrorCallbacks("(onReceiveData) decrypted payload too short");
                                     sendNack(packet.senderNodeId, packet.packetId);
@@ -881,7 +1173,8 @@ public class UDPAdapter extends DatagramAdapter {
 
 
         /**
-         * We have received {@link PacketTypes#ACK} packet. Need to stop retransmitting of ack-ed packet.
+         * We have received {@link PacketTypes#RANGE_ACK} or {@link PacketTypes#ACK} packet. Need to stop retransmitting of ack-ed packets, and to send
+         * more packets if the session window has moved.
          * @param packet received {@link Packet}
          */
         private void onReceiveAck(Packet packet) throws EncryptionError, SymmetricKey.AuthenticationFailed {
@@ -889,8 +1182,13 @@ public class UDPAdapter extends DatagramAdapter {
             Session session = getOrCreateSession(packet.senderNodeId);
             if (session != null) {
                 if (session.state.get() == Session.STATE_EXCHANGING) {
-                    Integer ackPacketId = Boss.load(new SymmetricKey(session.sessionKey.getKey()).etaDecrypt(packet.payload));
-                    session.removePacketFromRetransmitMap(ackPacketId);
+                    Object ack = Boss.load(session.sessionKey.etaDecrypt(packet.payload));
+                    if (packet.type == PacketTypes.RANGE_ACK)
+                        session.onAck((List) ack);
+                    else
+                        // single packet ACK of the older nodes
+                        session.removePacketFromRetransmitMap((Integer) ack);
+                    session.sendAllFromOutputQueue();
                 }
             }
         }
@@ -937,6 +1235,61 @@ public class UDPAdapter extends DatagramAdapter {
     }
 
 
+    /**
+     * Passes received payloads to the {@link DatagramAdapter#receiver}, so slow consumer does not delay receiving and
+     * acknowledging of packets. Payloads of each sender are passed by the same dispatcher, in the order they have
+     * been received.
+     */
+    private class Dispatcher extends Thread {
+
+        private final BlockingQueue<byte[]> queue = new LinkedBlockingQueue<>(DISPATCH_QUEUE_SIZE);
+
+        Dispatcher(int index) {
+            setName("UDP-dispatcher-" + myNodeInfo.getNumber() + "-" + index);
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                byte[] payload;
+                try {
+                    payload = queue.take();
+                } catch (InterruptedException e) {
+                    break;
+                }
+                try {
+                    Consumer<byte[]> consumer = receiver;
+                    if (consumer != null)
+                        consumer.accept(payload);
+                    else
+                        inputQueue.add(payload);
+                    dispatchedPayloads.increment();
+                } catch (Exception e) {
+                    callErrorCallbacks("Dispatcher exception: " + e);
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Pass received payload to the dispatcher of the sender. Waits if the dispatcher queue is full, so the worker
+     * queue fills up and further packets are dropped and retransmitted later instead of being lost after ACK.
+     * @param senderNodeId is id of node the payload is received from
+     * @param payload received data
+     */
+    private void dispatch(int senderNodeId, byte[] payload) {
+        Dispatcher dispatcher = dispatchers[Math.floorMod(senderNodeId, dispatchers.length)];
+        try {
+            dispatcher.queue.put(payload);
+            maxDispatchQueueSize.accumulate(dispatcher.queue.size());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
     /**
      * Implements protection from duplication received packets.
      */
@@ -959,22 +1312,40 @@ public class UDPAdapter extends DatagramAdapter {
 
 
     /**
-     * Implements packet retransmission algorithm.
+     * Implements packet retransmission algorithm. Each retransmitter numbers the packets it sends with its own sequence
+     * of packet ids. Packets are retransmitted when their time is up, the state of the retransmitter is changed under
+     * its lock.
      */
     private class Retransmitter extends DupleProtection {
         public ConcurrentHashMap<Integer,RetransmitItem> retransmitMap = new ConcurrentHashMap<>();
         public NodeInfo remoteNodeInfo;
         public SymmetricKey sessionKey;
+        protected final AtomicInteger nextPacketId = new AtomicInteger(new Random().nextInt(Integer.MAX_VALUE) + 1);
+        private Instant nextPulseTime = Instant.now();
+
+        /**
+         * Generates next serial packetId from sequence [1..{@link Integer#MAX_VALUE}], with cycle.
+         * Used for packet confirmations, in retransmission algorithm.
+         * @return new packet id for sending
+         */
+        public int getNextPacketId() {
+            return nextPacketId.getAndUpdate(id -> packetIdAfter(id, 1));
+        }
 
-        public void addPacketToRetransmitMap(Integer packetId, Packet packet, byte[] sourcePayload) {
-            retransmitMap.put(packetId, new RetransmitItem(packet, sourcePayload));
+        public synchronized void addPacketToRetransmitMap(Integer packetId, Packet packet, byte[] sourcePayload) {
+            RetransmitItem item = new RetransmitItem(packet, sourcePayload);
+            if (item.type == PacketTypes.DATA)
+                item.updateNextRetransmitTime(getRetransmitTimeout());
+            retransmitMap.put(packetId, item);
+            if (item.nextRetransmitTime.isBefore(nextPulseTime))
+                nextPulseTime = item.nextRetransmitTime;
         }
 
-        public void removePacketFromRetransmitMap(Integer packetId) {
+        public synchronized void removePacketFromRetransmitMap(Integer packetId) {
             retransmitMap.remove(packetId);
         }
 
-        public void removeHandshakePacketsFromRetransmitMap() {
+        public synchronized void removeHandshakePacketsFromRetransmitMap() {
             retransmitMap.forEach((k, v)-> {
                 if (v.type != PacketTypes.DATA)
                     retransmitMap.remove(k);
@@ -985,38 +1356,79 @@ public class UDPAdapter extends DatagramAdapter {
             return Session.STATE_HANDSHAKE;
         }
 
-        public void pulseRetransmit() {
-            if (getState() == Session.STATE_EXCHANGING) {
-                retransmitMap.forEach((itkey, item)-> {
-                    if (item.nextRetransmitTime.isBefore(Instant.now())) {
-                        item.updateNextRetransmitTime();
-                        if (item.type == PacketTypes.DATA) {
-                            if (item.packet == null) {
-                                byte[] dataToSend = preparePayloadForSession(sessionKey, item.sourcePayload);
-                                item.packet = new Packet(item.packetId, myNodeInfo.getNumber(), item.receiverNodeId, item.type, dataToSend);
-                            }
-                            sendPacket(remoteNodeInfo, item.packet);
-                            if (item.retransmitCounter++ >= RETRANSMIT_MAX_ATTEMPTS)
-                                retransmitMap.remove(itkey);
+        /**
+         * @return time to wait for ACK of DATA packet before the first retransmit, in milliseconds
+         */
+        protected int getRetransmitTimeout() {
+            return RETRANSMIT_TIME;
+        }
+
+        /**
+         * Make the next {@link Retransmitter#pulseRetransmit()} check all the packets.
+         */
+        public synchronized void resetPulseTime() {
+            nextPulseTime = Instant.now();
+        }
+
+        /**
+         * Retransmits packets whose time is up: DATA packets when the session is established, and handshake packets
+         * otherwise. Does nothing until the earliest time of retransmit, that is known from the previous pulse.
+         */
+        public synchronized void pulseRetransmit() {
+            Instant now = Instant.now();
+            if (now.isBefore(nextPulseTime))
+                return;
+            boolean exchanging = getState() == Session.STATE_EXCHANGING;
+            Instant next = now.plusMillis(MAX_RETRANSMIT_TIME);
+            int burst = 0;
+            for (Map.Entry<Integer, RetransmitItem> entry : retransmitMap.entrySet()) {
+                RetransmitItem item = entry.getValue();
+                if ((item.type == PacketTypes.DATA) != exchanging)
+                    continue;
+                if (item.nextRetransmitTime.isBefore(now)) {
+                    if (exchanging) {
+                        if (burst++ >= RETRANSMIT_BURST) {
+                            next = now;
+                            break;
                         }
-                    }
-                });
-            } else {
-                retransmitMap.forEach((itkey, item)-> {
-                    if (item.nextRetransmitTime.isBefore(Instant.now())) {
+                        if (item.packet == null)
+                            item.packet = createDataPacket(item.packetId, item.sourcePayload);
+                        sendPacket(remoteNodeInfo, item.packet);
+                        retransmittedPackets.increment();
+                        if (item.retransmitCounter++ >= RETRANSMIT_MAX_ATTEMPTS) {
+                            retransmitMap.remove(entry.getKey());
+                            continue;
+                        }
+                        item.updateNextRetransmitTime(getRetransmitTimeout());
+                    } else {
                         item.updateNextRetransmitTime();
-                        if (item.type != PacketTypes.DATA) {
-                            if (item.packet != null) {
-                                sendPacket(remoteNodeInfo, item.packet);
-                                if (item.retransmitCounter++ >= RETRANSMIT_MAX_ATTEMPTS)
-                                    retransmitMap.remove(itkey);
-                            } else {
-                                retransmitMap.remove(itkey);
+                        if (item.packet != null) {
+                            sendPacket(remoteNodeInfo, item.packet);
+                            if (item.retransmitCounter++ >= RETRANSMIT_MAX_ATTEMPTS) {
+                                retransmitMap.remove(entry.getKey());
+                                continue;
                             }
+                        } else {
+                            retransmitMap.remove(entry.getKey());
+                            continue;
                         }
                     }
-                });
+                }
+                if (item.nextRetransmitTime.isBefore(next))
+                    next = item.nextRetransmitTime;
             }
+            nextPulseTime = next;
+        }
+
+        /**
+         * Creates {@link Packet} of type {@link PacketTypes#DATA} with encrypted payload.
+         * @param packetId is id of the packet
+         * @param payload data to send
+         * @return packet ready to send
+         */
+        public Packet createDataPacket(int packetId, byte[] payload) {
+            byte[] dataToSend = preparePayloadForSession(sessionKey, payload);
+            return new Packet(packetId, myNodeInfo.getNumber(), remoteNodeInfo.getNumber(), PacketTypes.DATA, dataToSend);
         }
     }
 
@@ -1026,6 +1438,11 @@ public class UDPAdapter extends DatagramAdapter {
      * it's local {@link Session}, and remote creates {@link SessionReader} for responding.
      * Session uses for handshaking and for transmit {@link PacketTypes#DATA}.
      * SessionReader uses for handshaking and for receive {@link PacketTypes#DATA}
+     * <p>
+     * DATA packets are sent within the sliding window: ids of all unacknowledged DATA packets are less than
+     * {@link UDPAdapter#MAX_RETRANSMIT_QUEUE_SIZE} apart, and each packet carries the window start, so the receiver
+     * could acknowledge all the packets before its first gap with a single id, see {@link ReceiveWindow}.
+     * Retransmission timeout is calculated from measured round trip time, as TCP does it.
      */
     private class Session extends Retransmitter {
 
@@ -1040,6 +1457,12 @@ public class UDPAdapter extends DatagramAdapter {
         private byte[] handshake_sessionPart2 = null;
         private Instant lastHandshakeRestartTime = Instant.now();
 
+        /** Id of the first DATA packet that could be not acknowledged yet. */
+        private int windowStart;
+        private double smoothedRtt = -1;
+        private double rttVariation = 0;
+        private volatile int retransmitTimeout = RETRANSMIT_TIME;
+
         static public final int STATE_HANDSHAKE             = 1;
         static public final int STATE_EXCHANGING            = 2;
         static public final int HANDSHAKE_STEP_INIT                  = 1;
@@ -1052,6 +1475,7 @@ public class UDPAdapter extends DatagramAdapter {
             state = new AtomicInteger(STATE_HANDSHAKE);
             handshakeStep = new AtomicInteger(HANDSHAKE_STEP_INIT);
             handshakeExpiresAt = Instant.now().minusMillis(HANDSHAKE_TIMEOUT_MILLIS);
+            windowStart = nextPacketId.get();
         }
 
         /**
@@ -1067,44 +1491,145 @@ public class UDPAdapter extends DatagramAdapter {
             return state.get();
         }
 
+        @Override
+        protected int getRetransmitTimeout() {
+            return retransmitTimeout;
+        }
+
         /**
-         * If we send some payload into session, but session state is
-         * {@link Session#STATE_HANDSHAKE} - it accumulates in {@link Session#outputQueue}.
+         * If we send some payload into session, it accumulates in {@link Session#outputQueue} until the handshake
+         * completes and the session window has room for it. If the queue is still full, the payload is refused and
+         * counted: the caller could be the only thread sending to all the nodes, it should not wait for one of them.
          * @param destination instance of {@link NodeInfo} with net address for sending.
          * @param payload data to send
+         * @return true if the payload is queued, false if the queue is full
          */
-        public void addPayloadToOutputQueue(NodeInfo destination, byte[] payload) {
+        public boolean addPayloadToOutputQueue(NodeInfo destination, byte[] payload) {
             OutputQueueItem outputQueueItem = new OutputQueueItem(destination, payload);
             if (!outputQueue.offer(outputQueueItem)) {
-                outputQueue.poll();
-                outputQueue.offer(outputQueueItem);
+                sendAllFromOutputQueue();
+                if (!outputQueue.offer(outputQueueItem)) {
+                    droppedPayloads.increment();
+                    report(logLabel, () -> "output queue to node " + remoteNodeInfo.getNumber() + " is full, payload refused",
+                            VerboseLevel.BASE);
+                    return false;
+                }
             }
+            return true;
         }
 
         /**
-         * When handshake procedure completes, we should send all accumulated messages.
+         * When handshake procedure completes, or ACK moves the session window, we should send accumulated messages
+         * that fit into the window.
          */
-        public void sendAllFromOutputQueue() {
-            try {
-                if (state.get() != Session.STATE_HANDSHAKE) {
-                    OutputQueueItem queuedItem;
-                    int maxOutputs = MAX_RETRANSMIT_QUEUE_SIZE - retransmitMap.size();
-                    int i = 0;
-                    while ((queuedItem = outputQueue.poll()) != null) {
-                        send(queuedItem.destination, queuedItem.payload);
-                        if (i++ > maxOutputs)
-                            break;
-                    }
+        public synchronized void sendAllFromOutputQueue() {
+            if (state.get() != Session.STATE_HANDSHAKE) {
+                OutputQueueItem queuedItem;
+                while (packetIdDistance(windowStart, nextPacketId.get()) < MAX_RETRANSMIT_QUEUE_SIZE
+                        && (queuedItem = outputQueue.poll()) != null)
+                    sendPayload(this, queuedItem.payload);
+            }
+        }
+
+        @Override
+        public Packet createDataPacket(int packetId, byte[] payload) {
+            Packet packet = super.createDataPacket(packetId, payload);
+            packet.windowOffset = Math.max(0, packetIdDistance(windowStart, packetId));
+            return packet;
+        }
+
+        /**
+         * Removes acknowledged DATA packets from {@link Retransmitter#retransmitMap}, updates round trip time and
+         * moves the window.
+         * @param ack is unpacked ACK payload, see {@link ReceiveWindow#makeAck()}
+         */
+        public synchronized void onAck(List ack) {
+            Instant now = Instant.now();
+            long rtt = -1;
+            int lastSent = packetIdAfter(nextPacketId.get(), -1);
+            int cumulativeId = (int) ack.get(0);
+            if (packetIdDistance(cumulativeId, lastSent) < 0)
+                cumulativeId = lastSent;
+            for (int id = windowStart; packetIdDistance(id, cumulativeId) >= 0; id = packetIdAfter(id, 1))
+                rtt = minRtt(rtt, removeAcked(id, now));
+            int offset = 1;
+            for (int i = 2; i < ack.size(); i += 2) {
+                offset += (int) ack.get(i - 1);
+                int length = (int) ack.get(i);
+                for (int n = 0; n < length; n++) {
+                    int id = packetIdAfter(cumulativeId, offset++);
+                    if (packetIdDistance(id, lastSent) < 0)
+                        break;
+                    rtt = minRtt(rtt, removeAcked(id, now));
                 }
-            } catch (InterruptedException e) {
-                callErrorCallbacks("(sendAllFromOutputQueue) InterruptedException in node " + myNodeInfo.getNumber() + ": " + e);
             }
+            if (rtt >= 0)
+                updateRetransmitTimeout(rtt);
+            moveWindow();
+        }
+
+        /**
+         * @return round trip time of the acknowledged packet if it has not been retransmitted, -1 otherwise
+         */
+        private long removeAcked(int packetId, Instant now) {
+            RetransmitItem item = retransmitMap.get(packetId);
+            if (item == null || item.type != PacketTypes.DATA)
+                return -1;
+            retransmitMap.remove(packetId);
+            return item.retransmitCounter == 0 ? Duration.between(item.sentTime, now).toMillis() : -1;
+        }
+
+        private long minRtt(long rtt, long sample) {
+            if (sample < 0)
+                return rtt;
+            return rtt < 0 ? sample : Math.min(rtt, sample);
+        }
+
+        /**
+         * Round trip time is smoothed and the timeout is calculated as in RFC 6298.
+         * @param rtt measured round trip time, in milliseconds
+         */
+        private void updateRetransmitTimeout(long rtt) {
+            if (smoothedRtt < 0) {
+                smoothedRtt = rtt;
+                rttVariation = rtt / 2.0;
+            } else {
+                rttVariation = 0.75 * rttVariation + 0.25 * Math.abs(smoothedRtt - rtt);
+                smoothedRtt = 0.875 * smoothedRtt + 0.125 * rtt;
+            }
+            retransmitTimeout = (int) Math.max(MIN_RETRANSMIT_TIME,
+                    Math.min(MAX_RETRANSMIT_TIME, smoothedRtt + 4 * rttVariation));
+        }
+
+        /**
+         * Moves the window start to the first DATA packet that is not acknowledged yet.
+         */
+        private void moveWindow() {
+            int next = nextPacketId.get();
+            while (windowStart != next) {
+                RetransmitItem item = retransmitMap.get(windowStart);
+                if (item != null && item.type == PacketTypes.DATA)
+                    break;
+                windowStart = packetIdAfter(windowStart, 1);
+            }
+        }
+
+        @Override
+        public synchronized void removePacketFromRetransmitMap(Integer packetId) {
+            super.removePacketFromRetransmitMap(packetId);
+            moveWindow();
+        }
+
+        @Override
+        public synchronized void pulseRetransmit() {
+            super.pulseRetransmit();
+            moveWindow();
         }
 
         /**
          * Changes session's state to {@link Session#STATE_HANDSHAKE}.
          */
-        public void startHandshake() {
+        public synchronized void startHandshake() {
             if (lastHandshakeRestartTime.plusMillis(HANDSHAKE_TIMEOUT_MILLIS).isBefore(Instant.now())) {
                 retransmitMap.forEach((k, v) -> {
                     v.retransmitCounter = 0;
@@ -1116,6 +1641,7 @@ public class UDPAdapter extends DatagramAdapter {
                 handshakeExpiresAt = Instant.now().minusMillis(HANDSHAKE_TIMEOUT_MILLIS);
                 state.set(STATE_HANDSHAKE);
                 lastHandshakeRestartTime = Instant.now();
+                resetPulseTime();
             } else {
                 callErrorCallbacks("(startHandshake) too short time after previous startHandshake");
             }
@@ -1134,6 +1660,66 @@ public class UDPAdapter extends DatagramAdapter {
         private byte[] remoteNonce;
         private byte[] handshake_keyReqPart1 = null;
         private byte[] handshake_keyReqPart2 = null;
+        private final ReceiveWindow receiveWindow = new ReceiveWindow();
+    }
+
+
+    /**
+     * Ids of DATA packets received by {@link SessionReader} within the window of the remote {@link Session}. Packets
+     * before the window start are acknowledged already or abandoned by the sender, so they are forgotten.
+     */
+    private class ReceiveWindow {
+        private boolean started = false;
+        private int start;
+        private BitSet received = new BitSet();
+        private int unacknowledged = 0;
+
+        /**
+         * @param packetId is id of received DATA packet
+         * @param windowOffset is {@link Packet#windowOffset} of received packet
+         * @return number of packets received since the last {@link ReceiveWindow#makeAck()}
+         */
+        public synchronized int onReceive(int packetId, int windowOffset) {
+            int windowStart = packetIdAfter(packetId, -windowOffset);
+            if (!started || Math.abs(packetIdDistance(start, windowStart)) >= 2 * MAX_RETRANSMIT_QUEUE_SIZE) {
+                started = true;
+                start = windowStart;
+                received.clear();
+            } else {
+                int shift = packetIdDistance(start, windowStart);
+                if (shift > 0) {
+                    received = received.get(shift, Math.max(shift, received.length()));
+                    start = windowStart;
+                }
+            }
+            int index = packetIdDistance(start, packetId);
+            if (index >= 0 && index < 2 * MAX_RETRANSMIT_QUEUE_SIZE)
+                received.set(index);
+            return ++unacknowledged;
+        }
+
+        /**
+         * Packs ids of received packets: the last id of the received packets from the window start, and then up to
+         * {@link UDPAdapter#MAX_ACK_RANGES} pairs of numbers for the next ranges of received packets: number of ids
+         * from the end of the previous range to the start of the range, and the length of the range.
+         * @return list for ACK payload
+         */
+        public synchronized List<Integer> makeAck() {
+            unacknowledged = 0;
+            List<Integer> ack = new ArrayList<>();
+            int firstGap = received.nextClearBit(0);
+            ack.add(packetIdAfter(start, firstGap - 1));
+            int previousEnd = firstGap;
+            int from = received.nextSetBit(firstGap);
+            for (int i = 0; i < MAX_ACK_RANGES && from >= 0; i++) {
+                int to = received.nextClearBit(from);
+                ack.add(from - previousEnd);
+                ack.add(to - from);
+                previousEnd = to;
+                from = received.nextSetBit(to);
+            }
+            return ack;
+        }
     }
 
 
@@ -1153,6 +1739,9 @@ public class UDPAdapter extends DatagramAdapter {
         static public final int SESSION_PART1  = 7;
         static public final int SESSION_PART2  = 8;
         static public final int SESSION_ACK    = 9;
+        /** ACK of many DATA packets, see {@link ReceiveWindow#makeAck()}. Sent only in reply to DATA packets with
+         * {@link Packet#windowOffset}, as older nodes do not send it and do not understand this type. */
+        static public final int RANGE_ACK      = 10;
     }
 
 
@@ -1162,6 +1751,10 @@ public class UDPAdapter extends DatagramAdapter {
         private int packetId = 0;
         private int type;
         private byte[] payload;
+        /** For {@link PacketTypes#DATA}: number of ids from the start of the sender's window to this packet. */
+        private int windowOffset = 0;
+        /** Received packet has {@link Packet#windowOffset}, that is, it is sent by the node that knows RANGE_ACK. */
+        private boolean windowed = false;
 
         public Packet() {
         }
@@ -1179,7 +1772,9 @@ public class UDPAdapter extends DatagramAdapter {
          * @return packed packet.
          */
         public byte[] makeByteArray() {
-            List data = Arrays.asList(packetId, senderNodeId, receiverNodeId, type, new Bytes(payload));
+            List data = type == PacketTypes.DATA ?
+                    Arrays.asList(packetId, senderNodeId, receiverNodeId, type, new Bytes(payload), windowOffset) :
+                    Arrays.asList(packetId, senderNodeId, receiverNodeId, type, new Bytes(payload));
             return Boss.dumpToArray(data);
         }
 
@@ -1194,6 +1789,10 @@ public class UDPAdapter extends DatagramAdapter {
             receiverNodeId = (int) data.get(2);
             type = (int) data.get(3);
             payload = ((Bytes) data.get(4)).toArray();
+            if (data.size() > 5) {
+                windowOffset = (int) data.get(5);
+                windowed = true;
+            }
         }
     }
 
@@ -1229,6 +1828,7 @@ public class UDPAdapter extends DatagramAdapter {
         public int receiverNodeId;
         public int packetId = 0;
         public int type;
+        public Instant sentTime;
         public Instant nextRetransmitTime;
         public RetransmitItem(Packet packet, byte[] sourcePayload) {
             this.packet = packet;
@@ -1237,8 +1837,18 @@ public class UDPAdapter extends DatagramAdapter {
             this.receiverNodeId = packet.receiverNodeId;
             this.packetId = packet.packetId;
             this.type = packet.type;
+            this.sentTime = Instant.now();
             updateNextRetransmitTime();
         }
+
+        /**
+         * Delay before each next retransmit of DATA packet is doubled, up to {@link UDPAdapter#MAX_RETRANSMIT_TIME}.
+         * @param retransmitTimeout is delay before the first retransmit, in milliseconds
+         */
+        public void updateNextRetransmitTime(int retransmitTimeout) {
+            long delay = Math.min((long) retransmitTimeout << Math.min(retransmitCounter, 4), MAX_RETRANSMIT_TIME);
+            nextRetransmitTime = Instant.now().plusMillis(delay);
+        }
         public void updateNextRetransmitTime() {
             int maxRetransmitDelay = RETRANSMIT_TIME_GROW_FACTOR*retransmitCounter + RETRANSMIT_MAX_ATTEMPTS;
             maxRetransmitDelay /= RETRANSMIT_MAX_ATTEMPTS;
@@ -0,0 +1,51 @@
+-- ledger size by state and creation time. Recent records are counted by the second, older ones by the hour.
+create table ledger_stats(
+    bucket bigint not null,
+    state integer not null,
+    count bigint not null,
+    primary key (bucket, state)
+);
+
+-- changes of ledger_stats written by triggers, they are only inserted so concurrent writes do not lock each other.
+-- PostgresLedger moves them to ledger_stats.
+create table ledger_stats_delta(
+    created_at bigint not null,
+    state integer not null,
+    delta integer not null
+);
+
+CREATE OR REPLACE FUNCTION ledger_stats_on_change()
+RETURNS trigger AS $$
+BEGIN
+    IF TG_OP = 'INSERT' OR TG_OP = 'UPDATE' THEN
+        INSERT INTO ledger_stats_delta(created_at, state, delta) VALUES (NEW.created_at, coalesce(NEW.state, 0), 1);
+    END IF;
+    IF TG_OP = 'DELETE' OR TG_OP = 'UPDATE' THEN
+        INSERT INTO ledger_stats_delta(created_at, state, delta) VALUES (OLD.created_at, coalesce(OLD.state, 0), -1);
+    END IF;
+    RETURN NULL;
+END;
+$$
+LANGUAGE 'plpgsql';
+
+CREATE OR REPLACE FUNCTION ledger_stats_on_truncate()
+RETURNS trigger AS $$
+BEGIN
+    TRUNCATE ledger_stats, ledger_stats_delta;
+    RETURN NULL;
+END;
+$$
+LANGUAGE 'plpgsql';
+
+create trigger tr_ledger_stats_insert_delete after insert or delete on ledger
+    for each row execute procedure ledger_stats_on_change();
+
+create trigger tr_ledger_stats_update after update of state, created_at on ledger
+    for each row when (old.state is distinct from new.state or old.created_at is distinct from new.created_at)
+    execute procedure ledger_stats_on_change();
+
+create trigger tr_ledger_stats_truncate after truncate on ledger
+    for each statement execute procedure ledger_stats_on_truncate();
+
+insert into ledger_stats(bucket, state, count)
+    select created_at - created_at % 3600, coalesce(state, 0), count(*) from ledger group by 1, 2;
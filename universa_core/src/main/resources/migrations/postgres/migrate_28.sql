@@ -0,0 +1,4 @@
+-- the ledger cleanup deletes expired rows in batches, each batch should not scan the whole table.
+create index ix_items_id on items(id);
+create index ix_items_keeptill on items(keepTill);
+create index ix_follower_callbacks_stored_until on follower_callbacks(stored_until);
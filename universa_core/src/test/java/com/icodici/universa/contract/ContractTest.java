@@ -656,6 +656,58 @@ public class ContractTest extends ContractTestBase {
         assertEquals(costShouldBeForSplit, processingContract.getProcessedCost());
     }
 
+    @Test
+    public void parallelSignatureVerificationMatchesSerial() throws Exception {
+        Contract root = new Contract(TestKeys.privateKey(0));
+        root.addSignerKey(TestKeys.privateKey(1));
+        root.seal();
+
+        Contract revision = root.createRevision(TestKeys.privateKey(0), TestKeys.privateKey(1));
+        for (int i = 2; i < 6; i++) {
+            Contract item = new Contract(TestKeys.privateKey(i));
+            item.seal();
+            revision.addNewItems(item);
+        }
+        revision.seal();
+        byte[] packed = revision.getPackedTransaction();
+
+        Contract serial = Contract.fromPackedTransaction(packed);
+        serial.check();
+
+        Contract parallel;
+        try {
+            Contract.setParallelSignatureVerification(true);
+            parallel = Contract.fromPackedTransaction(packed);
+            parallel.check();
+        } finally {
+            Contract.setParallelSignatureVerification(false);
+        }
+
+        assertTrue(serial.getProcessedCost() > 0);
+        assertEquals(serial.getProcessedCost(), parallel.getProcessedCost());
+        assertEquals(serial.getErrors().size(), parallel.getErrors().size());
+        assertEquals(2, parallel.getSealedByKeys().size());
+        assertEquals(serial.getSealedByKeys(), parallel.getSealedByKeys());
+        assertEquals(serial.getNew().size(), parallel.getNew().size());
+        for (Contract item : serial.getNew()) {
+            Contract parallelItem = parallel.getNew().stream().filter(c -> c.getId().equals(item.getId())).findFirst().get();
+            assertEquals(1, parallelItem.getSealedByKeys().size());
+            assertEquals(item.getSealedByKeys(), parallelItem.getSealedByKeys());
+        }
+        assertEquals(serial.getRevoking().get(0).getSealedByKeys(), parallel.getRevoking().get(0).getSealedByKeys());
+
+        // quanta limit should break the check in the same way
+        try {
+            Contract.setParallelSignatureVerification(true);
+            processContractAsItWillBeOnTheNode(revision, 20);
+            fail("quanta limit should be exceeded");
+        } catch (Quantiser.QuantiserException e) {
+            System.out.println("Thrown correct exception: " + e.getMessage());
+        } finally {
+            Contract.setParallelSignatureVerification(false);
+        }
+    }
+
     @Test
     public void calculateSplitProcessingCostbreakWhileUnpacking() throws Exception {
 
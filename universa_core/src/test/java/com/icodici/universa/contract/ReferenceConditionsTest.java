@@ -6,6 +6,7 @@ import net.sergeych.tools.Binder;
 import net.sergeych.tools.Do;
 import org.junit.Test;
 
+import java.util.ArrayList;
 import java.util.List;
 
 import static com.icodici.universa.contract.Reference.conditionsModeType.all_of;
@@ -256,6 +257,40 @@ public class ReferenceConditionsTest {
         assertEquals(false, res);
     }
 
+    @Test
+    public void refMatchesOnlySelectedNeighbours() throws Exception {
+        PrivateKey key = new PrivateKey(2048);
+        Contract batch = new Contract(key);
+        List<Contract> expected = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            Contract c = new Contract(key);
+            if (i == 3)
+                c.getStateData().put("tag", 3);         // not a string, could not be selected by index
+            else if (i != 4)
+                c.getStateData().put("tag", i % 5 == 0 ? "wanted" : "other" + i);
+            c.getStateData().put("val", i);
+            if (i % 5 == 0 && i != 10)
+                expected.add(c);
+            batch.addNewItems(c);
+        }
+
+        Contract contractB = new Contract(key);
+        Reference ref = new Reference();
+        ref.type = Reference.TYPE_EXISTING_STATE;
+        ref.setConditions(Binder.of(
+                Reference.conditionsModeType.all_of.name(),
+                asList("ref.state.data.tag==\"wanted\"",
+                       "ref.state.data.val!=10")
+        ));
+        contractB.addReference(ref);
+        batch.addNewItems(contractB);
+        batch.seal();
+        batch.check();
+
+        assertEquals(expected.size(), ref.matchingItems.size());
+        assertTrue(ref.matchingItems.containsAll(expected));
+    }
+
     @Test(timeout = 60000)
     public void checkReferencesContracts() throws Exception {
         Contract contract1 = Contract.fromDslFile(ROOT_PATH + "Referenced_contract1.yml");
@@ -145,6 +145,52 @@ public class TransactionPackTest {
     }
 
 
+    @Test
+    public void unpackDependencyLevels() throws Exception {
+        PrivateKey key = TestKeys.privateKey(3);
+        Contract top = createTree(key, 3, 5);
+        byte[] packed = top.getTransactionPack().pack();
+
+        boolean parallel = TransactionPack.isParallelUnpack();
+        try {
+            TransactionPack.setParallelUnpack(false);
+            TransactionPack sequential = TransactionPack.unpack(packed);
+            TransactionPack.setParallelUnpack(true);
+            TransactionPack concurrent = TransactionPack.unpack(packed);
+
+            assertEquals(3 * 5, concurrent.getSubItems().size());
+            assertEquals(sequential.getSubItems().keySet(), concurrent.getSubItems().keySet());
+            assertEquals(top.getId(), concurrent.getContract().getId());
+
+            // each item is created after its new items, so all of them are found in the pack
+            for (Contract c : concurrent.getSubItems().values()) {
+                assertEquals(0, c.getErrors().size());
+                for (Approvable n : c.getNewItems())
+                    assertSame(concurrent.getSubItem(n.getId()), n);
+            }
+            assertEquals(0, concurrent.getContract().getErrors().size());
+            assertEquals(5, concurrent.getContract().getNewItems().size());
+        } finally {
+            TransactionPack.setParallelUnpack(parallel);
+        }
+    }
+
+    private Contract createTree(PrivateKey key, int depth, int width) {
+        Contract contract = new Contract(key);
+        if (depth > 0) {
+            for (int i = 0; i < width; i++)
+                contract.addNewItems(i == 0 ? createTree(key, depth - 1, width) : sealedContract(key));
+        }
+        contract.seal();
+        return contract;
+    }
+
+    private Contract sealedContract(PrivateKey key) {
+        Contract contract = new Contract(key);
+        contract.seal();
+        return contract;
+    }
+
     @Test
     public void parallelTest() throws Exception {
         PrivateKey myKey = TestKeys.privateKey(3);
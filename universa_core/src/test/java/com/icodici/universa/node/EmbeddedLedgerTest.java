@@ -0,0 +1,294 @@
+/*
+ * Copyright (c) 2018, iCodici S.n.C, All Rights Reserved
+ *
+ */
+
+package com.icodici.universa.node;
+
+import com.icodici.crypto.PrivateKey;
+import com.icodici.universa.HashId;
+import com.icodici.universa.contract.Contract;
+import com.icodici.universa.contract.services.NSmartContract;
+import com.icodici.universa.node.network.TestKeys;
+import com.icodici.universa.node2.CallbackService;
+import com.icodici.universa.node2.NetConfig;
+import com.icodici.universa.node2.NodeInfo;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class EmbeddedLedgerTest extends LedgerTestCase<EmbeddedLedger> {
+    private Path directory;
+
+    @Override
+    protected EmbeddedLedger createLedger() throws Exception {
+        directory = Files.createTempDirectory("embedded-ledger");
+        return open();
+    }
+
+    @Override
+    protected void enableCache(boolean enable) {
+        ledger.enableCache(enable);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        ledger.close();
+        deleteAll(directory);
+    }
+
+    private static void deleteAll(Path dir) {
+        File[] files = dir.toFile().listFiles();
+        if (files != null)
+            for (File f : files)
+                f.delete();
+        dir.toFile().delete();
+    }
+
+    private EmbeddedLedger open() throws Exception {
+        EmbeddedLedger ledger = new EmbeddedLedger(directory.toString());
+        ledger.setSyncWrites(false);
+        return ledger;
+    }
+
+    private void reopen() throws Exception {
+        ledger.close();
+        ledger = open();
+        ledger.enableCache(false);
+    }
+
+    @Test
+    public void rolledBackTransactionIsNotReplayed() throws Exception {
+        StateRecord r1 = ledger.findOrCreate(HashId.createRandom());
+        StateRecord r2 = ledger.findOrCreate(HashId.createRandom());
+        r1.approve();
+
+        HashId created = HashId.createRandom();
+        Object y = ledger.transaction(() -> {
+            r1.setState(ItemState.REVOKED);
+            r1.save();
+            r2.destroy();
+            ledger.findOrCreate(created);
+            throw new Ledger.Rollback();
+        });
+        assertNull(y);
+        assertEquals(ItemState.PENDING, ledger.getRecord(r2.getId()).getState());
+        assertNull(ledger.getRecord(created));
+
+        reopen();
+        assertEquals(ItemState.APPROVED, ledger.getRecord(r1.getId()).getState());
+        assertEquals(ItemState.PENDING, ledger.getRecord(r2.getId()).getState());
+        assertNull(ledger.getRecord(created));
+        assertEquals(2, ledger.countRecords());
+    }
+
+    @Test
+    public void findUnfinished() throws Exception {
+        StateRecord existing = ledger.findOrCreate(HashId.createRandom());
+        existing.approve();
+        StateRecord r = ledger.findOrCreate(HashId.createRandom());
+        r.lockToRevoke(existing.getId());
+        StateRecord declined = ledger.findOrCreate(HashId.createRandom());
+        declined.setState(ItemState.DECLINED);
+        declined.save();
+
+        Map<HashId, StateRecord> unfinished = ledger.findUnfinished();
+        assertEquals(2, unfinished.size());
+        assertTrue(unfinished.containsKey(existing.getId()));
+        assertTrue(unfinished.containsKey(r.getId()));
+    }
+
+    @Test
+    public void cleanup() throws Exception {
+        StateRecord r1 = ledger.findOrCreate(HashId.createRandom());
+        r1.setExpiresAt(ZonedDateTime.now().minusHours(1));
+        r1.save();
+
+        Contract contract = new Contract(TestKeys.privateKey(0));
+        contract.seal();
+        StateRecord r2 = ledger.findOrCreate(contract.getId());
+        ledger.putItem(r2, contract, Instant.now().minusSeconds(1));
+        assertNotNull(ledger.getItem(r2));
+
+        NSmartContract slot = new NSmartContract(TestKeys.privateKey(0));
+        slot.seal();
+        long environmentId = ledger.getEnvironment(slot).getId();
+        HashId callbackId = HashId.createRandom();
+        ledger.addFollowerCallback(callbackId, environmentId, ZonedDateTime.now().minusDays(2),
+                ZonedDateTime.now().minusDays(1));
+
+        // permanent mode keeps the records but not the items
+        ledger.cleanup(true);
+        assertEquals(2, ledger.countRecords());
+        assertNull(ledger.getItem(r2));
+        assertEquals(CallbackService.FollowerCallbackState.UNDEFINED, ledger.getFollowerCallbackStateById(callbackId));
+
+        ledger.cleanup(false);
+        assertEquals(1, ledger.countRecords());
+        assertNotNull(ledger.getRecord(r2.getId()));
+
+        reopen();
+        assertEquals(1, ledger.countRecords());
+        assertNull(ledger.getItem(ledger.getRecord(r2.getId())));
+    }
+
+    @Test
+    public void config() throws Exception {
+        assertThrows(Ledger.Failure.class, () -> ledger.loadConfig());
+
+        List<NodeInfo> nodes = new ArrayList<>();
+        for (int i = 0; i < 3; i++)
+            nodes.add(new NodeInfo(TestKeys.publicKey(i), i + 1, "node-" + (i + 1), "127.0.0.1", "localhost",
+                    7101 + i, 8080 + i, 9001 + i));
+        PrivateKey nodeKey = TestKeys.privateKey(1);
+        ledger.saveConfig(nodes.get(1), new NetConfig(nodes), nodeKey);
+
+        reopen();
+        Object[] config = ledger.loadConfig();
+        NodeInfo myInfo = (NodeInfo) config[0];
+        assertEquals(2, myInfo.getNumber());
+        assertEquals("node-2", myInfo.getName());
+        assertEquals("localhost", myInfo.getPublicHost());
+        assertEquals(7102, myInfo.getNodeAddress().getPort());
+        assertEquals(8081, myInfo.getClientAddress().getPort());
+        assertEquals(9002, myInfo.getServerAddress().getPort());
+        assertEquals(3, ((NetConfig) config[1]).toList().size());
+        assertArrayEquals(nodeKey.pack(), ((PrivateKey) config[2]).pack());
+
+        ledger.removeNode(nodes.get(2));
+        assertEquals(2, ((NetConfig) ledger.loadConfig()[1]).toList().size());
+    }
+
+    @Test
+    public void rowsSurviveReopenAndCompaction() throws Exception {
+        NSmartContract slot = new NSmartContract(TestKeys.privateKey(0));
+        slot.seal();
+        long environmentId = ledger.getEnvironment(slot).getId();
+        Contract contract = new Contract(TestKeys.privateKey(0));
+        contract.seal();
+        long storageId = ledger.saveContractInStorage(contract.getId(), contract.getPackedTransaction(),
+                ZonedDateTime.now().plusDays(1), contract.getOrigin(), environmentId);
+        for (int n = 1; n <= 20; n++)
+            ledger.updateStorageExpiresAt(storageId, ZonedDateTime.now().plusDays(n));
+
+        reopen();
+        assertEquals(environmentId, ledger.getEnvironment(slot.getId()).getId());
+        assertArrayEquals(contract.getPackedTransaction(), ledger.getContractInStorage(contract.getId()));
+
+        long size = ledger.getLogSize();
+        ledger.compact();
+        assertTrue(ledger.getLogSize() < size);
+        reopen();
+        assertEquals(environmentId, ledger.getEnvironment(slot.getId()).getId());
+        assertArrayEquals(contract.getPackedTransaction(), ledger.getContractInStorage(contract.getId()));
+        assertEquals(1, ledger.getContractsInStorageByOrigin(slot.getId(), contract.getOrigin()).size());
+
+        // row ids are not reused after compaction
+        NSmartContract other = new NSmartContract(TestKeys.privateKey(0));
+        other.seal();
+        assertTrue(ledger.getEnvironment(other).getId() > environmentId);
+    }
+
+    @Test
+    public void testnetMarks() throws Exception {
+        StateRecord r1 = ledger.findOrCreate(HashId.createRandom());
+        StateRecord r2 = ledger.findOrCreate(HashId.createRandom());
+        r1.markTestRecord();
+        assertTrue(ledger.isTestnet(r1.getId()));
+        assertFalse(ledger.isTestnet(r2.getId()));
+        reopen();
+        assertTrue(ledger.isTestnet(r1.getId()));
+        assertEquals(Arrays.asList(r1.getId()), new ArrayList<>(ledger.getTestnetIds(Arrays.asList(r1.getId(), r2.getId()))));
+    }
+
+    @Test
+    public void recoverTornTail() throws Exception {
+        List<HashId> ids = new ArrayList<>();
+        // enough to grow the indexes few times
+        for (int i = 0; i < 5000; i++) {
+            StateRecord r = ledger.findOrCreate(HashId.createRandom());
+            if (i % 2 == 0)
+                r.approve();
+            ids.add(r.getId());
+        }
+        ledger.close();
+        Path log = directory.resolve(EmbeddedLedger.LOG_FILE);
+        long size = Files.size(log);
+        // the frame that was being written when the process died
+        try (OutputStream out = Files.newOutputStream(log, StandardOpenOption.APPEND)) {
+            out.write(new byte[]{0, 0, 0, 40, 1, 2, 3, 4, 0, 1});
+        }
+
+        reopen();
+        assertEquals(size, ledger.getLogSize());
+        assertEquals(5000, ledger.countRecords());
+        for (int i = 0; i < ids.size(); i++)
+            assertEquals(i % 2 == 0 ? ItemState.APPROVED : ItemState.PENDING, ledger.getRecord(ids.get(i)).getState());
+        // new records go after the recovered ones
+        assertTrue(ledger.findOrCreate(HashId.createRandom()).getRecordId() > 5000);
+    }
+
+    @Test
+    public void uncommittedTransactionIsDropped() throws Exception {
+        StateRecord r1 = ledger.findOrCreate(HashId.createRandom());
+        Path copy = Files.createTempDirectory("embedded-ledger-copy");
+        try {
+            ledger.transaction(() -> {
+                r1.approve();
+                // the process dies here, before the commit
+                Files.copy(directory.resolve(EmbeddedLedger.LOG_FILE), copy.resolve(EmbeddedLedger.LOG_FILE));
+                return null;
+            });
+            EmbeddedLedger recovered = new EmbeddedLedger(copy.toString());
+            try {
+                assertEquals(ItemState.PENDING, recovered.getRecord(r1.getId()).getState());
+            } finally {
+                recovered.close();
+            }
+        } finally {
+            deleteAll(copy);
+        }
+        reopen();
+        assertEquals(ItemState.APPROVED, ledger.getRecord(r1.getId()).getState());
+    }
+
+    @Test
+    public void compaction() throws Exception {
+        List<StateRecord> records = new ArrayList<>();
+        for (int i = 0; i < 100; i++)
+            records.add(ledger.findOrCreate(HashId.createRandom()));
+        for (int n = 1; n <= 20; n++) {
+            for (StateRecord r : records) {
+                r.setExpiresAt(ZonedDateTime.now().plusDays(n));
+                r.save();
+            }
+        }
+        StateRecord last = records.remove(records.size() - 1);
+        last.destroy();
+
+        long size = ledger.getLogSize();
+        ledger.compact();
+        assertTrue(ledger.getLogSize() < size / 10);
+        assertTrue(ledger.getLogSize() - ledger.getLiveSize() < 100);
+
+        reopen();
+        assertEquals(99, ledger.countRecords());
+        for (StateRecord r : records)
+            assertAlmostSame(r.getExpiresAt(), ledger.getRecord(r.getId()).getExpiresAt());
+        // ids of destroyed records are not reused
+        assertTrue(ledger.findOrCreate(HashId.createRandom()).getRecordId() > last.getRecordId());
+    }
+}
@@ -10,9 +10,16 @@ import net.sergeych.utils.Base64u;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static org.junit.Assert.*;
 
@@ -84,4 +91,56 @@ HashIdTest {
 //        System.out.println("src: "+ Base64.encodeString(src));
 //        System.out.println("hid: "+ Base64.encodeString(hid));
     }
+
+    @Test
+    public void parallelDigestIsTheSame() throws Exception {
+        byte[] src = Do.randomBytes(300_000);
+        HashId serial = HashId.of(src);
+        HashId.setParallelDigest(true);
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            assertEquals(serial, HashId.of(src));
+
+            // many small and large updates, concurrently
+            List<Future<HashId>> results = new ArrayList<>();
+            for (int i = 0; i < 32; i++) {
+                int chunk = i * 7_000 + 1;
+                results.add(pool.submit(() -> {
+                    HashId.CompositeDigest digest = new HashId.CompositeDigest();
+                    for (int offset = 0; offset < src.length; offset += chunk)
+                        digest.update(src, offset, Math.min(chunk, src.length - offset));
+                    return HashId.withDigest(digest.digest());
+                }));
+            }
+            for (Future<HashId> f : results)
+                assertEquals(serial, f.get());
+        } finally {
+            HashId.setParallelDigest(false);
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void streamingDigest() throws Exception {
+        byte[] src = Do.randomBytes(200_000);
+        HashId id = HashId.of(src);
+        assertEquals(id, HashId.of(new ByteArrayInputStream(src)));
+
+        ByteBuffer heap = ByteBuffer.wrap(src);
+        assertEquals(id, HashId.of(heap));
+        assertFalse(heap.hasRemaining());
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(src.length + 10);
+        direct.position(10);
+        direct.put(src);
+        direct.position(10);
+        assertEquals(id, HashId.of(direct));
+
+        // heap buffer slice with offset
+        byte[] padded = new byte[src.length + 20];
+        System.arraycopy(src, 0, padded, 5, src.length);
+        ByteBuffer slice = ByteBuffer.wrap(padded, 5, src.length).slice();
+        assertEquals(id, HashId.of(slice));
+        assertEquals(HashId.of(new byte[0]), HashId.of(ByteBuffer.allocate(0)));
+    }
 }
\ No newline at end of file
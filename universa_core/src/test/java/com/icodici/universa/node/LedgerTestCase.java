@@ -0,0 +1,485 @@
+/*
+ * Copyright (c) 2018, iCodici S.n.C, All Rights Reserved
+ *
+ */
+
+package com.icodici.universa.node;
+
+import com.icodici.crypto.PrivateKey;
+import com.icodici.universa.HashId;
+import com.icodici.universa.contract.Contract;
+import com.icodici.universa.contract.services.*;
+import com.icodici.universa.node.network.TestKeys;
+import com.icodici.universa.node2.CallbackRecord;
+import com.icodici.universa.node2.CallbackService;
+import net.sergeych.tools.Binder;
+import net.sergeych.tools.Do;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.ZonedDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the {@link Ledger} contract that every implementation should pass.
+ *
+ * @param <L> type of the ledger under test
+ */
+public abstract class LedgerTestCase<L extends Ledger> extends TestCase {
+    protected L ledger;
+
+    /**
+     * @return the ledger to test
+     */
+    protected abstract L createLedger() throws Exception;
+
+    protected abstract void enableCache(boolean enable);
+
+    @Before
+    public void setUpLedger() throws Exception {
+        ledger = createLedger();
+        enableCache(false);
+    }
+
+    @After
+    public void tearDownLedger() throws Exception {
+        ledger.close();
+    }
+
+    @Test
+    public void create() throws Exception {
+        HashId id = HashId.createRandom();
+        assertNull(ledger.getRecord(id));
+        StateRecord r = ledger.findOrCreate(id);
+        System.out.println(r);
+        System.out.println(ledger.countRecords());
+    }
+
+    @Test
+    public void checkNegativeBytesInId() throws Exception {
+        HashId id = HashId.withDigest(Do.randomNegativeBytes(64));
+        StateRecord r1 = ledger.findOrCreate(id);
+        r1.setState(ItemState.DECLINED);
+        r1.save();
+        StateRecord r2 = ledger.getRecord(id);
+        assertNotNull(r2);
+        assertNotSame(r1, r2);
+        assertEquals(r1.getState(), r2.getState());
+
+        enableCache(true);
+        StateRecord r3 = ledger.getRecord(id);
+        StateRecord r4 = ledger.getRecord(id);
+        assertEquals(r3.toString(), r4.toString());
+        assertSame(r3, r4);
+    }
+
+    @Test
+    public void createOutputLockRecord() throws Exception {
+        enableCache(true);
+        StateRecord owner = ledger.findOrCreate(HashId.createRandom());
+        StateRecord other = ledger.findOrCreate(HashId.createRandom());
+
+        HashId id = HashId.createRandom();
+        StateRecord r1 = owner.createOutputLockRecord(id);
+        r1.reload();
+        assertEquals(id, r1.getId());
+        assertEquals(ItemState.LOCKED_FOR_CREATION, r1.getState());
+        assertEquals(owner.getRecordId(), r1.getLockedByRecordId());
+        StateRecord r2 = owner.createOutputLockRecord(id);
+        assertSame(r2, r1);
+        assertNull(owner.createOutputLockRecord(other.getId()));
+        // And hacked low level operation must fail too
+        assertNull(ledger.createOutputLockRecord(owner.getRecordId(), other.getId()));
+    }
+
+    @Test
+    public void findOrCreateAndGet() throws Exception {
+        // Atomic new record creation
+        HashId id = HashId.createRandom();
+        StateRecord r = ledger.findOrCreate(id);
+        assertNotNull(r);
+        assertEquals(id, r.getId());
+        assertEquals(ItemState.PENDING, r.getState());
+        assertAlmostSame(ZonedDateTime.now(), r.getCreatedAt());
+
+        // returning existing record
+        StateRecord r1 = ledger.findOrCreate(id);
+        assertSameRecords(r, r1);
+
+        StateRecord r2 = ledger.getRecord(id);
+        assertSameRecords(r, r2);
+
+        StateRecord r3 = ledger.getRecord(HashId.createRandom());
+        assert (r3 == null);
+    }
+
+    @Test
+    public void saveAndTransaction() throws Exception {
+        StateRecord r1 = ledger.findOrCreate(HashId.createRandom());
+        StateRecord r2 = ledger.findOrCreate(HashId.createRandom());
+        int x = ledger.transaction(() -> {
+            r1.setState(ItemState.APPROVED);
+            r2.setState(ItemState.DECLINED);
+            r1.save();
+            r2.save();
+            return 5;
+        });
+        assertEquals(5, x);
+        r1.reload();
+        StateRecord r3 = ledger.getRecord(r1.getId());
+        assertEquals(ItemState.APPROVED, r1.getState());
+        assertEquals(ItemState.APPROVED, r3.getState());
+        r2.reload();
+        assertEquals(ItemState.DECLINED, r2.getState());
+        Object y = ledger.transaction(() -> {
+            r1.setState(ItemState.REVOKED);
+            r2.setState(ItemState.DISCARDED);
+            r1.save();
+            r2.save();
+            throw new Ledger.Rollback();
+        });
+        assert (y == null);
+        r1.reload();
+        assertEquals(ItemState.APPROVED, r1.getState());
+        r2.reload();
+        assertEquals(ItemState.DECLINED, r2.getState());
+    }
+
+    @Test
+    public void approve() throws Exception {
+        StateRecord r1 = ledger.findOrCreate(HashId.createRandom());
+        assertFalse(r1.isApproved());
+        r1.approve();
+        assertEquals(ItemState.APPROVED, r1.getState());
+        assert (r1.isApproved());
+        r1.reload();
+        assert (r1.isApproved());
+        assertThrows(IllegalStateException.class, () -> {
+            r1.approve();
+            return null;
+        });
+    }
+
+    @Test
+    public void lockForRevoking() throws Exception {
+        enableCache(true);
+        StateRecord existing = ledger.findOrCreate(HashId.createRandom());
+        existing.approve();
+
+        StateRecord existing2 = ledger.findOrCreate(HashId.createRandom());
+        existing2.approve();
+
+        StateRecord r = ledger.findOrCreate(HashId.createRandom());
+        StateRecord r1 = r.lockToRevoke(existing.getId());
+
+        existing.reload();
+        r.reload();
+
+        assertSameRecords(existing, r1);
+        assertEquals(ItemState.LOCKED, existing.getState());
+        assertEquals(r.getRecordId(), existing.getLockedByRecordId());
+
+        // we lock again the same record, everything should be still ok:
+        StateRecord r2 = r.lockToRevoke(existing.getId());
+        assertNotNull(r2);
+        existing.reload();
+        r.reload();
+        assertSameRecords(existing, r1);
+        assertSameRecords(existing, r2);
+        assertSame(r1, r2);
+        assertEquals(ItemState.LOCKED, existing.getState());
+        assertEquals(r.getRecordId(), existing.getLockedByRecordId());
+
+        StateRecord r3 = r.lockToRevoke(existing2.getId());
+        existing2.reload();
+        assertSameRecords(existing2, r3);
+        assertEquals(ItemState.LOCKED, existing2.getState());
+        assertEquals(r.getRecordId(), existing2.getLockedByRecordId());
+    }
+
+    @Test
+    public void checkLockOwner() throws Exception {
+        enableCache(true);
+        StateRecord existing = ledger.findOrCreate(HashId.createRandom());
+        existing.approve();
+
+        StateRecord r = ledger.findOrCreate(HashId.createRandom());
+        StateRecord r1 = r.lockToRevoke(existing.getId());
+
+        existing.reload();
+        r.reload();
+
+        assertSameRecords(existing, r1);
+        assertEquals(ItemState.LOCKED, existing.getState());
+        assertEquals(r.getRecordId(), existing.getLockedByRecordId());
+
+        StateRecord currentOwner = ledger.getLockOwnerOf(existing);
+        assertSameRecords(r, currentOwner);
+    }
+
+    @Test
+    public void revoke() throws Exception {
+        StateRecord r1 = ledger.findOrCreate(HashId.createRandom());
+        assertFalse(r1.isApproved());
+        assertTrue(r1.isPending());
+        assertFalse(r1.isArchived());
+        r1.approve();
+        r1.reload();
+        assertTrue(r1.isApproved());
+        assertFalse(r1.isPending());
+        assertFalse(r1.isArchived());
+        r1.setState(ItemState.LOCKED);
+        r1.revoke();
+        assertFalse(r1.isPending());
+        assertFalse(r1.isApproved());
+        assertTrue(r1.isArchived());
+    }
+
+    @Test
+    public void destroy() throws Exception {
+        StateRecord r1 = ledger.findOrCreate(HashId.createRandom());
+        r1.destroy();
+        assertNull(ledger.getRecord(r1.getId()));
+    }
+
+    @Test
+    public void recordExpiration() throws Exception {
+        HashId hashId = HashId.createRandom();
+        StateRecord r = ledger.findOrCreate(hashId);
+        assertNotNull(r.getExpiresAt());
+        assert(r.getExpiresAt().isAfter(ZonedDateTime.now()));
+
+        ZonedDateTime inFuture = ZonedDateTime.now().plusHours(2);
+        r.setExpiresAt(inFuture);
+
+        StateRecord r1 = ledger.getRecord(hashId);
+        assertNotEquals(r1.getExpiresAt(), inFuture);
+
+        r.save();
+        r1 = ledger.getRecord(hashId);
+        assertAlmostSame(r.getExpiresAt(), r1.getExpiresAt());
+
+        r.setExpiresAt(ZonedDateTime.now().minusHours(1));
+        r.save();
+
+        r1 = ledger.getRecord(hashId);
+        assertNull(r1);
+    }
+
+    @Test
+    public void getRecordsAndTestnetIds() throws Exception {
+        StateRecord r1 = ledger.findOrCreate(HashId.createRandom());
+        r1.setState(ItemState.APPROVED);
+        r1.save();
+        StateRecord r2 = ledger.findOrCreate(HashId.createRandom());
+        ledger.markTestRecord(r2.getId());
+        HashId unknown = HashId.createRandom();
+
+        Map<HashId, StateRecord> records = ledger.getRecords(Arrays.asList(r1.getId(), r2.getId(), unknown));
+        assertEquals(2, records.size());
+        assertEquals(ItemState.APPROVED, records.get(r1.getId()).getState());
+        assertEquals(r2.getRecordId(), records.get(r2.getId()).getRecordId());
+        assertNull(records.get(unknown));
+
+        assertEquals(new HashSet<>(Arrays.asList(r2.getId())),
+                ledger.getTestnetIds(Arrays.asList(r1.getId(), r2.getId(), unknown)));
+    }
+
+    @Test
+    public void findBadReferences() throws Exception {
+        StateRecord approved = ledger.findOrCreate(HashId.createRandom());
+        approved.approve();
+        StateRecord pending = ledger.findOrCreate(HashId.createRandom());
+        HashId unknown = HashId.createRandom();
+
+        Set<HashId> bad = ledger.findBadReferencesOf(
+                new HashSet<>(Arrays.asList(approved.getId(), pending.getId(), unknown)));
+        assertEquals(new HashSet<>(Arrays.asList(pending.getId(), unknown)), bad);
+    }
+
+    @Test
+    public void getEnvironments() throws Exception {
+        List<Long> ids = new ArrayList<>();
+        List<NSmartContract> contracts = new ArrayList<>();
+        ZonedDateTime expiresAt = ZonedDateTime.now().plusDays(1);
+        for (int i = 0; i < 3; i++) {
+            NSmartContract contract = new NSmartContract(TestKeys.privateKey(0));
+            contract.seal();
+            String name = "environments_" + i + "_" + HashId.createRandom().toBase64String();
+            UnsName unsName = new UnsName(name, "test", "url", new UnsRecord(HashId.createRandom()));
+            unsName.setUnsReducedName(name);
+            List<ContractSubscription> subscriptions = Do.listOf(
+                    new NContractSubscription(HashId.createRandom(), false, expiresAt),
+                    new NContractSubscription(HashId.createRandom(), true, expiresAt));
+            NImmutableEnvironment environment = new NImmutableEnvironment(contract, Binder.of("n", i),
+                    subscriptions, Do.listOf(), Do.listOf(new NNameRecord(unsName, expiresAt)), null, ledger);
+            assertTrue(ledger.saveEnvironment(environment).isEmpty());
+            contracts.add(contract);
+            ids.add(ledger.getEnvironment(contract.getId()).getId());
+        }
+
+        Map<Long, NImmutableEnvironment> loaded = ledger.getEnvironments(Do.listOf(ids.get(0), ids.get(1), ids.get(2), -1L));
+        assertEquals(3, loaded.size());
+        assertFalse(loaded.containsKey(-1L));
+        assertNull(ledger.getEnvironment(-1L));
+
+        for (int i = 0; i < 3; i++) {
+            NImmutableEnvironment environment = loaded.get(ids.get(i));
+            assertEquals(ids.get(i).longValue(), environment.getId());
+            assertEquals(contracts.get(i).getId(), environment.getContract().getId());
+            assertEquals(i, (int) environment.get("n", -1));
+            int subscriptions = 0;
+            for (ContractSubscription ignored : environment.subscriptions())
+                subscriptions++;
+            assertEquals(2, subscriptions);
+            List<NameRecord> names = new ArrayList<>();
+            environment.nameRecords().forEach(names::add);
+            assertEquals(1, names.size());
+            assertTrue(names.get(0).getNameReduced().startsWith("environments_" + i));
+            assertEquals(1, names.get(0).getEntries().size());
+            assertNull(environment.getFollowerService());
+
+            ledger.removeEnvironment(contracts.get(i).getId());
+            assertNull(ledger.getEnvironment(ids.get(i)));
+        }
+    }
+
+    @Test
+    public void contractStorage() throws Exception {
+        NSmartContract slot = new NSmartContract(TestKeys.privateKey(0));
+        slot.seal();
+        long environmentId = ledger.getEnvironment(slot).getId();
+        Contract contract = new Contract(TestKeys.privateKey(0));
+        contract.seal();
+
+        ZonedDateTime expiresAt = ZonedDateTime.now().plusDays(1);
+        long storageId = ledger.saveContractInStorage(contract.getId(), contract.getPackedTransaction(), expiresAt,
+                contract.getOrigin(), environmentId);
+        long subscriptionId = ledger.saveSubscriptionInStorage(contract.getId(), false, expiresAt, environmentId);
+        assertArrayEquals(contract.getPackedTransaction(), ledger.getContractInStorage(contract.getId()));
+        assertArrayEquals(contract.getPackedTransaction(), ledger.getContractInStorage(slot.getId(), contract.getId()));
+        assertEquals(1, ledger.getContractsInStorageByOrigin(slot.getId(), contract.getOrigin()).size());
+        assertEquals(Collections.singleton(environmentId), ledger.getSubscriptionEnviromentIds(contract.getId()));
+
+        NImmutableEnvironment environment = ledger.getEnvironment(environmentId);
+        List<ContractStorage> storages = new ArrayList<>();
+        environment.storages().forEach(storages::add);
+        assertEquals(1, storages.size());
+        assertEquals(storageId, ((NContractStorage) storages.get(0)).getId());
+        assertEquals(contract.getId(), storages.get(0).getContract().getId());
+        List<ContractSubscription> subscriptions = new ArrayList<>();
+        environment.subscriptions().forEach(subscriptions::add);
+        assertEquals(1, subscriptions.size());
+        assertEquals(subscriptionId, ((NContractSubscription) subscriptions.get(0)).getId());
+
+        ledger.updateStorageExpiresAt(storageId, ZonedDateTime.now().minusSeconds(10));
+        ledger.updateSubscriptionInStorage(subscriptionId, ZonedDateTime.now().minusSeconds(10));
+        ledger.clearExpiredSubscriptions();
+        ledger.clearExpiredStorages();
+        ledger.clearExpiredStorageContractBinaries();
+        assertNull(ledger.getContractInStorage(contract.getId()));
+        assertTrue(ledger.getSubscriptionEnviromentIds(contract.getId()).isEmpty());
+
+        assertEquals(environmentId, ledger.removeEnvironment(slot.getId()));
+        assertNull(ledger.getEnvironment(environmentId));
+        assertEquals(0, ledger.removeEnvironment(slot.getId()));
+    }
+
+    @Test
+    public void nameRecords() throws Exception {
+        NSmartContract contract = new NSmartContract(TestKeys.privateKey(0));
+        contract.seal();
+        long environmentId = ledger.getEnvironment(contract).getId();
+
+        PrivateKey key = new PrivateKey(2048);
+        HashId origin = HashId.createRandom();
+        String name = "names_" + HashId.createRandom().toBase64String();
+        UnsName unsName = new UnsName(name, "test description", "test url",
+                Do.listOf(new UnsRecord(key.getPublicKey()), new UnsRecord(origin)));
+        unsName.setUnsReducedName(name);
+        NNameRecord nameRecord = new NNameRecord(unsName, ZonedDateTime.now().plusMonths(1));
+        nameRecord.setEnvironmentId(environmentId);
+        ledger.addNameRecord(nameRecord);
+
+        String shortAddress = key.getPublicKey().getShortAddress().toString();
+        String longAddress = key.getPublicKey().getLongAddress().toString();
+        for (NNameRecord loaded : Arrays.asList(ledger.getNameRecord(name), ledger.getNameByAddress(shortAddress),
+                ledger.getNameByAddress(longAddress), ledger.getNameByOrigin(origin.getDigest()))) {
+            assertEquals(nameRecord.getId(), loaded.getId());
+            assertEquals(name, loaded.getName());
+            assertEquals("test description", loaded.getDescription());
+            assertEquals("test url", loaded.getUrl());
+            assertEquals(environmentId, loaded.getEnvironmentId());
+            assertAlmostSame(nameRecord.expiresAt(), loaded.expiresAt());
+            assertEquals(2, loaded.getEntries().size());
+        }
+
+        assertEquals(Do.listOf(name), ledger.isAllNameRecordsAvailable(Do.listOf(name, "free_" + name)));
+        assertEquals(Do.listOf(origin.toBase64String()),
+                ledger.isAllOriginsAvailable(Do.listOf(origin, HashId.createRandom())));
+        assertEquals(new HashSet<>(Do.listOf(shortAddress, longAddress)),
+                new HashSet<>(ledger.isAllAddressesAvailable(Do.listOf(shortAddress))));
+
+        ledger.updateNameRecord(nameRecord.getId(), ZonedDateTime.now().minusDays(2));
+        ledger.clearExpiredNameRecords(java.time.Duration.ofDays(1));
+        assertNull(ledger.getNameRecord(name));
+        assertTrue(ledger.isAllNameRecordsAvailable(Do.listOf(name)).isEmpty());
+        assertTrue(ledger.isAllAddressesAvailable(Do.listOf(shortAddress, longAddress)).isEmpty());
+
+        ledger.removeEnvironment(contract.getId());
+    }
+
+    @Test
+    public void followerCallbacks() throws Exception {
+        NSmartContract contract = new NSmartContract(TestKeys.privateKey(0));
+        contract.seal();
+        long environmentId = ledger.getEnvironment(contract).getId();
+
+        HashId id = HashId.createRandom();
+        assertEquals(CallbackService.FollowerCallbackState.UNDEFINED, ledger.getFollowerCallbackStateById(id));
+        ledger.addFollowerCallback(id, environmentId, ZonedDateTime.now().minusSeconds(10),
+                ZonedDateTime.now().plusDays(1));
+        assertEquals(CallbackService.FollowerCallbackState.STARTED, ledger.getFollowerCallbackStateById(id));
+        assertTrue(containsCallback(ledger.getFollowerCallbacksToResyncByEnvId(environmentId), id));
+        assertTrue(containsCallback(ledger.getFollowerCallbacksToResync(), id));
+
+        ledger.updateFollowerCallbackState(id, CallbackService.FollowerCallbackState.COMPLETED);
+        assertEquals(CallbackService.FollowerCallbackState.COMPLETED, ledger.getFollowerCallbackStateById(id));
+        assertFalse(containsCallback(ledger.getFollowerCallbacksToResyncByEnvId(environmentId), id));
+
+        ledger.removeFollowerCallback(id);
+        assertEquals(CallbackService.FollowerCallbackState.UNDEFINED, ledger.getFollowerCallbackStateById(id));
+
+        ledger.saveFollowerEnvironment(environmentId, ZonedDateTime.now().plusDays(1), ZonedDateTime.now().plusDays(2),
+                1.5, 3);
+        FollowerService followerService = ledger.getEnvironment(environmentId).getFollowerService();
+        assertEquals(1.5, followerService.getCallbacksSpent(), 0);
+        assertEquals(3, followerService.getStartedCallbacks());
+
+        ledger.removeEnvironment(contract.getId());
+    }
+
+    private static boolean containsCallback(Collection<CallbackRecord> callbacks, HashId id) {
+        for (CallbackRecord callback : callbacks)
+            if (callback.getId().equals(id))
+                return true;
+        return false;
+    }
+
+    @Test
+    public void payments() throws Exception {
+        ZonedDateTime today = ZonedDateTime.now().truncatedTo(ChronoUnit.DAYS);
+        int day = (int) today.toEpochSecond();
+        int before = ledger.getPayments(today).getOrDefault(day, 0);
+        ledger.savePayment(100, today.plusHours(1));
+        ledger.savePayment(100, today.plusHours(2));
+        ledger.savePayment(100, today.minusDays(1));
+        Map<Integer, Integer> payments = ledger.getPayments(today);
+        assertEquals(before + 200, (int) payments.get(day));
+        assertFalse(payments.containsKey((int) today.minusDays(1).toEpochSecond()));
+    }
+}
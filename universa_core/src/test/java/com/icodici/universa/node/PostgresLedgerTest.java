@@ -10,7 +10,6 @@ import com.icodici.universa.node2.Config;
 import com.icodici.universa.node2.NodeStats;
 import net.sergeych.tools.Do;
 import net.sergeych.tools.StopWatch;
-import org.junit.Before;
 import org.junit.Ignore;
 import org.junit.Test;
 
@@ -29,45 +28,19 @@ import java.util.concurrent.Future;
 
 import static org.junit.Assert.*;
 
-public class PostgresLedgerTest extends TestCase {
+public class PostgresLedgerTest extends LedgerTestCase<PostgresLedger> {
     public static final String CONNECTION_STRING = "jdbc:postgresql://localhost:5432/universa_node";
-    private PostgresLedger ledger;
 
-    @Before
-    public void setUp() throws Exception {
+    @Override
+    protected PostgresLedger createLedger() throws Exception {
 //        new File("testledger").delete();
 //        Class.forName("org.postgresql.Driver");
-        ledger = new PostgresLedger(CONNECTION_STRING);
-        ledger.enableCache(false);
-    }
-
-    @Test
-    public void create() throws Exception {
-//        System.out.println("" + ledger.getDb().getIntParam("version"));
-        HashId id = HashId.createRandom();
-        assertNull(ledger.getRecord(id));
-        StateRecord r = ledger.findOrCreate(id);
-        System.out.println(r);
-        System.out.println(ledger.countRecords());
+        return new PostgresLedger(CONNECTION_STRING);
     }
 
-    @Test
-    public void checkNegativeBytesInId() throws Exception {
-        HashId id = HashId.withDigest(Do.randomNegativeBytes(64));
-        StateRecord r1 = ledger.findOrCreate(id);
-        r1.setState(ItemState.DECLINED);
-        r1.save();
-        StateRecord r2 = ledger.getRecord(id);
-        assertNotNull(r2);
-        assertNotSame(r1, r2);
-        assertEquals(r1.getState(), r2.getState());
-
-        ledger.enableCache(true);
-        StateRecord r3 = ledger.getRecord(id);
-        StateRecord r4 = ledger.getRecord(id);
-        assertEquals(r3.toString(), r4.toString());
-        // why?
-        assertSame(r3, r4);
+    @Override
+    protected void enableCache(boolean enable) {
+        ledger.enableCache(enable);
     }
 
     //    @Test
@@ -113,207 +86,73 @@ public class PostgresLedgerTest extends TestCase {
         System.out.println("" + ledger.getDb().queryOne("SELECT count(*) from ledger"));
     }
 
-    @Test
-    public void createOutputLockRecord() throws Exception {
-        ledger.enableCache(true);
-        StateRecord owner = ledger.findOrCreate(HashId.createRandom());
-        StateRecord other = ledger.findOrCreate(HashId.createRandom());
-
-        HashId id = HashId.createRandom();
-        StateRecord r1 = owner.createOutputLockRecord(id);
-        r1.reload();
-        assertEquals(id, r1.getId());
-        assertEquals(ItemState.LOCKED_FOR_CREATION, r1.getState());
-        assertEquals(owner.getRecordId(), r1.getLockedByRecordId());
-        StateRecord r2 = owner.createOutputLockRecord(id);
-        assertSame(r2, r1);
-        assertNull(owner.createOutputLockRecord(other.getId()));
-        // And hacked low level operation must fail too
-        assertNull(ledger.createOutputLockRecord(owner.getRecordId(), other.getId()));
-    }
 
     @Test
-    public void findOrCreateAndGet() throws Exception {
-        // Atomic new record creation
-        HashId id = HashId.createRandom();
-        StateRecord r = ledger.findOrCreate(id);
-        assertNotNull(r);
-        assertEquals(id, r.getId());
-        assertEquals(ItemState.PENDING, r.getState());
-        assertAlmostSame(ZonedDateTime.now(), r.getCreatedAt());
-
-        // returning existing record
-        StateRecord r1 = ledger.findOrCreate(id);
-        assertSameRecords(r, r1);
-
-        StateRecord r2 = ledger.getRecord(id);
-        assertSameRecords(r, r2);
-
-        StateRecord r3 = ledger.getRecord(HashId.createRandom());
-        assert (r3 == null);
-    }
+    public void ledgerSize() throws Exception {
+        ZonedDateTime since = ZonedDateTime.now().minusSeconds(1);
+        Map<ItemState, Integer> before = ledger.getLedgerSize(since);
 
-
-    @Test
-    public void saveAndTransaction() throws Exception {
         StateRecord r1 = ledger.findOrCreate(HashId.createRandom());
+        r1.setState(ItemState.APPROVED);
+        r1.save();
         StateRecord r2 = ledger.findOrCreate(HashId.createRandom());
-        int x = ledger.transaction(() -> {
-            r1.setState(ItemState.APPROVED);
-            r2.setState(ItemState.DECLINED);
-            r1.save();
-            r2.save();
-            return 5;
-        });
-        assertEquals(5, x);
-        r1.reload();
-        StateRecord r3 = ledger.getRecord(r1.getId());
-        assertEquals(ItemState.APPROVED, r1.getState());
-        assertEquals(ItemState.APPROVED, r3.getState());
-        r2.reload();
-        assertEquals(ItemState.DECLINED, r2.getState());
-        Object y = ledger.transaction(() -> {
-            r1.setState(ItemState.REVOKED);
-            r2.setState(ItemState.DISCARDED);
-            r1.save();
-            r2.save();
-            throw new Ledger.Rollback();
-        });
-        assert (y == null);
-        r1.reload();
-        assertEquals(ItemState.APPROVED, r1.getState());
-        r2.reload();
-        assertEquals(ItemState.DECLINED, r2.getState());
-    }
-
-    @Test
-    public void approve() throws Exception {
-        StateRecord r1 = ledger.findOrCreate(HashId.createRandom());
-        assertFalse(r1.isApproved());
-        r1.approve();
-        assertEquals(ItemState.APPROVED, r1.getState());
-        assert (r1.isApproved());
-        r1.reload();
-        assert (r1.isApproved());
-        assertThrows(IllegalStateException.class, () -> {
-            r1.approve();
-            return null;
-        });
-    }
-
-    @Test
-    public void lockForRevoking() throws Exception {
-        ledger.enableCache(true);
-        StateRecord existing = ledger.findOrCreate(HashId.createRandom());
-        existing.approve();
-
-        StateRecord existing2 = ledger.findOrCreate(HashId.createRandom());
-        existing2.approve();
-
-        StateRecord r = ledger.findOrCreate(HashId.createRandom());
-        StateRecord r1 = r.lockToRevoke(existing.getId());
-
-        existing.reload();
-        r.reload();
-
-        assertSameRecords(existing, r1);
-        assertEquals(ItemState.LOCKED, existing.getState());
-        assertEquals(r.getRecordId(), existing.getLockedByRecordId());
-
-        // we lock again the same record, everything should be still ok:
-        StateRecord r2 = r.lockToRevoke(existing.getId());
-        assertNotNull(r2);
-        existing.reload();
-        r.reload();
-        assertSameRecords(existing, r1);
-        assertSameRecords(existing, r2);
-        assertSame(r1, r2);
-        assertEquals(ItemState.LOCKED, existing.getState());
-        assertEquals(r.getRecordId(), existing.getLockedByRecordId());
-
-        StateRecord r3 = r.lockToRevoke(existing2.getId());
-        existing2.reload();
-        assertSameRecords(existing2, r3);
-        assertEquals(ItemState.LOCKED, existing2.getState());
-        assertEquals(r.getRecordId(), existing2.getLockedByRecordId());
-    }
-
-    @Test
-    public void checkLockOwner() throws Exception {
-        ledger.enableCache(true);
-        StateRecord existing = ledger.findOrCreate(HashId.createRandom());
-        existing.approve();
-
-        StateRecord r = ledger.findOrCreate(HashId.createRandom());
-        StateRecord r1 = r.lockToRevoke(existing.getId());
-
-        existing.reload();
-        r.reload();
-
-        assertSameRecords(existing, r1);
-        assertEquals(ItemState.LOCKED, existing.getState());
-        assertEquals(r.getRecordId(), existing.getLockedByRecordId());
-
-        StateRecord currentOwner = ledger.getLockOwnerOf(existing);
-
-        System.out.println("existing: " + existing.getId());
-        System.out.println("locker: " + r.getId());
-        System.out.println("locked: " + r1.getId());
-        System.out.println("currentOwner: " + currentOwner.getId());
-        assertSameRecords(r, currentOwner);
-    }
-
-    @Test
-    public void revoke() throws Exception {
-        StateRecord r1 = ledger.findOrCreate(HashId.createRandom());
-        assertFalse(r1.isApproved());
-        assertTrue(r1.isPending());
-        assertFalse(r1.isArchived());
-        r1.approve();
-        r1.reload();
-        assertTrue(r1.isApproved());
-        assertFalse(r1.isPending());
-        assertFalse(r1.isArchived());
-        r1.setState(ItemState.LOCKED);
-        r1.revoke();
-        assertFalse(r1.isPending());
-        assertFalse(r1.isApproved());
-        assertTrue(r1.isArchived());
-    }
-
-    @Test
-    public void destroy() throws Exception {
-        StateRecord r1 = ledger.findOrCreate(HashId.createRandom());
-        r1.destroy();
-        assertNull(ledger.getRecord(r1.getId()));
+        r2.setState(ItemState.APPROVED);
+        r2.save();
+        StateRecord r3 = ledger.findOrCreate(HashId.createRandom());
+        r3.setState(ItemState.DECLINED);
+        r3.save();
+        r2.setState(ItemState.REVOKED);
+        r2.save();
+        r3.destroy();
+
+        Map<ItemState, Integer> after = ledger.getLedgerSize(since);
+        assertEquals(1, after.getOrDefault(ItemState.APPROVED, 0) - before.getOrDefault(ItemState.APPROVED, 0));
+        assertEquals(1, after.getOrDefault(ItemState.REVOKED, 0) - before.getOrDefault(ItemState.REVOKED, 0));
+        assertEquals((int) before.getOrDefault(ItemState.DECLINED, 0), (int) after.getOrDefault(ItemState.DECLINED, 0));
+
+        // the whole ledger stats match the actual ledger
+        Map<ItemState, Integer> total = ledger.getLedgerSize(null);
+        try (PooledDb db = (PooledDb) ledger.getDb()) {
+            try (ResultSet rs = db.queryRow("select count(id), state from ledger group by state")) {
+                Map<ItemState, Integer> counted = new HashMap<>();
+                if (rs != null) {
+                    do {
+                        counted.put(ItemState.values()[rs.getInt(2)], rs.getInt(1));
+                    } while (rs.next());
+                }
+                assertEquals(counted, total);
+            }
+        }
     }
 
     @Test
-    public void recordExpiration() throws Exception {
-        // todo: expired can't be get - it should be dropped by the database
-        HashId hashId = HashId.createRandom();
-        StateRecord r = ledger.findOrCreate(hashId);
-        assertNotNull(r.getExpiresAt());
-        assert(r.getExpiresAt().isAfter(ZonedDateTime.now()));
-        long recordId = r.getRecordId();
-
-        ZonedDateTime inFuture = ZonedDateTime.now().plusHours(2);
-        r.setExpiresAt(inFuture);
-
-        StateRecord r1 = ledger.getRecord(hashId);
-        assertNotEquals(r1.getExpiresAt(), inFuture);
-
-        r.save();
-        r1 = ledger.getRecord(hashId);
-        assertAlmostSame(r.getExpiresAt(), r1.getExpiresAt());
-
-        r.setExpiresAt(ZonedDateTime.now().minusHours(1));
-        r.save();
-
-        r1 = ledger.getRecord(hashId);
-        assertNull(r1);
-
+    public void batchedCleanup() throws Exception {
+        List<HashId> expired = new ArrayList<>();
+        for (int i = 0; i < 25; i++) {
+            StateRecord r = ledger.findOrCreate(HashId.createRandom());
+            r.setExpiresAt(ZonedDateTime.now().minusHours(1));
+            r.save();
+            expired.add(r.getId());
+        }
+        StateRecord alive = ledger.findOrCreate(HashId.createRandom());
+
+        LedgerCleaner cleaner = ledger.getCleaner();
+        int batchSize = cleaner.getBatchSize();
+        try {
+            cleaner.setBatchSize(10);
+            long deletedBefore = cleaner.getStats().getLongOrThrow("deleted");
+            ledger.cleanup(false);
+            assertTrue(cleaner.getStats().getLongOrThrow("deleted") - deletedBefore >= expired.size());
+            assertNull(cleaner.getStats().get("task"));
+        } finally {
+            cleaner.setBatchSize(batchSize);
+        }
 
+        try (PooledDb db = (PooledDb) ledger.getDb()) {
+            for (HashId id : expired)
+                assertEquals(0, ((Number) db.queryOne("select count(*) from ledger where hash = ?", id.getDigest())).intValue());
+        }
+        assertNotNull(ledger.getRecord(alive.getId()));
     }
 
 //    @Test
@@ -377,6 +216,83 @@ public class PostgresLedgerTest extends TestCase {
             th.start();
         }
     }
+
+    @Test
+    public void groupCommit() throws Exception {
+        ledger.enableCache(true);
+        StateRecord existing = ledger.findOrCreate(HashId.createRandom());
+
+        ExecutorService es = Executors.newFixedThreadPool(16);
+        List<Future<StateRecord>> ff = new ArrayList<>();
+        for (int i = 0; i < 200; i++)
+            ff.add(es.submit(() -> {
+                StateRecord r = new StateRecord(ledger);
+                r.setId(HashId.createRandom());
+                r.setState(ItemState.LOCKED_FOR_CREATION);
+                r.setLockedByRecordId(existing.getRecordId());
+                r.save();
+                return r;
+            }));
+        existing.setState(ItemState.APPROVED);
+        existing.save();
+
+        List<StateRecord> saved = new ArrayList<>();
+        for (Future<StateRecord> f : ff) {
+            StateRecord r = f.get();
+            assertNotEquals(0, r.getRecordId());
+            assertSame(r, ledger.getRecord(r.getId()));
+            saved.add(r);
+        }
+        ledger.enableCache(false);
+        for (StateRecord r : saved) {
+            StateRecord loaded = ledger.getRecord(r.getId());
+            assertEquals(r.getRecordId(), loaded.getRecordId());
+            assertEquals(ItemState.LOCKED_FOR_CREATION, loaded.getState());
+            assertEquals(existing.getRecordId(), loaded.getLockedByRecordId());
+        }
+        existing.reload();
+        assertEquals(ItemState.APPROVED, existing.getState());
+        assertTrue(ledger.getRecordWriter().getRecordsPerBatch() >= 1);
+
+        // duplicate breaks the batch but fails only its own save
+        StateRecord duplicate = new StateRecord(ledger);
+        duplicate.setId(existing.getId());
+        try {
+            duplicate.save();
+            fail("duplicate should not be saved");
+        } catch (Ledger.Failure e) {
+            assertEquals(0, duplicate.getRecordId());
+        }
+        es.shutdown();
+    }
+
+    //    @Test
+    public void groupCommitBenchmark() throws Exception {
+        int nThreads = 64;
+        int nSaves = 200;
+        ExecutorService es = Executors.newFixedThreadPool(nThreads);
+        for (boolean groupCommit : new boolean[]{false, true, false, true}) {
+            ledger.enableGroupCommit(groupCommit);
+            List<Future<?>> ff = new ArrayList<>();
+            long t = StopWatch.measure(() -> {
+                for (int n = 0; n < nThreads; n++)
+                    ff.add(es.submit(() -> {
+                        StateRecord r = ledger.findOrCreate(HashId.createRandom());
+                        for (int i = 0; i < nSaves; i++) {
+                            r.setState(i % 2 == 0 ? ItemState.LOCKED : ItemState.APPROVED);
+                            r.save();
+                        }
+                        return null;
+                    }));
+                for (Future<?> f : ff)
+                    f.get();
+            });
+            System.out.println("group commit " + groupCommit + ": " + (nThreads * nSaves * 1000L / Math.max(t, 1)) +
+                    " saves per second, " + ledger.getRecordWriter().getRecordsPerBatch() + " records per batch");
+        }
+        es.shutdown();
+    }
+
     @Test
     public void moveToTestnet() throws Exception {
 
@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) 2018, iCodici S.n.C, All Rights Reserved
+ *
+ */
+
+package com.icodici.universa.node;
+
+import com.icodici.universa.HashId;
+import org.junit.Test;
+
+import java.lang.reflect.Proxy;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+public class StateRecordCacheTest {
+
+    // records are never saved here, the ledger is needed only to assign record ids
+    private static final Ledger ledger = (Ledger) Proxy.newProxyInstance(Ledger.class.getClassLoader(),
+            new Class[]{Ledger.class}, (proxy, method, args) -> null);
+
+    private static StateRecord createRecord(HashId itemId, long recordId) {
+        StateRecord r = new StateRecord(ledger);
+        r.setId(itemId);
+        r.setRecordId(recordId);
+        return r;
+    }
+
+    private static StateRecord createRecord(long recordId) {
+        return createRecord(HashId.createRandom(), recordId);
+    }
+
+    @Test
+    public void canonicalInstance() throws Exception {
+        StateRecordCache cache = new StateRecordCache();
+        StateRecord r1 = createRecord(1);
+        assertSame(r1, cache.putIfAbsent(r1));
+
+        StateRecord loadedAgain = createRecord(r1.getId(), 1);
+        assertSame(r1, cache.putIfAbsent(loadedAgain));
+        assertSame(r1, cache.get(r1.getId()));
+        assertSame(r1, cache.getByRecordId(1));
+
+        assertNull(cache.get(HashId.createRandom()));
+        assertNull(cache.getByRecordId(2));
+        assertEquals(2, cache.getHits());
+        assertEquals(2, cache.getMisses());
+
+        cache.remove(r1);
+        assertNull(cache.get(r1.getId()));
+        assertNull(cache.getByRecordId(1));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void putReplaces() throws Exception {
+        StateRecordCache cache = new StateRecordCache();
+        StateRecord r1 = createRecord(1);
+        cache.putIfAbsent(r1);
+
+        StateRecord saved = createRecord(r1.getId(), 2);
+        cache.put(saved);
+        assertSame(saved, cache.get(r1.getId()));
+        assertSame(saved, cache.getByRecordId(2));
+        assertNull(cache.getByRecordId(1));
+    }
+
+    @Test
+    public void sizeLimit() throws Exception {
+        int maxSize = StateRecordCache.STRIPES * 4;
+        StateRecordCache cache = new StateRecordCache(maxSize, Duration.ofMinutes(1));
+        List<StateRecord> records = new ArrayList<>();
+        for (int i = 1; i <= maxSize * 10; i++) {
+            StateRecord r = createRecord(i);
+            records.add(r);
+            cache.putIfAbsent(r);
+        }
+        assertTrue(cache.size() <= maxSize);
+        assertTrue(cache.getEvictions() >= maxSize * 9);
+
+        // evicted records are still canonical while they are in use
+        for (StateRecord r : records)
+            assertSame(r, cache.get(r.getId()));
+        assertTrue(cache.size() <= maxSize);
+    }
+
+    @Test
+    public void usedRecordsStay() throws Exception {
+        StateRecordCache cache = new StateRecordCache(StateRecordCache.STRIPES * 4, Duration.ofMinutes(1));
+        HashId hotId = HashId.createRandom();
+        cache.putIfAbsent(createRecord(hotId, 1));
+        int stripe = (hotId.hashCode() & 0x7FFFFFFF) % StateRecordCache.STRIPES;
+        int added = 0;
+        while (added < 100) {
+            HashId id = HashId.createRandom();
+            if ((id.hashCode() & 0x7FFFFFFF) % StateRecordCache.STRIPES != stripe)
+                continue;
+            assertNotNull(cache.get(hotId));
+            cache.putIfAbsent(createRecord(id, added + 2));
+            added++;
+        }
+        assertEquals(4, cache.size());
+        assertEquals(97, cache.getEvictions());
+        // only the cache holds the record now
+        System.gc();
+        assertNotNull(cache.get(hotId));
+    }
+
+    @Test
+    public void ageLimit() throws Exception {
+        StateRecordCache cache = new StateRecordCache(1000, Duration.ofMillis(50));
+        for (int i = 1; i <= 100; i++)
+            cache.putIfAbsent(createRecord(i));
+        assertEquals(100, cache.size());
+        Thread.sleep(100);
+        cache.cleanUp();
+        assertEquals(0, cache.size());
+        assertEquals(100, cache.getEvictions());
+    }
+
+    @Test
+    public void concurrentLoads() throws Exception {
+        StateRecordCache cache = new StateRecordCache(64, Duration.ofMinutes(1));
+        HashId[] ids = new HashId[16];
+        for (int i = 0; i < ids.length; i++)
+            ids[i] = HashId.createRandom();
+
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        List<Future<StateRecord[]>> futures = new ArrayList<>();
+        for (int t = 0; t < 8; t++)
+            futures.add(pool.submit(() -> {
+                StateRecord[] seen = new StateRecord[ids.length];
+                for (int n = 0; n < 1000; n++) {
+                    int i = n % ids.length;
+                    StateRecord r = cache.get(ids[i]);
+                    if (r == null)
+                        r = cache.putIfAbsent(createRecord(ids[i], i + 1));
+                    if (seen[i] == null)
+                        seen[i] = r;
+                    else
+                        assertSame(seen[i], r);
+                }
+                return seen;
+            }));
+        StateRecord[] first = futures.get(0).get();
+        for (Future<StateRecord[]> f : futures)
+            assertArrayEquals(first, f.get());
+        pool.shutdown();
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2018, iCodici S.n.C, All Rights Reserved
+ *
+ */
+
+package com.icodici.universa.node2;
+
+import com.sun.net.httpserver.HttpServer;
+import net.sergeych.tools.Do;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class CallbackDispatcherTest {
+
+    private HttpServer server;
+    private ExecutorService serverExecutor = Executors.newFixedThreadPool(16);
+    private String url;
+    private CallbackDispatcher dispatcher;
+
+    private final AtomicInteger running = new AtomicInteger();
+    private final AtomicInteger maxRunning = new AtomicInteger();
+    private final AtomicInteger received = new AtomicInteger();
+    private volatile int responseCode = 200;
+    private volatile long responseDelayMillis = 0;
+
+    @Before
+    public void setUp() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/callback", exchange -> {
+            int now = running.incrementAndGet();
+            maxRunning.accumulateAndGet(now, Math::max);
+            try {
+                byte[] request = Do.read(exchange.getRequestBody());
+                received.incrementAndGet();
+                if (responseDelayMillis > 0)
+                    Thread.sleep(responseDelayMillis);
+                byte[] answer = ("echo:" + new String(request, StandardCharsets.UTF_8)).getBytes(StandardCharsets.UTF_8);
+                exchange.sendResponseHeaders(responseCode, answer.length);
+                try (OutputStream os = exchange.getResponseBody()) {
+                    os.write(answer);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                running.decrementAndGet();
+                exchange.close();
+            }
+        });
+        server.setExecutor(serverExecutor);
+        server.start();
+        url = "http://localhost:" + server.getAddress().getPort() + "/callback";
+        dispatcher = new CallbackDispatcher();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        dispatcher.shutdown();
+        server.stop(0);
+        serverExecutor.shutdownNow();
+    }
+
+    @Test
+    public void post() throws Exception {
+        AtomicBoolean sent = new AtomicBoolean(false);
+        byte[] answer = dispatcher.post(url, null, "hello".getBytes(StandardCharsets.UTF_8), () -> sent.set(true))
+                .get(5, TimeUnit.SECONDS);
+        assertEquals("echo:hello", new String(answer, StandardCharsets.UTF_8));
+        assertTrue(sent.get());
+
+        responseCode = 404;
+        assertNull(dispatcher.post(url, null, "hello".getBytes(), null).get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void perHostLimit() throws Exception {
+        dispatcher.setMaxRequestsPerHost(2);
+        responseDelayMillis = 100;
+        List<CompletableFuture<byte[]>> futures = new ArrayList<>();
+        for (int i = 0; i < 10; i++)
+            futures.add(dispatcher.post(url, null, ("" + i).getBytes(), null));
+        for (int i = 0; i < 10; i++)
+            assertEquals("echo:" + i, new String(futures.get(i).get(10, TimeUnit.SECONDS)));
+        assertEquals(10, received.get());
+        assertTrue(maxRunning.get() <= 2);
+    }
+
+    @Test
+    public void readTimeout() throws Exception {
+        dispatcher.setReadTimeout(Duration.ofMillis(200));
+        responseDelayMillis = 1000;
+        CompletableFuture<byte[]> slow = dispatcher.post(url, null, "slow".getBytes(), null);
+        try {
+            slow.get(5, TimeUnit.SECONDS);
+            fail("should time out");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+    }
+
+    @Test
+    public void circuitBreaker() throws Exception {
+        dispatcher.setFailuresToOpenCircuit(3);
+        dispatcher.setOpenCircuitTime(Duration.ofMillis(500));
+        responseCode = 500;
+        for (int i = 0; i < 3; i++)
+            assertNull(dispatcher.post(url, null, "x".getBytes(), null).get(5, TimeUnit.SECONDS));
+        String hostKey = "localhost:" + server.getAddress().getPort();
+        assertTrue(dispatcher.isCircuitOpen(hostKey));
+
+        // open circuit fails at once without sending
+        int receivedBefore = received.get();
+        try {
+            dispatcher.post(url, null, "x".getBytes(), null).get(5, TimeUnit.SECONDS);
+            fail("circuit should be open");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof CallbackDispatcher.CircuitOpenException);
+        }
+        assertEquals(receivedBefore, received.get());
+
+        // successful probe closes the circuit
+        Thread.sleep(600);
+        responseCode = 200;
+        assertEquals("echo:y", new String(dispatcher.post(url, null, "y".getBytes(), null).get(5, TimeUnit.SECONDS)));
+        assertFalse(dispatcher.isCircuitOpen(hostKey));
+    }
+
+    @Test
+    public void deadHost() throws Exception {
+        dispatcher.setConnectTimeout(Duration.ofMillis(200));
+        server.stop(0);
+        try {
+            dispatcher.post(url, null, "x".getBytes(), null).get(5, TimeUnit.SECONDS);
+            fail("should fail");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+        // server is stopped again in tearDown
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2018, iCodici S.n.C, All Rights Reserved
+ *
+ */
+
+package com.icodici.universa.node2;
+
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class ExpiryWheelTest {
+
+    private final AtomicLong now = new AtomicLong(1_000_000);
+    private final Map<Integer, String> expired = new LinkedHashMap<>();
+
+    private ExpiryWheel<Integer, String> createWheel(int maxEntries) {
+        return new ExpiryWheel<>(Duration.ofMillis(10), maxEntries, expired::put, now::get);
+    }
+
+    private void advance(ExpiryWheel<?, ?> wheel, long millis) {
+        now.addAndGet(millis);
+        wheel.expire();
+    }
+
+    @Test
+    public void expiresInTime() throws Exception {
+        ExpiryWheel<Integer, String> wheel = createWheel(1000);
+        // delays on all the levels of the wheel
+        long[] ttls = {5, 10, 25, 640, 650, 5_000, 40_960, 41_000, 2_621_440, 3_000_000, 200_000_000, 300_000_000};
+        for (int i = 0; i < ttls.length; i++)
+            wheel.schedule(i, "v" + i, Duration.ofMillis(ttls[i]));
+
+        long elapsed = 0;
+        long step = 10;
+        while (expired.size() < ttls.length) {
+            advance(wheel, step);
+            elapsed += step;
+            for (int i = 0; i < ttls.length; i++) {
+                boolean shouldExpire = elapsed >= Math.max(10, ttls[i]);
+                // precision is one tick
+                if (elapsed >= ttls[i] + 10)
+                    assertTrue("expected to expire " + ttls[i] + " at " + elapsed, expired.containsKey(i));
+                else if (!shouldExpire)
+                    assertFalse("early expiration " + ttls[i] + " at " + elapsed, expired.containsKey(i));
+            }
+            // speed up long waits
+            if (elapsed > 100_000)
+                step = 1000;
+        }
+        assertEquals(0, wheel.size());
+        assertEquals("v7", expired.get(7));
+    }
+
+    @Test
+    public void lateTicksCatchUp() throws Exception {
+        ExpiryWheel<Integer, String> wheel = createWheel(1000);
+        for (int i = 0; i < 100; i++)
+            wheel.schedule(i, "v" + i, Duration.ofMillis(i * 100 + 100));
+        // one big jump, like after a long pause
+        advance(wheel, 5_050);
+        assertEquals(50, expired.size());
+        advance(wheel, 100_000);
+        assertEquals(100, expired.size());
+    }
+
+    @Test
+    public void rescheduleAndRemove() throws Exception {
+        ExpiryWheel<Integer, String> wheel = createWheel(1000);
+        wheel.schedule(1, "a", Duration.ofMillis(100));
+        wheel.schedule(2, "b", Duration.ofMillis(100));
+        wheel.schedule(3, "c", Duration.ofMillis(100));
+        advance(wheel, 50);
+        wheel.schedule(1, "a2", Duration.ofMillis(100));
+        wheel.remove(2);
+        advance(wheel, 60);
+        assertEquals(Collections.singletonMap(3, "c"), expired);
+        advance(wheel, 50);
+        assertEquals("a2", expired.get(1));
+        assertFalse(expired.containsKey(2));
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() throws Exception {
+        ExpiryWheel<Integer, String> wheel = createWheel(3);
+        wheel.schedule(1, "a", Duration.ofMinutes(1));
+        wheel.schedule(2, "b", Duration.ofMinutes(1));
+        wheel.schedule(3, "c", Duration.ofMinutes(1));
+        wheel.touch(1);
+        wheel.schedule(4, "d", Duration.ofMinutes(1));
+        assertEquals(Collections.singletonMap(2, "b"), expired);
+        wheel.schedule(5, "e", Duration.ofMinutes(1));
+        assertEquals("c", expired.get(3));
+        assertEquals(3, wheel.size());
+    }
+
+    @Test
+    public void expiresManyAsSweep() throws Exception {
+        ExpiryWheel<Integer, String> wheel = createWheel(1_000_000);
+        Random random = new Random(1);
+        int[] ttls = new int[100_000];
+        for (int i = 0; i < ttls.length; i++) {
+            ttls[i] = 10 + random.nextInt(20 * 60 * 1000);
+            wheel.schedule(i, "", Duration.ofMillis(ttls[i]));
+        }
+        for (long elapsed = 0; elapsed <= 20 * 60 * 1000 + 1000; elapsed += 1000) {
+            if (elapsed > 0)
+                advance(wheel, 1000);
+            int shouldBe = 0;
+            int couldBe = 0;
+            for (int ttl : ttls) {
+                if (ttl + 10 <= elapsed)
+                    shouldBe++;
+                if (ttl <= elapsed)
+                    couldBe++;
+            }
+            assertTrue(expired.size() >= shouldBe);
+            assertTrue(expired.size() <= couldBe);
+        }
+        assertEquals(ttls.length, expired.size());
+    }
+
+    @Test
+    public void mapWithLimit() throws Exception {
+        ConcurrentHashMap<Integer, String> map = new ConcurrentHashMap<>();
+        ExpiryWheel<Integer, String> wheel = new ExpiryWheel<>(Duration.ofMillis(10), 10, map::remove, now::get);
+        for (int i = 0; i < 100; i++) {
+            map.put(i, "v" + i);
+            wheel.schedule(i, "v" + i, Duration.ofMinutes(1));
+        }
+        assertEquals(10, map.size());
+        assertEquals(new HashSet<>(Arrays.asList(90, 91, 92, 93, 94, 95, 96, 97, 98, 99)), map.keySet());
+    }
+}
@@ -8,21 +8,20 @@
 package com.icodici.universa.node2;
 
 import com.icodici.universa.HashId;
-import org.junit.Ignore;
+import net.sergeych.tools.Binder;
 import org.junit.Test;
 
-import static org.junit.Assert.assertEquals;
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.*;
 
-@Ignore("in the sequence  causes SIGSEGV in java machine in sqlite module")
 public class ItemLockTest {
 
     private int count = 0;
 
-    /*
-    Until the error in sqlite finalizers is fixed, call this test separately.
-     */
     @Test
-    @Ignore("in the sequence  causes SIGSEGV in java machine in sqlite module")
     public void lock() throws Exception {
         for( int z=0; z<10; z++ ) {
             HashId id = HashId.createRandom();
@@ -36,18 +35,141 @@ public class ItemLockTest {
             il.synchronize(id, (__) -> count++);
 
             assertEquals(3, count);
-            assertEquals(1, il.size());
-            id = null;
-            for (int i = 0; i < 10; i++) {
-                System.gc();
-                System.runFinalization();
-                if (il.size() == 0)
-                    break;
-                Thread.sleep(100);
+            // the lock is released right away, no need to wait for GC
+            assertEquals(0, il.size());
+            assertEquals(3, il.getAcquisitions());
+        }
+    }
+
+    @Test
+    public void sameLockForEqualIds() throws Exception {
+        ItemLock il = new ItemLock();
+        HashId id = HashId.createRandom();
+        HashId copy = HashId.withDigest(id.getDigest().clone());
+
+        Object lock = il.synchronize(id, (l) -> {
+            try {
+                return il.synchronize(copy, (inner) -> {
+                    assertSame(l, inner);
+                    assertEquals(1, il.size());
+                    return inner;
+                });
+            } catch (Exception e) {
+                throw new RuntimeException(e);
             }
+        });
+        assertNotNull(lock);
+        assertEquals(0, il.size());
+    }
+
+    @Test
+    public void retainAndRelease() throws Exception {
+        ItemLock il = new ItemLock();
+        HashId id = HashId.createRandom();
+
+        HashIdLocks.Lock retained = il.synchronize(id, il::retain);
+        assertEquals(1, il.size());
+        assertFalse(retained.isLocked());
+
+        Object next = il.synchronize(HashId.withDigest(id.getDigest()), (l) -> l);
+        assertSame(retained, next);
+
+        il.release(retained);
+        assertEquals(0, il.size());
+
+        assertNotSame(retained, il.synchronize(id, (l) -> l));
+        // retain outside of synchronize is an error
+        try {
+            il.retain(retained);
+            fail("retain of the released lock should fail");
+        } catch (IllegalStateException e) {
             assertEquals(0, il.size());
+        }
+    }
+
+    @Test
+    public void timedLock() throws Exception {
+        ItemLock il = new ItemLock();
+        HashId id = HashId.createRandom();
+        CountDownLatch locked = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(1);
 
+        Thread holder = new Thread(() -> {
+            try {
+                il.synchronize(id, (__) -> {
+                    locked.countDown();
+                    try {
+                        done.await();
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                    return null;
+                });
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        });
+        holder.start();
+        locked.await();
+
+        count = 0;
+        try {
+            il.synchronize(id, Duration.ofMillis(50), (__) -> count++);
+            fail("should time out");
+        } catch (TimeoutException e) {
+            assertEquals(0, count);
         }
+        // other ids are not blocked
+        il.synchronize(HashId.createRandom(), Duration.ofMillis(50), (__) -> count++);
+        assertEquals(1, count);
+
+        done.countDown();
+        holder.join();
+        il.synchronize(id, Duration.ofMillis(50), (__) -> count++);
+        assertEquals(2, count);
+        assertEquals(0, il.size());
+
+        assertEquals(1, il.getTimeouts());
+        assertEquals(1, il.getContended());
+        assertEquals(1, il.getHotIds(10).size());
+        assertEquals(id, il.getHotIds(10).get(0).getKey());
+
+        Binder stats = il.getStats();
+        assertEquals(3L, stats.getLongOrThrow("acquisitions"));
+        assertEquals(1L, stats.getLongOrThrow("timeouts"));
+        assertEquals(1, stats.getListOrThrow("hot_ids").size());
+
+        il.resetStats();
+        assertEquals(0, il.getAcquisitions());
+        assertEquals(0, il.getHotIds(10).size());
     }
 
-}
\ No newline at end of file
+    @Test
+    public void contention() throws Exception {
+        ItemLock il = new ItemLock();
+        HashId id = HashId.createRandom();
+        int threads = 4, rounds = 1000;
+        count = 0;
+
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Thread(() -> {
+                for (int k = 0; k < rounds; k++) {
+                    try {
+                        il.synchronize(id, (__) -> count++);
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            });
+            workers[i].start();
+        }
+        for (Thread t : workers)
+            t.join();
+
+        assertEquals(threads * rounds, count);
+        assertEquals(threads * rounds, il.getAcquisitions());
+        assertEquals(0, il.size());
+        assertTrue(il.getMaxWaitTime().compareTo(il.getWaitTime()) <= 0);
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2018, iCodici S.n.C, All Rights Reserved
+ *
+ */
+
+package com.icodici.universa.node2;
+
+import net.sergeych.tools.Binder;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void buckets() throws Exception {
+        for (long value : new long[]{0, 1, 63, 64, 65, 127, 128, 129, 1000, 123456, LatencyHistogram.MAX_VALUE}) {
+            int index = LatencyHistogram.indexOf(value);
+            long highest = LatencyHistogram.highestValueAt(index);
+            assertTrue(value <= highest);
+            // values below SUB_BUCKETS are exact, others are within the relative error
+            assertTrue(highest - value <= value / LatencyHistogram.SUB_BUCKETS);
+            if (index > 0)
+                assertTrue(LatencyHistogram.highestValueAt(index - 1) < value);
+        }
+    }
+
+    @Test
+    public void percentiles() throws Exception {
+        LatencyHistogram h = new LatencyHistogram();
+        assertEquals(0, h.getPercentile(50));
+        for (int i = 1; i <= 10000; i++)
+            h.record(i);
+        assertEquals(10000, h.getCount());
+        assertEquals(10000, h.getMax());
+        assertEquals(5000.5, h.getMean(), 0.001);
+        assertAlmost(5000, h.getPercentile(50));
+        assertAlmost(9000, h.getPercentile(90));
+        assertAlmost(9900, h.getPercentile(99));
+        assertEquals(10000, h.getPercentile(100));
+
+        Binder b = h.toBinder();
+        assertEquals(10000, b.getLongOrThrow("count"));
+        assertEquals(h.getPercentile(99.9), b.getLongOrThrow("p999"));
+
+        h.reset();
+        assertEquals(0, h.getCount());
+        assertEquals(0, h.getPercentile(99));
+    }
+
+    @Test
+    public void concurrentRecord() throws Exception {
+        LatencyHistogram h = new LatencyHistogram();
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            futures.add(pool.submit(() -> {
+                Random random = new Random();
+                for (int i = 0; i < 100000; i++)
+                    h.record(random.nextInt(1000000));
+            }));
+        }
+        for (Future<?> f : futures)
+            f.get();
+        pool.shutdown();
+        assertEquals(800000, h.getCount());
+        assertAlmost(500000, h.getPercentile(50));
+    }
+
+    @Test
+    public void nodeMetrics() throws Exception {
+        NodeMetrics metrics = new NodeMetrics();
+        metrics.recordPhase("item.polling", System.nanoTime() - 5_000_000);
+        metrics.countVote(2);
+        metrics.countVote(2);
+        metrics.countVote(3);
+        int[] gauge = {7};
+        metrics.registerGauge("itemProcessors", () -> gauge[0]);
+
+        Binder b = metrics.toBinder();
+        Binder polling = b.getBinderOrThrow("phases").getBinderOrThrow("item.polling");
+        assertEquals(1, polling.getLongOrThrow("count"));
+        assertTrue(polling.getLongOrThrow("max") >= 5000);
+        assertEquals(2, b.getBinderOrThrow("votes").getLongOrThrow("2"));
+        assertEquals(1, b.getBinderOrThrow("votes").getLongOrThrow("3"));
+        assertEquals(7, b.getBinderOrThrow("gauges").getLongOrThrow("itemProcessors"));
+
+        metrics.reset();
+        gauge[0] = 0;
+        b = metrics.toBinder();
+        assertEquals(0, b.getBinderOrThrow("phases").getBinderOrThrow("item.polling").getLongOrThrow("count"));
+        assertTrue(b.getBinderOrThrow("votes").isEmpty());
+        assertEquals(0, b.getBinderOrThrow("gauges").getLongOrThrow("itemProcessors"));
+    }
+
+    private static void assertAlmost(long expected, long actual) {
+        assertTrue("expected about " + expected + " got " + actual,
+                Math.abs(expected - actual) <= expected / LatencyHistogram.SUB_BUCKETS + expected / 100 + 1);
+    }
+}
@@ -774,6 +774,73 @@ public class MainTest {
         mm.forEach(x -> x.shutdown());
     }
 
+    @Test
+    public void getStates() throws Exception {
+        List<Main> mm = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            mm.add(createMain("node" + (i + 1), false));
+        }
+
+        Main main = mm.get(0);
+        PrivateKey myKey = TestKeys.privateKey(3);
+        Client client = new Client(myKey, main.myInfo, null);
+
+        Contract testContract = new Contract(myKey);
+        testContract.seal();
+        assertTrue(testContract.isOk());
+        Parcel parcel = createParcelWithFreshU(client, testContract, Do.listOf(myKey));
+        client.registerParcelWithState(parcel.pack(), 8000);
+
+        HashId approvedId = parcel.getPayloadContract().getId();
+        HashId unknownId = HashId.createRandom();
+        List<ItemResult> results = client.command("getStates", "itemIds", Do.listOf(approvedId, unknownId, approvedId))
+                .getListOrThrow("itemResults");
+        assertEquals(3, results.size());
+        assertEquals(ItemState.APPROVED, results.get(0).state);
+        assertEquals(ItemState.UNDEFINED, results.get(1).state);
+        assertEquals(ItemState.APPROVED, results.get(2).state);
+        assertEquals(client.getState(approvedId).state, results.get(0).state);
+
+        mm.forEach(x -> x.shutdown());
+    }
+
+    @Test
+    public void clientGetStates() throws Exception {
+        List<Main> mm = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            mm.add(createMain("node" + (i + 1), false));
+        }
+
+        Main main = mm.get(0);
+        PrivateKey myKey = TestKeys.privateKey(3);
+        Client client = new Client(myKey, main.myInfo, null);
+
+        Contract testContract = new Contract(myKey);
+        testContract.seal();
+        assertTrue(testContract.isOk());
+        Parcel parcel = createParcelWithFreshU(client, testContract, Do.listOf(myKey));
+        client.registerParcelWithState(parcel.pack(), 8000);
+        HashId approvedId = parcel.getPayloadContract().getId();
+
+        // more than one getStates command per node, with the approved item in the second one
+        List<HashId> ids = new ArrayList<>();
+        for (int i = 0; i < ClientHTTPServer.MAX_GET_STATES_IDS + 10; i++)
+            ids.add(HashId.createRandom());
+        ids.add(approvedId);
+        ids.add(ids.get(0));
+
+        Client networkClient = new Client("http://localhost:8080", myKey, null);
+        Map<HashId, ItemResult> states = networkClient.getStates(ids);
+        assertEquals(ClientHTTPServer.MAX_GET_STATES_IDS + 11, states.size());
+        assertEquals(ItemState.APPROVED, states.get(approvedId).state);
+        for (HashId id : ids) {
+            if (!id.equals(approvedId))
+                assertEquals(ItemState.UNDEFINED, states.get(id).state);
+        }
+
+        mm.forEach(x -> x.shutdown());
+    }
+
     @Test
     public void checkUDPVerbose() throws Exception {
         List<Main> mm = new ArrayList<>();
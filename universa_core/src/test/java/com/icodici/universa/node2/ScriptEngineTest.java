@@ -580,6 +580,26 @@ public class ScriptEngineTest {
         }
     }
 
+    @Test
+    public void jsApiCompiledScriptCache() throws Exception {
+        Contract contract = new Contract(TestKeys.privateKey(0));
+        String js = "";
+        js += "var counter = (typeof counter === 'undefined') ? 1 : counter + 1;";
+        js += "result = counter + ':' + jsApiParams[0];";
+        contract.getDefinition().setJS(js.getBytes(), "client script.js", new JSApiScriptParameters());
+        contract.seal();
+
+        contract.execJS(js.getBytes(), "warm");
+        long hits = JSApiEnginePool.getCacheHits();
+        // every execution has its own globals, though the script is compiled once
+        assertEquals("1:a", contract.execJS(js.getBytes(), "a"));
+        assertEquals("1:b", contract.execJS(js.getBytes(), "b"));
+        assertTrue(JSApiEnginePool.getCacheHits() >= hits + 2);
+
+        Binder stats = JSApiEnginePool.getStats();
+        assertTrue(stats.getLongOrThrow("executions") > 0);
+    }
+
     @Test
     public void testSimpleRole() throws Exception {
         KeyAddress k0 = TestKeys.publicKey(0).getShortAddress();
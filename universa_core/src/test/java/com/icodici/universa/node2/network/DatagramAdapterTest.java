@@ -14,6 +14,7 @@ import com.icodici.universa.node2.NetConfig;
 import com.icodici.universa.node2.NodeInfo;
 import net.sergeych.boss.Boss;
 import net.sergeych.tools.AsyncEvent;
+import net.sergeych.tools.Binder;
 import net.sergeych.tools.Do;
 import org.junit.Ignore;
 import org.junit.Test;
@@ -146,6 +147,65 @@ public class DatagramAdapterTest {
     }
 
 
+    @Test
+    public void severalWorkerThreads() throws Exception {
+        int workers = UDPAdapter.getWorkerThreadsCount();
+        int dispatchers = UDPAdapter.getDispatchThreadsCount();
+        UDPAdapter.setWorkerThreadsCount(4);
+        UDPAdapter.setDispatchThreadsCount(4);
+
+        // senders ids fall to different workers and dispatchers
+        List<NodeInfo> nodes = new ArrayList<>();
+        for (int i = 0; i < 5; i++)
+            nodes.add(new NodeInfo(TestKeys.publicKey(i), 10 + i, "test_node_" + (10 + i), "localhost",
+                    16211 + i, 16221 + i, 16311 + i));
+        NetConfig nc = new NetConfig(nodes);
+
+        List<DatagramAdapter> adapters = new ArrayList<>();
+        try {
+            for (int i = 0; i < nodes.size(); i++)
+                adapters.add(new UDPAdapter(TestKeys.privateKey(i), new SymmetricKey(), nodes.get(i), nc));
+        } finally {
+            UDPAdapter.setWorkerThreadsCount(workers);
+            UDPAdapter.setDispatchThreadsCount(dispatchers);
+        }
+
+        int count = 100;
+        Map<Integer, List<Integer>> received = new HashMap<>();
+        Map<Integer, Set<String>> receivingThreads = new HashMap<>();
+        CountDownLatch allReceived = new CountDownLatch(count * (nodes.size() - 1));
+        adapters.get(0).receive(d -> {
+            String[] parts = new String(d).split(":");
+            int sender = Integer.parseInt(parts[0]);
+            synchronized (received) {
+                received.computeIfAbsent(sender, k -> new ArrayList<>()).add(Integer.parseInt(parts[1]));
+                receivingThreads.computeIfAbsent(sender, k -> new HashSet<>()).add(Thread.currentThread().getName());
+            }
+            allReceived.countDown();
+        });
+
+        for (int n = 0; n < count; n++)
+            for (int i = 1; i < nodes.size(); i++)
+                adapters.get(i).send(nodes.get(0), (nodes.get(i).getNumber() + ":" + n).getBytes());
+
+        assertTrue(allReceived.await(30, TimeUnit.SECONDS));
+        Set<String> allThreads = new HashSet<>();
+        for (int i = 1; i < nodes.size(); i++) {
+            List<Integer> fromSender = received.get(nodes.get(i).getNumber());
+            // every payload once and in the order it was sent
+            assertEquals(count, fromSender.size());
+            for (int n = 0; n < count; n++)
+                assertEquals(n, (int) fromSender.get(n));
+            // payloads of one sender are delivered by one thread, so they are never reordered
+            Set<String> threads = receivingThreads.get(nodes.get(i).getNumber());
+            assertEquals(1, threads.size());
+            allThreads.addAll(threads);
+        }
+        assertEquals(nodes.size() - 1, allThreads.size());
+
+        adapters.forEach(DatagramAdapter::shutdown);
+    }
+
     @Test
     public void sendTrippleAndReceive() throws Exception {
 
@@ -1131,6 +1191,80 @@ public class DatagramAdapterTest {
     }
 
 
+    @Test
+    public void lostAndShufflePacketsBurst() throws Exception {
+        // send bursts both ways while packets (and ACKs) are lost and shuffled,
+        // everything should be delivered once within the session windows
+
+        NodeInfo node1 = new NodeInfo(TestKeys.publicKey(0),10, "test_node_10", "localhost", 16201, 16202, 16301);
+        NodeInfo node2 = new NodeInfo(TestKeys.publicKey(1),11, "test_node_11", "localhost", 16203, 16204, 16302);
+
+        List<NodeInfo> nodes = new ArrayList<>();
+        nodes.add(node1);
+        nodes.add(node2);
+
+        NetConfig nc = new NetConfig(nodes);
+
+        DatagramAdapter d1 = new UDPAdapter(TestKeys.privateKey(0), new SymmetricKey(), node1, nc);
+        DatagramAdapter d2 = new UDPAdapter(TestKeys.privateKey(1), new SymmetricKey(), node2, nc);
+
+        d1.setTestMode(DatagramAdapter.TestModes.LOST_AND_SHUFFLE_PACKETS);
+        d2.setTestMode(DatagramAdapter.TestModes.LOST_AND_SHUFFLE_PACKETS);
+        d1.setLostPacketsPercentInTestMode(30);
+        d2.setLostPacketsPercentInTestMode(30);
+
+        final int count = 1000;
+        Set<String> receivedFor1 = ConcurrentHashMap.newKeySet();
+        Set<String> receivedFor2 = ConcurrentHashMap.newKeySet();
+        AtomicInteger duplicates = new AtomicInteger(0);
+        CountDownLatch latch = new CountDownLatch(2 * count);
+
+        d1.receive(d -> {
+            if (receivedFor1.add(new String(d)))
+                latch.countDown();
+            else
+                duplicates.incrementAndGet();
+        });
+        d2.receive(d -> {
+            if (receivedFor2.add(new String(d)))
+                latch.countDown();
+            else
+                duplicates.incrementAndGet();
+        });
+
+        Set<String> sentTo1 = new HashSet<>();
+        Set<String> sentTo2 = new HashSet<>();
+        for (int i = 0; i < count; i++) {
+            String to2 = "test_message_1_to_2_" + i;
+            String to1 = "test_message_2_to_1_" + i;
+            d1.send(node2, to2.getBytes());
+            d2.send(node1, to1.getBytes());
+            sentTo2.add(to2);
+            sentTo1.add(to1);
+        }
+
+        latch.await(60, TimeUnit.SECONDS);
+
+        Binder stats1 = ((UDPAdapter)d1).getStats();
+        Binder stats2 = ((UDPAdapter)d2).getStats();
+
+        d1.shutdown();
+        d2.shutdown();
+
+        assertEquals(sentTo2, receivedFor2);
+        assertEquals(sentTo1, receivedFor1);
+        assertEquals(0, duplicates.get());
+
+        for (Binder stats : asList(stats1, stats2)) {
+            assertEquals(0, stats.getLongOrThrow("send_dropped"));
+            assertTrue(stats.getLongOrThrow("dispatched") >= count);
+            // lost packets are retransmitted
+            assertTrue(stats.getLongOrThrow("retransmitted") > 0);
+            assertTrue(stats.getLongOrThrow("acks_sent") > 0);
+        }
+    }
+
+
     @Ignore //support of big data was removed from UDPAdapter
     @Test
     public void shufflePackets() throws Exception {
@@ -0,0 +1,207 @@
+/*
+ * Copyright (c) 2018, iCodici S.n.C, All Rights Reserved
+ *
+ */
+
+package com.icodici.universa.node2.network;
+
+import com.icodici.universa.HashId;
+import com.icodici.universa.node.ItemResult;
+import com.icodici.universa.node.ItemState;
+import com.icodici.universa.node.network.TestKeys;
+import com.icodici.universa.node2.ItemNotification;
+import com.icodici.universa.node2.NodeInfo;
+import com.icodici.universa.node2.Notification;
+import net.sergeych.boss.Boss;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.*;
+
+public class NotificationBatcherTest {
+
+    private NodeInfo node1;
+    private NodeInfo node2;
+    private NodeInfo node3;
+
+    private final Map<Integer, List<byte[]>> sent = new ConcurrentHashMap<>();
+
+    @Before
+    public void setUp() throws Exception {
+        node1 = new NodeInfo(TestKeys.publicKey(0),1, "test_node_1", "localhost", 17101, 17102, 17104);
+        node2 = new NodeInfo(TestKeys.publicKey(1),2, "test_node_2", "localhost", 17111, 17112, 17114);
+        node3 = new NodeInfo(TestKeys.publicKey(2),3, "test_node_3", "localhost", 17121, 17122, 17124);
+    }
+
+    private byte[] packHeader(int count) {
+        try {
+            Boss.Writer w = new Boss.Writer();
+            w.write(1, node1.getNumber(), count);
+            return w.toByteArray();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private List<Notification> unpack(byte[] packed) throws Exception {
+        Boss.Reader r = new Boss.Reader(packed);
+        assertEquals(1, r.readInt());
+        assertEquals(node1.getNumber(), r.readInt());
+        int count = r.readInt();
+        List<Notification> result = new ArrayList<>();
+        for (int i = 0; i < count; i++)
+            result.add(Notification.read(node1, r));
+        return result;
+    }
+
+    private NotificationBatcher createBatcher() {
+        return new NotificationBatcher(this::packHeader,
+                (node, data) -> sent.computeIfAbsent(node.getNumber(), (k) -> new CopyOnWriteArrayList<>()).add(data));
+    }
+
+    private ItemNotification createNotification() {
+        ZonedDateTime now = ZonedDateTime.now().truncatedTo(ChronoUnit.SECONDS);
+        ItemResult ir = new ItemResult(ItemState.PENDING, false, now, now.plusDays(30));
+        return new ItemNotification(node1, HashId.createRandom(), ir, true);
+    }
+
+    @Test
+    public void batchesBySize() throws Exception {
+        NotificationBatcher batcher = createBatcher();
+        batcher.setFlushWindow(Duration.ofSeconds(10));
+
+        List<Notification> source = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            ItemNotification n = createNotification();
+            source.add(n);
+            batcher.deliver(node2, n);
+        }
+        batcher.flushAll();
+
+        List<Notification> received = new ArrayList<>();
+        for (byte[] packed : sent.get(2)) {
+            assertTrue(packed.length <= NotificationBatcher.MAX_BATCH_BYTES);
+            received.addAll(unpack(packed));
+        }
+        assertEquals(source, received);
+        assertTrue(sent.get(2).size() < source.size());
+        assertEquals(sent.get(2).size(), batcher.getDatagramsSent());
+        assertEquals(source.size(), batcher.getNotificationsSent());
+        assertTrue(batcher.getNotificationsPerDatagram() > 1);
+        batcher.shutdown();
+    }
+
+    @Test
+    public void flushesByWindow() throws Exception {
+        NotificationBatcher batcher = createBatcher();
+        batcher.setFlushWindow(Duration.ofMillis(50));
+
+        ItemNotification n1 = createNotification();
+        ItemNotification n2 = createNotification();
+        batcher.deliver(node2, n1);
+        batcher.deliver(node2, n2);
+        assertNull(sent.get(2));
+
+        Thread.sleep(300);
+        assertEquals(1, sent.get(2).size());
+        assertEquals(asList(n1, n2), unpack(sent.get(2).get(0)));
+        assertEquals(2, batcher.getMaxNotificationsPerDatagram());
+        batcher.shutdown();
+    }
+
+    @Test
+    public void broadcast() throws Exception {
+        NotificationBatcher batcher = createBatcher();
+        batcher.setFlushWindow(Duration.ofMillis(50));
+
+        ItemNotification n1 = createNotification();
+        ItemNotification n2 = createNotification();
+        batcher.broadcast(asList(node2, node3), n1);
+        batcher.deliver(node3, n2);
+
+        Thread.sleep(300);
+        assertEquals(1, sent.get(2).size());
+        assertEquals(asList(n1), unpack(sent.get(2).get(0)));
+        assertEquals(1, sent.get(3).size());
+        assertEquals(asList(n1, n2), unpack(sent.get(3).get(0)));
+        assertEquals(2, batcher.getDatagramsSent());
+        // notifications are packed once and the batch is exactly the header and the packed notifications
+        assertEquals(packHeader(2).length + NotificationBatcher.pack(n1).length + NotificationBatcher.pack(n2).length,
+                sent.get(3).get(0).length);
+        batcher.shutdown();
+    }
+
+    @Test
+    public void zeroWindowSendsAtOnce() throws Exception {
+        NotificationBatcher batcher = createBatcher();
+        batcher.setFlushWindow(Duration.ZERO);
+
+        for (int i = 0; i < 5; i++)
+            batcher.deliver(node2, createNotification());
+
+        assertEquals(5, sent.get(2).size());
+        assertEquals(1.0, batcher.getNotificationsPerDatagram(), 0.0001);
+        batcher.shutdown();
+    }
+
+    @Test
+    public void holdsRefusedDatagrams() throws Exception {
+        AtomicBoolean node2Full = new AtomicBoolean(true);
+        NotificationBatcher batcher = new NotificationBatcher(this::packHeader, (node, data) -> {
+            if (node.getNumber() == 2 && node2Full.get())
+                return false;
+            return sent.computeIfAbsent(node.getNumber(), (k) -> new CopyOnWriteArrayList<>()).add(data);
+        });
+        batcher.setFlushWindow(Duration.ZERO);
+
+        List<Notification> notifications = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            ItemNotification n = createNotification();
+            notifications.add(n);
+            batcher.broadcast(asList(node2, node3), n);
+        }
+        // the full node does not delay the others
+        assertEquals(3, sent.get(3).size());
+        assertNull(sent.get(2));
+        assertEquals(3, batcher.getDatagramsSent());
+
+        Thread.sleep(NotificationBatcher.RETRY_DELAY.toMillis() * 3);
+        assertNull(sent.get(2));
+        assertTrue(batcher.getDatagramsRefused() > 3);
+
+        // held ones go first, in order
+        node2Full.set(false);
+        ItemNotification last = createNotification();
+        notifications.add(last);
+        batcher.deliver(node2, last);
+        Thread.sleep(NotificationBatcher.RETRY_DELAY.toMillis() * 3);
+        List<Notification> received = new ArrayList<>();
+        for (byte[] data : sent.get(2))
+            received.addAll(unpack(data));
+        assertEquals(notifications, received);
+        assertEquals(0, batcher.getDatagramsDropped());
+        batcher.shutdown();
+    }
+
+    @Test
+    public void dropsOldestHeldDatagrams() throws Exception {
+        NotificationBatcher batcher = new NotificationBatcher(this::packHeader, (node, data) -> false);
+        batcher.setFlushWindow(Duration.ZERO);
+
+        for (int i = 0; i < NotificationBatcher.MAX_HELD_DATAGRAMS + 10; i++)
+            batcher.deliver(node2, createNotification());
+        assertEquals(10, batcher.getDatagramsDropped());
+        assertEquals(0, batcher.getDatagramsSent());
+        batcher.shutdown();
+    }
+}